@@ -0,0 +1,472 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.BenchmarkHelpers;
+
+import static com.example.adservices.samples.fledge.SdkExtensionsHelpers.VersionCompatUtil.isTestableVersion;
+
+import android.adservices.adselection.AdSelectionConfig;
+import android.adservices.adselection.AdSelectionFromOutcomesConfig;
+import android.adservices.adselection.AdSelectionManager;
+import android.adservices.adselection.AdSelectionOutcome;
+import android.adservices.adselection.GetAdSelectionDataOutcome;
+import android.adservices.adselection.GetAdSelectionDataRequest;
+import android.adservices.adselection.PersistAdSelectionResultRequest;
+import android.adservices.adselection.RemoveAdSelectionOverrideRequest;
+import android.adservices.adselection.ReportEventRequest;
+import android.adservices.adselection.ReportImpressionRequest;
+import android.adservices.adselection.TestAdSelectionManager;
+import android.adservices.adselection.UpdateAdCounterHistogramRequest;
+import android.adservices.common.AdSelectionSignals;
+import android.adservices.common.AdTechIdentifier;
+import android.adservices.common.FrequencyCapFilters;
+import android.adservices.customaudience.CustomAudienceManager;
+import android.adservices.customaudience.LeaveCustomAudienceRequest;
+import android.adservices.customaudience.RemoveCustomAudienceOverrideRequest;
+import android.adservices.customaudience.TestCustomAudienceManager;
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Debug;
+import android.os.OutcomeReceiver;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.WorkerThread;
+import androidx.concurrent.futures.CallbackToFutureAdapter;
+import com.example.adservices.samples.fledge.MetricsHelpers.LatencyHistogram;
+import com.example.adservices.samples.fledge.clients.AdSelectionBackend;
+import com.example.adservices.samples.fledge.clients.AdSelectionClient;
+import com.example.adservices.samples.fledge.clients.CustomAudienceClient;
+import com.example.adservices.samples.fledge.clients.TestAdSelectionClient;
+import com.example.adservices.samples.fledge.clients.TestCustomAudienceClient;
+import com.example.adservices.samples.fledge.sampleapp.MainActivity;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Measures the per-call overhead the client wrappers add on top of the AdServices managers.
+ *
+ * <p>The wrapper layer is split into its three costs, each timed in a tight loop after a warm-up:
+ * adapting a callback into a future, allocating the {@link OutcomeReceiver}, and hopping onto the
+ * callback executor. Each client is then compared against the manager it wraps by issuing the same
+ * idempotent call both ways, so the difference between the two histograms is what the wrapper
+ * costs end to end.
+ *
+ * <p>The platform calls target audiences, overrides and ad selection ids that do not exist, so they
+ * leave no state behind. They may fail, e.g. when the app is not in developer mode or is being
+ * throttled; failures are counted and reported next to the latencies rather than aborting the run.
+ */
+@RequiresApi(api = 34)
+public final class ClientOverheadBenchmark {
+  private static final int WARMUP_BATCHES = 50;
+  private static final int MEASURED_BATCHES = 500;
+  private static final int OPS_PER_BATCH = 100;
+  private static final int PLATFORM_WARMUP_CALLS = 3;
+  private static final int PLATFORM_MEASURED_CALLS = 20;
+  private static final long PLATFORM_TIMEOUT_MS = 10000;
+  private static final int ALLOCATION_WARMUP_CALLS = 1000;
+  private static final int ALLOCATION_MEASURED_CALLS = 10000;
+
+  /**
+   * Objects a steady-state {@link AdSelectionClient#selectAds(AdSelectionConfig)} call may
+   * allocate: the future that doubles as the receiver, and the admission lambda.
+   */
+  public static final int MAX_AUCTION_PATH_ALLOCATIONS = 2;
+
+  private static final AdTechIdentifier BENCHMARK_BUYER =
+      AdTechIdentifier.fromString("benchmark.example");
+  private static final String BENCHMARK_NAME = "client_overhead_benchmark";
+  private static final long BENCHMARK_AD_SELECTION_ID = -1;
+
+  private final Executor mExecutor;
+  private final AdSelectionManager mAdSelectionManager;
+  private final TestAdSelectionManager mTestAdSelectionManager;
+  private final CustomAudienceManager mCustomAudienceManager;
+  private final TestCustomAudienceManager mTestCustomAudienceManager;
+  private final AdSelectionClient mAdSelectionClient;
+  private final TestAdSelectionClient mTestAdSelectionClient;
+  private final CustomAudienceClient mCustomAudienceClient;
+  private final TestCustomAudienceClient mTestCustomAudienceClient;
+
+  // Written by every measured operation so that the JIT cannot drop the work being measured.
+  private volatile Object mSink;
+
+  public ClientOverheadBenchmark(@NonNull Context context, @NonNull Executor executor) {
+    mExecutor = executor;
+    mAdSelectionManager = AdSelectionManager.get(context);
+    mTestAdSelectionManager = mAdSelectionManager.getTestAdSelectionManager();
+    mCustomAudienceManager = CustomAudienceManager.get(context);
+    mTestCustomAudienceManager = mCustomAudienceManager.getTestCustomAudienceManager();
+    mAdSelectionClient =
+        new AdSelectionClient.Builder().setContext(context).setExecutor(executor).build();
+    mTestAdSelectionClient =
+        new TestAdSelectionClient.Builder().setContext(context).setExecutor(executor).build();
+    mCustomAudienceClient =
+        new CustomAudienceClient.Builder().setContext(context).setExecutor(executor).build();
+    mTestCustomAudienceClient =
+        new TestCustomAudienceClient.Builder().setContext(context).setExecutor(executor).build();
+  }
+
+  /**
+   * Runs every benchmark and returns one summary line per measurement, in the order they ran.
+   *
+   * <p>This blocks for several seconds and must not be called on the main thread.
+   */
+  @WorkerThread
+  @NonNull
+  public List<String> run() throws InterruptedException {
+    List<String> report = new ArrayList<>();
+    report.add(measureFutureAdaptation().toString());
+    report.add(measureReceiverAllocation().toString());
+    report.add(measureExecutorHop().toString());
+    report.add(measureAuctionPathAllocations());
+    report.addAll(measureCustomAudienceClient());
+    report.addAll(measureTestCustomAudienceClient());
+    report.addAll(measureAdSelectionClient());
+    report.addAll(measureTestAdSelectionClient());
+    for (String line : report) {
+      Log.i(MainActivity.TAG, "Benchmark " + line);
+    }
+    return report;
+  }
+
+  /**
+   * Cost of wrapping an already completed callback with {@link CallbackToFutureAdapter}, as a
+   * reference for the receiver-future bridge measured by {@link #measureAuctionPathAllocations}.
+   */
+  private LatencyHistogram measureFutureAdaptation() throws InterruptedException {
+    return measureBatches(
+        "futureAdaptation",
+        () ->
+            mSink =
+                CallbackToFutureAdapter.getFuture(
+                    completer -> {
+                      completer.set(null);
+                      return "futureAdaptation";
+                    }));
+  }
+
+  /** Cost of allocating and invoking the per-call anonymous {@link OutcomeReceiver}. */
+  private LatencyHistogram measureReceiverAllocation() throws InterruptedException {
+    return measureBatches(
+        "receiverAllocation",
+        () -> {
+          OutcomeReceiver<Object, Exception> receiver =
+              new OutcomeReceiver<Object, Exception>() {
+                @Override
+                public void onResult(Object result) {
+                  mSink = result;
+                }
+
+                @Override
+                public void onError(Exception error) {
+                  mSink = error;
+                }
+              };
+          receiver.onResult(receiver);
+        });
+  }
+
+  /** Round trip of handing a callback to the client executor and waiting for it to run. */
+  private LatencyHistogram measureExecutorHop() throws InterruptedException {
+    return measureBatches(
+        "executorHop",
+        () -> {
+          CountDownLatch latch = new CountDownLatch(1);
+          mExecutor.execute(latch::countDown);
+          latch.await();
+        });
+  }
+
+  /**
+   * Counts the objects allocated per {@link AdSelectionClient#selectAds(AdSelectionConfig)} call
+   * once warmed up, against a backend that answers synchronously with a preallocated outcome, so
+   * that only the client layer is counted.
+   */
+  @SuppressWarnings("deprecation") // The thread allocation counters are the only per-object ones.
+  private String measureAuctionPathAllocations() {
+    AdSelectionClient client =
+        new AdSelectionClient.Builder()
+            .setExecutor(MoreExecutors.directExecutor())
+            .setBackend(new ImmediateAdSelectionBackend())
+            .build();
+    AdSelectionConfig config = createAdSelectionConfig();
+    for (int i = 0; i < ALLOCATION_WARMUP_CALLS; i++) {
+      mSink = Futures.getUnchecked(client.selectAds(config));
+    }
+
+    Debug.resetThreadAllocCount();
+    Debug.resetThreadAllocSize();
+    Debug.startAllocCounting();
+    try {
+      for (int i = 0; i < ALLOCATION_MEASURED_CALLS; i++) {
+        mSink = Futures.getUnchecked(client.selectAds(config));
+      }
+    } finally {
+      Debug.stopAllocCounting();
+    }
+    double objectsPerCall = (double) Debug.getThreadAllocCount() / ALLOCATION_MEASURED_CALLS;
+    double bytesPerCall = (double) Debug.getThreadAllocSize() / ALLOCATION_MEASURED_CALLS;
+    return String.format(
+        Locale.US,
+        "selectAdsAllocations: %.2f objects/call %.1f bytes/call (bound %d): %s",
+        objectsPerCall,
+        bytesPerCall,
+        MAX_AUCTION_PATH_ALLOCATIONS,
+        objectsPerCall <= MAX_AUCTION_PATH_ALLOCATIONS ? "PASS" : "FAIL");
+  }
+
+  private List<String> measureCustomAudienceClient() throws InterruptedException {
+    LeaveCustomAudienceRequest request =
+        new LeaveCustomAudienceRequest.Builder()
+            .setBuyer(BENCHMARK_BUYER)
+            .setName(BENCHMARK_NAME)
+            .build();
+    return comparePlatformCall(
+        "leaveCustomAudience",
+        receiver -> mCustomAudienceManager.leaveCustomAudience(request, mExecutor, receiver),
+        () -> mCustomAudienceClient.leaveCustomAudience(BENCHMARK_BUYER, BENCHMARK_NAME));
+  }
+
+  private List<String> measureTestCustomAudienceClient() throws InterruptedException {
+    RemoveCustomAudienceOverrideRequest request =
+        new RemoveCustomAudienceOverrideRequest.Builder()
+            .setBuyer(BENCHMARK_BUYER)
+            .setName(BENCHMARK_NAME)
+            .build();
+    return comparePlatformCall(
+        "removeCustomAudienceRemoteInfoOverride",
+        receiver ->
+            mTestCustomAudienceManager.removeCustomAudienceRemoteInfoOverride(
+                request, mExecutor, receiver),
+        () -> mTestCustomAudienceClient.removeCustomAudienceRemoteInfoOverride(request));
+  }
+
+  @SuppressLint("NewApi")
+  private List<String> measureAdSelectionClient() throws InterruptedException {
+    if (!isTestableVersion(8, 9)) {
+      return Collections.singletonList(
+          "updateAdCounterHistogram: skipped, requires SDK extension 8 for T+ or 9 for S-");
+    }
+    UpdateAdCounterHistogramRequest request =
+        new UpdateAdCounterHistogramRequest.Builder(
+                BENCHMARK_AD_SELECTION_ID, FrequencyCapFilters.AD_EVENT_TYPE_VIEW, BENCHMARK_BUYER)
+            .build();
+    return comparePlatformCall(
+        "updateAdCounterHistogram",
+        receiver -> mAdSelectionManager.updateAdCounterHistogram(request, mExecutor, receiver),
+        () -> mAdSelectionClient.updateAdCounterHistogram(request));
+  }
+
+  private List<String> measureTestAdSelectionClient() throws InterruptedException {
+    RemoveAdSelectionOverrideRequest request =
+        new RemoveAdSelectionOverrideRequest(createAdSelectionConfig());
+    return comparePlatformCall(
+        "removeAdSelectionConfigRemoteInfoOverride",
+        receiver ->
+            mTestAdSelectionManager.removeAdSelectionConfigRemoteInfoOverride(
+                request, mExecutor, receiver),
+        () -> mTestAdSelectionClient.removeAdSelectionConfigRemoteInfoOverride(request));
+  }
+
+  private static AdSelectionConfig createAdSelectionConfig() {
+    return new AdSelectionConfig.Builder()
+        .setSeller(BENCHMARK_BUYER)
+        .setDecisionLogicUri(Uri.parse("https://" + BENCHMARK_BUYER + "/scoring"))
+        .setCustomAudienceBuyers(Collections.singletonList(BENCHMARK_BUYER))
+        .setAdSelectionSignals(AdSelectionSignals.EMPTY)
+        .setSellerSignals(AdSelectionSignals.EMPTY)
+        .setPerBuyerSignals(Collections.emptyMap())
+        .setTrustedScoringSignalsUri(Uri.parse("https://" + BENCHMARK_BUYER + "/trusted"))
+        .build();
+  }
+
+  /**
+   * Times an in-process operation in batches of {@link #OPS_PER_BATCH}, so that the cost of
+   * reading the clock does not dominate operations that only take nanoseconds, and records the
+   * per-operation average of every batch.
+   */
+  private LatencyHistogram measureBatches(String name, Operation operation)
+      throws InterruptedException {
+    LatencyHistogram histogram = new LatencyHistogram(name);
+    for (int batch = 0; batch < WARMUP_BATCHES + MEASURED_BATCHES; batch++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < OPS_PER_BATCH; i++) {
+        operation.run();
+      }
+      long perOpNanos = (System.nanoTime() - start) / OPS_PER_BATCH;
+      if (batch >= WARMUP_BATCHES) {
+        histogram.recordNanos(perOpNanos);
+      }
+    }
+    return histogram;
+  }
+
+  /**
+   * Issues the same call straight to the manager and through the client, and reports both
+   * latencies along with how many calls failed.
+   */
+  private List<String> comparePlatformCall(
+      String name, ManagerCall managerCall, Supplier<ListenableFuture<Void>> clientCall)
+      throws InterruptedException {
+    LatencyHistogram manager = new LatencyHistogram(name + "[manager]");
+    LatencyHistogram client = new LatencyHistogram(name + "[client]");
+    int managerErrors = 0;
+    int clientErrors = 0;
+    // Alternate between the two so that throttling and service warm-up affect both equally.
+    for (int i = 0; i < PLATFORM_WARMUP_CALLS + PLATFORM_MEASURED_CALLS; i++) {
+      boolean measured = i >= PLATFORM_WARMUP_CALLS;
+
+      long start = System.nanoTime();
+      boolean managerSucceeded = callManager(managerCall);
+      if (measured) {
+        manager.recordSince(start);
+        managerErrors += managerSucceeded ? 0 : 1;
+      }
+
+      start = System.nanoTime();
+      boolean clientSucceeded = callClient(clientCall);
+      if (measured) {
+        client.recordSince(start);
+        clientErrors += clientSucceeded ? 0 : 1;
+      }
+    }
+    List<String> lines = new ArrayList<>();
+    lines.add(manager + " errors=" + managerErrors);
+    lines.add(client + " errors=" + clientErrors);
+    return lines;
+  }
+
+  private boolean callManager(ManagerCall managerCall) throws InterruptedException {
+    CountDownLatch latch = new CountDownLatch(1);
+    boolean[] succeeded = new boolean[1];
+    managerCall.call(
+        new OutcomeReceiver<Object, Exception>() {
+          @Override
+          public void onResult(Object ignoredResult) {
+            succeeded[0] = true;
+            latch.countDown();
+          }
+
+          @Override
+          public void onError(Exception error) {
+            latch.countDown();
+          }
+        });
+    return latch.await(PLATFORM_TIMEOUT_MS, TimeUnit.MILLISECONDS) && succeeded[0];
+  }
+
+  private boolean callClient(Supplier<ListenableFuture<Void>> clientCall)
+      throws InterruptedException {
+    try {
+      clientCall.get().get(PLATFORM_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      return true;
+    } catch (ExecutionException | TimeoutException e) {
+      return false;
+    }
+  }
+
+  /** An in-process operation measured by {@link #measureBatches}. */
+  private interface Operation {
+    void run() throws InterruptedException;
+  }
+
+  /** A manager call that reports its outcome to {@code receiver}. */
+  private interface ManagerCall {
+    void call(OutcomeReceiver<Object, Exception> receiver);
+  }
+
+  /**
+   * Completes every auction synchronously with the same outcome, and rejects every other call, so
+   * that the backend itself allocates nothing.
+   */
+  private static final class ImmediateAdSelectionBackend implements AdSelectionBackend {
+    private static final AdSelectionOutcome OUTCOME =
+        new AdSelectionOutcome.Builder()
+            .setAdSelectionId(BENCHMARK_AD_SELECTION_ID)
+            .setRenderUri(Uri.parse("https://" + BENCHMARK_BUYER + "/render"))
+            .build();
+    private static final Exception UNSUPPORTED =
+        new UnsupportedOperationException("Only selectAds(AdSelectionConfig) is supported");
+
+    @Override
+    public void selectAds(
+        @NonNull AdSelectionConfig adSelectionConfig,
+        @NonNull Executor executor,
+        @NonNull OutcomeReceiver<AdSelectionOutcome, Exception> receiver) {
+      receiver.onResult(OUTCOME);
+    }
+
+    @Override
+    public void selectAds(
+        @NonNull AdSelectionFromOutcomesConfig adSelectionFromOutcomesConfig,
+        @NonNull Executor executor,
+        @NonNull OutcomeReceiver<AdSelectionOutcome, Exception> receiver) {
+      receiver.onError(UNSUPPORTED);
+    }
+
+    @Override
+    public void reportImpression(
+        @NonNull ReportImpressionRequest request,
+        @NonNull Executor executor,
+        @NonNull OutcomeReceiver<Object, Exception> receiver) {
+      receiver.onError(UNSUPPORTED);
+    }
+
+    @Override
+    public void reportEvent(
+        @NonNull ReportEventRequest request,
+        @NonNull Executor executor,
+        @NonNull OutcomeReceiver<Object, Exception> receiver) {
+      receiver.onError(UNSUPPORTED);
+    }
+
+    @Override
+    public void updateAdCounterHistogram(
+        @NonNull UpdateAdCounterHistogramRequest request,
+        @NonNull Executor executor,
+        @NonNull OutcomeReceiver<Object, Exception> receiver) {
+      receiver.onError(UNSUPPORTED);
+    }
+
+    @Override
+    public void getAdSelectionData(
+        @NonNull GetAdSelectionDataRequest request,
+        @NonNull Executor executor,
+        @NonNull OutcomeReceiver<GetAdSelectionDataOutcome, Exception> receiver) {
+      receiver.onError(UNSUPPORTED);
+    }
+
+    @Override
+    public void persistAdSelectionResult(
+        @NonNull PersistAdSelectionResultRequest request,
+        @NonNull Executor executor,
+        @NonNull OutcomeReceiver<AdSelectionOutcome, Exception> receiver) {
+      receiver.onError(UNSUPPORTED);
+    }
+  }
+}
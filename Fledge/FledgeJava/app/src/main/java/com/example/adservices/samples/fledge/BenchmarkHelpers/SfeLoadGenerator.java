@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.BenchmarkHelpers;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+import com.example.adservices.samples.fledge.MetricsHelpers.LatencyHistogram;
+import com.example.adservices.samples.fledge.ServerAuctionHelpers.BiddingAuctionServerClient;
+import com.example.adservices.samples.fledge.ServerAuctionHelpers.OkHttpSfeTransport;
+import com.example.adservices.samples.fledge.ServerAuctionHelpers.SelectAdsResponse;
+import com.example.adservices.samples.fledge.sampleapp.MainActivity;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import okhttp3.OkHttpClient;
+
+/**
+ * Drives server auctions at a fixed rate and reports throughput and latency, e.g. against a {@link
+ * com.example.adservices.samples.fledge.ServerAuctionHelpers.MockSfeServer} with injected latency
+ * and errors.
+ *
+ * <p>The load is open-loop: calls are started on schedule whether or not earlier ones finished, the
+ * way independent devices would send them, and latency is measured from when a call was due rather
+ * than when it was sent, so that a stalled generator does not hide queueing. Calls go through
+ * {@link BiddingAuctionServerClient#runServerAuctionAsync} so no thread waits on the server. A call
+ * that is due while {@link Builder#setMaxConcurrency} calls are in flight is dropped and counted.
+ *
+ * <p>The client's transport has to run as many calls to the SFE at once as the generator keeps in
+ * flight, or the excess waits in the transport's queue and the run measures that queue instead of
+ * the server. {@link #newTransport} returns one that does.
+ */
+public final class SfeLoadGenerator {
+  private static final String SELLER = "seller.example";
+  private static final String BUYER = "buyer.example";
+  private static final long DRAIN_TIMEOUT_MS = 10_000;
+
+  private final double mRequestsPerSecond;
+  private final int mMaxConcurrency;
+  private final long mDurationMs;
+  private final byte[] mAdSelectionData;
+
+  private SfeLoadGenerator(Builder builder) {
+    mRequestsPerSecond = builder.mRequestsPerSecond;
+    mMaxConcurrency = builder.mMaxConcurrency;
+    mDurationMs = builder.mDurationMs;
+    mAdSelectionData = new byte[builder.mAdSelectionDataSize];
+    new Random().nextBytes(mAdSelectionData);
+  }
+
+  /**
+   * Returns a transport that runs up to the configured maximum concurrency of calls to one SFE at
+   * once, for the client the load is sent through.
+   */
+  @NonNull
+  public OkHttpSfeTransport newTransport() {
+    return new OkHttpSfeTransport(
+        new OkHttpClient.Builder()
+            .dispatcher(OkHttpSfeTransport.newDispatcher(mMaxConcurrency, mMaxConcurrency))
+            .build());
+  }
+
+  /**
+   * Sends server auctions to {@code sfeAddress} through {@code client} for the configured duration,
+   * then waits for the calls in flight to finish. Blocks for the whole run and must not be called
+   * on the main thread.
+   */
+  @WorkerThread
+  @NonNull
+  public Result run(@NonNull BiddingAuctionServerClient client, @NonNull String sfeAddress)
+      throws InterruptedException {
+    Result result =
+        new Result(
+            String.format(Locale.US, "sfe load[%.0frps x%d]", mRequestsPerSecond, mMaxConcurrency));
+    Semaphore inFlight = new Semaphore(mMaxConcurrency);
+    long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / mRequestsPerSecond);
+    ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("sfe-load-%d").setDaemon(true).build());
+    long startNanos = System.nanoTime();
+    AtomicLong due = new AtomicLong();
+    try {
+      ScheduledFuture<?> ticks =
+          scheduler.scheduleAtFixedRate(
+              () -> {
+                long dueNanos = startNanos + due.getAndIncrement() * periodNanos;
+                if (!inFlight.tryAcquire()) {
+                  result.mDropped.incrementAndGet();
+                  return;
+                }
+                Futures.addCallback(
+                    client.runServerAuctionAsync(sfeAddress, SELLER, BUYER, mAdSelectionData),
+                    new FutureCallback<SelectAdsResponse>() {
+                      @Override
+                      public void onSuccess(SelectAdsResponse response) {
+                        result.mLatency.recordSince(dueNanos);
+                        result.mSucceeded.incrementAndGet();
+                        inFlight.release();
+                      }
+
+                      @Override
+                      public void onFailure(@NonNull Throwable t) {
+                        result.mFailed.incrementAndGet();
+                        inFlight.release();
+                      }
+                    },
+                    MoreExecutors.directExecutor());
+              },
+              0,
+              periodNanos,
+              TimeUnit.NANOSECONDS);
+      Thread.sleep(mDurationMs);
+      ticks.cancel(false);
+      if (!inFlight.tryAcquire(mMaxConcurrency, DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+        Log.w(MainActivity.TAG, "Load run ended with calls still in flight");
+      }
+    } finally {
+      scheduler.shutdownNow();
+    }
+    result.mElapsedNanos = System.nanoTime() - startNanos;
+    return result;
+  }
+
+  /** What a load run achieved. Latencies are only recorded for successful calls. */
+  public static final class Result {
+    private final LatencyHistogram mLatency;
+    private final AtomicLong mSucceeded = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private long mElapsedNanos;
+
+    private Result(String name) {
+      mLatency = new LatencyHistogram(name);
+    }
+
+    @NonNull
+    public LatencyHistogram getLatency() {
+      return mLatency;
+    }
+
+    public long getSucceeded() {
+      return mSucceeded.get();
+    }
+
+    public long getFailed() {
+      return mFailed.get();
+    }
+
+    /** Returns the number of calls not sent because too many were in flight. */
+    public long getDropped() {
+      return mDropped.get();
+    }
+
+    /** Returns the successful calls per second over the whole run, including the drain. */
+    public double getThroughput() {
+      return mElapsedNanos == 0
+          ? 0
+          : mSucceeded.get() * (double) TimeUnit.SECONDS.toNanos(1) / mElapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.US,
+          "%s: %.1f ok/s, ok=%d failed=%d dropped=%d; %s",
+          mLatency.getName(),
+          getThroughput(),
+          getSucceeded(),
+          getFailed(),
+          getDropped(),
+          mLatency);
+    }
+  }
+
+  /** Builder for {@link SfeLoadGenerator}. */
+  public static final class Builder {
+    private double mRequestsPerSecond = 50;
+    private int mMaxConcurrency = 16;
+    private long mDurationMs = 5000;
+    private int mAdSelectionDataSize = 4096;
+
+    /** Sets the rate calls are started at. Defaults to 50 per second. */
+    @NonNull
+    public Builder setRequestsPerSecond(double requestsPerSecond) {
+      if (requestsPerSecond <= 0) {
+        throw new IllegalArgumentException("requestsPerSecond must be positive");
+      }
+      mRequestsPerSecond = requestsPerSecond;
+      return this;
+    }
+
+    /** Sets how many calls may be in flight before further ones are dropped. Defaults to 16. */
+    @NonNull
+    public Builder setMaxConcurrency(int maxConcurrency) {
+      if (maxConcurrency <= 0) {
+        throw new IllegalArgumentException("maxConcurrency must be positive");
+      }
+      mMaxConcurrency = maxConcurrency;
+      return this;
+    }
+
+    /** Sets how long calls are started for. Defaults to 5s. */
+    @NonNull
+    public Builder setDurationMs(long durationMs) {
+      if (durationMs <= 0) {
+        throw new IllegalArgumentException("durationMs must be positive");
+      }
+      mDurationMs = durationMs;
+      return this;
+    }
+
+    /** Sets the size of the random ad selection data sent with each call. Defaults to 4KiB. */
+    @NonNull
+    public Builder setAdSelectionDataSize(int adSelectionDataSize) {
+      if (adSelectionDataSize <= 0) {
+        throw new IllegalArgumentException("adSelectionDataSize must be positive");
+      }
+      mAdSelectionDataSize = adSelectionDataSize;
+      return this;
+    }
+
+    @NonNull
+    public SfeLoadGenerator build() {
+      return new SfeLoadGenerator(this);
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.BenchmarkHelpers;
+
+import android.content.Context;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+import com.example.adservices.samples.fledge.MetricsHelpers.LatencyHistogram;
+import com.example.adservices.samples.fledge.ServerAuctionHelpers.BiddingAuctionServerClient;
+import com.example.adservices.samples.fledge.ServerAuctionHelpers.MockSfeServer;
+import com.example.adservices.samples.fledge.ServerAuctionHelpers.OkHttpSfeTransport;
+import com.example.adservices.samples.fledge.ServerAuctionHelpers.SfeTransport;
+import com.example.adservices.samples.fledge.sampleapp.MainActivity;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+
+/**
+ * Measures what connection reuse saves on server auction calls, against a {@link MockSfeServer}.
+ *
+ * <p>The same sequence of SelectAds calls is sent once through a pooled {@link
+ * OkHttpSfeTransport} and once through one whose pool keeps no idle connections, so that every
+ * call pays for a new connection. The mock server delays the first response on each connection to
+ * stand in for the handshake, which is where the two transports differ.
+ */
+public final class SfeTransportBenchmark {
+  private static final int WARMUP_CALLS = 3;
+  private static final int MEASURED_CALLS = 30;
+  private static final int AD_SELECTION_DATA_SIZE = 4096;
+  private static final String SELLER = "seller.example";
+  private static final String BUYER = "buyer.example";
+
+  private final Context mContext;
+  private final byte[] mAdSelectionData = new byte[AD_SELECTION_DATA_SIZE];
+
+  public SfeTransportBenchmark(@NonNull Context context) {
+    mContext = context;
+    new Random().nextBytes(mAdSelectionData);
+  }
+
+  /**
+   * Runs the benchmark and returns one summary line per measurement. Makes no calls off the
+   * device, but blocks for a few seconds and must not be called on the main thread.
+   */
+  @WorkerThread
+  @NonNull
+  public List<String> run() {
+    List<String> results = new ArrayList<>();
+    try (MockSfeServer server = new MockSfeServer.Builder().start()) {
+      OkHttpSfeTransport pooled = new OkHttpSfeTransport(new OkHttpClient());
+      OkHttpSfeTransport unpooled =
+          new OkHttpSfeTransport(
+              new OkHttpClient.Builder()
+                  .connectionPool(new ConnectionPool(0, 1, TimeUnit.MILLISECONDS))
+                  .build());
+
+      LatencyHistogram pooledLatency = measure("sfe[pooled]", pooled, server);
+      LatencyHistogram unpooledLatency = measure("sfe[unpooled]", unpooled, server);
+      results.add(pooledLatency.toString());
+      results.add(pooled.toString());
+      results.add(unpooledLatency.toString());
+      results.add(unpooled.toString());
+      results.add(BiddingAuctionServerClient.getCompressionStats().toString());
+      results.add(
+          String.format(
+              Locale.US,
+              "sfe reuse: p50 %dus -> %dus, mock server accepted %d connections for %d calls",
+              unpooledLatency.getPercentile(50, TimeUnit.MICROSECONDS),
+              pooledLatency.getPercentile(50, TimeUnit.MICROSECONDS),
+              server.getConnectionCount(),
+              server.getRequestCount()));
+    } catch (IOException e) {
+      Log.e(MainActivity.TAG, "SFE transport benchmark failed", e);
+      results.add("sfe transport benchmark failed: " + e.getMessage());
+    }
+    return results;
+  }
+
+  private LatencyHistogram measure(String name, SfeTransport transport, MockSfeServer server)
+      throws IOException {
+    BiddingAuctionServerClient client = new BiddingAuctionServerClient(mContext, transport);
+    String address = server.getUri().toString();
+    for (int i = 0; i < WARMUP_CALLS; i++) {
+      client.runServerAuction(address, SELLER, BUYER, mAdSelectionData);
+    }
+    LatencyHistogram latency = new LatencyHistogram(name);
+    for (int i = 0; i < MEASURED_CALLS; i++) {
+      long startNanos = System.nanoTime();
+      client.runServerAuction(address, SELLER, BUYER, mAdSelectionData);
+      latency.recordSince(startNanos);
+    }
+    return latency;
+  }
+}
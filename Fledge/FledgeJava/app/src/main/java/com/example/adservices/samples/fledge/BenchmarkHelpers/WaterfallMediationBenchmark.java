@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.BenchmarkHelpers;
+
+import static com.example.adservices.samples.fledge.WaterfallMediationHelpers.Constants.DEFAULT_STAGE_TIMEOUT_MS;
+
+import android.adservices.adselection.AdSelectionOutcome;
+import android.annotation.SuppressLint;
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.WorkerThread;
+import com.example.adservices.samples.fledge.MetricsHelpers.LatencyHistogram;
+import com.example.adservices.samples.fledge.WaterfallMediationHelpers.HeaderBiddingMediationStrategy;
+import com.example.adservices.samples.fledge.WaterfallMediationHelpers.MediationSdk;
+import com.example.adservices.samples.fledge.WaterfallMediationHelpers.NetworkAdapter;
+import com.example.adservices.samples.fledge.WaterfallMediationHelpers.WaterfallMediationEngine;
+import com.example.adservices.samples.fledge.clients.Deadline;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what running waterfall mediation without blocking saves, end to end.
+ *
+ * <p>The same mediation chain is run through the {@link WaterfallMediationEngine} and through a
+ * replay of the orchestration it replaced, which blocked on every auction and outcome selection
+ * and then slept for a second after each one that succeeded. Both make the same calls in the same
+ * order, so the difference between the two histograms is the idle time the old flow spent. The
+ * chain is also run with every network's auction started speculatively up front, and with {@link
+ * HeaderBiddingMediationStrategy header bidding}, which show what overlapping the auctions saves on
+ * top.
+ *
+ * <p>Each run makes real ad selection calls, so the chain should be backed by a {@link
+ * com.example.adservices.samples.fledge.clients.FakeAdServicesBackend} or by test overrides.
+ */
+@RequiresApi(api = 34)
+public final class WaterfallMediationBenchmark {
+  private static final int RUNS = 3;
+  private static final long BLOCKING_SETTLE_MS = 1000;
+
+  private final MediationSdk mMediationSdk;
+  private final List<NetworkAdapter> mMediationChain;
+
+  public WaterfallMediationBenchmark(
+      @NonNull MediationSdk mediationSdk, @NonNull List<NetworkAdapter> mediationChain) {
+    mMediationSdk = mediationSdk;
+    mMediationChain = mediationChain;
+  }
+
+  /**
+   * Runs the benchmark and returns one summary line per measurement. The blocking replay sleeps for
+   * seconds per run, so this must not be called on the main thread.
+   */
+  @WorkerThread
+  @NonNull
+  public List<String> run() throws InterruptedException, ExecutionException {
+    WaterfallMediationEngine engine =
+        new WaterfallMediationEngine(mMediationSdk, MoreExecutors.directExecutor());
+    WaterfallMediationEngine speculativeEngine =
+        new WaterfallMediationEngine(
+            mMediationSdk, MoreExecutors.directExecutor(), mMediationChain.size());
+    LatencyHistogram engineLatency = new LatencyHistogram("waterfall[engine]");
+    HeaderBiddingMediationStrategy bidding =
+        new HeaderBiddingMediationStrategy(MoreExecutors.directExecutor());
+    LatencyHistogram speculativeLatency = new LatencyHistogram("waterfall[speculative]");
+    LatencyHistogram biddingLatency = new LatencyHistogram("mediation[bidding]");
+    LatencyHistogram blockingLatency = new LatencyHistogram("waterfall[blocking]");
+    // Warms up the clients and the engine's code paths.
+    engine.orchestrateMediation(mMediationChain, newDeadline()).get();
+    speculativeEngine.orchestrateMediation(mMediationChain, newDeadline()).get();
+    bidding.mediate(mMediationSdk, mMediationChain, newDeadline()).get();
+    for (int i = 0; i < RUNS; i++) {
+      long startNanos = System.nanoTime();
+      engine.orchestrateMediation(mMediationChain, newDeadline()).get();
+      engineLatency.recordSince(startNanos);
+
+      startNanos = System.nanoTime();
+      speculativeEngine.orchestrateMediation(mMediationChain, newDeadline()).get();
+      speculativeLatency.recordSince(startNanos);
+
+      startNanos = System.nanoTime();
+      bidding.mediate(mMediationSdk, mMediationChain, newDeadline()).get();
+      biddingLatency.recordSince(startNanos);
+
+      startNanos = System.nanoTime();
+      runBlocking(newDeadline());
+      blockingLatency.recordSince(startNanos);
+    }
+
+    List<String> results = new ArrayList<>();
+    results.add(engineLatency.toString());
+    results.add(speculativeLatency.toString());
+    results.add(biddingLatency.toString());
+    results.add(blockingLatency.toString());
+    results.add(
+        String.format(
+            Locale.US,
+            "waterfall of %d networks: mean %dms -> %dms, %dms speculative, %dms bidding",
+            mMediationChain.size(),
+            blockingLatency.getMean(TimeUnit.MILLISECONDS),
+            engineLatency.getMean(TimeUnit.MILLISECONDS),
+            speculativeLatency.getMean(TimeUnit.MILLISECONDS),
+            biddingLatency.getMean(TimeUnit.MILLISECONDS)));
+    return results;
+  }
+
+  /**
+   * Replays the blocking orchestration the engine replaced, including its sleeps. It slept after
+   * every auction that returned an ad and every outcome selection that did not fail; auctions with
+   * no ad failed, and were not followed by a sleep.
+   */
+  @SuppressLint("NewApi")
+  private void runBlocking(Deadline deadline) throws InterruptedException {
+    AdSelectionOutcome outcome1p = mMediationSdk.runAdSelection(deadline);
+    if (outcome1p.hasOutcome()) {
+      Thread.sleep(BLOCKING_SETTLE_MS);
+    }
+    for (NetworkAdapter network3p : mMediationChain) {
+      if (outcome1p.hasOutcome()) {
+        AdSelectionOutcome outcome;
+        try {
+          outcome = mMediationSdk.runSelectOutcome(outcome1p, network3p, deadline);
+        } catch (InterruptedException e) {
+          throw e;
+        } catch (Exception e) {
+          return;
+        }
+        Thread.sleep(BLOCKING_SETTLE_MS);
+        if (outcome.hasOutcome()) {
+          return;
+        }
+      }
+      if (network3p.runAdSelection(deadline).hasOutcome()) {
+        Thread.sleep(BLOCKING_SETTLE_MS);
+        return;
+      }
+    }
+  }
+
+  /** Returns a deadline with the budget the engine gives the chain by default. */
+  private Deadline newDeadline() {
+    return Deadline.after(
+        DEFAULT_STAGE_TIMEOUT_MS * (1 + 2L * mMediationChain.size()), TimeUnit.MILLISECONDS);
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.BenchmarkHelpers;
+
+import android.os.Debug;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+import com.example.adservices.samples.fledge.ServerAuctionHelpers.AuctionConfig;
+import com.example.adservices.samples.fledge.ServerAuctionHelpers.AuctionConfigGenerator;
+import com.example.adservices.samples.fledge.ServerAuctionHelpers.SelectAdsBinaryCodec;
+import com.example.adservices.samples.fledge.ServerAuctionHelpers.SelectAdsCodec;
+import com.example.adservices.samples.fledge.ServerAuctionHelpers.SelectAdsRequest;
+import com.example.adservices.samples.fledge.sampleapp.MainActivity;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares the JSON and binary SelectAds wire formats on bytes sent and received and on the CPU
+ * time it takes to encode a request and decode a response, for a small and a large ciphertext.
+ *
+ * <p>Both formats are run in memory, so the numbers exclude the network and the transport.
+ */
+public final class WireFormatBenchmark {
+  private static final int[] CIPHERTEXT_SIZES = {2 * 1024, 64 * 1024};
+  private static final int WARMUP_ITERATIONS = 20;
+  private static final int MEASURED_ITERATIONS = 200;
+  private static final String CLIENT_TYPE = "CLIENT_TYPE_ANDROID";
+
+  private final AuctionConfig mAuctionConfig =
+      AuctionConfigGenerator.getAuctionConfig("seller.example", "buyer.example");
+
+  // Written by every measured operation so that the JIT cannot drop the work being measured.
+  private volatile Object mSink;
+
+  /** Runs the benchmark and returns one summary line per format and ciphertext size. */
+  @WorkerThread
+  @NonNull
+  public List<String> run() {
+    List<String> results = new ArrayList<>();
+    try {
+      measureAll(results);
+    } catch (IOException e) {
+      Log.e(MainActivity.TAG, "Wire format benchmark failed", e);
+      results.add("wire format benchmark failed: " + e.getMessage());
+    }
+    return results;
+  }
+
+  private void measureAll(List<String> results) throws IOException {
+    Random random = new Random();
+    for (int size : CIPHERTEXT_SIZES) {
+      byte[] ciphertext = new byte[size];
+      random.nextBytes(ciphertext);
+      byte[] jsonResponse =
+          ("{\"auctionResultCiphertext\":\"" + BaseEncoding.base64().encode(ciphertext) + "\"}")
+              .getBytes(StandardCharsets.UTF_8);
+      byte[] binaryResponse = binaryResponse(ciphertext);
+
+      results.add(
+          summarize(
+              "json",
+              size,
+              measureEncode(out -> encodeJson(ciphertext, out)),
+              jsonResponse.length,
+              measureDecode(
+                  () ->
+                      SelectAdsCodec.readResponse(new ByteArrayInputStream(jsonResponse))
+                          .getAuctionResultCiphertextBytes())));
+      results.add(
+          summarize(
+              "binary",
+              size,
+              measureEncode(
+                  out ->
+                      SelectAdsBinaryCodec.writeRequest(
+                          mAuctionConfig, CLIENT_TYPE, ciphertext, out)),
+              binaryResponse.length,
+              measureDecode(
+                  () ->
+                      SelectAdsBinaryCodec.readResponse(new ByteArrayInputStream(binaryResponse))
+                          .getAuctionResultCiphertextBytes())));
+    }
+  }
+
+  private void encodeJson(byte[] ciphertext, OutputStream out) throws IOException {
+    SelectAdsRequest request =
+        SelectAdsRequest.builder()
+            .setAuctionConfig(mAuctionConfig)
+            .setClientType(CLIENT_TYPE)
+            .setProtectedAudienceCiphertext(BaseEncoding.base64().encode(ciphertext))
+            .build();
+    SelectAdsCodec.writeRequest(request, out);
+  }
+
+  /** Returns the request size in bytes and the mean CPU time per encode in nanoseconds. */
+  private long[] measureEncode(Encoder encoder) throws IOException {
+    CountingOutputStream counter = new CountingOutputStream(ByteStreams.nullOutputStream());
+    encoder.encode(counter);
+    long requestBytes = counter.getCount();
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      encoder.encode(ByteStreams.nullOutputStream());
+    }
+    long startCpuNanos = Debug.threadCpuTimeNanos();
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      encoder.encode(ByteStreams.nullOutputStream());
+    }
+    return new long[] {
+      requestBytes, (Debug.threadCpuTimeNanos() - startCpuNanos) / MEASURED_ITERATIONS
+    };
+  }
+
+  /** Returns the mean CPU time per decode in nanoseconds. */
+  private long measureDecode(Decoder decoder) throws IOException {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      mSink = decoder.decode();
+    }
+    long startCpuNanos = Debug.threadCpuTimeNanos();
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      mSink = decoder.decode();
+    }
+    return (Debug.threadCpuTimeNanos() - startCpuNanos) / MEASURED_ITERATIONS;
+  }
+
+  private static String summarize(
+      String format, int ciphertextSize, long[] encode, long responseBytes, long decodeNanos) {
+    return String.format(
+        Locale.US,
+        "wire[%s, %dKiB]: request=%dB response=%dB encodeCpu=%dus decodeCpu=%dus",
+        format,
+        ciphertextSize / 1024,
+        encode[0],
+        responseBytes,
+        encode[1] / 1000,
+        decodeNanos / 1000);
+  }
+
+  private static byte[] binaryResponse(byte[] ciphertext) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(bytes);
+    data.writeByte(1);
+    data.writeInt(ciphertext.length);
+    data.write(ciphertext);
+    return bytes.toByteArray();
+  }
+
+  private interface Encoder {
+    void encode(OutputStream out) throws IOException;
+  }
+
+  private interface Decoder {
+    Object decode() throws IOException;
+  }
+}
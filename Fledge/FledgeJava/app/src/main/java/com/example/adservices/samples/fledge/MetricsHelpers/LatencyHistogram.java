@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.MetricsHelpers;
+
+import androidx.annotation.NonNull;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe, fixed-size latency histogram.
+ *
+ * <p>Durations are recorded in nanoseconds into log-linear buckets: every power of two is split
+ * into {@value #SUB_BUCKETS} equal sub-buckets, so percentiles are accurate to within about 6%
+ * while recording stays allocation-free and lock-free.
+ */
+public final class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKET_COUNT = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final String mName;
+  private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong mCount = new AtomicLong();
+  private final AtomicLong mSumNanos = new AtomicLong();
+  private final AtomicLong mMaxNanos = new AtomicLong();
+
+  public LatencyHistogram(@NonNull String name) {
+    mName = name;
+  }
+
+  @NonNull
+  public String getName() {
+    return mName;
+  }
+
+  /** Records a duration. Negative durations are recorded as zero. */
+  public void record(long duration, @NonNull TimeUnit unit) {
+    recordNanos(unit.toNanos(duration));
+  }
+
+  /** Records the time elapsed since {@code startNanos}, as returned by {@link System#nanoTime}. */
+  public void recordSince(long startNanos) {
+    recordNanos(System.nanoTime() - startNanos);
+  }
+
+  /** Records a duration in nanoseconds. Negative durations are recorded as zero. */
+  public void recordNanos(long nanos) {
+    long value = Math.max(0, nanos);
+    mBuckets.incrementAndGet(bucketIndex(value));
+    mCount.incrementAndGet();
+    mSumNanos.addAndGet(value);
+    long max;
+    while (value > (max = mMaxNanos.get()) && !mMaxNanos.compareAndSet(max, value)) {
+      // Retry until the max is updated or another thread recorded a larger value.
+    }
+  }
+
+  /** Returns the number of recorded durations. */
+  public long getCount() {
+    return mCount.get();
+  }
+
+  /** Returns the mean of the recorded durations, or zero if nothing was recorded. */
+  public long getMean(@NonNull TimeUnit unit) {
+    long count = mCount.get();
+    return count == 0 ? 0 : unit.convert(mSumNanos.get() / count, TimeUnit.NANOSECONDS);
+  }
+
+  /** Returns the largest recorded duration. */
+  public long getMax(@NonNull TimeUnit unit) {
+    return unit.convert(mMaxNanos.get(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Returns an upper bound of the {@code percentile}th recorded duration, or zero if nothing was
+   * recorded.
+   *
+   * @param percentile a value in {@code [0, 100]}.
+   */
+  public long getPercentile(double percentile, @NonNull TimeUnit unit) {
+    if (percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException("percentile must be in [0, 100], was " + percentile);
+    }
+    long count = mCount.get();
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += mBuckets.get(i);
+      if (seen >= rank) {
+        long upperBound = i + 1 < BUCKET_COUNT ? bucketLowerBound(i + 1) - 1 : Long.MAX_VALUE;
+        return unit.convert(Math.min(upperBound, mMaxNanos.get()), TimeUnit.NANOSECONDS);
+      }
+    }
+    return unit.convert(mMaxNanos.get(), TimeUnit.NANOSECONDS);
+  }
+
+  /** Clears every recorded duration. */
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      mBuckets.set(i, 0);
+    }
+    mCount.set(0);
+    mSumNanos.set(0);
+    mMaxNanos.set(0);
+  }
+
+  /** Returns a one-line summary in microseconds, e.g. for the event log. */
+  @NonNull
+  @Override
+  public String toString() {
+    return String.format(
+        Locale.US,
+        "%s: n=%d mean=%dus p50=%dus p90=%dus p99=%dus max=%dus",
+        mName,
+        getCount(),
+        getMean(TimeUnit.MICROSECONDS),
+        getPercentile(50, TimeUnit.MICROSECONDS),
+        getPercentile(90, TimeUnit.MICROSECONDS),
+        getPercentile(99, TimeUnit.MICROSECONDS),
+        getMax(TimeUnit.MICROSECONDS));
+  }
+
+  private static int bucketIndex(long nanos) {
+    if (nanos < SUB_BUCKETS) {
+      return (int) nanos;
+    }
+    int msb = 63 - Long.numberOfLeadingZeros(nanos);
+    int subBucket = (int) ((nanos >>> (msb - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+    return (msb - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long bucketLowerBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int msb = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long subBucket = index % SUB_BUCKETS;
+    return (SUB_BUCKETS + subBucket) << (msb - SUB_BUCKET_BITS);
+  }
+}
@@ -15,7 +15,12 @@
  */
 package com.example.adservices.samples.fledge.ServerAuctionHelpers;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class AuctionConfigGenerator {
   private static final String HTTPS_SCHEME = "https";
@@ -25,6 +30,73 @@ public class AuctionConfigGenerator {
   private static final String BUYER_DEBUG_ID = "buyer_123";
   private static final String SELLER_DEBUG_ID = "seller_123";
   private static final int BUYER_TIMEOUT_MS = 60000;
+  private static final int MAX_CACHED_TEMPLATES = 16;
+
+  // Request templates keyed by seller, buyers and client type, in least recently used order.
+  private static final Map<List<Object>, SelectAdsRequestTemplate> sTemplates =
+      new LinkedHashMap<List<Object>, SelectAdsRequestTemplate>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<List<Object>, SelectAdsRequestTemplate> eldest) {
+          return size() > MAX_CACHED_TEMPLATES;
+        }
+      };
+
+  /**
+   * Returns the request template for an auction of {@code seller} with {@code buyer}. Templates
+   * are built once per seller, buyer and client type and then shared.
+   */
+  public static SelectAdsRequestTemplate getRequestTemplate(
+      String seller, String buyer, String clientType) {
+    List<Object> key = Arrays.asList(seller, buyer, clientType);
+    synchronized (sTemplates) {
+      SelectAdsRequestTemplate template = sTemplates.get(key);
+      if (template == null) {
+        template =
+            SelectAdsRequestTemplate.create(getAuctionConfig(seller, buyer), clientType);
+        sTemplates.put(key, template);
+      }
+      return template;
+    }
+  }
+
+  /**
+   * Returns the request template for an auction of {@code seller} with every buyer in {@code
+   * buyers}, at their current timeouts. A new template is built whenever a buyer timeout changes,
+   * which the registry keeps rare by rounding tuned timeouts to coarse steps.
+   */
+  public static SelectAdsRequestTemplate getRequestTemplate(
+      String seller, BuyerRegistry buyers, String clientType) {
+    Map<String, Integer> timeoutsMs = buyers.getTimeoutsMs();
+    List<Object> key = Arrays.asList(seller, buyers, timeoutsMs, clientType);
+    synchronized (sTemplates) {
+      SelectAdsRequestTemplate template = sTemplates.get(key);
+      if (template == null) {
+        template =
+            SelectAdsRequestTemplate.create(
+                getAuctionConfig(seller, buyers, timeoutsMs), clientType);
+        sTemplates.put(key, template);
+      }
+      return template;
+    }
+  }
+
+  /**
+   * Returns the config of an auction of {@code seller} with every buyer in {@code buyers}, each
+   * given its own timeout from {@code timeoutsMs}. The auction waits for the slowest of them.
+   */
+  public static AuctionConfig getAuctionConfig(
+      String seller, BuyerRegistry buyers, Map<String, Integer> timeoutsMs) {
+    return AuctionConfig.builder()
+        .setSellerSignals(SELLER_SIGNALS)
+        .setAuctionSignals(AUCTION_SIGNALS)
+        .setBuyerList(new ArrayList<>(timeoutsMs.keySet()))
+        .setSeller(HTTPS_SCHEME + "://" + seller)
+        .setPerBuyerConfig(buyers.buildPerBuyerConfigs(timeoutsMs))
+        .setSellerDebugId(SELLER_DEBUG_ID)
+        .setBuyerTimeoutMs(Collections.max(timeoutsMs.values()))
+        .build();
+  }
 
   public static AuctionConfig getAuctionConfig(String seller, String buyer) {
     PerBuyerConfig perBuyerConfig =
@@ -16,94 +16,558 @@
 package com.example.adservices.samples.fledge.ServerAuctionHelpers;
 
 import android.content.Context;
+import android.os.Debug;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.example.adservices.samples.fledge.clients.Deadline;
 import com.example.adservices.samples.fledge.sampleapp.MainActivity;
-import com.google.common.io.BaseEncoding;
-import com.google.gson.FieldNamingPolicy;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import java.io.BufferedReader;
+import com.google.common.base.Throwables;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Class to call and receive response from Bidding Auction Server.
  */
 public class BiddingAuctionServerClient {
 
+  /** How SelectAds requests and responses are encoded on the wire. */
+  public enum WireFormat {
+    /** JSON with base64 encoded ciphertexts, which every SFE accepts. */
+    JSON,
+    /**
+     * The {@link SelectAdsBinaryCodec} format with raw ciphertexts. SFEs that reject it are sent
+     * JSON instead for the rest of the process lifetime.
+     */
+    BINARY
+  }
+
+  /** JSON requests estimated to be at least this large are sent gzip compressed by default. */
+  public static final int DEFAULT_COMPRESSION_THRESHOLD_BYTES = 2048;
+
+  /** A compression threshold that turns request compression off. */
+  public static final int NO_COMPRESSION = Integer.MAX_VALUE;
+
   private static final String CLIENT_TYPE = "CLIENT_TYPE_ANDROID";
-  private static final Gson sGson =
-      new GsonBuilder()
-          .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
-          .create();
+  private static final String JSON_CONTENT_TYPE = "application/json";
+  private static final String GZIP = "gzip";
+  private static final int GZIP_BUFFER_SIZE = 8192;
+  // SFEs that rejected the binary format or compressed requests, keyed by address.
+  private static final Set<String> sBinaryUnsupportedAddresses = ConcurrentHashMap.newKeySet();
+  private static final Set<String> sCompressionUnsupportedAddresses =
+      ConcurrentHashMap.newKeySet();
+  private static final CompressionStats sCompressionStats = new CompressionStats();
+  private static final SfeCallStats sCallStats = new SfeCallStats();
+  // Fires hedges, backoffs and per-attempt timeouts.
+  private static final ScheduledExecutorService sScheduler =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat("sfe-hedging-%d").setDaemon(true).build());
   private final Context mContext;
+  private final SfeTransport mTransport;
+  private final WireFormat mWireFormat;
+  private final int mCompressionThresholdBytes;
+
   public BiddingAuctionServerClient(Context context) {
+    this(context, OkHttpSfeTransport.getDefault());
+  }
+
+  /** Creates a client that sends its requests through {@code transport}. */
+  public BiddingAuctionServerClient(Context context, SfeTransport transport) {
+    this(context, transport, WireFormat.JSON);
+  }
+
+  /**
+   * Creates a client that sends its requests through {@code transport}, preferring {@code
+   * wireFormat}.
+   */
+  public BiddingAuctionServerClient(
+      Context context, SfeTransport transport, WireFormat wireFormat) {
+    this(context, transport, wireFormat, DEFAULT_COMPRESSION_THRESHOLD_BYTES);
+  }
+
+  /**
+   * Creates a client that sends its requests through {@code transport}, preferring {@code
+   * wireFormat}, and gzip compresses JSON requests estimated to be at least {@code
+   * compressionThresholdBytes} large. Binary requests are never compressed, as they are mostly
+   * ciphertext which does not compress.
+   */
+  public BiddingAuctionServerClient(
+      Context context,
+      SfeTransport transport,
+      WireFormat wireFormat,
+      int compressionThresholdBytes) {
     mContext = context;
+    mTransport = transport;
+    mWireFormat = wireFormat;
+    mCompressionThresholdBytes = compressionThresholdBytes;
   }
 
+  /** Returns the request compression metrics of every client in this process. */
+  public static CompressionStats getCompressionStats() {
+    return sCompressionStats;
+  }
+
+  /** Returns the retry and hedging metrics of every client in this process. */
+  public static SfeCallStats getCallStats() {
+    return sCallStats;
+  }
+
+  /**
+   * Runs a server auction, blocking until the SFE answers. Prefer {@link #runServerAuctionAsync}
+   * off the main thread, which does not hold a thread during the network round-trip.
+   *
+   * @throws SfeHttpException if the SFE does not answer with a 2xx status.
+   * @throws IOException if the call fails.
+   */
   public SelectAdsResponse runServerAuction(
       String sfeAddress,
       String seller,
       String buyer,
       byte[] adSelectionData) throws IOException {
+    try {
+      return Uninterruptibles.getUninterruptibly(
+          runServerAuctionAsync(sfeAddress, seller, buyer, adSelectionData));
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Runs a server auction without blocking the calling thread. See {@link SfeTransport#postAsync}
+   * for which threads the transport uses. The returned future fails with {@link
+   * SfeHttpException} or an {@link IOException} like {@link #runServerAuction} throws them.
+   */
+  public ListenableFuture<SelectAdsResponse> runServerAuctionAsync(
+      String sfeAddress,
+      String seller,
+      String buyer,
+      byte[] adSelectionData) {
     Log.i(MainActivity.TAG, "sfeAddress: " + sfeAddress + " seller: " + seller + " buyer: " + buyer);
-    // Add contextual data
-    SelectAdsRequest selectAdsRequest =
-        SelectAdsRequest.builder()
-            .setAuctionConfig(AuctionConfigGenerator.getAuctionConfig(seller, buyer))
-            .setClientType(CLIENT_TYPE)
-            // Because we are making a HTTPS call, we need to encode the ciphertext byte array
-            .setProtectedAudienceCiphertext(
-                BaseEncoding.base64().encode(adSelectionData)).build();
-    Log.d(MainActivity.TAG, selectAdsRequest.toString());
-    return makeSelectAdsCall(sfeAddress, selectAdsRequest);
-  }
-
-  private static SelectAdsResponse makeSelectAdsCall(
-      String sfeAddress, SelectAdsRequest request) throws IOException {
-    String requestPayload = getSelectAdPayload(request);
-    String response = makeHttpPostCall(sfeAddress, requestPayload);
-    Log.d(MainActivity.TAG, "Response from b&a : " + response);
-    return parseSelectAdResponse(response);
-  }
-
-  private static SelectAdsResponse parseSelectAdResponse(String jsonString) {
-    return new GsonBuilder().create().fromJson(jsonString, SelectAdsResponse.class);
-  }
-
-  private static String getSelectAdPayload(SelectAdsRequest selectAdsRequest) {
-    return sGson.toJson(selectAdsRequest);
-  }
-
-  private static String makeHttpPostCall(String address, String jsonInputString)
-      throws IOException {
-    URL url = new URL(address);
-    HttpURLConnection con = (HttpURLConnection) url.openConnection();
-    con.setRequestMethod("POST");
-    con.setRequestProperty("Content-Type", "application/json");
-    con.setRequestProperty("Accept", "application/json");
-    con.setDoOutput(true);
-    try (OutputStream os = con.getOutputStream()) {
-      byte[] input = jsonInputString.getBytes(StandardCharsets.UTF_8);
-      os.write(input, 0, input.length);
-      Log.d(MainActivity.TAG, "HTTP Post call made with payload : " + jsonInputString);
+    return runServerAuctionAsync(
+        sfeAddress,
+        AuctionConfigGenerator.getRequestTemplate(seller, buyer, CLIENT_TYPE),
+        adSelectionData);
+  }
+
+  /**
+   * Runs a server auction of {@code seller} with every buyer in {@code buyers} without blocking,
+   * each buyer given its current timeout. See {@link #runServerAuctionAsync(String, String,
+   * String, byte[])}.
+   */
+  public ListenableFuture<SelectAdsResponse> runServerAuctionAsync(
+      String sfeAddress,
+      String seller,
+      BuyerRegistry buyers,
+      byte[] adSelectionData) {
+    Log.i(
+        MainActivity.TAG,
+        "sfeAddress: " + sfeAddress + " seller: " + seller + " buyers: " + buyers.getBuyers());
+    long startNanos = System.nanoTime();
+    ListenableFuture<SelectAdsResponse> response =
+        runServerAuctionAsync(
+            sfeAddress,
+            AuctionConfigGenerator.getRequestTemplate(seller, buyers, CLIENT_TYPE),
+            adSelectionData);
+    return Futures.transform(
+        response,
+        r -> recordAuctionLatency(buyers, startNanos, r),
+        MoreExecutors.directExecutor());
+  }
+
+  private ListenableFuture<SelectAdsResponse> runServerAuctionAsync(
+      String sfeAddress, SelectAdsRequestTemplate template, byte[] adSelectionData) {
+    ListenableFuture<SelectAdsResponse> response;
+    if (mWireFormat == WireFormat.BINARY && !sBinaryUnsupportedAddresses.contains(sfeAddress)) {
+      response =
+          Futures.catchingAsync(
+              mTransport.postAsync(
+                  sfeAddress,
+                  SelectAdsBinaryCodec.CONTENT_TYPE,
+                  null,
+                  out -> SelectAdsBinaryCodec.writeRequest(template, adSelectionData, out),
+                  SelectAdsBinaryCodec::readResponse),
+              SfeHttpException.class,
+              e -> {
+                if (!isUnsupportedFormatStatus(e.getStatusCode())) {
+                  throw e;
+                }
+                Log.w(
+                    MainActivity.TAG,
+                    sfeAddress + " rejected the binary format, falling back to JSON");
+                sBinaryUnsupportedAddresses.add(sfeAddress);
+                return postJson(sfeAddress, template, adSelectionData);
+              },
+              MoreExecutors.directExecutor());
+    } else {
+      response = postJson(sfeAddress, template, adSelectionData);
+    }
+    return Futures.transform(
+        response, BiddingAuctionServerClient::logResponse, MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Runs a server auction within {@code deadline}, hedging and retrying the SFE call as {@code
+   * retryPolicy} says. Hedges go to {@code backupSfeAddress} if given, or to {@code sfeAddress}
+   * otherwise. The returned future fails with the error of the last attempt, or with a {@link
+   * TimeoutException} if the deadline passed before an attempt could start.
+   */
+  public ListenableFuture<SelectAdsResponse> runServerAuctionAsync(
+      String sfeAddress,
+      @Nullable String backupSfeAddress,
+      String seller,
+      String buyer,
+      byte[] adSelectionData,
+      SfeRetryPolicy retryPolicy,
+      Deadline deadline) {
+    Log.i(
+        MainActivity.TAG,
+        "sfeAddress: " + sfeAddress + " seller: " + seller + " buyer: " + buyer);
+    return runHedgedServerAuction(
+        sfeAddress,
+        backupSfeAddress,
+        AuctionConfigGenerator.getRequestTemplate(seller, buyer, CLIENT_TYPE),
+        null,
+        adSelectionData,
+        retryPolicy,
+        deadline);
+  }
+
+  /**
+   * Runs a server auction of {@code seller} with every buyer in {@code buyers} within {@code
+   * deadline}, each buyer given its current timeout. See {@link #runServerAuctionAsync(String,
+   * String, String, String, byte[], SfeRetryPolicy, Deadline)}.
+   */
+  public ListenableFuture<SelectAdsResponse> runServerAuctionAsync(
+      String sfeAddress,
+      @Nullable String backupSfeAddress,
+      String seller,
+      BuyerRegistry buyers,
+      byte[] adSelectionData,
+      SfeRetryPolicy retryPolicy,
+      Deadline deadline) {
+    Log.i(
+        MainActivity.TAG,
+        "sfeAddress: " + sfeAddress + " seller: " + seller + " buyers: " + buyers.getBuyers());
+    return runHedgedServerAuction(
+        sfeAddress,
+        backupSfeAddress,
+        AuctionConfigGenerator.getRequestTemplate(seller, buyers, CLIENT_TYPE),
+        buyers,
+        adSelectionData,
+        retryPolicy,
+        deadline);
+  }
+
+  private ListenableFuture<SelectAdsResponse> runHedgedServerAuction(
+      String sfeAddress,
+      @Nullable String backupSfeAddress,
+      SelectAdsRequestTemplate template,
+      @Nullable BuyerRegistry buyers,
+      byte[] adSelectionData,
+      SfeRetryPolicy retryPolicy,
+      Deadline deadline) {
+    sCallStats.recordCall();
+    return new HedgedAuction(
+            sfeAddress,
+            backupSfeAddress != null ? backupSfeAddress : sfeAddress,
+            template,
+            buyers,
+            adSelectionData,
+            retryPolicy,
+            deadline)
+        .start();
+  }
+
+  private ListenableFuture<SelectAdsResponse> postJson(
+      String sfeAddress, SelectAdsRequestTemplate template, byte[] adSelectionData) {
+    Log.d(MainActivity.TAG, template + " with " + adSelectionData.length + " ciphertext bytes");
+    // Because we are making a HTTPS call, the template base64 encodes the ciphertext byte array
+    SfeTransport.BodyWriter body = out -> template.writeJsonRequest(adSelectionData, out);
+    // Base64 inflates the ciphertext by a third, most of which gzip wins back.
+    if (template.getJsonRequestLength(adSelectionData.length) < mCompressionThresholdBytes
+        || sCompressionUnsupportedAddresses.contains(sfeAddress)) {
+      return postPlainJson(sfeAddress, body);
     }
+    return Futures.catchingAsync(
+        mTransport.postAsync(
+            sfeAddress, JSON_CONTENT_TYPE, GZIP, gzipped(body), SelectAdsCodec::readResponse),
+        SfeHttpException.class,
+        e -> {
+          // Other errors, e.g. a Bad Request for an invalid auction, would fail uncompressed too.
+          if (!isUnsupportedFormatStatus(e.getStatusCode())) {
+            throw e;
+          }
+          Log.w(MainActivity.TAG, sfeAddress + " rejected a gzip request, sending it uncompressed");
+          sCompressionUnsupportedAddresses.add(sfeAddress);
+          return postPlainJson(sfeAddress, body);
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  private ListenableFuture<SelectAdsResponse> postPlainJson(
+      String sfeAddress, SfeTransport.BodyWriter body) {
+    return mTransport.postAsync(
+        sfeAddress, JSON_CONTENT_TYPE, null, plain(body), SelectAdsCodec::readResponse);
+  }
+
+  /** Wraps {@code body} to be gzip compressed, recording the compression metrics. */
+  private static SfeTransport.BodyWriter gzipped(SfeTransport.BodyWriter body) {
+    return connection -> {
+      long startCpuNanos = Debug.threadCpuTimeNanos();
+      CountingOutputStream compressed = new CountingOutputStream(connection);
+      // Closing the GZIPOutputStream writes the trailer and frees its deflater, but the
+      // connection's stream stays open.
+      OutputStream unclosable =
+          new FilterOutputStream(compressed) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+              compressed.write(b, off, len);
+            }
 
-    try (BufferedReader br =
-        new BufferedReader(new InputStreamReader(con.getInputStream(), StandardCharsets.UTF_8))) {
-      StringBuilder response = new StringBuilder();
-      String responseLine;
-      while ((responseLine = br.readLine()) != null) {
-        response.append(responseLine.trim());
+            @Override
+            public void close() throws IOException {
+              flush();
+            }
+          };
+      CountingOutputStream uncompressed;
+      try (GZIPOutputStream gzip = new GZIPOutputStream(unclosable, GZIP_BUFFER_SIZE)) {
+        uncompressed = new CountingOutputStream(gzip);
+        body.writeTo(uncompressed);
       }
-      Log.d(MainActivity.TAG, "Response read : " + response);
+      sCompressionStats.recordCompressed(
+          uncompressed.getCount(),
+          compressed.getCount(),
+          Debug.threadCpuTimeNanos() - startCpuNanos);
+    };
+  }
+
+  /** Wraps {@code body} to record the metrics of a request sent as is. */
+  private static SfeTransport.BodyWriter plain(SfeTransport.BodyWriter body) {
+    return out -> {
+      long startCpuNanos = Debug.threadCpuTimeNanos();
+      body.writeTo(out);
+      sCompressionStats.recordPlain(Debug.threadCpuTimeNanos() - startCpuNanos);
+    };
+  }
+
+  private static boolean isRetryable(Throwable t) {
+    if (t instanceof SfeHttpException) {
+      int statusCode = ((SfeHttpException) t).getStatusCode();
+      return statusCode >= 500 || statusCode == 429;
+    }
+    // Attempts that ran out of budget, and connection or read failures.
+    return t instanceof TimeoutException || t instanceof IOException;
+  }
 
-      return response.toString();
+  private static boolean isUnsupportedFormatStatus(int statusCode) {
+    // Not Acceptable and Unsupported Media Type. A Bad Request is not taken as a rejection of the
+    // format, since SFEs that support it also answer malformed or invalid requests with one, and
+    // the downgrade lasts for the rest of the process.
+    return statusCode == 406 || statusCode == 415;
+  }
+
+  private static SelectAdsResponse logResponse(SelectAdsResponse response) {
+    byte[] ciphertext = response.getAuctionResultCiphertextBytes();
+    Log.d(
+        MainActivity.TAG,
+        "Response from b&a with "
+            + (ciphertext == null ? 0 : ciphertext.length)
+            + " ciphertext bytes");
+    return response;
+  }
+
+  /**
+   * Records the time since {@code startNanos} as the round trip of an auction with {@code buyers}.
+   * The auction result is encrypted for the device, so the client cannot tell the buyers' bid
+   * latencies apart, and the round trip is never used to tune their timeouts.
+   */
+  private static SelectAdsResponse recordAuctionLatency(
+      @Nullable BuyerRegistry buyers, long startNanos, SelectAdsResponse response) {
+    if (buyers != null) {
+      buyers.recordAuctionLatency(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+    return response;
+  }
+
+  /**
+   * One call made with a {@link SfeRetryPolicy}. An attempt sends a request and, if it is slow, a
+   * hedge; the attempt fails once both have failed, and is then retried after a backoff.
+   */
+  private final class HedgedAuction {
+    private final String mSfeAddress;
+    private final String mHedgeAddress;
+    private final SelectAdsRequestTemplate mTemplate;
+    @Nullable private final BuyerRegistry mBuyers;
+    private final byte[] mAdSelectionData;
+    private final SfeRetryPolicy mPolicy;
+    private final Deadline mDeadline;
+    private final SettableFuture<SelectAdsResponse> mResult = SettableFuture.create();
+
+    // Guarded by this. Requests, timers and backoffs to cancel once the call is done.
+    private final List<Future<?>> mPending = new ArrayList<>();
+    private int mAttempt;
+    private int mInFlightRequests;
+
+    HedgedAuction(
+        String sfeAddress,
+        String hedgeAddress,
+        SelectAdsRequestTemplate template,
+        @Nullable BuyerRegistry buyers,
+        byte[] adSelectionData,
+        SfeRetryPolicy policy,
+        Deadline deadline) {
+      mSfeAddress = sfeAddress;
+      mHedgeAddress = hedgeAddress;
+      mTemplate = template;
+      mBuyers = buyers;
+      mAdSelectionData = adSelectionData;
+      mPolicy = policy;
+      mDeadline = deadline;
+    }
+
+    ListenableFuture<SelectAdsResponse> start() {
+      mResult.addListener(this::cancelPending, MoreExecutors.directExecutor());
+      startAttempt();
+      return mResult;
+    }
+
+    private synchronized void startAttempt() {
+      if (mResult.isDone()) {
+        return;
+      }
+      long budgetMs =
+          Math.min(mPolicy.getAttemptTimeoutMs(), mDeadline.remaining(TimeUnit.MILLISECONDS));
+      if (budgetMs <= 0) {
+        mResult.setException(
+            new TimeoutException("Deadline expired before SFE attempt " + (mAttempt + 1)));
+        return;
+      }
+      // Everything left from the previous attempt is done, including the backoff running this.
+      mPending.clear();
+      sCallStats.recordAttempt(mAttempt > 0);
+      mAttempt++;
+      mInFlightRequests = 0;
+      send(mSfeAddress, budgetMs, false);
+      long hedgeDelayMs = mPolicy.getHedgeDelayMs(sCallStats.getLatency(mSfeAddress));
+      if (hedgeDelayMs < budgetMs) {
+        int attempt = mAttempt;
+        mPending.add(
+            sScheduler.schedule(
+                () -> hedge(attempt, budgetMs - hedgeDelayMs),
+                hedgeDelayMs,
+                TimeUnit.MILLISECONDS));
+      }
+    }
+
+    private synchronized void hedge(int attempt, long budgetMs) {
+      if (attempt != mAttempt || mInFlightRequests == 0 || mResult.isDone()) {
+        return;
+      }
+      sCallStats.recordHedgeFired();
+      Log.d(MainActivity.TAG, "Hedging slow SFE call to " + mSfeAddress + " on " + mHedgeAddress);
+      send(mHedgeAddress, budgetMs, true);
+    }
+
+    // Called with the lock held.
+    private void send(String address, long budgetMs, boolean isHedge) {
+      int attempt = mAttempt;
+      long startNanos = System.nanoTime();
+      ListenableFuture<SelectAdsResponse> request =
+          Futures.catchingAsync(
+              Futures.withTimeout(
+                  runServerAuctionAsync(address, mTemplate, mAdSelectionData),
+                  budgetMs,
+                  TimeUnit.MILLISECONDS,
+                  sScheduler),
+              TimeoutException.class,
+              e -> {
+                throw new TimeoutException(
+                    "SFE request to " + address + " timed out after " + budgetMs + "ms");
+              },
+              MoreExecutors.directExecutor());
+      mInFlightRequests++;
+      mPending.add(request);
+      Futures.addCallback(
+          request,
+          new FutureCallback<SelectAdsResponse>() {
+            @Override
+            public void onSuccess(SelectAdsResponse response) {
+              sCallStats.getLatency(address).recordSince(startNanos);
+              if (!mResult.set(response)) {
+                // The other request of this attempt won, and its latency was recorded.
+                return;
+              }
+              recordAuctionLatency(mBuyers, startNanos, response);
+              if (isHedge) {
+                sCallStats.recordHedgeWon();
+              }
+            }
+
+            @Override
+            public void onFailure(@NonNull Throwable t) {
+              onRequestFailed(attempt, t);
+            }
+          },
+          MoreExecutors.directExecutor());
+    }
+
+    private synchronized void onRequestFailed(int attempt, Throwable t) {
+      if (attempt != mAttempt || mResult.isDone() || --mInFlightRequests > 0) {
+        // A newer attempt or the other request of this attempt may still succeed.
+        return;
+      }
+      if (!isRetryable(t) || mAttempt >= mPolicy.getMaxAttempts()) {
+        mResult.setException(t);
+        return;
+      }
+      long backoffMs = mPolicy.getBackoffMs(mAttempt);
+      if (backoffMs >= mDeadline.remaining(TimeUnit.MILLISECONDS)) {
+        mResult.setException(t);
+        return;
+      }
+      Log.w(
+          MainActivity.TAG,
+          "SFE attempt "
+              + mAttempt
+              + " to "
+              + mSfeAddress
+              + " failed, retrying in "
+              + backoffMs
+              + "ms: "
+              + t);
+      // Drops the hedge timer if it has not fired yet.
+      cancelPending();
+      mPending.add(sScheduler.schedule(this::startAttempt, backoffMs, TimeUnit.MILLISECONDS));
+    }
+
+    private synchronized void cancelPending() {
+      for (Future<?> pending : mPending) {
+        pending.cancel(true);
+      }
+      mPending.clear();
     }
   }
 }
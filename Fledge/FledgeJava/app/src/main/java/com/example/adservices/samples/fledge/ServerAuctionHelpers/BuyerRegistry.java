@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.ServerAuctionHelpers;
+
+import androidx.annotation.NonNull;
+import com.example.adservices.samples.fledge.MetricsHelpers.LatencyHistogram;
+import com.google.common.base.Preconditions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The buyers taking part in server auctions, with their signals, debug IDs and timeouts.
+ *
+ * <p>Every buyer is given a maximum timeout when it is registered. Once enough bid latencies have
+ * been recorded for a buyer with {@link #recordLatency}, its timeout is tuned down to the given
+ * percentile of those latencies plus headroom, and never above the auction target. Buyers that
+ * are usually fast then get a tight timeout, and buyers that are usually slower than the target
+ * are cut off at it, so that no single buyer sets the critical path of the auction.
+ *
+ * <p>Tuned timeouts are rounded up to a coarse step, at least {@value #TIMEOUT_STEP_MS}ms and
+ * about an eighth of the timeout, so that they only change when a buyer's latency shifts
+ * noticeably. Request templates are cached per set of timeouts, and timeouts that followed every
+ * millisecond of the percentile would need a new template for almost every auction.
+ *
+ * <p>Bid latencies have to come from per-buyer telemetry, such as the buyers' own reporting. The
+ * SFE round trips the client sees are recorded separately with {@link #recordAuctionLatency}: they
+ * include the seller's scoring and the network and last at least as long as the slowest buyer, so
+ * feeding them into the tuning would push every buyer's timeout up to the cap.
+ *
+ * <p>The registry is immutable apart from the latencies, and safe to share between threads.
+ */
+public final class BuyerRegistry {
+  /** The smallest step tuned timeouts are rounded up to. */
+  public static final long TIMEOUT_STEP_MS = 50;
+
+  private final Map<String, Buyer> mBuyers;
+  private final long mAuctionTargetMs;
+  private final long mMinTimeoutMs;
+  private final double mTuningPercentile;
+  private final double mTuningHeadroom;
+  private final int mMinTuningSamples;
+  private final LatencyHistogram mAuctionLatency = new LatencyHistogram("server auction");
+
+  private BuyerRegistry(Builder builder) {
+    mBuyers = Collections.unmodifiableMap(new LinkedHashMap<>(builder.mBuyers));
+    mAuctionTargetMs = builder.mAuctionTargetMs;
+    mMinTimeoutMs = builder.mMinTimeoutMs;
+    mTuningPercentile = builder.mTuningPercentile;
+    mTuningHeadroom = builder.mTuningHeadroom;
+    mMinTuningSamples = builder.mMinTuningSamples;
+  }
+
+  /** Returns the registered buyers in registration order. */
+  @NonNull
+  public List<String> getBuyers() {
+    return new ArrayList<>(mBuyers.keySet());
+  }
+
+  /** Records how long {@code buyer} took to bid in a server auction. Unknown buyers are ignored. */
+  public void recordLatency(@NonNull String buyer, long latency, @NonNull TimeUnit unit) {
+    Buyer entry = mBuyers.get(buyer);
+    if (entry != null) {
+      entry.mLatency.record(latency, unit);
+    }
+  }
+
+  /**
+   * Records the round trip of a server auction with these buyers, as seen by the client. Only
+   * reported by {@link #toString}; it does not affect any buyer's timeout.
+   */
+  public void recordAuctionLatency(long latency, @NonNull TimeUnit unit) {
+    mAuctionLatency.record(latency, unit);
+  }
+
+  /** Returns the round trips of the server auctions recorded with {@link #recordAuctionLatency}. */
+  @NonNull
+  public LatencyHistogram getAuctionLatency() {
+    return mAuctionLatency;
+  }
+
+  /** Returns the bid latencies recorded for {@code buyer}. */
+  @NonNull
+  public LatencyHistogram getLatency(@NonNull String buyer) {
+    return getBuyer(buyer).mLatency;
+  }
+
+  /**
+   * Returns the timeout currently given to {@code buyer}: its maximum timeout until enough
+   * latencies were recorded, and the tuned timeout after that.
+   */
+  public int getTimeoutMs(@NonNull String buyer) {
+    Buyer entry = getBuyer(buyer);
+    long cap = Math.min(entry.mMaxTimeoutMs, mAuctionTargetMs);
+    if (entry.mLatency.getCount() < mMinTuningSamples) {
+      return (int) cap;
+    }
+    long tuned =
+        (long)
+            Math.ceil(
+                entry.mLatency.getPercentile(mTuningPercentile, TimeUnit.MILLISECONDS)
+                    * mTuningHeadroom);
+    return (int) Math.max(mMinTimeoutMs, Math.min(cap, quantize(tuned)));
+  }
+
+  /** Rounds {@code timeoutMs} up to a multiple of the step for its magnitude. */
+  private static long quantize(long timeoutMs) {
+    long step = Math.max(TIMEOUT_STEP_MS, Long.highestOneBit(timeoutMs) / 8);
+    return (timeoutMs + step - 1) / step * step;
+  }
+
+  /**
+   * Returns the current timeout of every buyer in registration order. Two snapshots are equal as
+   * long as no timeout changed, which makes them usable as part of a cache key.
+   */
+  @NonNull
+  public Map<String, Integer> getTimeoutsMs() {
+    Map<String, Integer> timeouts = new LinkedHashMap<>(mBuyers.size() * 4 / 3 + 1);
+    for (String buyer : mBuyers.keySet()) {
+      timeouts.put(buyer, getTimeoutMs(buyer));
+    }
+    return timeouts;
+  }
+
+  /**
+   * Builds the per-buyer config of every buyer for the given timeouts in one pass, keeping the
+   * registration order.
+   */
+  @NonNull
+  Map<String, PerBuyerConfig> buildPerBuyerConfigs(@NonNull Map<String, Integer> timeoutsMs) {
+    Map<String, PerBuyerConfig> configs = new LinkedHashMap<>(mBuyers.size() * 4 / 3 + 1);
+    for (Map.Entry<String, Buyer> entry : mBuyers.entrySet()) {
+      Buyer buyer = entry.getValue();
+      configs.put(
+          entry.getKey(),
+          PerBuyerConfig.builder()
+              .setBuyerSignals(buyer.mBuyerSignals)
+              .setBuyerDebugId(buyer.mBuyerDebugId)
+              .setBuyerTimeoutMs(timeoutsMs.get(entry.getKey()))
+              .build());
+    }
+    return configs;
+  }
+
+  /**
+   * Returns the auction round trip percentiles, then one line per buyer with its latency
+   * percentiles and current timeout.
+   */
+  @NonNull
+  @Override
+  public String toString() {
+    StringBuilder summary =
+        new StringBuilder(
+            String.format(
+                Locale.US,
+                "BuyerRegistry: auctions=%d p50=%dms p99=%dms",
+                mAuctionLatency.getCount(),
+                mAuctionLatency.getPercentile(50, TimeUnit.MILLISECONDS),
+                mAuctionLatency.getPercentile(99, TimeUnit.MILLISECONDS)));
+    for (String buyer : mBuyers.keySet()) {
+      LatencyHistogram latency = getLatency(buyer);
+      summary.append(
+          String.format(
+              Locale.US,
+              "%n  %s: samples=%d p50=%dms p99=%dms timeout=%dms",
+              buyer,
+              latency.getCount(),
+              latency.getPercentile(50, TimeUnit.MILLISECONDS),
+              latency.getPercentile(99, TimeUnit.MILLISECONDS),
+              getTimeoutMs(buyer)));
+    }
+    return summary.toString();
+  }
+
+  private Buyer getBuyer(String buyer) {
+    Buyer entry = mBuyers.get(buyer);
+    Preconditions.checkArgument(entry != null, "Unknown buyer %s", buyer);
+    return entry;
+  }
+
+  private static final class Buyer {
+    private final String mBuyerSignals;
+    private final String mBuyerDebugId;
+    private final long mMaxTimeoutMs;
+    private final LatencyHistogram mLatency;
+
+    Buyer(String buyer, String buyerSignals, String buyerDebugId, long maxTimeoutMs) {
+      mBuyerSignals = buyerSignals;
+      mBuyerDebugId = buyerDebugId;
+      mMaxTimeoutMs = maxTimeoutMs;
+      mLatency = new LatencyHistogram(buyer);
+    }
+  }
+
+  /** Builder for {@link BuyerRegistry}. */
+  public static final class Builder {
+    private final Map<String, Buyer> mBuyers = new LinkedHashMap<>();
+    private long mAuctionTargetMs = 60000;
+    private long mMinTimeoutMs = 50;
+    private double mTuningPercentile = 99;
+    private double mTuningHeadroom = 1.2;
+    private int mMinTuningSamples = 20;
+
+    /** Registers {@code buyer}, which is given at most {@code maxTimeoutMs} to bid. */
+    @NonNull
+    public Builder addBuyer(
+        @NonNull String buyer,
+        @NonNull String buyerSignals,
+        @NonNull String buyerDebugId,
+        long maxTimeoutMs) {
+      Preconditions.checkArgument(maxTimeoutMs > 0, "maxTimeoutMs must be positive");
+      Preconditions.checkArgument(!mBuyers.containsKey(buyer), "Buyer %s added twice", buyer);
+      mBuyers.put(buyer, new Buyer(buyer, buyerSignals, buyerDebugId, maxTimeoutMs));
+      return this;
+    }
+
+    /**
+     * Sets the latency no buyer timeout may exceed, so that slow buyers are cut off rather than
+     * holding up the auction. Defaults to 60 seconds.
+     */
+    @NonNull
+    public Builder setAuctionTargetMs(long auctionTargetMs) {
+      Preconditions.checkArgument(auctionTargetMs > 0, "auctionTargetMs must be positive");
+      mAuctionTargetMs = auctionTargetMs;
+      return this;
+    }
+
+    /**
+     * Sets how timeouts are tuned: to {@code percentile} of the recorded latencies times {@code
+     * headroom}, but no lower than {@code minTimeoutMs}, once {@code minSamples} latencies were
+     * recorded. Defaults to the 99th percentile, 1.2, 50ms and 20 samples.
+     */
+    @NonNull
+    public Builder setTimeoutTuning(
+        double percentile, double headroom, long minTimeoutMs, int minSamples) {
+      Preconditions.checkArgument(
+          percentile > 0 && percentile <= 100, "percentile must be in (0, 100]");
+      Preconditions.checkArgument(headroom >= 1, "headroom must be at least 1");
+      mTuningPercentile = percentile;
+      mTuningHeadroom = headroom;
+      mMinTimeoutMs = minTimeoutMs;
+      mMinTuningSamples = minSamples;
+      return this;
+    }
+
+    @NonNull
+    public BuyerRegistry build() {
+      Preconditions.checkState(!mBuyers.isEmpty(), "At least one buyer must be added");
+      return new BuyerRegistry(this);
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.ServerAuctionHelpers;
+
+import androidx.annotation.NonNull;
+import com.example.adservices.samples.fledge.MetricsHelpers.LatencyHistogram;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how SFE request bodies were sent and what compressing them cost and saved.
+ *
+ * <p>CPU time covers writing the whole request body on the calling thread, encoding included, so
+ * the difference between the compressed and plain histograms is the cost of compression.
+ */
+public final class CompressionStats {
+  private final AtomicLong mCompressedRequestCount = new AtomicLong();
+  private final AtomicLong mPlainRequestCount = new AtomicLong();
+  private final AtomicLong mUncompressedBytes = new AtomicLong();
+  private final AtomicLong mCompressedBytes = new AtomicLong();
+  private final LatencyHistogram mCompressedWriteCpu = new LatencyHistogram("gzip write cpu");
+  private final LatencyHistogram mPlainWriteCpu = new LatencyHistogram("plain write cpu");
+
+  void recordCompressed(long uncompressedBytes, long compressedBytes, long cpuNanos) {
+    mCompressedRequestCount.incrementAndGet();
+    mUncompressedBytes.addAndGet(uncompressedBytes);
+    mCompressedBytes.addAndGet(compressedBytes);
+    mCompressedWriteCpu.recordNanos(cpuNanos);
+  }
+
+  void recordPlain(long cpuNanos) {
+    mPlainRequestCount.incrementAndGet();
+    mPlainWriteCpu.recordNanos(cpuNanos);
+  }
+
+  /** Returns the number of request bodies sent compressed. */
+  public long getCompressedRequestCount() {
+    return mCompressedRequestCount.get();
+  }
+
+  /** Returns the number of request bodies sent as is. */
+  public long getPlainRequestCount() {
+    return mPlainRequestCount.get();
+  }
+
+  /**
+   * Returns the compressed size of the compressed request bodies as a fraction of their original
+   * size, or 1 if none were compressed.
+   */
+  public double getCompressionRatio() {
+    long uncompressed = mUncompressedBytes.get();
+    return uncompressed == 0 ? 1 : (double) mCompressedBytes.get() / uncompressed;
+  }
+
+  /** Returns the number of bytes compression kept off the wire. */
+  public long getBytesSaved() {
+    return mUncompressedBytes.get() - mCompressedBytes.get();
+  }
+
+  /** Returns the CPU time spent writing compressed request bodies. */
+  @NonNull
+  public LatencyHistogram getCompressedWriteCpu() {
+    return mCompressedWriteCpu;
+  }
+
+  /** Returns the CPU time spent writing request bodies that were sent as is. */
+  @NonNull
+  public LatencyHistogram getPlainWriteCpu() {
+    return mPlainWriteCpu;
+  }
+
+  /** Returns a one-line summary, e.g. for the event log. */
+  @NonNull
+  @Override
+  public String toString() {
+    return String.format(
+        Locale.US,
+        "request compression: gzip=%d plain=%d ratio=%.2f saved=%dB cpu gzip=%dus plain=%dus",
+        getCompressedRequestCount(),
+        getPlainRequestCount(),
+        getCompressionRatio(),
+        getBytesSaved(),
+        mCompressedWriteCpu.getMean(TimeUnit.MICROSECONDS),
+        mPlainWriteCpu.getMean(TimeUnit.MICROSECONDS));
+  }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.ServerAuctionHelpers;
+
+import android.content.Context;
+import android.net.http.HttpEngine;
+import android.net.http.HttpException;
+import android.net.http.UploadDataProvider;
+import android.net.http.UploadDataSink;
+import android.net.http.UrlRequest;
+import android.net.http.UrlResponseInfo;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import com.example.adservices.samples.fledge.MetricsHelpers.LatencyHistogram;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link SfeTransport} backed by the platform's {@link HttpEngine}, the Cronet network stack that
+ * ships with Android 14.
+ *
+ * <p>Unlike {@link OkHttpSfeTransport}, calls don't hold any thread while they wait for the SFE:
+ * the engine does its network I/O on its own event loop and reports progress through {@link
+ * UrlRequest.Callback}, whose methods only copy the bytes that arrived and ask for more. The
+ * request body is written out in full by the caller of {@link #postAsync} before the call starts,
+ * and the response is handed to the reader once it was received in full, both from memory.
+ * Callbacks run on a small shared executor, so any number of calls in flight costs no threads.
+ *
+ * <p>Connections are pooled by the engine and HTTP/2 and QUIC are used when the SFE supports them.
+ * Responses are accepted compressed with brotli or gzip and decompressed by the engine.
+ */
+@RequiresApi(api = 34)
+public final class HttpEngineSfeTransport implements SfeTransport {
+  private static final int CALLBACK_THREADS = 2;
+  private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+  private static HttpEngineSfeTransport sInstance;
+
+  private final HttpEngine mEngine;
+  private final Executor mCallbackExecutor;
+  private final AtomicLong mCallCount = new AtomicLong();
+  private final AtomicLong mHttp2CallCount = new AtomicLong();
+  private final LatencyHistogram mCallLatency = new LatencyHistogram("sfe call");
+
+  /**
+   * Creates a transport that sends its calls through {@code engine}, running the request
+   * callbacks on {@code callbackExecutor}. The callbacks never block, but must not run inline.
+   */
+  public HttpEngineSfeTransport(@NonNull HttpEngine engine, @NonNull Executor callbackExecutor) {
+    mEngine = engine;
+    mCallbackExecutor = callbackExecutor;
+  }
+
+  /** Returns the transport shared by every server auction of the process. */
+  @NonNull
+  public static synchronized HttpEngineSfeTransport getInstance(@NonNull Context context) {
+    if (sInstance == null) {
+      HttpEngine engine =
+          new HttpEngine.Builder(context.getApplicationContext())
+              .setEnableHttp2(true)
+              .setEnableQuic(true)
+              .setEnableBrotli(true)
+              .build();
+      sInstance =
+          new HttpEngineSfeTransport(
+              engine,
+              Executors.newFixedThreadPool(
+                  CALLBACK_THREADS,
+                  new ThreadFactoryBuilder()
+                      .setNameFormat("sfe-callback-%d")
+                      .setDaemon(true)
+                      .build()));
+    }
+    return sInstance;
+  }
+
+  @Override
+  public <T> T post(
+      @NonNull String address,
+      @NonNull String contentType,
+      @Nullable String contentEncoding,
+      @NonNull BodyWriter body,
+      @NonNull BodyReader<T> reader)
+      throws IOException {
+    ListenableFuture<T> response = postAsync(address, contentType, contentEncoding, body, reader);
+    try {
+      return response.get();
+    } catch (InterruptedException e) {
+      response.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted during SFE call to " + address);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  @NonNull
+  @Override
+  public <T> ListenableFuture<T> postAsync(
+      @NonNull String address,
+      @NonNull String contentType,
+      @Nullable String contentEncoding,
+      @NonNull BodyWriter body,
+      @NonNull BodyReader<T> reader) {
+    SettableFuture<T> result = SettableFuture.create();
+    ByteArrayOutputStream requestBody = new ByteArrayOutputStream();
+    try {
+      body.writeTo(requestBody);
+    } catch (IOException | RuntimeException e) {
+      result.setException(e);
+      return result;
+    }
+    UrlRequest.Builder request =
+        mEngine
+            .newUrlRequestBuilder(address, mCallbackExecutor, new Call<>(address, reader, result))
+            .setHttpMethod("POST")
+            .addHeader("Content-Type", contentType)
+            .addHeader("Accept", contentType)
+            .setUploadDataProvider(
+                new ByteArrayUploadProvider(requestBody.toByteArray()), mCallbackExecutor);
+    if (contentEncoding != null) {
+      request.addHeader("Content-Encoding", contentEncoding);
+    }
+    UrlRequest call = request.build();
+    result.addListener(
+        () -> {
+          if (result.isCancelled()) {
+            call.cancel();
+          }
+        },
+        MoreExecutors.directExecutor());
+    mCallCount.incrementAndGet();
+    call.start();
+    return result;
+  }
+
+  /** Returns the number of calls made through this transport. */
+  public long getCallCount() {
+    return mCallCount.get();
+  }
+
+  /** Returns the number of calls made over HTTP/2. */
+  public long getHttp2CallCount() {
+    return mHttp2CallCount.get();
+  }
+
+  /** Returns the end-to-end latency of calls, from request start to the end of the response. */
+  @NonNull
+  public LatencyHistogram getCallLatency() {
+    return mCallLatency;
+  }
+
+  /** Returns a one-line summary of the call metrics, e.g. for the event log. */
+  @NonNull
+  @Override
+  public String toString() {
+    return String.format(
+        Locale.US,
+        "HttpEngineSfeTransport: calls=%d http2=%d callMean=%dms",
+        getCallCount(),
+        getHttp2CallCount(),
+        mCallLatency.getMean(TimeUnit.MILLISECONDS));
+  }
+
+  /** Collects the response of one call and completes its future. */
+  private final class Call<T> implements UrlRequest.Callback {
+    private final String mAddress;
+    private final BodyReader<T> mReader;
+    private final SettableFuture<T> mResult;
+    private final long mStartNanos = System.nanoTime();
+    private final ByteArrayOutputStream mResponseBody = new ByteArrayOutputStream();
+
+    Call(String address, BodyReader<T> reader, SettableFuture<T> result) {
+      mAddress = address;
+      mReader = reader;
+      mResult = result;
+    }
+
+    @Override
+    public void onRedirectReceived(
+        @NonNull UrlRequest request, @NonNull UrlResponseInfo info, @NonNull String newLocation) {
+      request.followRedirect();
+    }
+
+    @Override
+    public void onResponseStarted(@NonNull UrlRequest request, @NonNull UrlResponseInfo info) {
+      int statusCode = info.getHttpStatusCode();
+      if (statusCode < 200 || statusCode >= 300) {
+        mCallLatency.recordSince(mStartNanos);
+        mResult.setException(new SfeHttpException(mAddress, statusCode));
+        request.cancel();
+        return;
+      }
+      if ("h2".equals(info.getNegotiatedProtocol())) {
+        mHttp2CallCount.incrementAndGet();
+      }
+      request.read(ByteBuffer.allocateDirect(READ_BUFFER_SIZE));
+    }
+
+    @Override
+    public void onReadCompleted(
+        @NonNull UrlRequest request, @NonNull UrlResponseInfo info, @NonNull ByteBuffer buffer) {
+      buffer.flip();
+      byte[] chunk = new byte[buffer.remaining()];
+      buffer.get(chunk);
+      mResponseBody.write(chunk, 0, chunk.length);
+      buffer.clear();
+      request.read(buffer);
+    }
+
+    @Override
+    public void onSucceeded(@NonNull UrlRequest request, @NonNull UrlResponseInfo info) {
+      mCallLatency.recordSince(mStartNanos);
+      try {
+        mResult.set(mReader.readFrom(new ByteArrayInputStream(mResponseBody.toByteArray())));
+      } catch (IOException | RuntimeException e) {
+        mResult.setException(e);
+      }
+    }
+
+    @Override
+    public void onFailed(
+        @NonNull UrlRequest request, @Nullable UrlResponseInfo info, @NonNull HttpException e) {
+      mCallLatency.recordSince(mStartNanos);
+      mResult.setException(e);
+    }
+
+    @Override
+    public void onCanceled(@NonNull UrlRequest request, @Nullable UrlResponseInfo info) {
+      // Either the caller cancelled the future, or the SFE answered with an error status.
+      mResult.cancel(false);
+    }
+  }
+
+  /** Uploads a request body that is already in memory. */
+  private static final class ByteArrayUploadProvider extends UploadDataProvider {
+    private final byte[] mBody;
+    private int mPosition;
+
+    ByteArrayUploadProvider(byte[] body) {
+      mBody = body;
+    }
+
+    @Override
+    public long getLength() {
+      return mBody.length;
+    }
+
+    @Override
+    public void read(@NonNull UploadDataSink sink, @NonNull ByteBuffer buffer) {
+      int length = Math.min(buffer.remaining(), mBody.length - mPosition);
+      buffer.put(mBody, mPosition, length);
+      mPosition += length;
+      sink.onReadSucceeded(false);
+    }
+
+    @Override
+    public void rewind(@NonNull UploadDataSink sink) {
+      mPosition = 0;
+      sink.onRewindSucceeded();
+    }
+  }
+}
@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.ServerAuctionHelpers;
+
+import android.net.Uri;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.example.adservices.samples.fledge.clients.FakeAdServicesBackend.LatencyModel;
+import com.example.adservices.samples.fledge.sampleapp.MainActivity;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A minimal in-process seller front-end that answers every POST with a canned {@link
+ * SelectAdsResponse}, so that the server auction transport can be exercised offline. Requests in
+ * the {@link SelectAdsBinaryCodec} format are answered in that format, and JSON responses are
+ * gzip compressed for clients that accept it.
+ *
+ * <p>The server speaks plain HTTP/1.1 with keep-alive on the loopback interface. The cost of a
+ * TCP and TLS handshake on a real network is simulated by delaying the first response on every
+ * new connection, which makes connection reuse visible in the client's latencies. Each response is
+ * delayed by a sample of the configured {@link LatencyModel}, and a configurable share of requests
+ * is failed with an HTTP error. Requests can optionally be checked to be well-formed SelectAds
+ * requests, in which case malformed ones are answered with HTTP 400.
+ *
+ * <p>The ciphertext in the response is random unless one is set, and will not be accepted by
+ * {@code persistAdSelectionResult}.
+ */
+public final class MockSfeServer implements Closeable {
+  private static final int MAX_HEADER_LINE_LENGTH = 8192;
+
+  private final ServerSocket mServerSocket;
+  private final ExecutorService mExecutor;
+  private final long mHandshakeDelayMs;
+  private final LatencyModel mResponseLatency;
+  private final boolean mBinarySupported;
+  private final double mErrorRate;
+  private final int mErrorStatusCode;
+  private final boolean mValidateRequests;
+  private final byte[] mJsonResponseBody;
+  private final byte[] mGzipJsonResponseBody;
+  private final byte[] mBinaryResponseBody;
+  private final AtomicLong mConnectionCount = new AtomicLong();
+  private final AtomicLong mRequestCount = new AtomicLong();
+  private final AtomicLong mErrorCount = new AtomicLong();
+  private final AtomicLong mInvalidRequestCount = new AtomicLong();
+
+  private MockSfeServer(Builder builder) throws IOException {
+    mHandshakeDelayMs = builder.mHandshakeDelayMs;
+    mResponseLatency = builder.mResponseLatency;
+    mBinarySupported = builder.mBinarySupported;
+    mErrorRate = builder.mErrorRate;
+    mErrorStatusCode = builder.mErrorStatusCode;
+    mValidateRequests = builder.mValidateRequests;
+    byte[] ciphertext = builder.mCiphertext;
+    if (ciphertext == null) {
+      ciphertext = new byte[builder.mCiphertextSize];
+      new Random().nextBytes(ciphertext);
+    }
+    mJsonResponseBody =
+        ("{\"auctionResultCiphertext\":\"" + BaseEncoding.base64().encode(ciphertext) + "\"}")
+            .getBytes(StandardCharsets.UTF_8);
+    ByteArrayOutputStream gzipResponse = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(gzipResponse)) {
+      gzip.write(mJsonResponseBody);
+    }
+    mGzipJsonResponseBody = gzipResponse.toByteArray();
+    ByteArrayOutputStream binaryResponse = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(binaryResponse);
+    data.writeByte(1);
+    data.writeInt(ciphertext.length);
+    data.write(ciphertext);
+    mBinaryResponseBody = binaryResponse.toByteArray();
+    mServerSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    mExecutor =
+        Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("mock-sfe-%d").setDaemon(true).build());
+    mExecutor.execute(this::acceptLoop);
+  }
+
+  /** Returns the URI to send SelectAds requests to. */
+  @NonNull
+  public Uri getUri() {
+    return Uri.parse("http://127.0.0.1:" + mServerSocket.getLocalPort() + "/v1/selectAd");
+  }
+
+  /** Returns the number of connections accepted so far. */
+  public long getConnectionCount() {
+    return mConnectionCount.get();
+  }
+
+  /** Returns the number of requests answered so far, including failed ones. */
+  public long getRequestCount() {
+    return mRequestCount.get();
+  }
+
+  /** Returns the number of requests failed on purpose so far. */
+  public long getErrorCount() {
+    return mErrorCount.get();
+  }
+
+  /** Returns the number of requests rejected as malformed so far. */
+  public long getInvalidRequestCount() {
+    return mInvalidRequestCount.get();
+  }
+
+  /** Stops accepting connections and closes the open ones. */
+  @Override
+  public void close() throws IOException {
+    mServerSocket.close();
+    mExecutor.shutdownNow();
+  }
+
+  private void acceptLoop() {
+    while (!mServerSocket.isClosed()) {
+      try {
+        Socket socket = mServerSocket.accept();
+        // Headers and body are written separately; don't let Nagle hold the body back.
+        socket.setTcpNoDelay(true);
+        mConnectionCount.incrementAndGet();
+        mExecutor.execute(() -> serve(socket));
+      } catch (IOException e) {
+        if (!mServerSocket.isClosed()) {
+          Log.w(MainActivity.TAG, "Mock SFE failed to accept a connection", e);
+        }
+      }
+    }
+  }
+
+  private void serve(Socket socket) {
+    try (Socket s = socket) {
+      InputStream in = new BufferedInputStream(s.getInputStream());
+      OutputStream out = s.getOutputStream();
+      boolean firstRequest = true;
+      while (true) {
+        RequestInfo request;
+        try {
+          request = readRequest(in, mValidateRequests);
+        } catch (EOFException e) {
+          // The client closed an idle keep-alive connection.
+          return;
+        }
+        long delayNanos = mResponseLatency.sampleNanos();
+        if (firstRequest) {
+          delayNanos += TimeUnit.MILLISECONDS.toNanos(mHandshakeDelayMs);
+        }
+        TimeUnit.NANOSECONDS.sleep(delayNanos);
+        firstRequest = false;
+        if (mValidateRequests && !request.mValid) {
+          mInvalidRequestCount.incrementAndGet();
+          writeResponse(out, "400 Bad Request", "text/plain", null, new byte[0], true);
+        } else if (mErrorRate > 0 && ThreadLocalRandom.current().nextDouble() < mErrorRate) {
+          mErrorCount.incrementAndGet();
+          writeResponse(
+              out, mErrorStatusCode + " Injected Error", "text/plain", null, new byte[0], true);
+        } else if (!request.mBinary) {
+          writeResponse(
+              out,
+              "200 OK",
+              "application/json",
+              request.mAcceptsGzip ? "gzip" : null,
+              request.mAcceptsGzip ? mGzipJsonResponseBody : mJsonResponseBody,
+              request.mKeepAlive);
+        } else if (mBinarySupported) {
+          writeResponse(
+              out,
+              "200 OK",
+              SelectAdsBinaryCodec.CONTENT_TYPE,
+              null,
+              mBinaryResponseBody,
+              request.mKeepAlive);
+        } else {
+          writeResponse(out, "415 Unsupported Media Type", "text/plain", null, new byte[0], true);
+        }
+        mRequestCount.incrementAndGet();
+        if (!request.mKeepAlive) {
+          return;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      if (!mServerSocket.isClosed()) {
+        Log.w(MainActivity.TAG, "Mock SFE connection failed", e);
+      }
+    }
+  }
+
+  /** Reads one request, and checks or discards its body. */
+  private static RequestInfo readRequest(InputStream in, boolean validate) throws IOException {
+    String requestLine = readLine(in);
+    if (requestLine == null) {
+      throw new EOFException();
+    }
+    long contentLength = 0;
+    boolean chunked = false;
+    RequestInfo request = new RequestInfo();
+    String line;
+    while ((line = readLine(in)) != null && !line.isEmpty()) {
+      int colon = line.indexOf(':');
+      if (colon < 0) {
+        continue;
+      }
+      String name = line.substring(0, colon).trim().toLowerCase(Locale.US);
+      String value = line.substring(colon + 1).trim();
+      if (name.equals("content-length")) {
+        contentLength = Long.parseLong(value);
+      } else if (name.equals("transfer-encoding")) {
+        chunked = value.equalsIgnoreCase("chunked");
+      } else if (name.equals("connection")) {
+        request.mKeepAlive = !value.equalsIgnoreCase("close");
+      } else if (name.equals("accept-encoding")) {
+        request.mAcceptsGzip = value.contains("gzip");
+      } else if (name.equals("content-type")) {
+        request.mBinary = value.startsWith(SelectAdsBinaryCodec.CONTENT_TYPE);
+      } else if (name.equals("content-encoding")) {
+        request.mGzip = value.equalsIgnoreCase("gzip");
+      }
+    }
+    if (line == null) {
+      throw new EOFException("Connection closed in request headers");
+    }
+
+    // Only validated bodies are kept; the others are skipped as they are read.
+    ByteArrayOutputStream body = validate ? new ByteArrayOutputStream() : null;
+    if (chunked) {
+      long chunkSize;
+      do {
+        String sizeLine = readLine(in);
+        if (sizeLine == null) {
+          throw new EOFException("Connection closed in chunked body");
+        }
+        int extension = sizeLine.indexOf(';');
+        chunkSize =
+            Long.parseLong(
+                (extension < 0 ? sizeLine : sizeLine.substring(0, extension)).trim(), 16);
+        readBody(in, chunkSize, body);
+        readLine(in);
+      } while (chunkSize > 0);
+    } else {
+      readBody(in, contentLength, body);
+    }
+    if (body != null) {
+      request.mValid = isValidRequest(body.toByteArray(), request.mBinary, request.mGzip);
+    }
+    return request;
+  }
+
+  private static void readBody(InputStream in, long length, ByteArrayOutputStream body)
+      throws IOException {
+    if (body == null) {
+      ByteStreams.skipFully(in, length);
+    } else {
+      ByteStreams.copy(ByteStreams.limit(in, length), body);
+    }
+  }
+
+  /** Returns whether {@code body} holds a SelectAds request with an auction config. */
+  private static boolean isValidRequest(byte[] body, boolean binary, boolean gzip) {
+    InputStream raw = new ByteArrayInputStream(body);
+    try (InputStream in = gzip ? new GZIPInputStream(raw) : raw) {
+      if (binary) {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readUnsignedByte() != 1) {
+          return false;
+        }
+        // The auction config, client type and ciphertext.
+        for (int i = 0; i < 3; i++) {
+          ByteStreams.skipFully(data, data.readInt() & 0xFFFFFFFFL);
+        }
+        return data.read() == -1;
+      }
+      JsonObject request =
+          JsonParser.parseReader(new InputStreamReader(in, StandardCharsets.UTF_8))
+              .getAsJsonObject();
+      return request.has("protected_audience_ciphertext")
+          && request.has("auction_config")
+          && request.getAsJsonObject("auction_config").has("seller");
+    } catch (IOException | RuntimeException e) {
+      return false;
+    }
+  }
+
+  private static void writeResponse(
+      OutputStream out,
+      String status,
+      String contentType,
+      String contentEncoding,
+      byte[] body,
+      boolean keepAlive)
+      throws IOException {
+    String headers =
+        "HTTP/1.1 "
+            + status
+            + "\r\n"
+            + "Content-Type: "
+            + contentType
+            + "\r\n"
+            + (contentEncoding != null ? "Content-Encoding: " + contentEncoding + "\r\n" : "")
+            + "Content-Length: "
+            + body.length
+            + "\r\n"
+            + "Connection: "
+            + (keepAlive ? "keep-alive" : "close")
+            + "\r\n\r\n";
+    out.write(headers.getBytes(StandardCharsets.US_ASCII));
+    out.write(body);
+    out.flush();
+  }
+
+  private static final class RequestInfo {
+    boolean mKeepAlive = true;
+    boolean mBinary;
+    boolean mAcceptsGzip;
+    boolean mGzip;
+    boolean mValid;
+  }
+
+  /** Reads a CRLF terminated line, or returns {@code null} at the end of the stream. */
+  private static String readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != -1) {
+      if (b == '\n') {
+        int length = line.size();
+        byte[] bytes = line.toByteArray();
+        if (length > 0 && bytes[length - 1] == '\r') {
+          length--;
+        }
+        return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+      }
+      if (line.size() >= MAX_HEADER_LINE_LENGTH) {
+        throw new IOException("Header line too long");
+      }
+      line.write(b);
+    }
+    return line.size() == 0 ? null : line.toString("US-ASCII");
+  }
+
+  /** Builder class. */
+  public static final class Builder {
+    private long mHandshakeDelayMs = 150;
+    private LatencyModel mResponseLatency = LatencyModel.fixed(20);
+    private int mCiphertextSize = 2048;
+    @Nullable private byte[] mCiphertext;
+    private boolean mBinarySupported = true;
+    private double mErrorRate;
+    private int mErrorStatusCode = 503;
+    private boolean mValidateRequests;
+
+    /** Empty-arg constructor with an empty body for Builder */
+    public Builder() {}
+
+    /**
+     * Sets the extra delay of the first response on every new connection, standing in for the
+     * TCP and TLS handshake. Defaults to 150ms.
+     */
+    @NonNull
+    public Builder setHandshakeDelayMs(long handshakeDelayMs) {
+      mHandshakeDelayMs = handshakeDelayMs;
+      return this;
+    }
+
+    /** Sets the time the server takes to answer each request. Defaults to 20ms. */
+    @NonNull
+    public Builder setResponseDelayMs(long responseDelayMs) {
+      mResponseLatency = LatencyModel.fixed(responseDelayMs);
+      return this;
+    }
+
+    /**
+     * Sets the distribution of the time the server takes to answer each request, e.g. a long
+     * tailed {@link LatencyModel#logNormal} to exercise hedging. Replaces {@link
+     * #setResponseDelayMs}.
+     */
+    @NonNull
+    public Builder setResponseLatency(@NonNull LatencyModel responseLatency) {
+      mResponseLatency = Objects.requireNonNull(responseLatency);
+      return this;
+    }
+
+    /** Sets the size of the random ciphertext in every response. Defaults to 2KiB. */
+    @NonNull
+    public Builder setCiphertextSize(int ciphertextSize) {
+      mCiphertextSize = ciphertextSize;
+      return this;
+    }
+
+    /** Sets the ciphertext every response carries, instead of a random one. */
+    @NonNull
+    public Builder setResponseCiphertext(@NonNull byte[] ciphertext) {
+      mCiphertext = ciphertext.clone();
+      return this;
+    }
+
+    /**
+     * Sets the share of requests, between 0 and 1, that are answered with {@code statusCode}
+     * instead of a response. Defaults to none.
+     */
+    @NonNull
+    public Builder setErrorRate(double errorRate, int statusCode) {
+      if (errorRate < 0 || errorRate > 1) {
+        throw new IllegalArgumentException("errorRate must be in [0, 1]");
+      }
+      mErrorRate = errorRate;
+      mErrorStatusCode = statusCode;
+      return this;
+    }
+
+    /**
+     * Sets whether request bodies are parsed and malformed ones answered with HTTP 400. Costs
+     * server CPU on the device, so defaults to {@code false}.
+     */
+    @NonNull
+    public Builder setValidateRequests(boolean validateRequests) {
+      mValidateRequests = validateRequests;
+      return this;
+    }
+
+    /**
+     * Sets whether requests in the {@link SelectAdsBinaryCodec} format are answered in kind or
+     * rejected with HTTP 415. Defaults to {@code true}.
+     */
+    @NonNull
+    public Builder setBinarySupported(boolean binarySupported) {
+      mBinarySupported = binarySupported;
+      return this;
+    }
+
+    /** Starts a {@link MockSfeServer} on a free loopback port. */
+    @NonNull
+    public MockSfeServer start() throws IOException {
+      return new MockSfeServer(this);
+    }
+  }
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.ServerAuctionHelpers;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.example.adservices.samples.fledge.MetricsHelpers.LatencyHistogram;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.util.Locale;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.SocketFactory;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.EventListener;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okhttp3.brotli.BrotliInterceptor;
+import okio.BufferedSink;
+
+/**
+ * {@link SfeTransport} backed by OkHttp.
+ *
+ * <p>Connections are kept alive in a pool and reused across auctions, and HTTP/2 is negotiated
+ * over TLS when the SFE supports it so that concurrent auctions share one connection. Every call
+ * is counted as either opening a new connection or reusing a pooled one.
+ *
+ * <p>Asynchronous calls don't hold a thread of the caller's executor, but they are not thread-free:
+ * OkHttp runs each one as a blocking write and read on a thread of its {@link Dispatcher}, which
+ * is held for the whole round-trip to the SFE. The default transport's dispatcher runs up to
+ * {@value #MAX_REQUESTS} calls at once, {@value #MAX_REQUESTS_PER_HOST} of them to the same SFE,
+ * so that concurrent auctions and their hedges aren't queued behind OkHttp's default limit of 5
+ * calls per host. Calls beyond the limits wait in the dispatcher's queue, which counts against
+ * their timeout; {@link #getQueuedCallCount()} shows how many are waiting. Server auctions
+ * therefore go through {@link HttpEngineSfeTransport}, which holds no thread at all; this
+ * transport serves the benchmarks and load runs against a local {@link MockSfeServer}.
+ */
+public final class OkHttpSfeTransport implements SfeTransport {
+  private static final int MAX_IDLE_CONNECTIONS = 4;
+  private static final long KEEP_ALIVE_MINUTES = 5;
+  private static final long TIMEOUT_SECONDS = 10;
+  private static final int MAX_REQUESTS = 64;
+  private static final int MAX_REQUESTS_PER_HOST = 32;
+
+  private static final OkHttpSfeTransport sDefault =
+      new OkHttpSfeTransport(
+          new OkHttpClient.Builder()
+              .dispatcher(newDispatcher(MAX_REQUESTS, MAX_REQUESTS_PER_HOST))
+              .connectionPool(
+                  new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+              .connectTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+              .readTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+              .writeTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+              .build());
+
+  private final OkHttpClient mClient;
+  private final AtomicLong mCallCount = new AtomicLong();
+  private final AtomicLong mNewConnectionCount = new AtomicLong();
+  private final AtomicLong mReusedConnectionCount = new AtomicLong();
+  private final AtomicLong mHttp2CallCount = new AtomicLong();
+  private final LatencyHistogram mConnectLatency = new LatencyHistogram("sfe connect");
+  private final LatencyHistogram mCallLatency = new LatencyHistogram("sfe call");
+
+  /**
+   * Creates a transport on top of {@code client}. Clients derived from the same {@link
+   * OkHttpClient} share its connection pool. Responses are accepted compressed with brotli or
+   * gzip and decompressed as they are read. Sockets are opened with {@code TCP_NODELAY}.
+   */
+  public OkHttpSfeTransport(@NonNull OkHttpClient client) {
+    mClient =
+        client
+            .newBuilder()
+            .socketFactory(new NoDelaySocketFactory(client.socketFactory()))
+            .addInterceptor(BrotliInterceptor.INSTANCE)
+            .eventListenerFactory(call -> new MetricsListener())
+            .build();
+  }
+
+  /**
+   * Returns a dispatcher that runs up to {@code maxRequests} calls at once, at most {@code
+   * maxRequestsPerHost} of them to the same host, each on a thread of its own. Its threads are
+   * created on demand, up to {@code maxRequests}, and exit after a minute of idleness.
+   */
+  @NonNull
+  public static Dispatcher newDispatcher(int maxRequests, int maxRequestsPerHost) {
+    if (maxRequestsPerHost <= 0 || maxRequests < maxRequestsPerHost) {
+      throw new IllegalArgumentException(
+          "maxRequestsPerHost must be positive and at most maxRequests");
+    }
+    // The dispatcher never runs more than maxRequests calls, so the pool never rejects one.
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            0,
+            maxRequests,
+            60,
+            TimeUnit.SECONDS,
+            new SynchronousQueue<>(),
+            new ThreadFactoryBuilder().setNameFormat("sfe-call-%d").setDaemon(true).build());
+    Dispatcher dispatcher = new Dispatcher(executor);
+    dispatcher.setMaxRequests(maxRequests);
+    dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+    return dispatcher;
+  }
+
+  /** Returns the transport shared by every {@link BiddingAuctionServerClient} by default. */
+  @NonNull
+  public static OkHttpSfeTransport getDefault() {
+    return sDefault;
+  }
+
+  @Override
+  public <T> T post(
+      @NonNull String address,
+      @NonNull String contentType,
+      @Nullable String contentEncoding,
+      @NonNull BodyWriter body,
+      @NonNull BodyReader<T> reader)
+      throws IOException {
+    try (Response response =
+        mClient.newCall(newRequest(address, contentType, contentEncoding, body)).execute()) {
+      return readResponse(address, response, reader);
+    }
+  }
+
+  @NonNull
+  @Override
+  public <T> ListenableFuture<T> postAsync(
+      @NonNull String address,
+      @NonNull String contentType,
+      @Nullable String contentEncoding,
+      @NonNull BodyWriter body,
+      @NonNull BodyReader<T> reader) {
+    SettableFuture<T> result = SettableFuture.create();
+    Call call = mClient.newCall(newRequest(address, contentType, contentEncoding, body));
+    result.addListener(
+        () -> {
+          if (result.isCancelled()) {
+            call.cancel();
+          }
+        },
+        MoreExecutors.directExecutor());
+    // The request is written and the response read on one of OkHttp's dispatcher threads, which
+    // blocks on the socket for the whole call. The call waits in the dispatcher's queue until the
+    // dispatcher's limits let it run.
+    call.enqueue(
+        new Callback() {
+          @Override
+          public void onFailure(@NonNull Call call, @NonNull IOException e) {
+            result.setException(e);
+          }
+
+          @Override
+          public void onResponse(@NonNull Call call, @NonNull Response response) {
+            try (Response closing = response) {
+              result.set(readResponse(address, closing, reader));
+            } catch (IOException | RuntimeException e) {
+              result.setException(e);
+            }
+          }
+        });
+    return result;
+  }
+
+  private static Request newRequest(
+      String address, String contentType, @Nullable String contentEncoding, BodyWriter body) {
+    MediaType mediaType = MediaType.get(contentType);
+    RequestBody requestBody =
+        new RequestBody() {
+          @Override
+          public MediaType contentType() {
+            return mediaType;
+          }
+
+          @Override
+          public void writeTo(@NonNull BufferedSink sink) throws IOException {
+            OutputStream out = sink.outputStream();
+            body.writeTo(out);
+            out.flush();
+          }
+        };
+    Request.Builder request =
+        new Request.Builder().url(address).header("Accept", contentType).post(requestBody);
+    if (contentEncoding != null) {
+      request.header("Content-Encoding", contentEncoding);
+    }
+    return request.build();
+  }
+
+  private static <T> T readResponse(String address, Response response, BodyReader<T> reader)
+      throws IOException {
+    if (!response.isSuccessful()) {
+      throw new SfeHttpException(address, response.code());
+    }
+    ResponseBody responseBody = response.body();
+    if (responseBody == null) {
+      throw new IOException("SFE call to " + address + " returned no body");
+    }
+    return reader.readFrom(responseBody.byteStream());
+  }
+
+  /** Returns the number of calls made through this transport. */
+  public long getCallCount() {
+    return mCallCount.get();
+  }
+
+  /** Returns the number of calls that had to open a new connection. */
+  public long getNewConnectionCount() {
+    return mNewConnectionCount.get();
+  }
+
+  /** Returns the number of calls that reused a pooled connection. */
+  public long getReusedConnectionCount() {
+    return mReusedConnectionCount.get();
+  }
+
+  /** Returns the number of calls waiting in the dispatcher's queue for a slot to run in. */
+  public int getQueuedCallCount() {
+    return mClient.dispatcher().queuedCallsCount();
+  }
+
+  /** Returns the number of calls the dispatcher is running. */
+  public int getRunningCallCount() {
+    return mClient.dispatcher().runningCallsCount();
+  }
+
+  /** Returns the number of calls made over HTTP/2. */
+  public long getHttp2CallCount() {
+    return mHttp2CallCount.get();
+  }
+
+  /** Returns the time it took to open new connections, including the TLS handshake. */
+  @NonNull
+  public LatencyHistogram getConnectLatency() {
+    return mConnectLatency;
+  }
+
+  /** Returns the end-to-end latency of calls, from request start to the end of the response. */
+  @NonNull
+  public LatencyHistogram getCallLatency() {
+    return mCallLatency;
+  }
+
+  /** Returns a one-line summary of the connection metrics, e.g. for the event log. */
+  @NonNull
+  @Override
+  public String toString() {
+    return String.format(
+        Locale.US,
+        "OkHttpSfeTransport: calls=%d newConnections=%d reused=%d http2=%d connectMean=%dus"
+            + " queued=%d",
+        getCallCount(),
+        getNewConnectionCount(),
+        getReusedConnectionCount(),
+        getHttp2CallCount(),
+        mConnectLatency.getMean(TimeUnit.MICROSECONDS),
+        getQueuedCallCount());
+  }
+
+  /**
+   * Disables Nagle's algorithm on every socket. OkHttp writes request headers and body separately,
+   * and with Nagle the body waits for the SFE to acknowledge the headers, which a delayed ACK
+   * holds back for up to 40ms.
+   */
+  private static final class NoDelaySocketFactory extends SocketFactory {
+    private final SocketFactory mDelegate;
+
+    NoDelaySocketFactory(SocketFactory delegate) {
+      mDelegate = delegate;
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+      return noDelay(mDelegate.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+      return noDelay(mDelegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+        throws IOException {
+      return noDelay(mDelegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+      return noDelay(mDelegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port, InetAddress localHost, int localPort)
+        throws IOException {
+      return noDelay(mDelegate.createSocket(host, port, localHost, localPort));
+    }
+
+    private static Socket noDelay(Socket socket) throws IOException {
+      socket.setTcpNoDelay(true);
+      return socket;
+    }
+  }
+
+  /** Tracks a single call; OkHttp creates one listener per call. */
+  private final class MetricsListener extends EventListener {
+    private long mCallStartNanos;
+    private long mConnectStartNanos;
+    private boolean mConnected;
+
+    @Override
+    public void callStart(@NonNull Call call) {
+      mCallStartNanos = System.nanoTime();
+      mCallCount.incrementAndGet();
+    }
+
+    @Override
+    public void connectStart(
+        @NonNull Call call, @NonNull InetSocketAddress address, @NonNull Proxy proxy) {
+      mConnectStartNanos = System.nanoTime();
+    }
+
+    @Override
+    public void connectEnd(
+        @NonNull Call call,
+        @NonNull InetSocketAddress address,
+        @NonNull Proxy proxy,
+        Protocol protocol) {
+      mConnectLatency.recordSince(mConnectStartNanos);
+      mConnected = true;
+    }
+
+    @Override
+    public void connectionAcquired(@NonNull Call call, @NonNull Connection connection) {
+      if (mConnected) {
+        mNewConnectionCount.incrementAndGet();
+      } else {
+        mReusedConnectionCount.incrementAndGet();
+      }
+      if (connection.protocol() == Protocol.HTTP_2) {
+        mHttp2CallCount.incrementAndGet();
+      }
+    }
+
+    @Override
+    public void callEnd(@NonNull Call call) {
+      mCallLatency.recordSince(mCallStartNanos);
+    }
+
+    @Override
+    public void callFailed(@NonNull Call call, @NonNull IOException e) {
+      mCallLatency.recordSince(mCallStartNanos);
+    }
+  }
+}
@@ -24,6 +24,7 @@ public abstract class PerBuyerConfig {
   @Nullable public abstract Integer getBuyerKvExperimentGroupId();
   @Nullable public abstract Integer getGenerateBidCodeVersion();
   public abstract String getBuyerDebugId();
+  @Nullable public abstract Integer getBuyerTimeoutMs();
 
   public static Builder builder() {
     return new AutoValue_PerBuyerConfig.Builder();
@@ -35,6 +36,7 @@ public abstract class PerBuyerConfig {
     public abstract Builder setBuyerKvExperimentGroupId(@Nullable Integer value);
     public abstract Builder setGenerateBidCodeVersion(@Nullable Integer value);
     public abstract Builder setBuyerDebugId(String value);
+    public abstract Builder setBuyerTimeoutMs(@Nullable Integer value);
     public abstract PerBuyerConfig build();
   }
 }
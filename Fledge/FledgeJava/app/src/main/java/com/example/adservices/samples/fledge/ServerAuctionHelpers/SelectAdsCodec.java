@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.ServerAuctionHelpers;
+
+import androidx.annotation.NonNull;
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streams {@link SelectAdsRequest}s to and {@link SelectAdsResponse}s from an SFE connection.
+ *
+ * <p>The request is written field by field to the connection and the response is parsed as it is
+ * read, so neither is ever held as a whole JSON string next to its ciphertext. The Gson type
+ * adapters are looked up once and shared.
+ */
+public final class SelectAdsCodec {
+  private static final int WRITE_BUFFER_SIZE = 8192;
+  private static final Gson sRequestGson =
+      new GsonBuilder()
+          .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
+          .create();
+  private static final Gson sResponseGson = new Gson();
+
+  // The request is serialized through its AutoValue implementation, whose fields carry the data.
+  @SuppressWarnings("unchecked")
+  private static final TypeAdapter<SelectAdsRequest> sRequestAdapter =
+      (TypeAdapter<SelectAdsRequest>)
+          (TypeAdapter<?>) sRequestGson.getAdapter(AutoValue_SelectAdsRequest.class);
+  private static final TypeAdapter<SelectAdsResponse> sResponseAdapter =
+      sResponseGson.getAdapter(SelectAdsResponse.class);
+
+  private SelectAdsCodec() {}
+
+  /** Writes {@code request} as JSON to {@code out}, which is flushed but not closed. */
+  public static void writeRequest(@NonNull SelectAdsRequest request, @NonNull OutputStream out)
+      throws IOException {
+    JsonWriter writer =
+        sRequestGson.newJsonWriter(
+            new BufferedWriter(
+                new OutputStreamWriter(out, StandardCharsets.UTF_8), WRITE_BUFFER_SIZE));
+    sRequestAdapter.write(writer, request);
+    writer.flush();
+  }
+
+  /** Parses a JSON response from {@code in}, which is not closed. */
+  @NonNull
+  public static SelectAdsResponse readResponse(@NonNull InputStream in) throws IOException {
+    JsonReader reader =
+        sResponseGson.newJsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    SelectAdsResponse response = sResponseAdapter.read(reader);
+    if (response == null) {
+      throw new IOException("SFE returned an empty SelectAds response");
+    }
+    return response;
+  }
+}
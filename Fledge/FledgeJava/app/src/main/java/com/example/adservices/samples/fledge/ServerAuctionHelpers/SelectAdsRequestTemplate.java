@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.ServerAuctionHelpers;
+
+import androidx.annotation.NonNull;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * A SelectAds request with everything but the ciphertext serialized ahead of time.
+ *
+ * <p>The auction config and client type of a request only change with the seller and buyers, so
+ * {@link AuctionConfigGenerator} builds one template per combination and reuses it. Writing a
+ * request then copies the serialized bytes around the ciphertext, which is base64 encoded straight
+ * into the connection, instead of building and serializing the whole request again.
+ */
+public final class SelectAdsRequestTemplate {
+  // Only made of characters Gson writes as is, so that it can be found in the serialized request.
+  private static final String CIPHERTEXT_PLACEHOLDER = "CIPHERTEXT_PLACEHOLDER_d41d8cd9";
+
+  private final AuctionConfig mAuctionConfig;
+  private final String mClientType;
+  private final byte[] mJsonPrefix;
+  private final byte[] mJsonSuffix;
+  private final byte[] mAuctionConfigJson;
+
+  private SelectAdsRequestTemplate(
+      AuctionConfig auctionConfig,
+      String clientType,
+      byte[] jsonPrefix,
+      byte[] jsonSuffix,
+      byte[] auctionConfigJson) {
+    mAuctionConfig = auctionConfig;
+    mClientType = clientType;
+    mJsonPrefix = jsonPrefix;
+    mJsonSuffix = jsonSuffix;
+    mAuctionConfigJson = auctionConfigJson;
+  }
+
+  /** Serializes the parts of a request for {@code auctionConfig} that do not vary per auction. */
+  @NonNull
+  public static SelectAdsRequestTemplate create(
+      @NonNull AuctionConfig auctionConfig, @NonNull String clientType) {
+    SelectAdsRequest request =
+        SelectAdsRequest.builder()
+            .setAuctionConfig(auctionConfig)
+            .setClientType(clientType)
+            .setProtectedAudienceCiphertext(CIPHERTEXT_PLACEHOLDER)
+            .build();
+    ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+    try {
+      SelectAdsCodec.writeRequest(request, serialized);
+    } catch (IOException e) {
+      throw new IllegalStateException("Writing to memory failed", e);
+    }
+    byte[] json = serialized.toByteArray();
+    String jsonString = new String(json, StandardCharsets.UTF_8);
+    int start = jsonString.indexOf(CIPHERTEXT_PLACEHOLDER);
+    if (start < 0 || jsonString.lastIndexOf(CIPHERTEXT_PLACEHOLDER) != start) {
+      throw new IllegalArgumentException("Auction config clashes with the ciphertext placeholder");
+    }
+    // The placeholder is ASCII, so character and byte offsets match up to its end.
+    int prefixLength = jsonString.substring(0, start).getBytes(StandardCharsets.UTF_8).length;
+    int suffixStart = prefixLength + CIPHERTEXT_PLACEHOLDER.length();
+    byte[] prefix = new byte[prefixLength];
+    byte[] suffix = new byte[json.length - suffixStart];
+    System.arraycopy(json, 0, prefix, 0, prefix.length);
+    System.arraycopy(json, suffixStart, suffix, 0, suffix.length);
+    return new SelectAdsRequestTemplate(
+        auctionConfig,
+        clientType,
+        prefix,
+        suffix,
+        SelectAdsBinaryCodec.serializeAuctionConfig(auctionConfig));
+  }
+
+  @NonNull
+  public AuctionConfig getAuctionConfig() {
+    return mAuctionConfig;
+  }
+
+  @NonNull
+  public String getClientType() {
+    return mClientType;
+  }
+
+  /** Returns the auction config as UTF-8 JSON, as sent by the binary format. Do not modify. */
+  @NonNull
+  byte[] getAuctionConfigJson() {
+    return mAuctionConfigJson;
+  }
+
+  /**
+   * Writes a JSON request carrying {@code protectedAudienceCiphertext} to {@code out}, which is
+   * flushed but not closed. The output parses to the same request {@link
+   * SelectAdsCodec#writeRequest} writes, only the base64 padding is not escaped.
+   */
+  public void writeJsonRequest(
+      @NonNull byte[] protectedAudienceCiphertext, @NonNull OutputStream out) throws IOException {
+    out.write(mJsonPrefix);
+    // Closing the encoder writes the padding, but must leave the connection open.
+    OutputStream unclosable =
+        new FilterOutputStream(out) {
+          @Override
+          public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+          }
+
+          @Override
+          public void close() throws IOException {
+            flush();
+          }
+        };
+    try (OutputStream base64 = Base64.getEncoder().wrap(unclosable)) {
+      base64.write(protectedAudienceCiphertext);
+    }
+    out.write(mJsonSuffix);
+    out.flush();
+  }
+
+  /** Returns the size of a JSON request carrying a ciphertext of {@code ciphertextLength} bytes. */
+  public long getJsonRequestLength(int ciphertextLength) {
+    return mJsonPrefix.length + mJsonSuffix.length + (ciphertextLength + 2L) / 3 * 4;
+  }
+
+  /** Returns a one-line summary that leaves out the ciphertext, e.g. for logging. */
+  @NonNull
+  @Override
+  public String toString() {
+    return String.format(
+        Locale.US,
+        "SelectAdsRequestTemplate{seller=%s, %d buyers, clientType=%s, %d JSON bytes}",
+        mAuctionConfig.seller(),
+        mAuctionConfig.buyerList().size(),
+        mClientType,
+        mJsonPrefix.length + mJsonSuffix.length);
+  }
+}
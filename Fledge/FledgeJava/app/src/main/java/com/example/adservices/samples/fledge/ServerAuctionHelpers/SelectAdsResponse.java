@@ -14,6 +14,9 @@
  * limitations under the License.
  */
 package com.example.adservices.samples.fledge.ServerAuctionHelpers;
+
+import com.google.common.io.BaseEncoding;
+
 /**
  * A simple SelectAdResponse POJO used to convert to and from json that will be returned as a
  * response by HTTPS POST SelectAd call.
@@ -22,4 +25,25 @@ package com.example.adservices.samples.fledge.ServerAuctionHelpers;
  */
 public class SelectAdsResponse {
   public String auctionResultCiphertext;
+
+  // Not part of the JSON; set by the binary wire format or decoded on first use.
+  private transient byte[] auctionResultCiphertextBytes;
+
+  /** Creates a response from a raw auction result ciphertext, as sent by the binary format. */
+  static SelectAdsResponse fromCiphertextBytes(byte[] ciphertext) {
+    SelectAdsResponse response = new SelectAdsResponse();
+    response.auctionResultCiphertextBytes = ciphertext;
+    return response;
+  }
+
+  /**
+   * Returns the raw auction result ciphertext, decoding it from base64 if the response was JSON,
+   * or {@code null} if the response had none.
+   */
+  public byte[] getAuctionResultCiphertextBytes() {
+    if (auctionResultCiphertextBytes == null && auctionResultCiphertext != null) {
+      auctionResultCiphertextBytes = BaseEncoding.base64().decode(auctionResultCiphertext);
+    }
+    return auctionResultCiphertextBytes;
+  }
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.ServerAuctionHelpers;
+
+import androidx.annotation.NonNull;
+import com.example.adservices.samples.fledge.MetricsHelpers.LatencyHistogram;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the attempts, retries and hedges of SFE calls made with a {@link SfeRetryPolicy}, and
+ * keeps the latency of successful requests per SFE address, which the hedge delay is derived
+ * from.
+ */
+public final class SfeCallStats {
+  private final AtomicLong mCallCount = new AtomicLong();
+  private final AtomicLong mAttemptCount = new AtomicLong();
+  private final AtomicLong mRetryCount = new AtomicLong();
+  private final AtomicLong mHedgesFired = new AtomicLong();
+  private final AtomicLong mHedgesWon = new AtomicLong();
+  private final Map<String, LatencyHistogram> mLatencyByAddress = new ConcurrentHashMap<>();
+
+  void recordCall() {
+    mCallCount.incrementAndGet();
+  }
+
+  void recordAttempt(boolean isRetry) {
+    mAttemptCount.incrementAndGet();
+    if (isRetry) {
+      mRetryCount.incrementAndGet();
+    }
+  }
+
+  void recordHedgeFired() {
+    mHedgesFired.incrementAndGet();
+  }
+
+  void recordHedgeWon() {
+    mHedgesWon.incrementAndGet();
+  }
+
+  /** Returns the number of calls made. */
+  public long getCallCount() {
+    return mCallCount.get();
+  }
+
+  /** Returns the number of attempts made, retries included but hedges not. */
+  public long getAttemptCount() {
+    return mAttemptCount.get();
+  }
+
+  /** Returns the number of attempts that retried a failed one. */
+  public long getRetryCount() {
+    return mRetryCount.get();
+  }
+
+  /** Returns the number of hedge requests sent. */
+  public long getHedgesFired() {
+    return mHedgesFired.get();
+  }
+
+  /** Returns the number of hedge requests that answered before the request they hedged. */
+  public long getHedgesWon() {
+    return mHedgesWon.get();
+  }
+
+  /** Returns the latency of successful requests to {@code address}. */
+  @NonNull
+  public LatencyHistogram getLatency(@NonNull String address) {
+    return mLatencyByAddress.computeIfAbsent(address, LatencyHistogram::new);
+  }
+
+  /** Returns a one-line summary, e.g. for the event log. */
+  @NonNull
+  @Override
+  public String toString() {
+    return String.format(
+        Locale.US,
+        "sfe calls: calls=%d attempts=%d retries=%d hedgesFired=%d hedgesWon=%d",
+        getCallCount(),
+        getAttemptCount(),
+        getRetryCount(),
+        getHedgesFired(),
+        getHedgesWon());
+  }
+}
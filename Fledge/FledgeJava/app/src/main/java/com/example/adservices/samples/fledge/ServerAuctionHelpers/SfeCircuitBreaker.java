@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.ServerAuctionHelpers;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import com.example.adservices.samples.fledge.sampleapp.MainActivity;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Stops sending server auctions to an SFE that is failing or slow, so that callers can fall back
+ * to on-device ad selection right away instead of waiting for every call to time out.
+ *
+ * <p>The breaker keeps the outcome of the last calls to its SFE. Once enough of them failed or
+ * were slower than the slow call threshold, it opens and {@link #tryAcquire} turns every call
+ * down. After the open duration, a single probe call is let through in the half-open state: the
+ * breaker closes again if the probe succeeds and reopens if it does not. 4xx responses other than
+ * 429 count as successes, as they mean the SFE is up and turned down the request itself.
+ *
+ * <p>Callers that were let through report the outcome of their SFE call with {@link #onSuccess}
+ * or {@link #onFailure}.
+ */
+public final class SfeCircuitBreaker {
+
+  /** The states of a breaker. */
+  public enum State {
+    /** Calls go to the SFE. */
+    CLOSED,
+    /** Calls are turned down. */
+    OPEN,
+    /** A single probe call goes to the SFE to find out whether it recovered. */
+    HALF_OPEN
+  }
+
+  private static final Map<String, SfeCircuitBreaker> sBreakers = new ConcurrentHashMap<>();
+
+  private final String mAddress;
+  private final int mWindowSize;
+  private final int mMinCalls;
+  private final double mFailureRateThreshold;
+  private final long mSlowCallThresholdNanos;
+  private final long mOpenDurationNanos;
+
+  // Guarded by this. A ring buffer of the last calls, true for failed or slow ones.
+  private final boolean[] mWindow;
+  private int mWindowNext;
+  private int mWindowCount;
+  private int mBadCallCount;
+  private State mState = State.CLOSED;
+  private long mStateChangedNanos = System.nanoTime();
+  private boolean mProbeInFlight;
+  private long mRejectedCallCount;
+  private final Map<State, Long> mTransitionCounts = new EnumMap<>(State.class);
+
+  private SfeCircuitBreaker(String address, Builder builder) {
+    mAddress = address;
+    mWindowSize = builder.mWindowSize;
+    mMinCalls = builder.mMinCalls;
+    mFailureRateThreshold = builder.mFailureRateThreshold;
+    mSlowCallThresholdNanos = TimeUnit.MILLISECONDS.toNanos(builder.mSlowCallThresholdMs);
+    mOpenDurationNanos = TimeUnit.MILLISECONDS.toNanos(builder.mOpenDurationMs);
+    mWindow = new boolean[mWindowSize];
+  }
+
+  /** Returns the breaker with the default settings shared by all calls to {@code address}. */
+  @NonNull
+  public static SfeCircuitBreaker forAddress(@NonNull String address) {
+    return sBreakers.computeIfAbsent(address, a -> new Builder().build(a));
+  }
+
+  /** Returns the breakers created by {@link #forAddress} so far. */
+  @NonNull
+  public static Collection<SfeCircuitBreaker> getAll() {
+    return Collections.unmodifiableCollection(sBreakers.values());
+  }
+
+  /**
+   * Returns whether a call may go to the SFE now. Moves an open breaker to half-open once the open
+   * duration passed, letting the caller through as the probe. A probe that has not reported back
+   * within the open duration is given up on and another one is let through.
+   */
+  public synchronized boolean tryAcquire() {
+    long now = System.nanoTime();
+    switch (mState) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (now - mStateChangedNanos < mOpenDurationNanos) {
+          mRejectedCallCount++;
+          return false;
+        }
+        transitionTo(State.HALF_OPEN, now);
+        mProbeInFlight = true;
+        return true;
+      case HALF_OPEN:
+      default:
+        if (mProbeInFlight && now - mStateChangedNanos < mOpenDurationNanos) {
+          mRejectedCallCount++;
+          return false;
+        }
+        mStateChangedNanos = now;
+        mProbeInFlight = true;
+        return true;
+    }
+  }
+
+  /** Reports that a call let through by {@link #tryAcquire} succeeded in {@code latencyNanos}. */
+  public void onSuccess(long latencyNanos) {
+    record(latencyNanos >= mSlowCallThresholdNanos);
+  }
+
+  /**
+   * Reports that a call let through by {@link #tryAcquire} failed with {@code t}. Cancelled calls
+   * are ignored and calls the SFE turned down as bad requests count as successes.
+   */
+  public void onFailure(@NonNull Throwable t) {
+    if (t instanceof CancellationException) {
+      synchronized (this) {
+        mProbeInFlight = false;
+      }
+      return;
+    }
+    record(countsAsFailure(t));
+  }
+
+  /**
+   * Reports the outcome of {@code call}, a call let through by {@link #tryAcquire} that just
+   * started, once it completes. Returns {@code call}.
+   */
+  @NonNull
+  public <T> ListenableFuture<T> track(@NonNull ListenableFuture<T> call) {
+    long startNanos = System.nanoTime();
+    Futures.addCallback(
+        call,
+        new FutureCallback<T>() {
+          @Override
+          public void onSuccess(T result) {
+            SfeCircuitBreaker.this.onSuccess(System.nanoTime() - startNanos);
+          }
+
+          @Override
+          public void onFailure(@NonNull Throwable t) {
+            SfeCircuitBreaker.this.onFailure(t);
+          }
+        },
+        MoreExecutors.directExecutor());
+    return call;
+  }
+
+  /** Returns the current state, without moving an open breaker to half-open. */
+  @NonNull
+  public synchronized State getState() {
+    return mState;
+  }
+
+  /** Returns the address of the SFE this breaker guards. */
+  @NonNull
+  public String getAddress() {
+    return mAddress;
+  }
+
+  /** Returns the number of times the breaker moved to {@code state}. */
+  public synchronized long getTransitionCount(@NonNull State state) {
+    Long count = mTransitionCounts.get(state);
+    return count == null ? 0 : count;
+  }
+
+  /** Returns the number of calls turned down while the breaker was open or probing. */
+  public synchronized long getRejectedCallCount() {
+    return mRejectedCallCount;
+  }
+
+  /** Returns the fraction of failed or slow calls in the current window. */
+  public synchronized double getFailureRate() {
+    return mWindowCount == 0 ? 0 : (double) mBadCallCount / mWindowCount;
+  }
+
+  /** Returns a one-line summary, e.g. for the event log. */
+  @NonNull
+  @Override
+  public synchronized String toString() {
+    return String.format(
+        Locale.US,
+        "SfeCircuitBreaker{%s: state=%s failureRate=%.2f opened=%d halfOpened=%d closed=%d"
+            + " rejected=%d}",
+        mAddress,
+        mState,
+        getFailureRate(),
+        getTransitionCount(State.OPEN),
+        getTransitionCount(State.HALF_OPEN),
+        getTransitionCount(State.CLOSED),
+        mRejectedCallCount);
+  }
+
+  private static boolean countsAsFailure(Throwable t) {
+    if (t instanceof SfeHttpException) {
+      int statusCode = ((SfeHttpException) t).getStatusCode();
+      return statusCode >= 500 || statusCode == 429;
+    }
+    return t instanceof TimeoutException || t instanceof IOException;
+  }
+
+  private synchronized void record(boolean bad) {
+    long now = System.nanoTime();
+    if (mState == State.HALF_OPEN) {
+      mProbeInFlight = false;
+      if (bad) {
+        transitionTo(State.OPEN, now);
+      } else {
+        clearWindow();
+        transitionTo(State.CLOSED, now);
+      }
+      return;
+    }
+    if (mState == State.OPEN) {
+      // A call that was let through before the breaker opened.
+      return;
+    }
+    if (mWindowCount == mWindowSize) {
+      if (mWindow[mWindowNext]) {
+        mBadCallCount--;
+      }
+    } else {
+      mWindowCount++;
+    }
+    mWindow[mWindowNext] = bad;
+    if (bad) {
+      mBadCallCount++;
+    }
+    mWindowNext = (mWindowNext + 1) % mWindowSize;
+    if (mWindowCount >= mMinCalls && getFailureRate() >= mFailureRateThreshold) {
+      transitionTo(State.OPEN, now);
+    }
+  }
+
+  private void clearWindow() {
+    mWindowNext = 0;
+    mWindowCount = 0;
+    mBadCallCount = 0;
+  }
+
+  private void transitionTo(State state, long now) {
+    Log.w(MainActivity.TAG, "SFE circuit breaker for " + mAddress + ": " + mState + " -> " + state);
+    mState = state;
+    mStateChangedNanos = now;
+    Long count = mTransitionCounts.get(state);
+    mTransitionCounts.put(state, count == null ? 1 : count + 1);
+  }
+
+  /** Builder for {@link SfeCircuitBreaker}. */
+  public static final class Builder {
+    private int mWindowSize = 20;
+    private int mMinCalls = 10;
+    private double mFailureRateThreshold = 0.5;
+    private long mSlowCallThresholdMs = 2000;
+    private long mOpenDurationMs = 30000;
+
+    /**
+     * Sets how many of the last calls the failure rate is computed over, and how many calls have
+     * to be made before the breaker may open. Defaults to 20 and 10.
+     */
+    @NonNull
+    public Builder setWindow(int windowSize, int minCalls) {
+      Preconditions.checkArgument(
+          windowSize > 0 && minCalls > 0 && minCalls <= windowSize,
+          "minCalls must be in [1, windowSize]");
+      mWindowSize = windowSize;
+      mMinCalls = minCalls;
+      return this;
+    }
+
+    /** Sets the fraction of failed or slow calls that opens the breaker. Defaults to 0.5. */
+    @NonNull
+    public Builder setFailureRateThreshold(double failureRateThreshold) {
+      Preconditions.checkArgument(
+          failureRateThreshold > 0 && failureRateThreshold <= 1,
+          "failureRateThreshold must be in (0, 1]");
+      mFailureRateThreshold = failureRateThreshold;
+      return this;
+    }
+
+    /** Sets the latency from which a successful call counts as slow. Defaults to 2 seconds. */
+    @NonNull
+    public Builder setSlowCallThresholdMs(long slowCallThresholdMs) {
+      mSlowCallThresholdMs = slowCallThresholdMs;
+      return this;
+    }
+
+    /** Sets how long the breaker stays open before probing the SFE. Defaults to 30 seconds. */
+    @NonNull
+    public Builder setOpenDurationMs(long openDurationMs) {
+      mOpenDurationMs = openDurationMs;
+      return this;
+    }
+
+    /** Builds a breaker for {@code address} that is not shared through {@link #forAddress}. */
+    @NonNull
+    public SfeCircuitBreaker build(@NonNull String address) {
+      return new SfeCircuitBreaker(address, this);
+    }
+  }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.ServerAuctionHelpers;
+
+import java.io.IOException;
+
+/** Thrown by an {@link SfeTransport} when the SFE answers with a non-2xx HTTP status. */
+public class SfeHttpException extends IOException {
+  private final int mStatusCode;
+
+  public SfeHttpException(String address, int statusCode) {
+    super("SFE call to " + address + " failed with HTTP " + statusCode);
+    mStatusCode = statusCode;
+  }
+
+  /** Returns the HTTP status the SFE answered with. */
+  public int getStatusCode() {
+    return mStatusCode;
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.ServerAuctionHelpers;
+
+import androidx.annotation.NonNull;
+import com.example.adservices.samples.fledge.MetricsHelpers.LatencyHistogram;
+import com.google.common.base.Preconditions;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How {@link BiddingAuctionServerClient} hedges and retries SFE calls.
+ *
+ * <p>Every attempt gets its own budget, capped by what is left of the call's deadline. If an
+ * attempt has not answered after the hedge delay, a second request is sent to the backup SFE, or
+ * to the same one if there is none, and whichever answers first wins. The hedge delay follows the
+ * given percentile of the latencies seen so far for the SFE, so that only the slowest calls are
+ * hedged. Attempts that time out, fail to connect or get a 5xx or 429 response are retried after
+ * a jittered exponential backoff, as long as the deadline leaves room for it. SelectAds calls are
+ * safe to repeat, since the SFE keeps no state between them.
+ */
+public final class SfeRetryPolicy {
+  private static final SfeRetryPolicy sDefault = new Builder().build();
+
+  private final int mMaxAttempts;
+  private final long mAttemptTimeoutMs;
+  private final boolean mHedgingEnabled;
+  private final double mHedgePercentile;
+  private final long mMinHedgeDelayMs;
+  private final long mInitialHedgeDelayMs;
+  private final int mMinHedgeSamples;
+  private final long mInitialBackoffMs;
+  private final long mMaxBackoffMs;
+  private final double mBackoffJitter;
+
+  private SfeRetryPolicy(Builder builder) {
+    mMaxAttempts = builder.mMaxAttempts;
+    mAttemptTimeoutMs = builder.mAttemptTimeoutMs;
+    mHedgingEnabled = builder.mHedgingEnabled;
+    mHedgePercentile = builder.mHedgePercentile;
+    mMinHedgeDelayMs = builder.mMinHedgeDelayMs;
+    mInitialHedgeDelayMs = builder.mInitialHedgeDelayMs;
+    mMinHedgeSamples = builder.mMinHedgeSamples;
+    mInitialBackoffMs = builder.mInitialBackoffMs;
+    mMaxBackoffMs = builder.mMaxBackoffMs;
+    mBackoffJitter = builder.mBackoffJitter;
+  }
+
+  /** Returns the policy used when none is given: 3 attempts, hedged at the 95th percentile. */
+  @NonNull
+  public static SfeRetryPolicy getDefault() {
+    return sDefault;
+  }
+
+  /** Returns a policy that sends a single attempt and never hedges. */
+  @NonNull
+  public static SfeRetryPolicy noRetries() {
+    return new Builder().setMaxAttempts(1).setHedgingEnabled(false).build();
+  }
+
+  /** Returns the maximum number of attempts, the first one included. */
+  public int getMaxAttempts() {
+    return mMaxAttempts;
+  }
+
+  /** Returns the longest a single attempt, hedge included, may take. */
+  public long getAttemptTimeoutMs() {
+    return mAttemptTimeoutMs;
+  }
+
+  /**
+   * Returns how long to wait for an attempt before hedging it, given the latencies of earlier
+   * successful calls to the same SFE, or {@link Long#MAX_VALUE} if hedging is disabled.
+   */
+  public long getHedgeDelayMs(@NonNull LatencyHistogram latency) {
+    if (!mHedgingEnabled) {
+      return Long.MAX_VALUE;
+    }
+    if (latency.getCount() < mMinHedgeSamples) {
+      return mInitialHedgeDelayMs;
+    }
+    return Math.max(
+        mMinHedgeDelayMs, latency.getPercentile(mHedgePercentile, TimeUnit.MILLISECONDS));
+  }
+
+  /** Returns how long to back off after {@code failedAttempts} attempts failed, with jitter. */
+  public long getBackoffMs(int failedAttempts) {
+    long backoffMs =
+        Math.min(mMaxBackoffMs, mInitialBackoffMs << Math.min(30, failedAttempts - 1));
+    double jitter = 1 + ThreadLocalRandom.current().nextDouble(-mBackoffJitter, mBackoffJitter);
+    return (long) (backoffMs * jitter);
+  }
+
+  /** Builder for {@link SfeRetryPolicy}. */
+  public static final class Builder {
+    private int mMaxAttempts = 3;
+    private long mAttemptTimeoutMs = 2000;
+    private boolean mHedgingEnabled = true;
+    private double mHedgePercentile = 95;
+    private long mMinHedgeDelayMs = 20;
+    private long mInitialHedgeDelayMs = 500;
+    private int mMinHedgeSamples = 20;
+    private long mInitialBackoffMs = 50;
+    private long mMaxBackoffMs = 500;
+    private double mBackoffJitter = 0.2;
+
+    /** Sets the maximum number of attempts, the first one included. Defaults to 3. */
+    @NonNull
+    public Builder setMaxAttempts(int maxAttempts) {
+      Preconditions.checkArgument(maxAttempts > 0, "maxAttempts must be positive");
+      mMaxAttempts = maxAttempts;
+      return this;
+    }
+
+    /** Sets the longest a single attempt may take. Defaults to 2 seconds. */
+    @NonNull
+    public Builder setAttemptTimeoutMs(long attemptTimeoutMs) {
+      Preconditions.checkArgument(attemptTimeoutMs > 0, "attemptTimeoutMs must be positive");
+      mAttemptTimeoutMs = attemptTimeoutMs;
+      return this;
+    }
+
+    /** Sets whether slow attempts are hedged. Defaults to {@code true}. */
+    @NonNull
+    public Builder setHedgingEnabled(boolean hedgingEnabled) {
+      mHedgingEnabled = hedgingEnabled;
+      return this;
+    }
+
+    /**
+     * Sets the latency percentile after which an attempt is hedged, and the floor of the hedge
+     * delay. Defaults to the 95th percentile and 20ms.
+     */
+    @NonNull
+    public Builder setHedgePercentile(double percentile, long minHedgeDelayMs) {
+      Preconditions.checkArgument(
+          percentile > 0 && percentile <= 100, "percentile must be in (0, 100]");
+      mHedgePercentile = percentile;
+      mMinHedgeDelayMs = minHedgeDelayMs;
+      return this;
+    }
+
+    /**
+     * Sets the hedge delay used until {@code minSamples} calls to an SFE have succeeded. Defaults
+     * to 500ms and 20 samples.
+     */
+    @NonNull
+    public Builder setInitialHedgeDelayMs(long initialHedgeDelayMs, int minSamples) {
+      mInitialHedgeDelayMs = initialHedgeDelayMs;
+      mMinHedgeSamples = minSamples;
+      return this;
+    }
+
+    /**
+     * Sets the backoff before the first retry, which doubles for every further retry up to {@code
+     * maxBackoffMs}, and the fraction it is randomly shifted by. Defaults to 50ms, 500ms and 0.2.
+     */
+    @NonNull
+    public Builder setBackoff(long initialBackoffMs, long maxBackoffMs, double jitter) {
+      Preconditions.checkArgument(jitter >= 0 && jitter < 1, "jitter must be in [0, 1)");
+      mInitialBackoffMs = initialBackoffMs;
+      mMaxBackoffMs = maxBackoffMs;
+      mBackoffJitter = jitter;
+      return this;
+    }
+
+    @NonNull
+    public SfeRetryPolicy build() {
+      return new SfeRetryPolicy(this);
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.ServerAuctionHelpers;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Sends requests to a Bidding and Auction seller front-end (SFE).
+ *
+ * <p>Implementations are expected to be shared across auctions so that connections to the SFE can
+ * be reused instead of paying for a new TCP and TLS handshake on every call.
+ */
+public interface SfeTransport {
+
+  /** Writes a request body to the connection. */
+  interface BodyWriter {
+    void writeTo(@NonNull OutputStream out) throws IOException;
+  }
+
+  /** Reads a response body from the connection. */
+  interface BodyReader<T> {
+    T readFrom(@NonNull InputStream in) throws IOException;
+  }
+
+  /**
+   * POSTs a request of {@code contentType} to {@code address}, accepting a response of the same
+   * type, and returns the response read by {@code reader}. The streams passed to {@code body} and
+   * {@code reader} are owned by the transport and must not be closed. Compressed responses are
+   * decompressed before they reach {@code reader}.
+   *
+   * @param contentEncoding the encoding {@code body} compresses the request with, such as {@code
+   *     gzip}, or {@code null} if it is sent as is.
+   * @throws SfeHttpException if the SFE does not answer with a 2xx status.
+   * @throws IOException if the call fails.
+   */
+  <T> T post(
+      @NonNull String address,
+      @NonNull String contentType,
+      @Nullable String contentEncoding,
+      @NonNull BodyWriter body,
+      @NonNull BodyReader<T> reader)
+      throws IOException;
+
+  /**
+   * Asynchronous version of {@link #post(String, String, String, BodyWriter, BodyReader)}. No
+   * caller thread is held while waiting for the SFE. Whether any thread is depends on the
+   * transport: {@link OkHttpSfeTransport} blocks one of its own for the whole call, while {@link
+   * HttpEngineSfeTransport} holds none. Cancelling the returned future cancels the call.
+   *
+   * <p>The future fails with {@link SfeHttpException} if the SFE does not answer with a 2xx status
+   * and with an {@link IOException} if the call fails.
+   */
+  @NonNull
+  <T> ListenableFuture<T> postAsync(
+      @NonNull String address,
+      @NonNull String contentType,
+      @Nullable String contentEncoding,
+      @NonNull BodyWriter body,
+      @NonNull BodyReader<T> reader);
+
+  /** Same as {@link #post(String, String, String, BodyWriter, BodyReader)} for plain requests. */
+  default <T> T post(
+      @NonNull String address,
+      @NonNull String contentType,
+      @NonNull BodyWriter body,
+      @NonNull BodyReader<T> reader)
+      throws IOException {
+    return post(address, contentType, null, body, reader);
+  }
+}
@@ -26,15 +26,18 @@ public class Constants {
 
   // Hacky
   public static final String USE_ONLY_ADDITIONAL_IDS_INTENT = "useOnlyAdditionalIds";
+  public static final String USE_FAKE_AD_SERVICES_INTENT = "useFakeAdServices"; // runs against FakeAdServicesBackend
 
   // Common
   public static final String TAG = "FledgeSample";
   public static final String DEFAULT_BASE_URI_FORMAT = "https://%s.com/";
+  public static final long DEFAULT_STAGE_TIMEOUT_MS = 10000; // per auction or outcome selection
 
   // Seller-side URIs
   public static final String DECISION_URI_SUFFIX = "scoring"; // calls real servers if specified
   public static final String TRUSTED_SCORING_SIGNALS_URI_SUFFIX = "scoring/trusted";
   public static final String OUTCOME_SELECTION_URI_SUFFIX = "waterfall_mediation"; // calls real servers if specified
+  public static final String HIGHEST_BID_SELECTION_URI_SUFFIX = "bidding_mediation"; // calls real servers if specified
 
   // Buyer-side URIs
   public static final String BIDDING_URI_SUFFIX = "bidding"; // calls real servers if specified
@@ -75,6 +78,17 @@ public class Constants {
           + "    return {'status': 0, 'result': (outcome_1p.bid >= bid_floor) ? outcome_1p : null};\n"
           + "}";
 
+  public static final String HIGHEST_BID_MEDIATION_LOGIC_JS =
+      "function selectOutcome(outcomes, selection_signals) {\n"
+          + "    let winner = null;\n"
+          + "    for (const outcome of outcomes) {\n"
+          + "        if (winner === null || outcome.bid > winner.bid) {\n"
+          + "            winner = outcome;\n"
+          + "        }\n"
+          + "    }\n"
+          + "    return {'status': 0, 'result': winner};\n"
+          + "}";
+
   public static double getDoubleFromEditText(EditText editText) {
     return Double.parseDouble(editText.getText().toString());
   }
@@ -33,8 +33,13 @@ import android.net.Uri;
 import android.util.Log;
 import androidx.annotation.RequiresApi;
 import com.example.adservices.samples.fledge.clients.CustomAudienceClient;
+import com.example.adservices.samples.fledge.clients.Deadline;
 import com.example.adservices.samples.fledge.clients.TestCustomAudienceClient;
 import com.example.adservices.samples.fledge.sampleapp.MainActivity;
+import com.google.common.util.concurrent.FluentFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import java.time.Duration;
 import java.time.Instant;
@@ -48,6 +53,7 @@ import org.json.JSONObject;
  */
 @RequiresApi(api = 34)
 public class CustomAudienceHelper {
+  private static final long CALL_TIMEOUT_SECONDS = 10;
 
   private final CustomAudienceClient customAudienceClient;
   private final TestCustomAudienceClient testCustomAudienceClient;
@@ -60,44 +66,61 @@ public class CustomAudienceHelper {
   }
 
   public AdTechIdentifier configureCustomAudience(String customAudienceName, double bid, Uri baseUri, boolean useOverrides) {
+    return Futures.getUnchecked(configureCustomAudienceAsync(customAudienceName, bid, baseUri, useOverrides));
+  }
+
+  /**
+   * Same as {@link #configureCustomAudience}, but without blocking. The returned future completes
+   * with the audience's buyer once it has been joined, and never fails; failures are logged.
+   */
+  public ListenableFuture<AdTechIdentifier> configureCustomAudienceAsync(String customAudienceName, double bid,
+      Uri baseUri, boolean useOverrides) {
     String uriFriendlyName = Constants.uriFriendlyString(customAudienceName);
     if (useOverrides) {
       baseUri = Uri.parse(String.format(DEFAULT_BASE_URI_FORMAT, uriFriendlyName));
     }
     CustomAudience customAudience = getCustomAudience(customAudienceName, baseUri, bid);
 
-    if(useOverrides) {
-      addOverrideCustomAudience(customAudience);
-    }
-
-    joinCustomAudience(customAudience);
-    Log.i(TAG, customAudience.getBuyer() + " buyer is returned");
-    return customAudience.getBuyer();
+    ListenableFuture<Void> overrides =
+        useOverrides ? addOverrideCustomAudience(customAudience) : Futures.immediateFuture(null);
+    return FluentFuture.from(overrides)
+        .transformAsync(unused -> joinCustomAudience(customAudience), MoreExecutors.directExecutor())
+        .transform(
+            unused -> {
+              Log.i(TAG, customAudience.getBuyer() + " buyer is returned");
+              return customAudience.getBuyer();
+            },
+            MoreExecutors.directExecutor());
   }
 
-  private void addOverrideCustomAudience(CustomAudience customAudience) {
+  private ListenableFuture<Void> addOverrideCustomAudience(CustomAudience customAudience) {
 
     String biddingLogicJs = String.format(BIDDING_LOGIC_JS, Constants.uriFriendlyString(customAudience.getName()));
-    try {
-      testCustomAudienceClient.overrideCustomAudienceRemoteInfo(
-          new AddCustomAudienceOverrideRequest.Builder()
-              .setBuyer(customAudience.getBuyer())
-              .setName(customAudience.getName())
-              .setBiddingLogicJs(biddingLogicJs)
-              .setTrustedBiddingSignals(AdSelectionSignals.EMPTY)
-              .build()).get(10, TimeUnit.SECONDS);
-    } catch (Exception e) {
-      Log.e(MainActivity.TAG, "Exception calling overrideCustomAudienceRemoteInfo", e);
-    }
+    ListenableFuture<Void> override =
+        testCustomAudienceClient.overrideCustomAudienceRemoteInfo(
+            new AddCustomAudienceOverrideRequest.Builder()
+                .setBuyer(customAudience.getBuyer())
+                .setName(customAudience.getName())
+                .setBiddingLogicJs(biddingLogicJs)
+                .setTrustedBiddingSignals(AdSelectionSignals.EMPTY)
+                .build());
+    return logFailure(override, "overrideCustomAudienceRemoteInfo");
   }
 
-  private void joinCustomAudience(CustomAudience customAudience) {
-    try {
-      customAudienceClient.joinCustomAudience(customAudience).get(10, TimeUnit.SECONDS);
-      Thread.sleep(1000);
-    } catch (Exception e) {
-      Log.e(MainActivity.TAG, "Exception calling joinCustomAudience", e);
-    }
+  private ListenableFuture<Void> joinCustomAudience(CustomAudience customAudience) {
+    return logFailure(customAudienceClient.joinCustomAudience(customAudience), "joinCustomAudience");
+  }
+
+  /** Bounds {@code future} to {@link #CALL_TIMEOUT_SECONDS}, and logs and swallows its failure. */
+  private static ListenableFuture<Void> logFailure(ListenableFuture<Void> future, String method) {
+    return Futures.catching(
+        Deadline.after(CALL_TIMEOUT_SECONDS, TimeUnit.SECONDS).enforce(future, method),
+        Exception.class,
+        e -> {
+          Log.e(MainActivity.TAG, "Exception calling " + method, e);
+          return null;
+        },
+        MoreExecutors.directExecutor());
   }
 
   private CustomAudience getCustomAudience(String customAudienceName, Uri baseUri, double bid) {
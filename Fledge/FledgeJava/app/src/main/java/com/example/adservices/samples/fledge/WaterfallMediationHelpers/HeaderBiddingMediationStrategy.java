@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.adservices.samples.fledge.WaterfallMediationHelpers;
+
+import android.adservices.adselection.AdSelectionOutcome;
+import android.annotation.SuppressLint;
+import android.util.Pair;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import com.example.adservices.samples.fledge.clients.Deadline;
+import com.google.common.base.Joiner;
+import com.google.common.util.concurrent.FluentFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Header bidding mediation: the auctions of the {@link MediationSdk} and of every network run at
+ * once, and a single outcome selection picks the highest bid among all the ads they returned.
+ *
+ * <p>Each network's auction still applies its own bid floor. The slot is filled after the slowest
+ * auction plus one outcome selection, however long the chain is, and the best ad wins rather than
+ * the first one to clear its floor.
+ */
+@RequiresApi(api = 34)
+public class HeaderBiddingMediationStrategy implements MediationStrategy {
+  private final Executor executor;
+  @Nullable private final NetworkOutcomeCache.Slot outcomeCache;
+
+  /** Creates a header bidding strategy that handles the auctions' results on {@code executor}. */
+  public HeaderBiddingMediationStrategy(Executor executor) {
+    this(executor, null);
+  }
+
+  /** Same as above, with the networks' outcomes taken from {@code outcomeCache} if cached. */
+  public HeaderBiddingMediationStrategy(
+      Executor executor, @Nullable NetworkOutcomeCache.Slot outcomeCache) {
+    this.executor = executor;
+    this.outcomeCache = outcomeCache;
+  }
+
+  @Override
+  public ListenableFuture<Pair<AdSelectionOutcome, NetworkAdapter>> mediate(
+      MediationSdk mediationSdk, List<NetworkAdapter> mediationChain, Deadline deadline) {
+    List<NetworkAdapter> bidders = new ArrayList<>();
+    bidders.add(mediationSdk);
+    bidders.addAll(mediationChain);
+    return runBidding(mediationSdk, bidders, deadline, executor, outcomeCache);
+  }
+
+  /**
+   * Runs the auctions of {@code bidders} concurrently and selects the highest bid among them. The
+   * {@link MediationSdk} must be the first bidder; it is returned with no outcome if no bidder has
+   * an ad. The 3P bidders' outcomes are taken from {@code outcomeCache} if it isn't null.
+   */
+  @SuppressLint("NewApi")
+  static ListenableFuture<Pair<AdSelectionOutcome, NetworkAdapter>> runBidding(
+      MediationSdk mediationSdk,
+      List<NetworkAdapter> bidders,
+      Deadline deadline,
+      Executor executor,
+      @Nullable NetworkOutcomeCache.Slot outcomeCache) {
+    mediationSdk.writeEvent("Header bidding between: %s", Joiner.on(", ").join(bidders));
+    List<ListenableFuture<AdSelectionOutcome>> auctions = new ArrayList<>();
+    for (NetworkAdapter bidder : bidders) {
+      auctions.add(
+          bidder == mediationSdk
+              ? bidder.runAdSelectionAsync(deadline)
+              : NetworkOutcomeCache.runAdSelectionAsync(outcomeCache, bidder, deadline));
+    }
+
+    // Auctions never fail; the ones with no ad complete with no outcome.
+    return FluentFuture.from(Futures.allAsList(auctions))
+        .transformAsync(
+            outcomes -> {
+              Map<Long, NetworkAdapter> networksById = new HashMap<>();
+              for (int i = 0; i < outcomes.size(); i++) {
+                if (outcomes.get(i).hasOutcome()) {
+                  networksById.put(outcomes.get(i).getAdSelectionId(), bidders.get(i));
+                }
+              }
+              if (networksById.isEmpty()) {
+                mediationSdk.writeEvent("No bidder returned an ad");
+                return Futures.immediateFuture(
+                    new Pair<>(AdSelectionOutcome.NO_OUTCOME, mediationSdk));
+              }
+              if (networksById.size() == 1) {
+                // Nothing to compare against, so the outcome selection is skipped.
+                int winner = indexOfOutcome(outcomes);
+                mediationSdk.writeEvent(
+                    "Only %s bid, it wins: %s",
+                    bidders.get(winner).getNetworkName(), outcomes.get(winner).getAdSelectionId());
+                return Futures.immediateFuture(
+                    new Pair<>(outcomes.get(winner), bidders.get(winner)));
+              }
+              mediationSdk.writeEvent(
+                  "%d bidders returned an ad, selecting the highest bid", networksById.size());
+              return Futures.transform(
+                  mediationSdk.runHighestBidSelectionAsync(
+                      new ArrayList<>(networksById.keySet()), deadline),
+                  outcome -> {
+                    if (!outcome.hasOutcome()) {
+                      return new Pair<>(outcome, (NetworkAdapter) mediationSdk);
+                    }
+                    NetworkAdapter winner = networksById.get(outcome.getAdSelectionId());
+                    mediationSdk.writeEvent(
+                        "%s wins the bidding: %s",
+                        winner.getNetworkName(), outcome.getAdSelectionId());
+                    return new Pair<>(outcome, winner);
+                  },
+                  executor);
+            },
+            executor);
+  }
+
+  @SuppressLint("NewApi")
+  private static int indexOfOutcome(List<AdSelectionOutcome> outcomes) {
+    for (int i = 0; i < outcomes.size(); i++) {
+      if (outcomes.get(i).hasOutcome()) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.adservices.samples.fledge.WaterfallMediationHelpers;
+
+import android.adservices.adselection.AdSelectionOutcome;
+import android.util.Pair;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import com.example.adservices.samples.fledge.clients.Deadline;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Hybrid mediation: the {@link MediationSdk} and the networks that support bidding run their
+ * auctions at once as in {@link HeaderBiddingMediationStrategy}. The winning bid then takes the
+ * place of the 1P ad in a waterfall through the remaining networks, in bid floor order, so a
+ * waterfall-only network with a higher floor still gets its turn.
+ */
+@RequiresApi(api = 34)
+public class HybridMediationStrategy implements MediationStrategy {
+  private final Executor executor;
+  private final Set<String> biddingNetworkNames;
+  private final int lookahead;
+  @Nullable private final NetworkOutcomeCache.Slot outcomeCache;
+
+  /**
+   * Creates a hybrid strategy in which the networks named {@code biddingNetworkNames} bid and the
+   * others are waterfalled, with the auctions of up to {@code lookahead} of the latter started
+   * ahead of the waterfall.
+   */
+  public HybridMediationStrategy(
+      Executor executor, Set<String> biddingNetworkNames, int lookahead) {
+    this(executor, biddingNetworkNames, lookahead, null);
+  }
+
+  /** Same as above, with the networks' outcomes taken from {@code outcomeCache} if cached. */
+  public HybridMediationStrategy(
+      Executor executor,
+      Set<String> biddingNetworkNames,
+      int lookahead,
+      @Nullable NetworkOutcomeCache.Slot outcomeCache) {
+    this.executor = executor;
+    this.biddingNetworkNames = ImmutableSet.copyOf(biddingNetworkNames);
+    this.lookahead = lookahead;
+    this.outcomeCache = outcomeCache;
+  }
+
+  @Override
+  public ListenableFuture<Pair<AdSelectionOutcome, NetworkAdapter>> mediate(
+      MediationSdk mediationSdk, List<NetworkAdapter> mediationChain, Deadline deadline) {
+    List<NetworkAdapter> bidders = new ArrayList<>();
+    List<NetworkAdapter> waterfall = new ArrayList<>();
+    bidders.add(mediationSdk);
+    for (NetworkAdapter network : mediationChain) {
+      (biddingNetworkNames.contains(network.getNetworkName()) ? bidders : waterfall).add(network);
+    }
+    mediationSdk.writeEvent(
+        "Hybrid mediation, waterfall after bidding:\n%s", Joiner.on("\n").join(waterfall));
+    return new WaterfallMediationEngine(mediationSdk, executor, lookahead, outcomeCache)
+        .orchestrateMediation(
+            waterfall,
+            deadline,
+            HeaderBiddingMediationStrategy.runBidding(
+                mediationSdk, bidders, deadline, executor, outcomeCache));
+  }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.adservices.samples.fledge.WaterfallMediationHelpers;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+import com.example.adservices.samples.fledge.MetricsHelpers.LatencyHistogram;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-network telemetry of the mediation flow: a latency histogram for every stage each network
+ * takes part in, and counters of how often its auction filled, how often the 1P ad was placed
+ * before it and how often it won.
+ *
+ * <p>Recording is lock-free, so networks record from whichever thread their futures complete on.
+ * {@link #snapshot()} copies the current values, which can be written to the event log or exported
+ * as JSON. The metrics also rank a chain by each network's expected value per millisecond with
+ * {@link #orderByExpectedValuePerMs}.
+ */
+@RequiresApi(api = 34)
+public final class MediationMetrics {
+  /** Number of auctions a network needs before its fill rate and latency are trusted. */
+  public static final int MIN_SAMPLES = 5;
+
+  private static final MediationMetrics sDefault = new MediationMetrics();
+  private static final Gson sGson = new GsonBuilder().setPrettyPrinting().create();
+
+  /** The stages of the mediation flow whose latency is recorded per network. */
+  public enum Stage {
+    /** The network's own auction. */
+    AUCTION,
+    /** Placing the 1P ad before the network, recorded under the network. */
+    OUTCOME_SELECTION,
+    /** Selecting the highest bid among the bidders, recorded under the mediation SDK. */
+    HIGHEST_BID_SELECTION
+  }
+
+  private final ConcurrentMap<String, NetworkStats> networks = new ConcurrentHashMap<>();
+
+  /** Returns the process-wide metrics the adapters and the mediation SDK record to. */
+  @NonNull
+  public static MediationMetrics getDefault() {
+    return sDefault;
+  }
+
+  /**
+   * Records how long {@code future} takes to complete as {@code networkName}'s {@code stage},
+   * starting now. Failed stages count as errors; cancelled ones, e.g. speculative auctions that
+   * were not needed, are not recorded.
+   */
+  public <T> ListenableFuture<T> track(
+      String networkName, Stage stage, ListenableFuture<T> future) {
+    NetworkStats stats = stats(networkName);
+    long startNanos = System.nanoTime();
+    Futures.addCallback(
+        future,
+        new FutureCallback<T>() {
+          @Override
+          public void onSuccess(T result) {
+            stats.latencies.get(stage).recordSince(startNanos);
+          }
+
+          @Override
+          public void onFailure(@NonNull Throwable t) {
+            if (!(t instanceof CancellationException)) {
+              stats.latencies.get(stage).recordSince(startNanos);
+              stats.errors.incrementAndGet();
+            }
+          }
+        },
+        MoreExecutors.directExecutor());
+    return future;
+  }
+
+  /** Records that {@code networkName}'s auction completed, and whether it returned an ad. */
+  public void recordAuction(String networkName, boolean filled) {
+    NetworkStats stats = stats(networkName);
+    stats.auctions.incrementAndGet();
+    if (filled) {
+      stats.fills.incrementAndGet();
+    }
+  }
+
+  /**
+   * Records that the 1P ad was compared against {@code networkName}'s bid floor, and whether it
+   * was placed before the network.
+   */
+  public void recordOutcomeSelection(String networkName, boolean placedBefore) {
+    NetworkStats stats = stats(networkName);
+    stats.outcomeSelections.incrementAndGet();
+    if (placedBefore) {
+      stats.placedBefore.incrementAndGet();
+    }
+  }
+
+  /** Records that {@code networkName}'s ad won the mediation. */
+  public void recordWin(String networkName) {
+    stats(networkName).wins.incrementAndGet();
+  }
+
+  /** Clears every network's metrics. */
+  public void reset() {
+    networks.clear();
+  }
+
+  /** Returns a copy of the current metrics of every network, in the order they first recorded. */
+  @NonNull
+  public Snapshot snapshot() {
+    List<NetworkSnapshot> snapshots = new ArrayList<>();
+    for (Map.Entry<String, NetworkStats> network : networks.entrySet()) {
+      snapshots.add(new NetworkSnapshot(network.getKey(), network.getValue()));
+    }
+    snapshots.sort(Comparator.comparingLong(snapshot -> snapshot.order));
+    return new Snapshot(snapshots);
+  }
+
+  /**
+   * Returns {@code mediationChain} sorted by descending expected value per millisecond: the
+   * network's bid floor, the least it pays when it fills, times its fill rate, divided by its mean
+   * auction latency. Networks with fewer than {@link #MIN_SAMPLES} auctions are ranked as if they
+   * always filled instantly, so that they are tried and measured first. Ties keep bid floor order.
+   */
+  @NonNull
+  public List<NetworkAdapter> orderByExpectedValuePerMs(
+      @NonNull List<NetworkAdapter> mediationChain) {
+    Map<NetworkAdapter, Double> values = new LinkedHashMap<>();
+    for (NetworkAdapter network : mediationChain) {
+      values.put(network, expectedValuePerMs(network));
+    }
+    List<NetworkAdapter> ordered = new ArrayList<>(mediationChain);
+    ordered.sort(
+        Comparator.comparing((NetworkAdapter network) -> values.get(network))
+            .thenComparing(NetworkAdapter::getBidFloor)
+            .reversed());
+    return ordered;
+  }
+
+  /**
+   * Returns {@code network}'s expected value per millisecond, as ranked by {@link
+   * #orderByExpectedValuePerMs}.
+   */
+  public double expectedValuePerMs(@NonNull NetworkAdapter network) {
+    NetworkStats stats = networks.get(network.getNetworkName());
+    if (stats == null || stats.auctions.get() < MIN_SAMPLES) {
+      return network.getBidFloor();
+    }
+    double fillRate = (double) stats.fills.get() / stats.auctions.get();
+    long latencyMs = stats.latencies.get(Stage.AUCTION).getMean(TimeUnit.MILLISECONDS);
+    return network.getBidFloor() * fillRate / Math.max(1, latencyMs);
+  }
+
+  private NetworkStats stats(String networkName) {
+    return networks.computeIfAbsent(networkName, name -> new NetworkStats(name, networks.size()));
+  }
+
+  /** The live metrics of one network. */
+  private static final class NetworkStats {
+    final long order;
+    final Map<Stage, LatencyHistogram> latencies = new EnumMap<>(Stage.class);
+    final AtomicLong auctions = new AtomicLong();
+    final AtomicLong fills = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong outcomeSelections = new AtomicLong();
+    final AtomicLong placedBefore = new AtomicLong();
+    final AtomicLong wins = new AtomicLong();
+
+    NetworkStats(String networkName, long order) {
+      this.order = order;
+      for (Stage stage : Stage.values()) {
+        latencies.put(stage, new LatencyHistogram(networkName + " " + stage));
+      }
+    }
+  }
+
+  /** The metrics of every network at one point in time. */
+  public static final class Snapshot {
+    private final List<NetworkSnapshot> networks;
+
+    Snapshot(List<NetworkSnapshot> networks) {
+      this.networks = ImmutableList.copyOf(networks);
+    }
+
+    public List<NetworkSnapshot> getNetworks() {
+      return networks;
+    }
+
+    /** Returns the snapshot as JSON, e.g. to export it to a dashboard. */
+    @NonNull
+    public String toJson() {
+      return sGson.toJson(this);
+    }
+
+    /** Returns one line per network and per stage it recorded, e.g. for the event log. */
+    @NonNull
+    public List<String> toLines() {
+      List<String> lines = new ArrayList<>();
+      for (NetworkSnapshot network : networks) {
+        lines.add(network.toString());
+        for (StageSnapshot stage : network.stages.values()) {
+          if (stage.count > 0) {
+            lines.add("  " + stage);
+          }
+        }
+      }
+      return lines;
+    }
+  }
+
+  /** The metrics of one network at one point in time. */
+  public static final class NetworkSnapshot {
+    private final transient long order;
+    private final String networkName;
+    private final long auctions;
+    private final long fills;
+    private final long errors;
+    private final long outcomeSelections;
+    private final long placedBefore;
+    private final long wins;
+    private final Map<Stage, StageSnapshot> stages = new EnumMap<>(Stage.class);
+
+    NetworkSnapshot(String networkName, NetworkStats stats) {
+      this.order = stats.order;
+      this.networkName = networkName;
+      auctions = stats.auctions.get();
+      fills = stats.fills.get();
+      errors = stats.errors.get();
+      outcomeSelections = stats.outcomeSelections.get();
+      placedBefore = stats.placedBefore.get();
+      wins = stats.wins.get();
+      for (Map.Entry<Stage, LatencyHistogram> latency : stats.latencies.entrySet()) {
+        stages.put(latency.getKey(), new StageSnapshot(latency.getValue()));
+      }
+    }
+
+    public String getNetworkName() {
+      return networkName;
+    }
+
+    public long getAuctionCount() {
+      return auctions;
+    }
+
+    /** Returns the fraction of auctions that returned an ad, or zero before the first one. */
+    public double getFillRate() {
+      return auctions == 0 ? 0 : (double) fills / auctions;
+    }
+
+    /** Returns the number of stages that failed or timed out. */
+    public long getErrorCount() {
+      return errors;
+    }
+
+    /**
+     * Returns the fraction of outcome selections in which the 1P ad was placed before this
+     * network, or zero before the first one.
+     */
+    public double getPlacedBeforeRate() {
+      return outcomeSelections == 0 ? 0 : (double) placedBefore / outcomeSelections;
+    }
+
+    public long getWinCount() {
+      return wins;
+    }
+
+    public StageSnapshot getStage(Stage stage) {
+      return stages.get(stage);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.US,
+          "%s: auctions=%d fillRate=%.2f errors=%d 1pPlacedBefore=%d/%d wins=%d",
+          networkName,
+          auctions,
+          getFillRate(),
+          errors,
+          placedBefore,
+          outcomeSelections,
+          wins);
+    }
+  }
+
+  /** The latency distribution of one stage of one network, in microseconds. */
+  public static final class StageSnapshot {
+    private final String name;
+    private final long count;
+    private final long meanUs;
+    private final long p50Us;
+    private final long p90Us;
+    private final long p99Us;
+    private final long maxUs;
+
+    StageSnapshot(LatencyHistogram histogram) {
+      name = histogram.getName();
+      count = histogram.getCount();
+      meanUs = histogram.getMean(TimeUnit.MICROSECONDS);
+      p50Us = histogram.getPercentile(50, TimeUnit.MICROSECONDS);
+      p90Us = histogram.getPercentile(90, TimeUnit.MICROSECONDS);
+      p99Us = histogram.getPercentile(99, TimeUnit.MICROSECONDS);
+      maxUs = histogram.getMax(TimeUnit.MICROSECONDS);
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getMean(TimeUnit unit) {
+      return unit.convert(meanUs, TimeUnit.MICROSECONDS);
+    }
+
+    /** Returns an upper bound of the {@code percentile}th latency, for 50, 90 or 99. */
+    public long getPercentile(int percentile, TimeUnit unit) {
+      long us;
+      switch (percentile) {
+        case 50:
+          us = p50Us;
+          break;
+        case 90:
+          us = p90Us;
+          break;
+        case 99:
+          us = p99Us;
+          break;
+        default:
+          throw new IllegalArgumentException("Only p50, p90 and p99 are kept, not p" + percentile);
+      }
+      return unit.convert(us, TimeUnit.MICROSECONDS);
+    }
+
+    public long getMax(TimeUnit unit) {
+      return unit.convert(maxUs, TimeUnit.MICROSECONDS);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.US,
+          "%s: n=%d mean=%dus p50=%dus p90=%dus p99=%dus max=%dus",
+          name,
+          count,
+          meanUs,
+          p50Us,
+          p90Us,
+          p99Us,
+          maxUs);
+    }
+  }
+}
@@ -16,6 +16,9 @@
 
 package com.example.adservices.samples.fledge.WaterfallMediationHelpers;
 
+import static com.example.adservices.samples.fledge.WaterfallMediationHelpers.Constants.DEFAULT_STAGE_TIMEOUT_MS;
+import static com.example.adservices.samples.fledge.WaterfallMediationHelpers.Constants.HIGHEST_BID_MEDIATION_LOGIC_JS;
+import static com.example.adservices.samples.fledge.WaterfallMediationHelpers.Constants.HIGHEST_BID_SELECTION_URI_SUFFIX;
 import static com.example.adservices.samples.fledge.WaterfallMediationHelpers.Constants.OUTCOME_SELECTION_URI_SUFFIX;
 import static com.example.adservices.samples.fledge.WaterfallMediationHelpers.Constants.TAG;
 import static com.example.adservices.samples.fledge.WaterfallMediationHelpers.Constants.WATERFALL_MEDIATION_LOGIC_JS;
@@ -31,10 +34,15 @@ import android.net.Uri;
 import android.util.Log;
 import android.util.Pair;
 import androidx.annotation.RequiresApi;
+import com.example.adservices.samples.fledge.clients.AdSelectionBackend;
+import com.example.adservices.samples.fledge.clients.Deadline;
 import com.example.adservices.samples.fledge.sampleapp.EventLogManager;
 import com.example.adservices.samples.fledge.sampleapp.MainActivity;
 import com.example.adservices.samples.fledge.sampleapp.databinding.WaterfallMediationActivityBinding;
-import com.google.common.base.Joiner;
+import com.google.common.util.concurrent.FluentFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -65,78 +73,146 @@ public class MediationSdk extends NetworkAdapter {
 
   public MediationSdk(String networkName, AdTechIdentifier buyer, Uri baseUri, boolean useOverrides, Executor executor,
       Context context, WaterfallMediationActivityBinding binding, EventLogManager eventLog, boolean useOnlyAdditionalIds) {
-    super(networkName, buyer, baseUri, useOverrides, executor, context, eventLog);
+    this(networkName, buyer, baseUri, useOverrides, executor, context, binding, eventLog, useOnlyAdditionalIds,
+        AdSelectionBackend.platform(context));
+  }
+
+  /** Creates a mediation SDK whose auctions and outcome selections run against {@code backend}. */
+  public MediationSdk(String networkName, AdTechIdentifier buyer, Uri baseUri, boolean useOverrides, Executor executor,
+      Context context, WaterfallMediationActivityBinding binding, EventLogManager eventLog, boolean useOnlyAdditionalIds,
+      AdSelectionBackend backend) {
+    super(networkName, buyer, baseUri, useOverrides, executor, context, eventLog, backend);
     this.binding = binding;
     this.useOnlyAdditionalIds = useOnlyAdditionalIds;
   }
 
-  @SuppressLint("NewApi")
   public Pair<AdSelectionOutcome, NetworkAdapter> orchestrateMediation(List<NetworkAdapter> mediationChain) throws Exception  {
-    writeEvent("Mediation chain:\n%s", Joiner.on("\n").skipNulls().join(mediationChain));
+    return WaterfallMediationEngine.getOrThrow(
+        new WaterfallMediationEngine(this, MoreExecutors.directExecutor())
+            .orchestrateMediation(mediationChain));
+  }
 
-    AdSelectionOutcome outcome1p = runAdSelection();
-    if (outcome1p.hasOutcome()) {
-      writeEvent("%s auction result (1P ad): %s", getNetworkName(), outcome1p.getAdSelectionId());
-    } else {
-      writeEvent("%s auction not returned an ad. No 1P ad. Will iterate the chain without 1P ad anyways.", getNetworkName());
-    }
+  /**
+   * Runs the mediation chain with every auction and outcome selection sharing {@code deadline},
+   * so that each stage only gets the budget left over by the previous ones.
+   *
+   * <p>Blocks until the chain is done. Callers on the main thread should use a {@link
+   * WaterfallMediationEngine} instead.
+   */
+  public Pair<AdSelectionOutcome, NetworkAdapter> orchestrateMediation(List<NetworkAdapter> mediationChain, Deadline deadline) throws Exception  {
+    return WaterfallMediationEngine.getOrThrow(
+        new WaterfallMediationEngine(this, MoreExecutors.directExecutor())
+            .orchestrateMediation(mediationChain, deadline));
+  }
 
-    AdSelectionOutcome outcome;
-    for(NetworkAdapter network3p: mediationChain) {
-      if (outcome1p.hasOutcome()) {
-        writeEvent("Try to place %s before %s", getNetworkName(), network3p.getNetworkName());
-        if ((outcome = runSelectOutcome(outcome1p, network3p)).hasOutcome()) {
-          writeEvent("%s placed before! 1P ad wins: %s", getNetworkName(), outcome.getAdSelectionId());
-          return new Pair<>(outcome, this);
-        }
-        writeEvent("%s isn't placed before %s, running ad selection for it!", getNetworkName(), network3p.getNetworkName());
-      } else {
-        writeEvent("No 1P ad, continue without comparing");
-      }
+  public AdSelectionOutcome runSelectOutcome(AdSelectionOutcome outcome1p, NetworkAdapter network3p)
+      throws Exception {
+    return runSelectOutcome(
+        outcome1p, network3p, Deadline.after(DEFAULT_STAGE_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+  }
 
-      if((outcome = network3p.runAdSelection()).hasOutcome()) {
-        writeEvent("%s's auction returned an ad: Winner: %s", network3p.getNetworkName(), outcome.getAdSelectionId());
-        return new Pair<>(outcome, network3p);
-      }
-      writeEvent("%s's auction not returned an ad. Moving to the next network", network3p.getNetworkName());
-    }
-    writeEvent("Mediation Chain is exhausted but no ads found! Returning the 1P auction result");
-    return new Pair<>(outcome1p, this);
+  /**
+   * Compares the 1P outcome against the bid floor of {@code network3p}, failing with a {@link
+   * java.util.concurrent.TimeoutException} once {@code deadline} passes.
+   */
+  public AdSelectionOutcome runSelectOutcome(AdSelectionOutcome outcome1p, NetworkAdapter network3p, Deadline deadline)
+      throws Exception {
+    return WaterfallMediationEngine.getOrThrow(runSelectOutcomeAsync(outcome1p, network3p, deadline));
   }
 
+  /**
+   * Same as {@link #runSelectOutcome(AdSelectionOutcome, NetworkAdapter, Deadline)}, but without
+   * blocking. The returned future fails the way the blocking call throws.
+   */
   @SuppressLint("NewApi")
-  public AdSelectionOutcome runSelectOutcome(AdSelectionOutcome outcome1p, NetworkAdapter network3p)
-      throws Exception {
+  public ListenableFuture<AdSelectionOutcome> runSelectOutcomeAsync(AdSelectionOutcome outcome1p, NetworkAdapter network3p,
+      Deadline deadline) {
     AdSelectionFromOutcomesConfig config = prepareWaterfallConfig(outcome1p.getAdSelectionId(), network3p.getBidFloor());
 
-    if (useOverrides) {
-      addAdSelectionFromOutcomesOverride(config);
-    }
+    ListenableFuture<Void> overrides =
+        useOverrides
+            ? addAdSelectionFromOutcomesOverride(config, WATERFALL_MEDIATION_LOGIC_JS, deadline)
+            : Futures.immediateFuture(null);
+    String network3pName = network3p.getNetworkName();
+    return FluentFuture.from(overrides)
+        .transformAsync(
+            unused -> metrics.track(
+                network3pName,
+                MediationMetrics.Stage.OUTCOME_SELECTION,
+                adSelectionClient.selectAds(config, deadline)),
+            MoreExecutors.directExecutor())
+        .transform(
+            outcome -> {
+              metrics.recordOutcomeSelection(network3pName, outcome.hasOutcome());
+              return outcome;
+            },
+            MoreExecutors.directExecutor())
+        .catchingAsync(
+            Exception.class,
+            e -> {
+              Log.e(MainActivity.TAG, "Exception calling selectAds(AdSelectionFromOutcomesConfig)", e);
+              return Futures.immediateFailedFuture(e);
+            },
+            MoreExecutors.directExecutor());
+  }
 
-    AdSelectionOutcome result;
-    try {
-      result = adSelectionClient.selectAds(config).get(10, TimeUnit.SECONDS);
-      Thread.sleep(1000);
-    } catch (Exception e) {
-      Log.e(MainActivity.TAG, "Exception calling selectAds(AdSelectionFromOutcomesConfig)", e);
-      throw e;
-    }
-    return result;
+  /**
+   * Selects the highest bid among the outcomes of {@code adSelectionIds}, e.g. the auctions of
+   * every network in header bidding, failing with a {@link java.util.concurrent.TimeoutException}
+   * once {@code deadline} passes.
+   */
+  @SuppressLint("NewApi")
+  public ListenableFuture<AdSelectionOutcome> runHighestBidSelectionAsync(List<Long> adSelectionIds,
+      Deadline deadline) {
+    AdSelectionFromOutcomesConfig config = new AdSelectionFromOutcomesConfig.Builder()
+        .setSeller(AdTechIdentifier.fromString(getSelectionLogicUri().getHost()))
+        .setAdSelectionIds(adSelectionIds)
+        .setSelectionSignals(AdSelectionSignals.EMPTY)
+        .setSelectionLogicUri(baseUri.buildUpon().appendPath(HIGHEST_BID_SELECTION_URI_SUFFIX).build())
+        .build();
+
+    ListenableFuture<Void> overrides = useOverrides
+        ? addAdSelectionFromOutcomesOverride(config, HIGHEST_BID_MEDIATION_LOGIC_JS, deadline)
+        : Futures.immediateFuture(null);
+    return FluentFuture.from(overrides)
+        .transformAsync(
+            unused -> metrics.track(
+                networkName,
+                MediationMetrics.Stage.HIGHEST_BID_SELECTION,
+                adSelectionClient.selectAds(config, deadline)),
+            MoreExecutors.directExecutor())
+        .catchingAsync(
+            Exception.class,
+            e -> {
+              Log.e(MainActivity.TAG, "Exception selecting the highest bid among " + adSelectionIds, e);
+              return Futures.immediateFailedFuture(e);
+            },
+            MoreExecutors.directExecutor());
   }
 
+  /** Adds the overrides for an outcome selection. The returned future never fails. */
   @SuppressLint("NewApi")
-  private void addAdSelectionFromOutcomesOverride(AdSelectionFromOutcomesConfig config) {
-    try {
-      testAdSelectionClient
-          .overrideAdSelectionFromOutcomesConfigRemoteInfo(
-              new AddAdSelectionFromOutcomesOverrideRequest(config, WATERFALL_MEDIATION_LOGIC_JS,
-                  AdSelectionSignals.EMPTY))
-          .get(10, TimeUnit.SECONDS);
-      Log.i(TAG, networkName + " adSelection overrides success!");
-      writeEvent("Adds AdSelectionFromOutcomesConfig overrides");
-    } catch (Exception e) {
-      Log.e(MainActivity.TAG, "Exception adding overrides for " + networkName + ": " + e);
-    }
+  private ListenableFuture<Void> addAdSelectionFromOutcomesOverride(AdSelectionFromOutcomesConfig config,
+      String selectionLogicJs, Deadline deadline) {
+    ListenableFuture<Void> override =
+        testAdSelectionClient.overrideAdSelectionFromOutcomesConfigRemoteInfo(
+            new AddAdSelectionFromOutcomesOverrideRequest(config, selectionLogicJs,
+                AdSelectionSignals.EMPTY));
+    return FluentFuture.from(deadline.enforce(override, networkName + " outcome overrides"))
+        .transform(
+            unused -> {
+              Log.i(TAG, networkName + " adSelection overrides success!");
+              writeEvent("Adds AdSelectionFromOutcomesConfig overrides");
+              return unused;
+            },
+            MoreExecutors.directExecutor())
+        .catching(
+            Exception.class,
+            e -> {
+              Log.e(MainActivity.TAG, "Exception adding overrides for " + networkName + ": " + e);
+              return null;
+            },
+            MoreExecutors.directExecutor());
   }
 
   @SuppressLint("NewApi")
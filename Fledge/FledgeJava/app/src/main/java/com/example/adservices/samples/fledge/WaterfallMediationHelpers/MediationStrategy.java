@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.adservices.samples.fledge.WaterfallMediationHelpers;
+
+import static com.example.adservices.samples.fledge.WaterfallMediationHelpers.Constants.DEFAULT_STAGE_TIMEOUT_MS;
+
+import android.adservices.adselection.AdSelectionOutcome;
+import android.util.Pair;
+import androidx.annotation.RequiresApi;
+import com.example.adservices.samples.fledge.clients.Deadline;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which of the {@link MediationSdk}'s own ad and its mediated networks' ads fills an ad
+ * slot. A strategy is picked per slot:
+ *
+ * <ul>
+ *   <li>{@link WaterfallMediationStrategy} tries the networks one after another in bid floor order.
+ *   <li>{@link HeaderBiddingMediationStrategy} runs every network's auction at once and picks the
+ *       highest bid.
+ *   <li>{@link HybridMediationStrategy} lets the networks that support it bid, then waterfalls the
+ *       winner through the rest.
+ * </ul>
+ */
+@RequiresApi(api = 34)
+public interface MediationStrategy {
+
+  /**
+   * Mediates between {@code mediationSdk} and {@code mediationChain}, which is sorted by
+   * descending bid floor, with every stage sharing {@code deadline}.
+   *
+   * @return a future of the winning outcome and the network whose auction produced it, which
+   *     reports the impression. The outcome is {@link AdSelectionOutcome#NO_OUTCOME} if no network
+   *     has an ad.
+   */
+  ListenableFuture<Pair<AdSelectionOutcome, NetworkAdapter>> mediate(
+      MediationSdk mediationSdk, List<NetworkAdapter> mediationChain, Deadline deadline);
+
+  /** Same as {@link #mediate(MediationSdk, List, Deadline)} with a budget for every stage. */
+  default ListenableFuture<Pair<AdSelectionOutcome, NetworkAdapter>> mediate(
+      MediationSdk mediationSdk, List<NetworkAdapter> mediationChain) {
+    // One 1P auction, then at most one outcome selection and one auction per network.
+    long budgetMs = DEFAULT_STAGE_TIMEOUT_MS * (1 + 2L * mediationChain.size());
+    return mediate(
+        mediationSdk, mediationChain, Deadline.after(budgetMs, TimeUnit.MILLISECONDS));
+  }
+}
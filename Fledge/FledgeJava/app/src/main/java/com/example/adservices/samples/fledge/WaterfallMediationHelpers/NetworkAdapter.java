@@ -19,6 +19,7 @@ package com.example.adservices.samples.fledge.WaterfallMediationHelpers;
 import static com.example.adservices.samples.fledge.WaterfallMediationHelpers.Constants.BID_FLOOR_SIGNALS_FORMAT;
 import static com.example.adservices.samples.fledge.WaterfallMediationHelpers.Constants.DECISION_URI_SUFFIX;
 import static com.example.adservices.samples.fledge.WaterfallMediationHelpers.Constants.DEFAULT_BASE_URI_FORMAT;
+import static com.example.adservices.samples.fledge.WaterfallMediationHelpers.Constants.DEFAULT_STAGE_TIMEOUT_MS;
 import static com.example.adservices.samples.fledge.WaterfallMediationHelpers.Constants.SCORING_LOGIC_WITH_BID_FLOOR_JS;
 import static com.example.adservices.samples.fledge.WaterfallMediationHelpers.Constants.TAG;
 import static com.example.adservices.samples.fledge.WaterfallMediationHelpers.Constants.TRUSTED_SCORING_SIGNALS_URI_SUFFIX;
@@ -35,16 +36,22 @@ import android.net.Uri;
 import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.RequiresApi;
+import com.example.adservices.samples.fledge.clients.AdSelectionBackend;
 import com.example.adservices.samples.fledge.clients.AdSelectionClient;
+import com.example.adservices.samples.fledge.clients.AdSelectionConfigCache;
+import com.example.adservices.samples.fledge.clients.Deadline;
 import com.example.adservices.samples.fledge.clients.TestAdSelectionClient;
 import com.example.adservices.samples.fledge.sampleapp.EventLogManager;
 import com.example.adservices.samples.fledge.sampleapp.MainActivity;
+import com.google.common.util.concurrent.FluentFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
 /**
  * Represents an {@code Ad Network SDK's} wrapper class.
@@ -64,6 +71,8 @@ import java.util.stream.Collectors;
 public class NetworkAdapter {
 
   private final List<AdTechIdentifier> buyers;
+  private final Uri decisionLogicUri;
+  private final Uri trustedScoringUri;
   private final AdSelectionConfig adSelectionConfig;
   private final double bidFloor;
 
@@ -75,16 +84,28 @@ public class NetworkAdapter {
   protected final AdSelectionClient adSelectionClient;
   protected final TestAdSelectionClient testAdSelectionClient;
   protected final EventLogManager eventLog;
+  protected final MediationMetrics metrics = MediationMetrics.getDefault();
 
-  protected NetworkAdapter(String networkName, AdTechIdentifier buyer, Uri baseUri, boolean useOverrides, Executor executor, Context context, EventLogManager eventLog) {
+  protected NetworkAdapter(String networkName, AdTechIdentifier buyer, Uri baseUri, boolean useOverrides, Executor executor, Context context, EventLogManager eventLog, AdSelectionBackend backend) {
     // If bid floor is not given we set it to 0
     //  (i.e. Mediation SDK don't have the bid floor concept so we set bid floor to zero to let any
     //  bid pass by scoring)
-    this(networkName, buyer, 0.0, baseUri, useOverrides, executor, context, eventLog);
+    this(networkName, buyer, 0.0, baseUri, useOverrides, executor, context, eventLog, backend);
   }
 
   public NetworkAdapter(String networkName, AdTechIdentifier buyer, double bidFloor, Uri baseUri, boolean useOverrides,
       Executor executor, Context context, EventLogManager eventLog) {
+    this(networkName, buyer, bidFloor, baseUri, useOverrides, executor, context, eventLog,
+        AdSelectionBackend.platform(context));
+  }
+
+  /**
+   * Creates an adapter whose auctions run against {@code backend} instead of the platform, e.g. a
+   * {@link com.example.adservices.samples.fledge.clients.FakeAdServicesBackend} for load tests.
+   * Overrides are still sent to the platform.
+   */
+  public NetworkAdapter(String networkName, AdTechIdentifier buyer, double bidFloor, Uri baseUri, boolean useOverrides,
+      Executor executor, Context context, EventLogManager eventLog, AdSelectionBackend backend) {
     uriFriendlyName = Constants.uriFriendlyString(networkName);
     this.networkName = networkName;
     this.bidFloor = bidFloor;
@@ -94,10 +115,13 @@ public class NetworkAdapter {
 
     buyers = Collections.singletonList(buyer);
     baseUriString = String.format(DEFAULT_BASE_URI_FORMAT, uriFriendlyName);
+    decisionLogicUri = this.baseUri.buildUpon().appendPath(DECISION_URI_SUFFIX).build();
+    trustedScoringUri =
+        this.baseUri.buildUpon().appendPath(TRUSTED_SCORING_SIGNALS_URI_SUFFIX).build();
     adSelectionConfig = prepareAdSelectionConfig();
     adSelectionClient = new AdSelectionClient.Builder()
-        .setContext(context)
         .setExecutor(executor)
+        .setBackend(backend)
         .build();
     testAdSelectionClient = new TestAdSelectionClient.Builder()
         .setContext(context)
@@ -105,32 +129,91 @@ public class NetworkAdapter {
         .build();
   }
 
-  @SuppressLint("NewApi")
   public AdSelectionOutcome runAdSelection() {
-    if (useOverrides) {
-      addAdSelectionOverrides();
-    }
-
-    AdSelectionOutcome adSelectionOutcome;
-    try {
-      adSelectionOutcome = adSelectionClient.selectAds(adSelectionConfig).get(10, TimeUnit.SECONDS);
-      Log.i(TAG, networkName + " adSelection success!");
-      Thread.sleep(1000);
-    } catch (Exception e) {
-      Log.e(MainActivity.TAG, "Exception running ad selection for " + networkName + " " + e);
-      adSelectionOutcome = AdSelectionOutcome.NO_OUTCOME;
-    }
-    return adSelectionOutcome;
+    return runAdSelection(Deadline.after(DEFAULT_STAGE_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+  }
+
+  /**
+   * Runs ad selection for this network, giving up once {@code deadline} passes.
+   *
+   * @return the auction outcome, or {@link AdSelectionOutcome#NO_OUTCOME} if the auction failed
+   *     or did not finish in time.
+   */
+  public AdSelectionOutcome runAdSelection(Deadline deadline) {
+    // The future never fails and is bound to the deadline, so this never blocks past it.
+    return Futures.getUnchecked(runAdSelectionAsync(deadline));
+  }
+
+  /**
+   * Same as {@link #runAdSelection(Deadline)}, but without blocking. The returned future never
+   * fails; failed or late auctions complete it with {@link AdSelectionOutcome#NO_OUTCOME}.
+   */
+  public ListenableFuture<AdSelectionOutcome> runAdSelectionAsync(Deadline deadline) {
+    return FluentFuture.from(runAdSelectionOrFailAsync(deadline))
+        .catching(
+            Exception.class, e -> AdSelectionOutcome.NO_OUTCOME, MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Same as {@link #runAdSelectionAsync}, but the returned future fails if the auction does, e.g.
+   * because it was throttled or timed out, so that a failure can be told apart from an auction
+   * that found no ad.
+   */
+  @SuppressLint("NewApi")
+  ListenableFuture<AdSelectionOutcome> runAdSelectionOrFailAsync(Deadline deadline) {
+    ListenableFuture<Void> overrides =
+        useOverrides ? addAdSelectionOverrides(deadline) : Futures.immediateFuture(null);
+    return FluentFuture.from(overrides)
+        .transformAsync(
+            unused ->
+                metrics.track(
+                    networkName,
+                    MediationMetrics.Stage.AUCTION,
+                    adSelectionClient.selectAds(adSelectionConfig, deadline)),
+            MoreExecutors.directExecutor())
+        .transform(
+            outcome -> {
+              Log.i(TAG, networkName + " adSelection success!");
+              metrics.recordAuction(networkName, outcome.hasOutcome());
+              return outcome;
+            },
+            MoreExecutors.directExecutor())
+        .catchingAsync(
+            Exception.class,
+            e -> {
+              Log.e(MainActivity.TAG, "Exception running ad selection for " + networkName + " " + e);
+              metrics.recordAuction(networkName, false);
+              return Futures.immediateFailedFuture(e);
+            },
+            MoreExecutors.directExecutor());
   }
 
   public void reportImpressions(Long adSelectionId) {
-    ReportImpressionRequest request = new ReportImpressionRequest(adSelectionId, prepareAdSelectionConfig());
-    try {
-      adSelectionClient.reportImpression(request).get(10, TimeUnit.SECONDS);
-      writeEvent("Report impression succeeded for %s", adSelectionId);
-    } catch (Exception e) {
-      writeEvent("Report impression failed: %s", e);
-    }
+    Futures.getUnchecked(reportImpressionsAsync(adSelectionId));
+  }
+
+  /**
+   * Same as {@link #reportImpressions}, but without blocking. The returned future never fails;
+   * the result is written to the event log.
+   */
+  public ListenableFuture<Void> reportImpressionsAsync(Long adSelectionId) {
+    ReportImpressionRequest request = new ReportImpressionRequest(adSelectionId, adSelectionConfig);
+    return FluentFuture.from(
+            Deadline.after(DEFAULT_STAGE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .enforce(adSelectionClient.reportImpression(request), "reportImpression"))
+        .transform(
+            unused -> {
+              writeEvent("Report impression succeeded for %s", adSelectionId);
+              return unused;
+            },
+            MoreExecutors.directExecutor())
+        .catching(
+            Exception.class,
+            e -> {
+              writeEvent("Report impression failed: %s", e);
+              return null;
+            },
+            MoreExecutors.directExecutor());
   }
 
   public void resetAdSelectionOverrides() {
@@ -142,6 +225,10 @@ public class NetworkAdapter {
         String.format(BID_FLOOR_SIGNALS_FORMAT, this.bidFloor));
   }
 
+  public List<AdTechIdentifier> getBuyers() {
+    return buyers;
+  }
+
   public double getBidFloor() {
     return bidFloor;
   }
@@ -160,41 +247,39 @@ public class NetworkAdapter {
     eventLog.writeEvent(String.format(eventFormat, args));
   }
 
-  private void addAdSelectionOverrides() {
-    try {
-      testAdSelectionClient.overrideAdSelectionConfigRemoteInfo(
-          new AddAdSelectionOverrideRequest(
-              adSelectionConfig,
-              String.format(SCORING_LOGIC_WITH_BID_FLOOR_JS, uriFriendlyName),
-              AdSelectionSignals.EMPTY)).get(10, TimeUnit.SECONDS);
-      Log.i(TAG, networkName + " adSelection overrides success!");
-      writeEvent("Adds AdSelectionConfig overrides");
-
-    } catch (Exception e) {
-      Log.e(MainActivity.TAG, "Exception adding overrides for " + networkName + ": " + e);
-    }
+  /** Adds the overrides for this network's auction. The returned future never fails. */
+  private ListenableFuture<Void> addAdSelectionOverrides(Deadline deadline) {
+    ListenableFuture<Void> override =
+        testAdSelectionClient.overrideAdSelectionConfigRemoteInfo(
+            new AddAdSelectionOverrideRequest(
+                adSelectionConfig,
+                String.format(SCORING_LOGIC_WITH_BID_FLOOR_JS, uriFriendlyName),
+                AdSelectionSignals.EMPTY));
+    return FluentFuture.from(deadline.enforce(override, networkName + " overrides"))
+        .transform(
+            unused -> {
+              Log.i(TAG, networkName + " adSelection overrides success!");
+              writeEvent("Adds AdSelectionConfig overrides");
+              return unused;
+            },
+            MoreExecutors.directExecutor())
+        .catching(
+            Exception.class,
+            e -> {
+              Log.e(MainActivity.TAG, "Exception adding overrides for " + networkName + ": " + e);
+              return null;
+            },
+            MoreExecutors.directExecutor());
   }
 
   private AdSelectionConfig prepareAdSelectionConfig() {
-    return new AdSelectionConfig.Builder()
-        .setSeller(AdTechIdentifier.fromString(getDecisionLogicUri().getHost()))
-        .setDecisionLogicUri(getDecisionLogicUri())
-        .setCustomAudienceBuyers(buyers)
-        .setAdSelectionSignals(AdSelectionSignals.EMPTY)
-        .setSellerSignals(getSellerSignals())
-        .setPerBuyerSignals(buyers.stream()
-            .collect(Collectors.toMap(buyer -> buyer, buyer -> AdSelectionSignals.EMPTY)))
-        .setTrustedScoringSignalsUri(getTrustedScoringUri())
-        .build();
-  }
-
-  private Uri getDecisionLogicUri() {
-    return baseUri.buildUpon().appendPath(DECISION_URI_SUFFIX).build();
-  }
-
-  private Uri getTrustedScoringUri() {
-    return baseUri.buildUpon().appendPath(TRUSTED_SCORING_SIGNALS_URI_SUFFIX).build();
-
+    // Adapters for the same network share one config instance through the cache.
+    return AdSelectionConfigCache.getDefault().get(
+        AdTechIdentifier.fromString(decisionLogicUri.getHost()),
+        buyers,
+        decisionLogicUri,
+        trustedScoringUri,
+        getSellerSignals());
   }
 
   private AdSelectionSignals getSellerSignals() {
@@ -0,0 +1,445 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.adservices.samples.fledge.WaterfallMediationHelpers;
+
+import android.adservices.adselection.AdSelectionOutcome;
+import android.adservices.common.AdTechIdentifier;
+import android.annotation.SuppressLint;
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import com.example.adservices.samples.fledge.clients.Deadline;
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.FluentFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Short-lived cache of {@link NetworkAdapter} auction outcomes, so that requesting the same slot
+ * again with the same chain doesn't re-run every 3P network's auction.
+ *
+ * <p>Outcomes are keyed by network, buyers, bid floor and slot, and kept for a fixed TTL after the
+ * auction completes. An auction that is still running is shared with every caller asking for the
+ * same key, and cancelled once every caller waiting for it cancelled. A network that returned no
+ * ad under a bid floor is also taken to have no ad under any higher floor until the entry expires,
+ * since raising the floor only rejects more bids. Auctions that failed or ran out of time are not
+ * cached, because their lack of an ad says nothing about the next one.
+ *
+ * <p>The platform counts wins, and apps count impressions and clicks, towards the frequency caps
+ * of a buyer's ads, which can change which of its ads are eligible. Callers drop the affected
+ * entries with {@link #invalidateAdSelection} whenever an outcome wins or an ad counter histogram
+ * is updated, and with {@link #invalidateBuyer} when a buyer's custom audiences change. The least
+ * recently used entry is evicted once the cache is full, and the cache empties itself when the
+ * system runs low on memory if it is registered with {@link
+ * android.content.Context#registerComponentCallbacks}.
+ */
+@RequiresApi(api = 34)
+public final class NetworkOutcomeCache implements ComponentCallbacks2 {
+  /** Default number of outcomes kept by {@link #getDefault()}. */
+  public static final int DEFAULT_MAX_ENTRIES = 64;
+  /** Default time outcomes are kept for by {@link #getDefault()}. */
+  public static final long DEFAULT_TTL_MS = 30_000;
+
+  private static final NetworkOutcomeCache sDefault =
+      new NetworkOutcomeCache(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MS, TimeUnit.MILLISECONDS);
+
+  private final long ttlNanos;
+  private final Map<Key, CachedAuction> entries;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+  private final AtomicLong savedNanos = new AtomicLong();
+
+  /** Creates a cache that holds at most {@code maxEntries} outcomes for {@code ttl} each. */
+  public NetworkOutcomeCache(int maxEntries, long ttl, TimeUnit unit) {
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("maxEntries must be positive");
+    }
+    if (ttl <= 0) {
+      throw new IllegalArgumentException("ttl must be positive");
+    }
+    ttlNanos = unit.toNanos(ttl);
+    entries =
+        new LinkedHashMap<Key, CachedAuction>(16, 0.75f, /* accessOrder= */ true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Key, CachedAuction> eldest) {
+            if (size() > maxEntries) {
+              evictions.incrementAndGet();
+              return true;
+            }
+            return false;
+          }
+        };
+  }
+
+  /** Returns the process-wide cache shared by the mediation activity's runs. */
+  @NonNull
+  public static NetworkOutcomeCache getDefault() {
+    return sDefault;
+  }
+
+  /** Returns a view of this cache for the ad slot {@code slot}. */
+  @NonNull
+  public Slot slot(@NonNull String slot) {
+    return new Slot(slot);
+  }
+
+  /** Drops the outcomes of every network that bids for {@code buyer}. */
+  public void invalidateBuyer(@NonNull AdTechIdentifier buyer) {
+    synchronized (entries) {
+      removeIf(entry -> entry.getKey().buyers().contains(buyer));
+    }
+  }
+
+  /**
+   * Drops the outcomes of the buyers whose ad won {@code adSelectionId}, e.g. after it was shown
+   * or an ad counter histogram was updated for it. If the outcome isn't cached, its buyer isn't
+   * known and every outcome is dropped, since custom audiences are shared with other sellers.
+   */
+  @SuppressLint("NewApi")
+  public void invalidateAdSelection(long adSelectionId) {
+    synchronized (entries) {
+      Set<AdTechIdentifier> buyers = new HashSet<>();
+      for (Map.Entry<Key, CachedAuction> entry : entries.entrySet()) {
+        AdSelectionOutcome outcome = entry.getValue().getDoneOrNull();
+        if (outcome != null
+            && outcome.hasOutcome()
+            && outcome.getAdSelectionId() == adSelectionId) {
+          buyers.addAll(entry.getKey().buyers());
+        }
+      }
+      if (buyers.isEmpty()) {
+        invalidateAll();
+      } else {
+        removeIf(entry -> !Collections.disjoint(entry.getKey().buyers(), buyers));
+      }
+    }
+  }
+
+  /** Drops every cached outcome. Metrics are kept. */
+  public void invalidateAll() {
+    synchronized (entries) {
+      invalidations.addAndGet(entries.size());
+      entries.clear();
+    }
+  }
+
+  /** Drops the outcomes whose TTL has passed. */
+  public void evictExpired() {
+    long now = System.nanoTime();
+    synchronized (entries) {
+      Iterator<CachedAuction> it = entries.values().iterator();
+      while (it.hasNext()) {
+        if (it.next().isExpired(now)) {
+          it.remove();
+          evictions.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  @Override
+  public void onTrimMemory(int level) {
+    if (level == TRIM_MEMORY_RUNNING_LOW
+        || level == TRIM_MEMORY_RUNNING_CRITICAL
+        || level >= TRIM_MEMORY_BACKGROUND) {
+      synchronized (entries) {
+        evictions.addAndGet(entries.size());
+        entries.clear();
+      }
+    } else {
+      evictExpired();
+    }
+  }
+
+  @Override
+  public void onLowMemory() {
+    onTrimMemory(TRIM_MEMORY_COMPLETE);
+  }
+
+  @Override
+  public void onConfigurationChanged(@NonNull Configuration newConfig) {}
+
+  /** Returns the number of auctions answered from the cache, including ones still running. */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /** Returns the number of auctions that had to be run. */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /** Returns the fraction of auctions answered from the cache, or zero before the first one. */
+  public double getHitRate() {
+    long hitCount = hits.get();
+    long total = hitCount + misses.get();
+    return total == 0 ? 0 : (double) hitCount / total;
+  }
+
+  /** Returns the number of outcomes dropped because the cache was full, expired or trimmed. */
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  /** Returns the number of outcomes dropped by the {@code invalidate} methods. */
+  public long getInvalidationCount() {
+    return invalidations.get();
+  }
+
+  /**
+   * Returns the auction time saved by cache hits: for every hit, how long the auction whose
+   * outcome it reused took.
+   */
+  public long getSavedAuctionTime(@NonNull TimeUnit unit) {
+    return unit.convert(savedNanos.get(), TimeUnit.NANOSECONDS);
+  }
+
+  /** Returns a one-line summary of the cache metrics, e.g. for the event log. */
+  @NonNull
+  @Override
+  public String toString() {
+    synchronized (entries) {
+      return String.format(
+          Locale.US,
+          "NetworkOutcomeCache: size=%d hits=%d misses=%d hitRate=%.2f saved=%dms evicted=%d"
+              + " invalidated=%d",
+          entries.size(),
+          getHitCount(),
+          getMissCount(),
+          getHitRate(),
+          getSavedAuctionTime(TimeUnit.MILLISECONDS),
+          getEvictionCount(),
+          getInvalidationCount());
+    }
+  }
+
+  /**
+   * Runs {@code network}'s auction in {@code slot} through the cache if {@code slot} is not null,
+   * and directly otherwise.
+   */
+  static ListenableFuture<AdSelectionOutcome> runAdSelectionAsync(
+      @Nullable Slot slot, NetworkAdapter network, Deadline deadline) {
+    return slot == null
+        ? network.runAdSelectionAsync(deadline)
+        : slot.runAdSelectionAsync(network, deadline);
+  }
+
+  private void removeIf(Predicate<Map.Entry<Key, CachedAuction>> predicate) {
+    Iterator<Map.Entry<Key, CachedAuction>> it = entries.entrySet().iterator();
+    while (it.hasNext()) {
+      if (predicate.test(it.next())) {
+        it.remove();
+        invalidations.incrementAndGet();
+      }
+    }
+  }
+
+  /** The outcomes of the networks' auctions for one ad slot. */
+  public final class Slot {
+    private final String slot;
+
+    private Slot(String slot) {
+      this.slot = slot;
+    }
+
+    /**
+     * Returns {@code network}'s cached outcome for this slot, running its auction if none is
+     * cached. Like {@link NetworkAdapter#runAdSelectionAsync}, the returned future never fails.
+     * Cancelling it does not cancel an auction other callers still wait for, but once every caller
+     * waiting for a running auction cancelled, the auction is cancelled and dropped from the cache.
+     */
+    @SuppressLint("NewApi")
+    public ListenableFuture<AdSelectionOutcome> runAdSelectionAsync(
+        NetworkAdapter network, Deadline deadline) {
+      Key key =
+          new AutoValue_NetworkOutcomeCache_Key(
+              network.getNetworkName(),
+              ImmutableList.copyOf(network.getBuyers()),
+              network.getBidFloor(),
+              slot);
+      CachedAuction cached;
+      // Decided under the lock, so exactly one caller starts the auction of a new entry.
+      boolean created;
+      synchronized (entries) {
+        cached = lookup(key);
+        created = cached == null;
+        if (created) {
+          misses.incrementAndGet();
+          entries.put(key, cached = new CachedAuction());
+        } else {
+          hits.incrementAndGet();
+        }
+        cached.waiters++;
+      }
+      if (!created) {
+        CachedAuction hit = cached;
+        hit.future.addListener(
+            () -> savedNanos.addAndGet(hit.auctionNanos), MoreExecutors.directExecutor());
+        network.writeEvent("Reusing %s's cached auction result", network.getNetworkName());
+        return newWaiter(key, hit);
+      }
+
+      // Started outside the lock; callers that look the key up meanwhile wait on the same future.
+      CachedAuction miss = cached;
+      long startNanos = System.nanoTime();
+      miss.future.setFuture(
+          FluentFuture.from(network.runAdSelectionOrFailAsync(deadline))
+              .transform(
+                  outcome -> {
+                    long now = System.nanoTime();
+                    miss.auctionNanos = now - startNanos;
+                    if (!outcome.hasOutcome() && deadline.isExpired()) {
+                      // Most likely timed out rather than found no ad, so it is not remembered.
+                      remove(key, miss);
+                    } else {
+                      miss.expiresAtNanos = now + ttlNanos;
+                      miss.completed = true;
+                    }
+                    return outcome;
+                  },
+                  MoreExecutors.directExecutor())
+              .catching(
+                  Exception.class,
+                  e -> {
+                    // A failed auction, e.g. a throttled or timed out one, says nothing about
+                    // whether the network has an ad, so it is not remembered as having none.
+                    remove(key, miss);
+                    return AdSelectionOutcome.NO_OUTCOME;
+                  },
+                  MoreExecutors.directExecutor()));
+      return newWaiter(key, miss);
+    }
+
+    /**
+     * Returns a view of {@code cached}'s auction for one caller, counted in its waiters. Cancelling
+     * the view cancels the auction once no other caller waits for it.
+     */
+    private ListenableFuture<AdSelectionOutcome> newWaiter(Key key, CachedAuction cached) {
+      ListenableFuture<AdSelectionOutcome> waiter =
+          Futures.nonCancellationPropagating(cached.future);
+      waiter.addListener(
+          () -> {
+            if (waiter.isCancelled()) {
+              release(key, cached);
+            }
+          },
+          MoreExecutors.directExecutor());
+      return waiter;
+    }
+
+    private void release(Key key, CachedAuction cached) {
+      synchronized (entries) {
+        if (--cached.waiters > 0 || cached.future.isDone()) {
+          return;
+        }
+        if (entries.get(key) == cached) {
+          entries.remove(key);
+        }
+      }
+      // Outside the lock, since the auction's listeners run on this thread.
+      cached.future.cancel(true);
+    }
+
+    /**
+     * Returns the live entry for {@code key}, or, if there is none, a live entry in which the same
+     * network had no ad under a lower bid floor. Expired entries are dropped on the way.
+     */
+    @SuppressLint("NewApi")
+    private CachedAuction lookup(Key key) {
+      long now = System.nanoTime();
+      CachedAuction entry = entries.get(key);
+      if (entry != null) {
+        if (!entry.isExpired(now)) {
+          return entry;
+        }
+        entries.remove(key);
+        evictions.incrementAndGet();
+      }
+      for (Map.Entry<Key, CachedAuction> candidate : entries.entrySet()) {
+        Key other = candidate.getKey();
+        AdSelectionOutcome outcome = candidate.getValue().getDoneOrNull();
+        if (other.networkName().equals(key.networkName())
+            && other.buyers().equals(key.buyers())
+            && other.slot().equals(key.slot())
+            && other.bidFloor() <= key.bidFloor()
+            && outcome != null
+            && !outcome.hasOutcome()
+            && !candidate.getValue().isExpired(now)) {
+          return candidate.getValue();
+        }
+      }
+      return null;
+    }
+  }
+
+  private void remove(Key key, CachedAuction entry) {
+    synchronized (entries) {
+      if (entries.get(key) == entry) {
+        entries.remove(key);
+      }
+    }
+  }
+
+  /** A network's auction in a slot, cached until {@link #expiresAtNanos}. */
+  private static final class CachedAuction {
+    final SettableFuture<AdSelectionOutcome> future = SettableFuture.create();
+    // Guarded by the cache's entries. Callers handed the future that have not cancelled it.
+    int waiters;
+    // Set once the auction completed; running auctions don't expire.
+    volatile boolean completed;
+    volatile long expiresAtNanos;
+    volatile long auctionNanos;
+
+    boolean isExpired(long nowNanos) {
+      return completed && nowNanos - expiresAtNanos >= 0;
+    }
+
+    @Nullable
+    AdSelectionOutcome getDoneOrNull() {
+      return future.isDone() ? Futures.getUnchecked(future) : null;
+    }
+  }
+
+  /** What an auction's outcome depends on. */
+  @AutoValue
+  abstract static class Key {
+    abstract String networkName();
+
+    abstract ImmutableList<AdTechIdentifier> buyers();
+
+    abstract double bidFloor();
+
+    abstract String slot();
+  }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.adservices.samples.fledge.WaterfallMediationHelpers;
+
+import static com.example.adservices.samples.fledge.WaterfallMediationHelpers.Constants.DEFAULT_STAGE_TIMEOUT_MS;
+import static com.example.adservices.samples.fledge.WaterfallMediationHelpers.Constants.TAG;
+
+import android.adservices.adselection.AdSelectionOutcome;
+import android.annotation.SuppressLint;
+import android.util.Log;
+import android.util.Pair;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import com.example.adservices.samples.fledge.clients.Deadline;
+import com.google.common.base.Joiner;
+import com.google.common.util.concurrent.FluentFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Runs the waterfall mediation flow of a {@link MediationSdk} as a chain of future stages.
+ *
+ * <p>The 1P auction runs first. Then, for each network of the chain in order, the 1P ad is placed
+ * before the network if it clears the network's bid floor, and otherwise the network's own auction
+ * runs; the first stage to return an ad wins. If no stage does, the 1P auction result is returned.
+ *
+ * <p>Each stage starts as soon as the previous one completes, and no thread waits in between: the
+ * orchestration only holds a thread while it decides which stage is next, on the executor it was
+ * created with. That executor may be the main thread, which keeps the UI and event log updates of
+ * the flow there.
+ *
+ * <p>With a lookahead of K, the auctions of the next K networks are started speculatively, in
+ * parallel with the 1P auction and outcome selections, since they don't depend on them. Winners are
+ * still committed in chain order, so the result is the one the sequential waterfall returns, and
+ * the speculative auctions of networks after the winner are cancelled. The waterfall then takes
+ * about as long as its slowest auction rather than the sum of them, at the cost of running auctions
+ * whose results may be thrown away.
+ */
+@RequiresApi(api = 34)
+public class WaterfallMediationEngine {
+  private final MediationSdk mediationSdk;
+  private final Executor executor;
+  private final int lookahead;
+  @Nullable private final NetworkOutcomeCache.Slot outcomeCache;
+
+  public WaterfallMediationEngine(MediationSdk mediationSdk, Executor executor) {
+    this(mediationSdk, executor, 0);
+  }
+
+  /**
+   * Creates an engine that runs the auctions of up to {@code lookahead} networks ahead of the
+   * waterfall. A lookahead of zero runs the chain strictly sequentially.
+   */
+  public WaterfallMediationEngine(MediationSdk mediationSdk, Executor executor, int lookahead) {
+    this(mediationSdk, executor, lookahead, null);
+  }
+
+  /**
+   * Creates an engine that takes the networks' outcomes from {@code outcomeCache} when they are
+   * cached, and runs their auctions otherwise. The 1P auction is never cached.
+   */
+  public WaterfallMediationEngine(
+      MediationSdk mediationSdk,
+      Executor executor,
+      int lookahead,
+      @Nullable NetworkOutcomeCache.Slot outcomeCache) {
+    if (lookahead < 0) {
+      throw new IllegalArgumentException("lookahead must not be negative");
+    }
+    this.mediationSdk = mediationSdk;
+    this.executor = executor;
+    this.lookahead = lookahead;
+    this.outcomeCache = outcomeCache;
+  }
+
+  public ListenableFuture<Pair<AdSelectionOutcome, NetworkAdapter>> orchestrateMediation(
+      List<NetworkAdapter> mediationChain) {
+    // One 1P auction, then at most one outcome selection and one auction per network.
+    long budgetMs = DEFAULT_STAGE_TIMEOUT_MS * (1 + 2L * mediationChain.size());
+    return orchestrateMediation(mediationChain, Deadline.after(budgetMs, TimeUnit.MILLISECONDS));
+  }
+
+  /**
+   * Runs the mediation chain with every auction and outcome selection sharing {@code deadline}.
+   * The returned future fails if an outcome selection fails; failed auctions count as no ad.
+   */
+  public ListenableFuture<Pair<AdSelectionOutcome, NetworkAdapter>> orchestrateMediation(
+      List<NetworkAdapter> mediationChain, Deadline deadline) {
+    mediationSdk.writeEvent(
+        "Mediation chain:\n%s", Joiner.on("\n").skipNulls().join(mediationChain));
+    Run run = new Run(mediationChain, deadline);
+    // The chain's auctions don't depend on the 1P auction, so speculation starts alongside it.
+    ListenableFuture<Pair<AdSelectionOutcome, NetworkAdapter>> firstStage =
+        Futures.transform(
+            mediationSdk.runAdSelectionAsync(deadline),
+            outcome1p -> new Pair<>(outcome1p, mediationSdk),
+            MoreExecutors.directExecutor());
+    return run.start(firstStage);
+  }
+
+  /**
+   * Runs the mediation chain behind {@code firstStage} instead of the 1P auction: the outcome it
+   * completes with is placed before each network the way the 1P ad is, and is attributed to the
+   * network it completes with when it wins.
+   */
+  ListenableFuture<Pair<AdSelectionOutcome, NetworkAdapter>> orchestrateMediation(
+      List<NetworkAdapter> mediationChain,
+      Deadline deadline,
+      ListenableFuture<Pair<AdSelectionOutcome, NetworkAdapter>> firstStage) {
+    return new Run(mediationChain, deadline).start(firstStage);
+  }
+
+  /** The state of one pass through the chain. */
+  private final class Run {
+    private final List<NetworkAdapter> mediationChain;
+    private final Deadline deadline;
+    // The auction of each network once started, by position in the chain.
+    private final AtomicReferenceArray<ListenableFuture<AdSelectionOutcome>> auctions;
+
+    Run(List<NetworkAdapter> mediationChain, Deadline deadline) {
+      this.mediationChain = mediationChain;
+      this.deadline = deadline;
+      auctions = new AtomicReferenceArray<>(mediationChain.size());
+    }
+
+    @SuppressLint("NewApi")
+    ListenableFuture<Pair<AdSelectionOutcome, NetworkAdapter>> start(
+        ListenableFuture<Pair<AdSelectionOutcome, NetworkAdapter>> firstStage) {
+      speculate(0);
+      ListenableFuture<Pair<AdSelectionOutcome, NetworkAdapter>> result =
+          FluentFuture.from(firstStage)
+              .transformAsync(
+                  first -> {
+                    if (first.first.hasOutcome()) {
+                      mediationSdk.writeEvent(
+                          "%s auction result (1P ad): %s",
+                          first.second.getNetworkName(), first.first.getAdSelectionId());
+                    } else {
+                      mediationSdk.writeEvent(
+                          "%s auction not returned an ad. No 1P ad. Will iterate the chain without"
+                              + " 1P ad anyways.",
+                          first.second.getNetworkName());
+                    }
+                    return runNetwork(first, 0);
+                  },
+                  executor);
+      // Whatever was committed, the auctions still running lost or were never needed.
+      result.addListener(this::cancelAuctions, MoreExecutors.directExecutor());
+      return result;
+    }
+
+    /** Runs the stages for the network at {@code index}, and the ones after it if it has no ad. */
+    @SuppressLint("NewApi")
+    private ListenableFuture<Pair<AdSelectionOutcome, NetworkAdapter>> runNetwork(
+        Pair<AdSelectionOutcome, NetworkAdapter> first, int index) {
+      AdSelectionOutcome outcome1p = first.first;
+      NetworkAdapter network1p = first.second;
+      if (index == mediationChain.size()) {
+        mediationSdk.writeEvent(
+            "Mediation Chain is exhausted but no ads found! Returning the 1P auction result");
+        return Futures.immediateFuture(first);
+      }
+      NetworkAdapter network3p = mediationChain.get(index);
+      speculate(index);
+
+      ListenableFuture<AdSelectionOutcome> placedBefore;
+      if (outcome1p.hasOutcome()) {
+        mediationSdk.writeEvent(
+            "Try to place %s before %s", network1p.getNetworkName(), network3p.getNetworkName());
+        placedBefore = mediationSdk.runSelectOutcomeAsync(outcome1p, network3p, deadline);
+      } else {
+        mediationSdk.writeEvent("No 1P ad, continue without comparing");
+        placedBefore = Futures.immediateFuture(AdSelectionOutcome.NO_OUTCOME);
+      }
+
+      return FluentFuture.from(placedBefore)
+          .transformAsync(
+              outcome -> {
+                if (outcome.hasOutcome()) {
+                  mediationSdk.writeEvent(
+                      "%s placed before! 1P ad wins: %s",
+                      network1p.getNetworkName(), outcome.getAdSelectionId());
+                  return Futures.immediateFuture(new Pair<>(outcome, network1p));
+                }
+                if (outcome1p.hasOutcome()) {
+                  mediationSdk.writeEvent(
+                      "%s isn't placed before %s, running ad selection for it!",
+                      network1p.getNetworkName(), network3p.getNetworkName());
+                }
+                return FluentFuture.from(auction(index))
+                    .transformAsync(
+                        outcome3p -> {
+                          if (outcome3p.hasOutcome()) {
+                            mediationSdk.writeEvent(
+                                "%s's auction returned an ad: Winner: %s",
+                                network3p.getNetworkName(), outcome3p.getAdSelectionId());
+                            return Futures.immediateFuture(new Pair<>(outcome3p, network3p));
+                          }
+                          mediationSdk.writeEvent(
+                              "%s's auction not returned an ad. Moving to the next network",
+                              network3p.getNetworkName());
+                          return runNetwork(first, index + 1);
+                        },
+                        executor);
+              },
+              executor);
+    }
+
+    /** Starts the auctions of the {@link #lookahead} networks from {@code index} on. */
+    private void speculate(int index) {
+      for (int i = index; i < Math.min(index + lookahead, mediationChain.size()); i++) {
+        if (auctions.get(i) == null) {
+          mediationSdk.writeEvent(
+              "Speculatively running %s's auction", mediationChain.get(i).getNetworkName());
+          auction(i);
+        }
+      }
+    }
+
+    /** Returns the auction of the network at {@code index}, starting it if it wasn't yet. */
+    private ListenableFuture<AdSelectionOutcome> auction(int index) {
+      ListenableFuture<AdSelectionOutcome> auction = auctions.get(index);
+      if (auction == null) {
+        auction =
+            NetworkOutcomeCache.runAdSelectionAsync(
+                outcomeCache, mediationChain.get(index), deadline);
+        auctions.set(index, auction);
+      }
+      return auction;
+    }
+
+    private void cancelAuctions() {
+      for (int i = 0; i < auctions.length(); i++) {
+        ListenableFuture<AdSelectionOutcome> auction = auctions.get(i);
+        if (auction != null && auction.cancel(true)) {
+          Log.i(TAG, "Cancelled " + mediationChain.get(i).getNetworkName() + "'s auction");
+        }
+      }
+    }
+  }
+
+  /**
+   * Waits for {@code future} and returns its value, rethrowing the exception it failed with rather
+   * than an {@link ExecutionException} around it.
+   */
+  static <T> T getOrThrow(ListenableFuture<T> future) throws Exception {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.adservices.samples.fledge.WaterfallMediationHelpers;
+
+import android.adservices.adselection.AdSelectionOutcome;
+import android.util.Pair;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import com.example.adservices.samples.fledge.clients.Deadline;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Waterfall mediation: the 1P ad is placed before each network in turn if it clears the network's
+ * bid floor, and otherwise the network's own auction runs, until one returns an ad. See {@link
+ * WaterfallMediationEngine}.
+ */
+@RequiresApi(api = 34)
+public class WaterfallMediationStrategy implements MediationStrategy {
+  private final Executor executor;
+  private final int lookahead;
+  @Nullable private final NetworkOutcomeCache.Slot outcomeCache;
+
+  /**
+   * Creates a waterfall that runs its stages on {@code executor}, with the auctions of up to
+   * {@code lookahead} networks started ahead of it.
+   */
+  public WaterfallMediationStrategy(Executor executor, int lookahead) {
+    this(executor, lookahead, null);
+  }
+
+  /** Same as above, with the networks' outcomes taken from {@code outcomeCache} if cached. */
+  public WaterfallMediationStrategy(
+      Executor executor, int lookahead, @Nullable NetworkOutcomeCache.Slot outcomeCache) {
+    this.executor = executor;
+    this.lookahead = lookahead;
+    this.outcomeCache = outcomeCache;
+  }
+
+  @Override
+  public ListenableFuture<Pair<AdSelectionOutcome, NetworkAdapter>> mediate(
+      MediationSdk mediationSdk, List<NetworkAdapter> mediationChain, Deadline deadline) {
+    return new WaterfallMediationEngine(mediationSdk, executor, lookahead, outcomeCache)
+        .orchestrateMediation(mediationChain, deadline);
+  }
+}
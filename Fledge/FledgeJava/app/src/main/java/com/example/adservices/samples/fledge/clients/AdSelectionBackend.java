@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.clients;
+
+import android.adservices.adselection.AdSelectionConfig;
+import android.adservices.adselection.AdSelectionFromOutcomesConfig;
+import android.adservices.adselection.AdSelectionManager;
+import android.adservices.adselection.AdSelectionOutcome;
+import android.adservices.adselection.GetAdSelectionDataOutcome;
+import android.adservices.adselection.GetAdSelectionDataRequest;
+import android.adservices.adselection.PersistAdSelectionResultRequest;
+import android.adservices.adselection.ReportEventRequest;
+import android.adservices.adselection.ReportImpressionRequest;
+import android.adservices.adselection.UpdateAdCounterHistogramRequest;
+import android.content.Context;
+import android.os.OutcomeReceiver;
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+import java.util.concurrent.Executor;
+
+/**
+ * The {@link AdSelectionManager} calls made by {@link AdSelectionClient}.
+ *
+ * <p>Every method has the same contract as the {@link AdSelectionManager} method of the same name.
+ * {@link #platform} forwards to the AdServices system service, while {@link FakeAdServicesBackend}
+ * runs ad selection in-process so that the client layer can be load-tested without it.
+ */
+@RequiresApi(api = 34)
+public interface AdSelectionBackend {
+
+  /**
+   * Returns a backend that forwards every call to the {@link AdSelectionManager} of {@code
+   * context}.
+   */
+  @NonNull
+  static AdSelectionBackend platform(@NonNull Context context) {
+    return new PlatformAdSelectionBackend(AdSelectionManager.get(context));
+  }
+
+  void selectAds(
+      @NonNull AdSelectionConfig adSelectionConfig,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<AdSelectionOutcome, Exception> receiver);
+
+  void selectAds(
+      @NonNull AdSelectionFromOutcomesConfig adSelectionFromOutcomesConfig,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<AdSelectionOutcome, Exception> receiver);
+
+  void reportImpression(
+      @NonNull ReportImpressionRequest request,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<Object, Exception> receiver);
+
+  void reportEvent(
+      @NonNull ReportEventRequest request,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<Object, Exception> receiver);
+
+  void updateAdCounterHistogram(
+      @NonNull UpdateAdCounterHistogramRequest request,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<Object, Exception> receiver);
+
+  void getAdSelectionData(
+      @NonNull GetAdSelectionDataRequest request,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<GetAdSelectionDataOutcome, Exception> receiver);
+
+  void persistAdSelectionResult(
+      @NonNull PersistAdSelectionResultRequest request,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<AdSelectionOutcome, Exception> receiver);
+}
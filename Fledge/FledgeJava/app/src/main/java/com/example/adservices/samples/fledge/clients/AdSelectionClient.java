@@ -30,14 +30,12 @@ import android.adservices.adselection.ReportImpressionRequest;
 import android.adservices.adselection.UpdateAdCounterHistogramRequest;
 import android.annotation.SuppressLint;
 import android.content.Context;
-import android.os.OutcomeReceiver;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
-import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
-import androidx.concurrent.futures.CallbackToFutureAdapter;
 
+import com.example.adservices.samples.fledge.clients.AdmissionController.ApiFamily;
 import com.example.adservices.samples.fledge.sampleapp.MainActivity;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -48,12 +46,17 @@ import java.util.concurrent.Executor;
 /** The ad selection client. */
 @RequiresApi(api = 34)
 public class AdSelectionClient {
-  private final AdSelectionManager mAdSelectionManager;
+  private final AdSelectionBackend mBackend;
   private final Executor mExecutor;
+  private final AdmissionController mAdmissionController;
 
-  private AdSelectionClient(@NonNull Context context, @NonNull Executor executor) {
+  private AdSelectionClient(
+      @NonNull AdSelectionBackend backend,
+      @NonNull Executor executor,
+      @NonNull AdmissionController admissionController) {
     mExecutor = executor;
-    mAdSelectionManager = AdSelectionManager.get(context);
+    mBackend = backend;
+    mAdmissionController = admissionController;
   }
 
   /**
@@ -63,31 +66,30 @@ public class AdSelectionClient {
   @NonNull
   public ListenableFuture<AdSelectionOutcome> selectAds(
       @NonNull AdSelectionConfig adSelectionConfig) {
-    return CallbackToFutureAdapter.getFuture(
-        completer -> {
-          mAdSelectionManager.selectAds(
-              adSelectionConfig,
-              mExecutor,
-              new OutcomeReceiver<AdSelectionOutcome, Exception>() {
-
-                @Override
-                public void onResult(@NonNull AdSelectionOutcome result) {
-                  completer.set(
-                      new AdSelectionOutcome.Builder()
-                          .setAdSelectionId(result.getAdSelectionId())
-                          .setRenderUri(result.getRenderUri())
-                          .build());
-                }
-
-                @Override
-                public void onError(@NonNull Exception error) {
-                  completer.setException(error);
-                }
-              });
-          return "Ad Selection";
+    return mAdmissionController.submit(
+        ApiFamily.AUCTION,
+        () -> {
+          ReceiverFuture<AdSelectionOutcome> future = ReceiverFuture.create("Ad Selection");
+          try {
+            mBackend.selectAds(adSelectionConfig, mExecutor, future);
+          } catch (RuntimeException e) {
+            future.onError(e);
+          }
+          return future;
         });
   }
 
+  /**
+   * Same as {@link #selectAds(AdSelectionConfig)}, but bound to {@code deadline}: the returned
+   * future fails with a {@link java.util.concurrent.TimeoutException} and the pending call is
+   * cancelled as soon as the deadline passes.
+   */
+  @NonNull
+  public ListenableFuture<AdSelectionOutcome> selectAds(
+      @NonNull AdSelectionConfig adSelectionConfig, @NonNull Deadline deadline) {
+    return deadline.enforce(selectAds(adSelectionConfig), "selectAds");
+  }
+
   /**
    * Invokes the {@code selectAds} method of {@link AdSelectionManager}, and returns a future with
    * {@link AdSelectionOutcome} if succeeds, or an {@link Exception} if fails.
@@ -102,49 +104,47 @@ public class AdSelectionClient {
           new IllegalStateException("Unsupported SDK Extension: Ad Selection From Outcomes Config requires 10, skipping")
       );
     }
-    return CallbackToFutureAdapter.getFuture(
-        completer -> {
-          mAdSelectionManager.selectAds(
-              config,
-              mExecutor,
-              new OutcomeReceiver<AdSelectionOutcome, Exception>() {
-                @Override
-                public void onResult(@Nullable AdSelectionOutcome result) {
-                  completer.set(result);
-                }
-
-                @Override
-                public void onError(@NonNull Exception error) {
-                  completer.setException(error);
-                }
-              });
-          return "Ad Selection from outcomes";
+    return mAdmissionController.submit(
+        ApiFamily.AUCTION,
+        () -> {
+          ReceiverFuture<AdSelectionOutcome> future =
+              ReceiverFuture.create("Ad Selection from outcomes");
+          try {
+            mBackend.selectAds(config, mExecutor, future);
+          } catch (RuntimeException e) {
+            future.onError(e);
+          }
+          return future;
         });
   }
 
+  /**
+   * Same as {@link #selectAds(AdSelectionFromOutcomesConfig)}, but bound to {@code deadline}: the
+   * returned future fails with a {@link java.util.concurrent.TimeoutException} and the pending call
+   * is cancelled as soon as the deadline passes.
+   */
+  @NonNull
+  public ListenableFuture<AdSelectionOutcome> selectAds(
+      @NonNull AdSelectionFromOutcomesConfig config, @NonNull Deadline deadline) {
+    return deadline.enforce(selectAds(config), "selectAdsFromOutcomes");
+  }
+
   /**
    * Invokes the {@code reportImpression} method of {@link AdSelectionManager}, and returns a Void
    * future
    */
   @NonNull
   public ListenableFuture<Void> reportImpression(@NonNull ReportImpressionRequest input) {
-    return CallbackToFutureAdapter.getFuture(
-        completer -> {
-          mAdSelectionManager.reportImpression(
-              input,
-              mExecutor,
-              new OutcomeReceiver<Object, Exception>() {
-                @Override
-                public void onResult(@NonNull Object ignoredResult) {
-                  completer.set(null);
-                }
-
-                @Override
-                public void onError(@NonNull Exception error) {
-                  completer.setException(error);
-                }
-              });
-          return "reportImpression";
+    return mAdmissionController.submit(
+        ApiFamily.REPORTING,
+        () -> {
+          ReceiverFuture.OfVoid future = ReceiverFuture.ofVoid("reportImpression");
+          try {
+            mBackend.reportImpression(input, mExecutor, future);
+          } catch (RuntimeException e) {
+            future.onError(e);
+          }
+          return future;
         });
   }
 
@@ -159,23 +159,16 @@ public class AdSelectionClient {
       return Futures.immediateVoidFuture();
     }
 
-    return CallbackToFutureAdapter.getFuture(
-        completer -> {
-          mAdSelectionManager.reportEvent(
-              request,
-              mExecutor,
-              new OutcomeReceiver<Object, Exception>() {
-                @Override
-                public void onResult(@NonNull Object ignoredResult) {
-                  completer.set(null);
-                }
-
-                @Override
-                public void onError(@NonNull Exception error) {
-                  completer.setException(error);
-                }
-              });
-          return "reportEvent";
+    return mAdmissionController.submit(
+        ApiFamily.REPORTING,
+        () -> {
+          ReceiverFuture.OfVoid future = ReceiverFuture.ofVoid("reportEvent");
+          try {
+            mBackend.reportEvent(request, mExecutor, future);
+          } catch (RuntimeException e) {
+            future.onError(e);
+          }
+          return future;
         });
   }
 
@@ -194,23 +187,16 @@ public class AdSelectionClient {
       return Futures.immediateVoidFuture();
     }
 
-    return CallbackToFutureAdapter.getFuture(
-        completer -> {
-          mAdSelectionManager.updateAdCounterHistogram(
-              updateAdCounterHistogramRequest,
-              mExecutor,
-              new OutcomeReceiver<Object, Exception>() {
-                @Override
-                public void onResult(@NonNull Object ignoredResult) {
-                  completer.set(null);
-                }
-
-                @Override
-                public void onError(@NonNull Exception error) {
-                  completer.setException(error);
-                }
-              });
-          return "updateAdCounterHistogram";
+    return mAdmissionController.submit(
+        ApiFamily.HISTOGRAM,
+        () -> {
+          ReceiverFuture.OfVoid future = ReceiverFuture.ofVoid("updateAdCounterHistogram");
+          try {
+            mBackend.updateAdCounterHistogram(updateAdCounterHistogramRequest, mExecutor, future);
+          } catch (RuntimeException e) {
+            future.onError(e);
+          }
+          return future;
         });
   }
 
@@ -229,23 +215,17 @@ public class AdSelectionClient {
           new IllegalStateException("Unsupported SDK Extension: Get Ad Selection Data requires 10, skipping")
       );
     }
-    return CallbackToFutureAdapter.getFuture(
-        completer -> {
-          mAdSelectionManager.getAdSelectionData(
-              request,
-              mExecutor,
-              new OutcomeReceiver<GetAdSelectionDataOutcome, Exception>() {
-                @Override
-                public void onResult(@NonNull GetAdSelectionDataOutcome result) {
-                  completer.set(result);
-                }
-
-                @Override
-                public void onError(@NonNull Exception error) {
-                  completer.setException(error);
-                }
-              });
-          return "getAdSelectionData";
+    return mAdmissionController.submit(
+        ApiFamily.AUCTION,
+        () -> {
+          ReceiverFuture<GetAdSelectionDataOutcome> future =
+              ReceiverFuture.create("getAdSelectionData");
+          try {
+            mBackend.getAdSelectionData(request, mExecutor, future);
+          } catch (RuntimeException e) {
+            future.onError(e);
+          }
+          return future;
         });
   }
 
@@ -264,23 +244,17 @@ public class AdSelectionClient {
           new IllegalStateException("Unsupported SDK Extension: Persist Ad Selection Result requires 10, skipping")
       );
     }
-    return CallbackToFutureAdapter.getFuture(
-        completer -> {
-          mAdSelectionManager.persistAdSelectionResult(
-              request,
-              mExecutor,
-              new OutcomeReceiver<AdSelectionOutcome, Exception>() {
-                @Override
-                public void onResult(@NonNull AdSelectionOutcome result) {
-                  completer.set(result);
-                }
-
-                @Override
-                public void onError(@NonNull Exception error) {
-                  completer.setException(error);
-                }
-              });
-          return "persistAdSelectionResult";
+    return mAdmissionController.submit(
+        ApiFamily.AUCTION,
+        () -> {
+          ReceiverFuture<AdSelectionOutcome> future =
+              ReceiverFuture.create("persistAdSelectionResult");
+          try {
+            mBackend.persistAdSelectionResult(request, mExecutor, future);
+          } catch (RuntimeException e) {
+            future.onError(e);
+          }
+          return future;
         });
   }
 
@@ -288,6 +262,8 @@ public class AdSelectionClient {
   public static final class Builder {
     private Context mContext;
     private Executor mExecutor;
+    private AdmissionController mAdmissionController = AdmissionController.UNBOUNDED;
+    private AdSelectionBackend mBackend;
 
     /** Empty-arg constructor with an empty body for Builder */
     public Builder() {}
@@ -314,17 +290,46 @@ public class AdSelectionClient {
       return this;
     }
 
+    /**
+     * Sets the admission controller that every call is routed through. Defaults to {@link
+     * AdmissionController#UNBOUNDED}.
+     */
+    @NonNull
+    public AdSelectionClient.Builder setAdmissionController(
+        @NonNull AdmissionController admissionController) {
+      Objects.requireNonNull(admissionController);
+
+      mAdmissionController = admissionController;
+      return this;
+    }
+
+    /**
+     * Sets the backend the calls are made against. Defaults to {@link
+     * AdSelectionBackend#platform}, in which case a context has to be set.
+     */
+    @NonNull
+    public AdSelectionClient.Builder setBackend(@NonNull AdSelectionBackend backend) {
+      Objects.requireNonNull(backend);
+
+      mBackend = backend;
+      return this;
+    }
+
     /**
      * Builds the Ad Selection Client.
      *
-     * @throws NullPointerException if {@code mContext} is null or if {@code mExecutor} is null
+     * @throws NullPointerException if neither {@code mContext} nor {@code mBackend} is set or if
+     *     {@code mExecutor} is null
      */
     @NonNull
     public AdSelectionClient build() {
-      Objects.requireNonNull(mContext);
       Objects.requireNonNull(mExecutor);
+      AdSelectionBackend backend = mBackend;
+      if (backend == null) {
+        backend = AdSelectionBackend.platform(Objects.requireNonNull(mContext));
+      }
 
-      return new AdSelectionClient(mContext, mExecutor);
+      return new AdSelectionClient(backend, mExecutor, mAdmissionController);
     }
   }
 }
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.clients;
+
+import android.adservices.adselection.AdSelectionConfig;
+import android.adservices.common.AdSelectionSignals;
+import android.adservices.common.AdTechIdentifier;
+import android.net.Uri;
+import androidx.annotation.NonNull;
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Hands out shared {@link AdSelectionConfig} instances keyed by the inputs they are built from.
+ *
+ * <p>An {@link AdSelectionConfig} is immutable, so callers that run the same auction repeatedly
+ * can share one instance instead of rebuilding the per-buyer signals map and URIs for every call.
+ * A new config is only built when one of the seller, buyers, decision logic URI, trusted scoring
+ * signals URI or seller signals differs from every cached entry. The least recently used entry is
+ * evicted once the cache is full.
+ *
+ * <p>Every config built by this cache uses empty auction signals and empty per-buyer signals.
+ */
+public final class AdSelectionConfigCache {
+  /** Default number of configs kept by {@link #getDefault()}. */
+  public static final int DEFAULT_MAX_ENTRIES = 32;
+
+  private static final AdSelectionConfigCache sDefault =
+      new AdSelectionConfigCache(DEFAULT_MAX_ENTRIES);
+
+  private final Map<Key, AdSelectionConfig> mConfigs;
+  private final AtomicLong mHits = new AtomicLong();
+  private final AtomicLong mMisses = new AtomicLong();
+  private final AtomicLong mBuildNanos = new AtomicLong();
+
+  /** Creates a cache that holds at most {@code maxEntries} configs. */
+  public AdSelectionConfigCache(int maxEntries) {
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("maxEntries must be positive");
+    }
+    mConfigs =
+        new LinkedHashMap<Key, AdSelectionConfig>(16, 0.75f, /* accessOrder= */ true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Key, AdSelectionConfig> eldest) {
+            return size() > maxEntries;
+          }
+        };
+  }
+
+  /** Returns the process-wide cache shared by the sample app's wrappers and adapters. */
+  @NonNull
+  public static AdSelectionConfigCache getDefault() {
+    return sDefault;
+  }
+
+  /**
+   * Returns the config for the given inputs, building it only if no equal inputs were cached.
+   *
+   * @param seller The seller running the auction.
+   * @param buyers The buyers taking part in the auction, in order.
+   * @param decisionLogicUri The URI to retrieve the seller scoring and reporting logic from.
+   * @param trustedScoringSignalsUri The URI to retrieve the trusted scoring signals from.
+   * @param sellerSignals The seller signals passed to the scoring logic.
+   */
+  @NonNull
+  public AdSelectionConfig get(
+      @NonNull AdTechIdentifier seller,
+      @NonNull List<AdTechIdentifier> buyers,
+      @NonNull Uri decisionLogicUri,
+      @NonNull Uri trustedScoringSignalsUri,
+      @NonNull AdSelectionSignals sellerSignals) {
+    Key key =
+        new AutoValue_AdSelectionConfigCache_Key(
+            seller,
+            ImmutableList.copyOf(buyers),
+            decisionLogicUri,
+            trustedScoringSignalsUri,
+            sellerSignals);
+    synchronized (mConfigs) {
+      AdSelectionConfig config = mConfigs.get(key);
+      if (config != null) {
+        mHits.incrementAndGet();
+        return config;
+      }
+    }
+
+    // Built outside the lock; if two threads race on the same key the first one wins.
+    long startNanos = System.nanoTime();
+    AdSelectionConfig built = build(key);
+    mBuildNanos.addAndGet(System.nanoTime() - startNanos);
+    mMisses.incrementAndGet();
+    synchronized (mConfigs) {
+      AdSelectionConfig existing = mConfigs.get(key);
+      if (existing != null) {
+        return existing;
+      }
+      mConfigs.put(key, built);
+      return built;
+    }
+  }
+
+  /** Drops every cached config. Metrics are kept. */
+  public void invalidateAll() {
+    synchronized (mConfigs) {
+      mConfigs.clear();
+    }
+  }
+
+  /** Returns the number of lookups answered from the cache. */
+  public long getHitCount() {
+    return mHits.get();
+  }
+
+  /** Returns the number of lookups that had to build a new config. */
+  public long getMissCount() {
+    return mMisses.get();
+  }
+
+  /** Returns the fraction of lookups answered from the cache, or zero before the first lookup. */
+  public double getHitRate() {
+    long hits = mHits.get();
+    long total = hits + mMisses.get();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  /**
+   * Returns an estimate of the construction time saved by cache hits: the number of hits times
+   * the mean time it took to build a config on a miss.
+   */
+  public long getEstimatedSavedTime(@NonNull TimeUnit unit) {
+    long misses = mMisses.get();
+    if (misses == 0) {
+      return 0;
+    }
+    return unit.convert(mHits.get() * (mBuildNanos.get() / misses), TimeUnit.NANOSECONDS);
+  }
+
+  /** Returns a one-line summary of the cache metrics, e.g. for the event log. */
+  @NonNull
+  @Override
+  public String toString() {
+    return String.format(
+        Locale.US,
+        "AdSelectionConfigCache: hits=%d misses=%d hitRate=%.2f saved=%dus",
+        getHitCount(),
+        getMissCount(),
+        getHitRate(),
+        getEstimatedSavedTime(TimeUnit.MICROSECONDS));
+  }
+
+  private static AdSelectionConfig build(Key key) {
+    return new AdSelectionConfig.Builder()
+        .setSeller(key.seller())
+        .setDecisionLogicUri(key.decisionLogicUri())
+        .setCustomAudienceBuyers(key.buyers())
+        .setAdSelectionSignals(AdSelectionSignals.EMPTY)
+        .setSellerSignals(key.sellerSignals())
+        .setPerBuyerSignals(
+            key.buyers().stream()
+                .collect(Collectors.toMap(buyer -> buyer, buyer -> AdSelectionSignals.EMPTY)))
+        .setTrustedScoringSignalsUri(key.trustedScoringSignalsUri())
+        .build();
+  }
+
+  /** The inputs a cached config was built from. Signals compare by their JSON string. */
+  @AutoValue
+  abstract static class Key {
+    abstract AdTechIdentifier seller();
+
+    abstract ImmutableList<AdTechIdentifier> buyers();
+
+    abstract Uri decisionLogicUri();
+
+    abstract Uri trustedScoringSignalsUri();
+
+    abstract AdSelectionSignals sellerSignals();
+  }
+}
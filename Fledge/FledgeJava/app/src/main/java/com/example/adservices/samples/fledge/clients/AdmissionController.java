@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.clients;
+
+import androidx.annotation.NonNull;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Decides whether a FLEDGE API call may start now or has to be shed.
+ *
+ * <p>Clients route every manager call through {@link #submit}. An implementation either runs the
+ * call and returns its future, or rejects it without calling the platform by returning a future
+ * that fails with {@link java.util.concurrent.RejectedExecutionException}.
+ */
+public interface AdmissionController {
+
+  /** API families, declared from the highest to the lowest priority. */
+  enum ApiFamily {
+    /** Ad selection, including the server auction and outcome selection calls. */
+    AUCTION,
+    /** Impression and event reporting. */
+    REPORTING,
+    /** Ad counter histogram updates. */
+    HISTOGRAM
+  }
+
+  /** An admission controller that starts every call immediately. */
+  AdmissionController UNBOUNDED =
+      new AdmissionController() {
+        @NonNull
+        @Override
+        public <T> ListenableFuture<T> submit(
+            @NonNull ApiFamily family, @NonNull Supplier<ListenableFuture<T>> call) {
+          return call.get();
+        }
+      };
+
+  /**
+   * Starts {@code call} if a call of {@code family} may run now.
+   *
+   * @return the future returned by {@code call}, or a failed future if the call was shed.
+   */
+  @NonNull
+  <T> ListenableFuture<T> submit(
+      @NonNull ApiFamily family, @NonNull Supplier<ListenableFuture<T>> call);
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.clients;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.google.auto.value.AutoValue;
+
+/**
+ * The outcome of a single item of a batched client call, such as {@link
+ * CustomAudienceClient#joinCustomAudiences}.
+ *
+ * @param <T> the type of the item the call was made for.
+ */
+@AutoValue
+public abstract class BatchResult<T> {
+  /** The item the call was made for. */
+  @NonNull
+  public abstract T getItem();
+
+  /** The error the call failed with, or {@code null} if it succeeded. */
+  @Nullable
+  public abstract Throwable getError();
+
+  /** Returns {@code true} if the call for {@link #getItem()} succeeded. */
+  public boolean isSuccess() {
+    return getError() == null;
+  }
+
+  static <T> BatchResult<T> success(@NonNull T item) {
+    return new AutoValue_BatchResult<>(item, null);
+  }
+
+  static <T> BatchResult<T> failure(@NonNull T item, @NonNull Throwable error) {
+    return new AutoValue_BatchResult<>(item, error);
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.clients;
+
+import android.adservices.customaudience.CustomAudienceManager;
+import android.adservices.customaudience.FetchAndJoinCustomAudienceRequest;
+import android.adservices.customaudience.JoinCustomAudienceRequest;
+import android.adservices.customaudience.LeaveCustomAudienceRequest;
+import android.content.Context;
+import android.os.OutcomeReceiver;
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+import java.util.concurrent.Executor;
+
+/**
+ * The {@link CustomAudienceManager} calls made by {@link CustomAudienceClient}.
+ *
+ * <p>Every method has the same contract as the {@link CustomAudienceManager} method of the same
+ * name. {@link #platform} forwards to the AdServices system service, while {@link
+ * FakeAdServicesBackend} keeps the audiences in memory.
+ */
+@RequiresApi(api = 34)
+public interface CustomAudienceBackend {
+
+  /**
+   * Returns a backend that forwards every call to the {@link CustomAudienceManager} of {@code
+   * context}.
+   */
+  @NonNull
+  static CustomAudienceBackend platform(@NonNull Context context) {
+    return new PlatformCustomAudienceBackend(CustomAudienceManager.get(context));
+  }
+
+  void joinCustomAudience(
+      @NonNull JoinCustomAudienceRequest request,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<Object, Exception> receiver);
+
+  void fetchAndJoinCustomAudience(
+      @NonNull FetchAndJoinCustomAudienceRequest request,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<Object, Exception> receiver);
+
+  void leaveCustomAudience(
+      @NonNull LeaveCustomAudienceRequest request,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<Object, Exception> receiver);
+}
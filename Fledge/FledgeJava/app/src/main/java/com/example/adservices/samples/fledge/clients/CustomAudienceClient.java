@@ -25,51 +25,42 @@ import android.adservices.customaudience.LeaveCustomAudienceRequest;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.net.Uri;
-import android.os.OutcomeReceiver;
 import androidx.annotation.NonNull;
 import androidx.annotation.RequiresApi;
-import androidx.concurrent.futures.CallbackToFutureAdapter;
 import com.google.common.util.concurrent.ListenableFuture;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.Executor;
 
 /** The custom audience client. */
 @RequiresApi(api = 34)
 public class CustomAudienceClient {
-  private final CustomAudienceManager mCustomAudienceManager;
+  /** Number of calls the batched join and leave methods keep in flight by default. */
+  public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+
+  private final CustomAudienceBackend mBackend;
   private final Executor mExecutor;
 
-  private CustomAudienceClient(@NonNull Context context, @NonNull Executor executor) {
+  private CustomAudienceClient(@NonNull CustomAudienceBackend backend, @NonNull Executor executor) {
     mExecutor = executor;
-    mCustomAudienceManager =CustomAudienceManager.get(context);
+    mBackend = backend;
   }
 
   /** Join custom audience. */
   @NonNull
   public ListenableFuture<Void> joinCustomAudience(CustomAudience customAudience) {
-    return CallbackToFutureAdapter.getFuture(
-        completer -> {
-          JoinCustomAudienceRequest request =
-              new JoinCustomAudienceRequest.Builder().setCustomAudience(customAudience).build();
-          mCustomAudienceManager.joinCustomAudience(
-              request,
-              mExecutor,
-              new OutcomeReceiver<Object, Exception>() {
-                @Override
-                public void onResult(Object ignoredResult) {
-                  completer.set(null);
-                }
-
-                @Override
-                public void onError(Exception error) {
-                  completer.setException(error);
-                }
-              });
-          // This value is used only for debug purposes: it will be used in toString()
-          // of returned future or error cases.
-          return "joinCustomAudience";
-        });
+    JoinCustomAudienceRequest request =
+        new JoinCustomAudienceRequest.Builder().setCustomAudience(customAudience).build();
+    ReceiverFuture.OfVoid future = ReceiverFuture.ofVoid("joinCustomAudience");
+    try {
+      mBackend.joinCustomAudience(request, mExecutor, future);
+    } catch (RuntimeException e) {
+      future.onError(e);
+    }
+    return future;
   }
 
   /** Fetch and Join custom audience. */
@@ -77,59 +68,92 @@ public class CustomAudienceClient {
   @SuppressLint("NewApi")
   public ListenableFuture<Void> fetchAndJoinCustomAudience(
       FetchAndJoinCustomAudienceRequest fetchAndJoinCustomAudienceRequest) {
-    return CallbackToFutureAdapter.getFuture(
-        completer -> {
-          mCustomAudienceManager.fetchAndJoinCustomAudience(
-              fetchAndJoinCustomAudienceRequest,
-              mExecutor,
-              new OutcomeReceiver<Object, Exception>() {
-                @Override
-                public void onResult(Object ignoredResult) {
-                  completer.set(null);
-                }
-
-                @Override
-                public void onError(Exception error) {
-                  completer.setException(error);
-                }
-              });
-          // This value is used only for debug purposes: it will be used in toString()
-          // of returned future or error cases.
-          return "fetchAndJoinCustomAudience";
-        });
+    ReceiverFuture.OfVoid future = ReceiverFuture.ofVoid("fetchAndJoinCustomAudience");
+    try {
+      mBackend.fetchAndJoinCustomAudience(fetchAndJoinCustomAudienceRequest, mExecutor, future);
+    } catch (RuntimeException e) {
+      future.onError(e);
+    }
+    return future;
+  }
+
+  /**
+   * Joins every custom audience in {@code customAudiences}, keeping at most {@link
+   * #DEFAULT_MAX_IN_FLIGHT} calls to {@link CustomAudienceManager} in flight.
+   *
+   * @see #joinCustomAudiences(Collection, int)
+   */
+  @NonNull
+  public ListenableFuture<List<BatchResult<CustomAudience>>> joinCustomAudiences(
+      @NonNull Collection<CustomAudience> customAudiences) {
+    return joinCustomAudiences(customAudiences, DEFAULT_MAX_IN_FLIGHT);
+  }
+
+  /**
+   * Joins every custom audience in {@code customAudiences}, keeping at most {@code maxInFlight}
+   * calls to {@link CustomAudienceManager} in flight.
+   *
+   * <p>The returned future always succeeds once every join has completed, and holds one {@link
+   * BatchResult} per custom audience, in iteration order of {@code customAudiences}. Failed joins
+   * are reported through {@link BatchResult#getError()} and do not stop the remaining joins.
+   */
+  @NonNull
+  public ListenableFuture<List<BatchResult<CustomAudience>>> joinCustomAudiences(
+      @NonNull Collection<CustomAudience> customAudiences, int maxInFlight) {
+    Objects.requireNonNull(customAudiences);
+    return WindowedBatch.run(
+        new ArrayList<>(customAudiences), maxInFlight, this::joinCustomAudience);
   }
 
   /** Leave custom audience. */
   @NonNull
   public ListenableFuture<Void> leaveCustomAudience(@NonNull AdTechIdentifier buyer, @NonNull String name) {
-    return CallbackToFutureAdapter.getFuture(
-        completer -> {
-          LeaveCustomAudienceRequest request =
-              new LeaveCustomAudienceRequest.Builder().setBuyer(buyer).setName(name).build();
-          mCustomAudienceManager.leaveCustomAudience(
-              request,
-              mExecutor,
-              new OutcomeReceiver<Object, Exception>() {
-                @Override
-                public void onResult(Object ignoredResult) {
-                  completer.set(null);
-                }
-
-                @Override
-                public void onError(Exception error) {
-                  completer.setException(error);
-                }
-              });
-          // This value is used only for debug purposes: it will be used in toString()
-          // of returned future or error cases.
-          return "leaveCustomAudience";
-        });
+    return leaveCustomAudience(
+        new LeaveCustomAudienceRequest.Builder().setBuyer(buyer).setName(name).build());
+  }
+
+  /**
+   * Leaves every custom audience described by {@code requests}, keeping at most {@link
+   * #DEFAULT_MAX_IN_FLIGHT} calls to {@link CustomAudienceManager} in flight.
+   *
+   * @see #leaveCustomAudiences(Collection, int)
+   */
+  @NonNull
+  public ListenableFuture<List<BatchResult<LeaveCustomAudienceRequest>>> leaveCustomAudiences(
+      @NonNull Collection<LeaveCustomAudienceRequest> requests) {
+    return leaveCustomAudiences(requests, DEFAULT_MAX_IN_FLIGHT);
+  }
+
+  /**
+   * Leaves every custom audience described by {@code requests}, keeping at most {@code
+   * maxInFlight} calls to {@link CustomAudienceManager} in flight.
+   *
+   * <p>The returned future always succeeds once every leave has completed, and holds one {@link
+   * BatchResult} per request, in iteration order of {@code requests}.
+   */
+  @NonNull
+  public ListenableFuture<List<BatchResult<LeaveCustomAudienceRequest>>> leaveCustomAudiences(
+      @NonNull Collection<LeaveCustomAudienceRequest> requests, int maxInFlight) {
+    Objects.requireNonNull(requests);
+    return WindowedBatch.run(new ArrayList<>(requests), maxInFlight, this::leaveCustomAudience);
+  }
+
+  @NonNull
+  private ListenableFuture<Void> leaveCustomAudience(@NonNull LeaveCustomAudienceRequest request) {
+    ReceiverFuture.OfVoid future = ReceiverFuture.ofVoid("leaveCustomAudience");
+    try {
+      mBackend.leaveCustomAudience(request, mExecutor, future);
+    } catch (RuntimeException e) {
+      future.onError(e);
+    }
+    return future;
   }
 
   /** Builder class. */
   public static final class Builder {
     private Context mContext;
     private Executor mExecutor;
+    private CustomAudienceBackend mBackend;
 
     /** Empty-arg constructor with an empty body for Builder */
     public Builder() {}
@@ -154,13 +178,27 @@ public class CustomAudienceClient {
       return this;
     }
 
+    /**
+     * Sets the backend the calls are made against. Defaults to {@link
+     * CustomAudienceBackend#platform}, in which case a context has to be set.
+     */
+    @NonNull
+    public Builder setBackend(@NonNull CustomAudienceBackend backend) {
+      Objects.requireNonNull(backend);
+      mBackend = backend;
+      return this;
+    }
+
     /** Builds a {@link CustomAudienceClient} instance */
     @NonNull
     public CustomAudienceClient build() {
-      Objects.requireNonNull(mContext);
       Objects.requireNonNull(mExecutor);
+      CustomAudienceBackend backend = mBackend;
+      if (backend == null) {
+        backend = CustomAudienceBackend.platform(Objects.requireNonNull(mContext));
+      }
 
-      return new CustomAudienceClient(mContext, mExecutor);
+      return new CustomAudienceClient(backend, mExecutor);
     }
   }
 }
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.clients;
+
+import android.util.Log;
+import android.util.Pair;
+import androidx.annotation.NonNull;
+import com.example.adservices.samples.fledge.sampleapp.MainActivity;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A fixed point in time by which a chain of FLEDGE calls has to complete.
+ *
+ * <p>A deadline is created once per ad slot with the whole latency budget and then passed to
+ * every call made for that slot, so that each stage only gets what is left of the budget. Futures
+ * bound with {@link #enforce} fail with a {@link TimeoutException} as soon as the deadline passes,
+ * and the underlying call is cancelled rather than left holding a thread.
+ *
+ * <p>Every completed stage is recorded as a checkpoint together with the budget that remained at
+ * that point, which can be read with {@link #getCheckpoints()}.
+ */
+public final class Deadline {
+  private static final ScheduledExecutorService sTimeoutScheduler =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat("fledge-deadline-%d").setDaemon(true).build());
+
+  private final long mStartNanos;
+  private final long mBudgetNanos;
+  private final List<Pair<String, Long>> mCheckpoints = new ArrayList<>();
+
+  private Deadline(long budgetNanos) {
+    mStartNanos = System.nanoTime();
+    mBudgetNanos = budgetNanos;
+  }
+
+  /** Creates a deadline that expires {@code budget} {@code unit}s from now. */
+  @NonNull
+  public static Deadline after(long budget, @NonNull TimeUnit unit) {
+    return new Deadline(unit.toNanos(budget));
+  }
+
+  /**
+   * Creates a deadline that expires {@code amount} {@code unit}s before this one, e.g. to leave
+   * time for a final stage after a fan-out. Checkpoints are not shared between the two.
+   */
+  @NonNull
+  public Deadline before(long amount, @NonNull TimeUnit unit) {
+    return new Deadline(Math.max(0, remaining(TimeUnit.NANOSECONDS) - unit.toNanos(amount)));
+  }
+
+  /** Returns the time left before the deadline, or zero if it already passed. */
+  public long remaining(@NonNull TimeUnit unit) {
+    return unit.convert(Math.max(0, mBudgetNanos - elapsedNanos()), TimeUnit.NANOSECONDS);
+  }
+
+  /** Returns the time spent since the deadline was created. */
+  public long elapsed(@NonNull TimeUnit unit) {
+    return unit.convert(elapsedNanos(), TimeUnit.NANOSECONDS);
+  }
+
+  /** Returns {@code true} once the deadline has passed. */
+  public boolean isExpired() {
+    return elapsedNanos() >= mBudgetNanos;
+  }
+
+  /** Records that {@code stage} finished, along with the budget that was left at that point. */
+  public void checkpoint(@NonNull String stage) {
+    long remainingMs = remaining(TimeUnit.MILLISECONDS);
+    synchronized (mCheckpoints) {
+      mCheckpoints.add(new Pair<>(stage, remainingMs));
+    }
+    Log.d(MainActivity.TAG, "Deadline checkpoint '" + stage + "': " + remainingMs + "ms left");
+  }
+
+  /**
+   * Returns the stages recorded so far in completion order, each paired with the budget in
+   * milliseconds that remained when it finished.
+   */
+  @NonNull
+  public List<Pair<String, Long>> getCheckpoints() {
+    synchronized (mCheckpoints) {
+      return Collections.unmodifiableList(new ArrayList<>(mCheckpoints));
+    }
+  }
+
+  /**
+   * Binds {@code future} to this deadline.
+   *
+   * <p>The returned future fails with a {@link TimeoutException} once the deadline passes, at which
+   * point {@code future} is cancelled. A checkpoint named {@code stage} is recorded when the
+   * returned future completes, whether it succeeds or not.
+   */
+  @NonNull
+  public <T> ListenableFuture<T> enforce(
+      @NonNull ListenableFuture<T> future, @NonNull String stage) {
+    ListenableFuture<T> bound;
+    if (isExpired()) {
+      future.cancel(true);
+      bound =
+          Futures.immediateFailedFuture(
+              new TimeoutException("Deadline expired before " + stage + " started"));
+    } else {
+      bound =
+          Futures.withTimeout(
+              future, remaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS, sTimeoutScheduler);
+    }
+    bound.addListener(() -> checkpoint(stage), MoreExecutors.directExecutor());
+    return bound;
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return String.format(
+        "Deadline{budget=%dms, remaining=%dms, checkpoints=%s}",
+        TimeUnit.NANOSECONDS.toMillis(mBudgetNanos),
+        remaining(TimeUnit.MILLISECONDS),
+        getCheckpoints());
+  }
+
+  private long elapsedNanos() {
+    return System.nanoTime() - mStartNanos;
+  }
+}
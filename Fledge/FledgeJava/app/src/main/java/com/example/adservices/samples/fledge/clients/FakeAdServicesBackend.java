@@ -0,0 +1,578 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.clients;
+
+import static android.adservices.common.FrequencyCapFilters.AD_EVENT_TYPE_CLICK;
+import static android.adservices.common.FrequencyCapFilters.AD_EVENT_TYPE_IMPRESSION;
+import static android.adservices.common.FrequencyCapFilters.AD_EVENT_TYPE_VIEW;
+import static android.adservices.common.FrequencyCapFilters.AD_EVENT_TYPE_WIN;
+
+import android.adservices.adselection.AdSelectionConfig;
+import android.adservices.adselection.AdSelectionFromOutcomesConfig;
+import android.adservices.adselection.AdSelectionOutcome;
+import android.adservices.adselection.GetAdSelectionDataOutcome;
+import android.adservices.adselection.GetAdSelectionDataRequest;
+import android.adservices.adselection.PersistAdSelectionResultRequest;
+import android.adservices.adselection.ReportEventRequest;
+import android.adservices.adselection.ReportImpressionRequest;
+import android.adservices.adselection.UpdateAdCounterHistogramRequest;
+import android.adservices.common.AdData;
+import android.adservices.common.AdFilters;
+import android.adservices.common.AdSelectionSignals;
+import android.adservices.common.AdTechIdentifier;
+import android.adservices.common.FrequencyCapFilters;
+import android.adservices.common.KeyedFrequencyCap;
+import android.adservices.customaudience.CustomAudience;
+import android.adservices.customaudience.FetchAndJoinCustomAudienceRequest;
+import android.adservices.customaudience.JoinCustomAudienceRequest;
+import android.adservices.customaudience.LeaveCustomAudienceRequest;
+import android.net.Uri;
+import android.os.OutcomeReceiver;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for the AdServices ad selection and custom audience services.
+ *
+ * <p>Joined audiences are kept in memory. An auction lets every active audience of the configured
+ * buyers bid on each of its ads that is not frequency capped, and picks the highest bid that
+ * clears the seller's {@code bid_floor}. Instead of running JavaScript the fake reads the bid from
+ * the ad metadata or the user bidding signals, the same {@code bid} field the sample bidding logic
+ * uses. Win, impression, view and click events are counted per buyer and ad counter key, and
+ * {@link KeyedFrequencyCap}s are enforced against those counts.
+ *
+ * <p>Results are delivered after a delay drawn from the configured {@link LatencyModel}s, so that
+ * callers see realistic timing without the platform. Ad selection and custom audience calls share
+ * the same state, so one instance should back both clients.
+ *
+ * <p>Server auctions are not supported and fail with {@link UnsupportedOperationException}, as
+ * does {@code fetchAndJoinCustomAudience}, which would require fetching the audience over the
+ * network.
+ */
+@RequiresApi(api = 34)
+public final class FakeAdServicesBackend implements AdSelectionBackend, CustomAudienceBackend {
+  /** Number of past ad selections kept for reporting and outcome selection. */
+  public static final int MAX_RETAINED_AD_SELECTIONS = 10000;
+
+  /** Number of events kept per buyer, ad counter key and event type for frequency capping. */
+  public static final int MAX_EVENTS_PER_KEY = 1024;
+
+  private static final String BID_KEY = "bid";
+  private static final String BID_FLOOR_KEY = "bid_floor";
+  private static final double DEFAULT_BID = 1.0;
+
+  private final LatencyModel mBiddingLatency;
+  private final LatencyModel mScoringLatency;
+  private final LatencyModel mReportingLatency;
+  private final Clock mClock;
+  private final ScheduledExecutorService mScheduler;
+
+  private final Map<String, CustomAudience> mAudiences = new ConcurrentHashMap<>();
+  private final Map<String, ConcurrentLinkedDeque<Instant>> mAdEvents = new ConcurrentHashMap<>();
+  private final Map<Long, AdSelection> mAdSelections =
+      new LinkedHashMap<Long, AdSelection>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, AdSelection> eldest) {
+          return size() > MAX_RETAINED_AD_SELECTIONS;
+        }
+      };
+  private final AtomicLong mNextAdSelectionId = new AtomicLong(1);
+
+  private final AtomicLong mAuctionCount = new AtomicLong();
+  private final AtomicLong mNoFillCount = new AtomicLong();
+  private final AtomicLong mFrequencyCappedAdCount = new AtomicLong();
+  private final AtomicLong mReportCount = new AtomicLong();
+
+  private FakeAdServicesBackend(
+      LatencyModel biddingLatency,
+      LatencyModel scoringLatency,
+      LatencyModel reportingLatency,
+      Clock clock) {
+    mBiddingLatency = biddingLatency;
+    mScoringLatency = scoringLatency;
+    mReportingLatency = reportingLatency;
+    mClock = clock;
+    mScheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("fledge-fake-%d").setDaemon(true).build());
+  }
+
+  @Override
+  public void joinCustomAudience(
+      @NonNull JoinCustomAudienceRequest request,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<Object, Exception> receiver) {
+    CustomAudience customAudience = request.getCustomAudience();
+    mAudiences.put(
+        audienceKey(customAudience.getBuyer(), customAudience.getName()), customAudience);
+    executor.execute(() -> receiver.onResult(new Object()));
+  }
+
+  @Override
+  public void fetchAndJoinCustomAudience(
+      @NonNull FetchAndJoinCustomAudienceRequest request,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<Object, Exception> receiver) {
+    executor.execute(
+        () ->
+            receiver.onError(
+                new UnsupportedOperationException(
+                    "fetchAndJoinCustomAudience is not supported by the fake backend")));
+  }
+
+  @Override
+  public void leaveCustomAudience(
+      @NonNull LeaveCustomAudienceRequest request,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<Object, Exception> receiver) {
+    mAudiences.remove(audienceKey(request.getBuyer(), request.getName()));
+    executor.execute(() -> receiver.onResult(new Object()));
+  }
+
+  @Override
+  public void selectAds(
+      @NonNull AdSelectionConfig adSelectionConfig,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<AdSelectionOutcome, Exception> receiver) {
+    mAuctionCount.incrementAndGet();
+    Set<AdTechIdentifier> buyers = new HashSet<>(adSelectionConfig.getCustomAudienceBuyers());
+    double bidFloor = readDouble(adSelectionConfig.getSellerSignals(), BID_FLOOR_KEY, 0);
+    Instant now = mClock.instant();
+
+    AdSelection winner = null;
+    Set<AdTechIdentifier> biddingBuyers = new HashSet<>();
+    for (CustomAudience customAudience : mAudiences.values()) {
+      if (!buyers.contains(customAudience.getBuyer()) || !isActive(customAudience, now)) {
+        continue;
+      }
+      biddingBuyers.add(customAudience.getBuyer());
+      double audienceBid = readDouble(customAudience.getUserBiddingSignals(), BID_KEY, DEFAULT_BID);
+      for (AdData ad : customAudience.getAds()) {
+        if (isFrequencyCapped(customAudience.getBuyer(), ad, now)) {
+          mFrequencyCappedAdCount.incrementAndGet();
+          continue;
+        }
+        double bid = readDouble(ad.getMetadata(), BID_KEY, audienceBid);
+        if (bid >= bidFloor && (winner == null || bid > winner.mBid)) {
+          winner = new AdSelection(customAudience.getBuyer(), ad, bid);
+        }
+      }
+    }
+
+    // Buyers bid in parallel, so the auction takes as long as the slowest one plus scoring.
+    long latencyNanos = 0;
+    for (int i = 0; i < biddingBuyers.size(); i++) {
+      latencyNanos = Math.max(latencyNanos, mBiddingLatency.sampleNanos());
+    }
+    latencyNanos += mScoringLatency.sampleNanos();
+
+    if (winner == null) {
+      mNoFillCount.incrementAndGet();
+      deliverError(
+          executor, receiver, new IllegalStateException("No ad won the auction"), latencyNanos);
+      return;
+    }
+    long adSelectionId = mNextAdSelectionId.getAndIncrement();
+    synchronized (mAdSelections) {
+      mAdSelections.put(adSelectionId, winner);
+    }
+    recordEvent(winner, AD_EVENT_TYPE_WIN, now);
+    AdSelectionOutcome outcome =
+        new AdSelectionOutcome.Builder()
+            .setAdSelectionId(adSelectionId)
+            .setRenderUri(winner.mRenderUri)
+            .build();
+    deliverResult(executor, receiver, outcome, latencyNanos);
+  }
+
+  @Override
+  public void selectAds(
+      @NonNull AdSelectionFromOutcomesConfig adSelectionFromOutcomesConfig,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<AdSelectionOutcome, Exception> receiver) {
+    double bidFloor =
+        readDouble(
+            adSelectionFromOutcomesConfig.getSelectionSignals(),
+            BID_FLOOR_KEY,
+            Double.NEGATIVE_INFINITY);
+    long winnerId = AdSelectionOutcome.UNSET_AD_SELECTION_ID;
+    AdSelection winner = null;
+    for (Long adSelectionId : adSelectionFromOutcomesConfig.getAdSelectionIds()) {
+      AdSelection adSelection = getAdSelection(adSelectionId);
+      if (adSelection != null
+          && adSelection.mBid >= bidFloor
+          && (winner == null || adSelection.mBid > winner.mBid)) {
+        winner = adSelection;
+        winnerId = adSelectionId;
+      }
+    }
+
+    AdSelectionOutcome outcome =
+        winner == null
+            ? AdSelectionOutcome.NO_OUTCOME
+            : new AdSelectionOutcome.Builder()
+                .setAdSelectionId(winnerId)
+                .setRenderUri(winner.mRenderUri)
+                .build();
+    deliverResult(executor, receiver, outcome, mScoringLatency.sampleNanos());
+  }
+
+  @Override
+  public void reportImpression(
+      @NonNull ReportImpressionRequest request,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<Object, Exception> receiver) {
+    AdSelection adSelection = getAdSelection(request.getAdSelectionId());
+    if (adSelection == null) {
+      deliverError(executor, receiver, unknownAdSelection(request.getAdSelectionId()), 0);
+      return;
+    }
+    recordEvent(adSelection, AD_EVENT_TYPE_IMPRESSION, mClock.instant());
+    mReportCount.incrementAndGet();
+    deliverResult(executor, receiver, new Object(), mReportingLatency.sampleNanos());
+  }
+
+  @Override
+  public void reportEvent(
+      @NonNull ReportEventRequest request,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<Object, Exception> receiver) {
+    if (getAdSelection(request.getAdSelectionId()) == null) {
+      deliverError(executor, receiver, unknownAdSelection(request.getAdSelectionId()), 0);
+      return;
+    }
+    mReportCount.incrementAndGet();
+    deliverResult(executor, receiver, new Object(), mReportingLatency.sampleNanos());
+  }
+
+  @Override
+  public void updateAdCounterHistogram(
+      @NonNull UpdateAdCounterHistogramRequest request,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<Object, Exception> receiver) {
+    AdSelection adSelection = getAdSelection(request.getAdSelectionId());
+    if (adSelection == null) {
+      deliverError(executor, receiver, unknownAdSelection(request.getAdSelectionId()), 0);
+      return;
+    }
+    recordEvent(adSelection, request.getAdEventType(), mClock.instant());
+    executor.execute(() -> receiver.onResult(new Object()));
+  }
+
+  @Override
+  public void getAdSelectionData(
+      @NonNull GetAdSelectionDataRequest request,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<GetAdSelectionDataOutcome, Exception> receiver) {
+    deliverError(executor, receiver, serverAuctionUnsupported(), 0);
+  }
+
+  @Override
+  public void persistAdSelectionResult(
+      @NonNull PersistAdSelectionResultRequest request,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<AdSelectionOutcome, Exception> receiver) {
+    deliverError(executor, receiver, serverAuctionUnsupported(), 0);
+  }
+
+  /** Returns the number of auctions run, not counting outcome selections. */
+  public long getAuctionCount() {
+    return mAuctionCount.get();
+  }
+
+  /** Returns the number of auctions that had no winning ad. */
+  public long getNoFillCount() {
+    return mNoFillCount.get();
+  }
+
+  /** Returns the number of times an ad was left out of an auction by a frequency cap. */
+  public long getFrequencyCappedAdCount() {
+    return mFrequencyCappedAdCount.get();
+  }
+
+  /** Returns the number of impression and event reports accepted. */
+  public long getReportCount() {
+    return mReportCount.get();
+  }
+
+  /** Returns the number of audiences currently joined. */
+  public int getCustomAudienceCount() {
+    return mAudiences.size();
+  }
+
+  /** Leaves every audience and forgets every ad selection and counted event. */
+  public void reset() {
+    mAudiences.clear();
+    mAdEvents.clear();
+    synchronized (mAdSelections) {
+      mAdSelections.clear();
+    }
+  }
+
+  private boolean isActive(CustomAudience customAudience, Instant now) {
+    Instant activationTime = customAudience.getActivationTime();
+    Instant expirationTime = customAudience.getExpirationTime();
+    return (activationTime == null || !now.isBefore(activationTime))
+        && (expirationTime == null || now.isBefore(expirationTime));
+  }
+
+  private boolean isFrequencyCapped(AdTechIdentifier buyer, AdData ad, Instant now) {
+    AdFilters adFilters = ad.getAdFilters();
+    FrequencyCapFilters filters = adFilters == null ? null : adFilters.getFrequencyCapFilters();
+    if (filters == null) {
+      return false;
+    }
+    return exceedsAny(buyer, AD_EVENT_TYPE_WIN, filters.getKeyedFrequencyCapsForWinEvents(), now)
+        || exceedsAny(buyer, AD_EVENT_TYPE_VIEW, filters.getKeyedFrequencyCapsForViewEvents(), now)
+        || exceedsAny(
+            buyer, AD_EVENT_TYPE_CLICK, filters.getKeyedFrequencyCapsForClickEvents(), now)
+        || exceedsAny(
+            buyer,
+            AD_EVENT_TYPE_IMPRESSION,
+            filters.getKeyedFrequencyCapsForImpressionEvents(),
+            now);
+  }
+
+  private boolean exceedsAny(
+      AdTechIdentifier buyer, int adEventType, List<KeyedFrequencyCap> caps, Instant now) {
+    for (KeyedFrequencyCap cap : caps) {
+      Instant since = now.minus(cap.getInterval());
+      ConcurrentLinkedDeque<Instant> events =
+          mAdEvents.get(eventKey(buyer, cap.getAdCounterKey(), adEventType));
+      if (events == null) {
+        continue;
+      }
+      int count = 0;
+      for (Iterator<Instant> it = events.descendingIterator(); it.hasNext(); ) {
+        if (it.next().isBefore(since)) {
+          break;
+        }
+        if (++count >= cap.getMaxCount()) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private void recordEvent(AdSelection adSelection, int adEventType, Instant now) {
+    for (Integer adCounterKey : adSelection.mAdCounterKeys) {
+      ConcurrentLinkedDeque<Instant> events =
+          mAdEvents.computeIfAbsent(
+              eventKey(adSelection.mBuyer, adCounterKey, adEventType),
+              key -> new ConcurrentLinkedDeque<>());
+      events.addLast(now);
+      while (events.size() > MAX_EVENTS_PER_KEY) {
+        events.pollFirst();
+      }
+    }
+  }
+
+  @Nullable
+  private AdSelection getAdSelection(long adSelectionId) {
+    synchronized (mAdSelections) {
+      return mAdSelections.get(adSelectionId);
+    }
+  }
+
+  private <T> void deliverResult(
+      Executor executor, OutcomeReceiver<T, Exception> receiver, T result, long delayNanos) {
+    mScheduler.schedule(
+        () -> executor.execute(() -> receiver.onResult(result)), delayNanos, TimeUnit.NANOSECONDS);
+  }
+
+  private <T> void deliverError(
+      Executor executor, OutcomeReceiver<T, Exception> receiver, Exception error, long delayNanos) {
+    mScheduler.schedule(
+        () -> executor.execute(() -> receiver.onError(error)), delayNanos, TimeUnit.NANOSECONDS);
+  }
+
+  private static double readDouble(
+      @Nullable AdSelectionSignals signals, String key, double defaultValue) {
+    return signals == null ? defaultValue : readDouble(signals.toString(), key, defaultValue);
+  }
+
+  private static double readDouble(@Nullable String json, String key, double defaultValue) {
+    if (json == null || json.isEmpty()) {
+      return defaultValue;
+    }
+    try {
+      JsonElement element = JsonParser.parseString(json);
+      if (!element.isJsonObject()) {
+        return defaultValue;
+      }
+      JsonObject object = element.getAsJsonObject();
+      return object.has(key) ? object.get(key).getAsDouble() : defaultValue;
+    } catch (RuntimeException e) {
+      return defaultValue;
+    }
+  }
+
+  private static String audienceKey(AdTechIdentifier buyer, String name) {
+    return buyer + "/" + name;
+  }
+
+  private static String eventKey(AdTechIdentifier buyer, int adCounterKey, int adEventType) {
+    return buyer + "/" + adCounterKey + "/" + adEventType;
+  }
+
+  private static Exception unknownAdSelection(long adSelectionId) {
+    return new IllegalArgumentException("Unknown ad selection id " + adSelectionId);
+  }
+
+  private static Exception serverAuctionUnsupported() {
+    return new UnsupportedOperationException(
+        "Auctions on the auction server are not supported by the fake backend");
+  }
+
+  /** The winner of a finished auction, as needed for reporting and frequency capping. */
+  private static final class AdSelection {
+    final AdTechIdentifier mBuyer;
+    final Uri mRenderUri;
+    final Set<Integer> mAdCounterKeys;
+    final double mBid;
+
+    AdSelection(AdTechIdentifier buyer, AdData ad, double bid) {
+      mBuyer = buyer;
+      mRenderUri = ad.getRenderUri();
+      mAdCounterKeys =
+          ad.getAdCounterKeys() == null ? Collections.emptySet() : ad.getAdCounterKeys();
+      mBid = bid;
+    }
+  }
+
+  /** A distribution of the time a stage of the fake takes. */
+  public interface LatencyModel {
+
+    /** A model in which every stage completes immediately. */
+    LatencyModel NONE = () -> 0;
+
+    /** Returns the duration, in nanoseconds, of one run of the stage. */
+    long sampleNanos();
+
+    /** Returns a model in which the stage always takes {@code latencyMs}. */
+    @NonNull
+    static LatencyModel fixed(long latencyMs) {
+      long latencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMs);
+      return () -> latencyNanos;
+    }
+
+    /**
+     * Returns a model in which the stage takes between {@code minMs} and {@code maxMs}, uniformly
+     * distributed.
+     */
+    @NonNull
+    static LatencyModel uniform(long minMs, long maxMs) {
+      if (minMs < 0 || maxMs < minMs) {
+        throw new IllegalArgumentException("Need 0 <= minMs <= maxMs");
+      }
+      long minNanos = TimeUnit.MILLISECONDS.toNanos(minMs);
+      long maxNanos = TimeUnit.MILLISECONDS.toNanos(maxMs);
+      return () ->
+          minNanos + (long) (ThreadLocalRandom.current().nextDouble() * (maxNanos - minNanos));
+    }
+
+    /**
+     * Returns a log-normal model with the given median, which has the long tail that bidding and
+     * scoring latencies show on devices.
+     *
+     * @param sigma the standard deviation of the underlying normal distribution; around 0.5 gives
+     *     a p99 of roughly three times the median.
+     */
+    @NonNull
+    static LatencyModel logNormal(long medianMs, double sigma) {
+      if (medianMs <= 0 || sigma < 0) {
+        throw new IllegalArgumentException("Need medianMs > 0 and sigma >= 0");
+      }
+      double medianNanos = TimeUnit.MILLISECONDS.toNanos(medianMs);
+      return () ->
+          (long) (medianNanos * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian()));
+    }
+  }
+
+  /** Builder class. */
+  public static final class Builder {
+    private LatencyModel mBiddingLatency = LatencyModel.NONE;
+    private LatencyModel mScoringLatency = LatencyModel.NONE;
+    private LatencyModel mReportingLatency = LatencyModel.NONE;
+    private Clock mClock = Clock.systemUTC();
+
+    /** Empty-arg constructor with an empty body for Builder */
+    public Builder() {}
+
+    /** Sets how long each buyer takes to bid. Defaults to {@link LatencyModel#NONE}. */
+    @NonNull
+    public Builder setBiddingLatency(@NonNull LatencyModel biddingLatency) {
+      mBiddingLatency = Objects.requireNonNull(biddingLatency);
+      return this;
+    }
+
+    /**
+     * Sets how long scoring and outcome selection take. Defaults to {@link LatencyModel#NONE}.
+     */
+    @NonNull
+    public Builder setScoringLatency(@NonNull LatencyModel scoringLatency) {
+      mScoringLatency = Objects.requireNonNull(scoringLatency);
+      return this;
+    }
+
+    /** Sets how long impression and event reports take. Defaults to {@link LatencyModel#NONE}. */
+    @NonNull
+    public Builder setReportingLatency(@NonNull LatencyModel reportingLatency) {
+      mReportingLatency = Objects.requireNonNull(reportingLatency);
+      return this;
+    }
+
+    /**
+     * Sets the clock used for audience activation, expiration and frequency caps. Defaults to the
+     * system clock.
+     */
+    @NonNull
+    public Builder setClock(@NonNull Clock clock) {
+      mClock = Objects.requireNonNull(clock);
+      return this;
+    }
+
+    /** Builds a {@link FakeAdServicesBackend} instance. */
+    @NonNull
+    public FakeAdServicesBackend build() {
+      return new FakeAdServicesBackend(mBiddingLatency, mScoringLatency, mReportingLatency, mClock);
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.clients;
+
+import android.adservices.adselection.AdSelectionConfig;
+import android.adservices.adselection.AdSelectionFromOutcomesConfig;
+import android.adservices.adselection.AdSelectionManager;
+import android.adservices.adselection.AdSelectionOutcome;
+import android.adservices.adselection.GetAdSelectionDataOutcome;
+import android.adservices.adselection.GetAdSelectionDataRequest;
+import android.adservices.adselection.PersistAdSelectionResultRequest;
+import android.adservices.adselection.ReportEventRequest;
+import android.adservices.adselection.ReportImpressionRequest;
+import android.adservices.adselection.UpdateAdCounterHistogramRequest;
+import android.annotation.SuppressLint;
+import android.os.OutcomeReceiver;
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+import java.util.concurrent.Executor;
+
+/** An {@link AdSelectionBackend} backed by the AdServices {@link AdSelectionManager}. */
+@RequiresApi(api = 34)
+final class PlatformAdSelectionBackend implements AdSelectionBackend {
+  private final AdSelectionManager mAdSelectionManager;
+
+  PlatformAdSelectionBackend(@NonNull AdSelectionManager adSelectionManager) {
+    mAdSelectionManager = adSelectionManager;
+  }
+
+  @Override
+  public void selectAds(
+      @NonNull AdSelectionConfig adSelectionConfig,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<AdSelectionOutcome, Exception> receiver) {
+    mAdSelectionManager.selectAds(adSelectionConfig, executor, receiver);
+  }
+
+  @Override
+  @SuppressLint("NewApi")
+  public void selectAds(
+      @NonNull AdSelectionFromOutcomesConfig adSelectionFromOutcomesConfig,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<AdSelectionOutcome, Exception> receiver) {
+    mAdSelectionManager.selectAds(adSelectionFromOutcomesConfig, executor, receiver);
+  }
+
+  @Override
+  public void reportImpression(
+      @NonNull ReportImpressionRequest request,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<Object, Exception> receiver) {
+    mAdSelectionManager.reportImpression(request, executor, receiver);
+  }
+
+  @Override
+  @SuppressLint("NewApi")
+  public void reportEvent(
+      @NonNull ReportEventRequest request,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<Object, Exception> receiver) {
+    mAdSelectionManager.reportEvent(request, executor, receiver);
+  }
+
+  @Override
+  @SuppressLint("NewApi")
+  public void updateAdCounterHistogram(
+      @NonNull UpdateAdCounterHistogramRequest request,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<Object, Exception> receiver) {
+    mAdSelectionManager.updateAdCounterHistogram(request, executor, receiver);
+  }
+
+  @Override
+  @SuppressLint({"MissingPermission", "NewApi"})
+  public void getAdSelectionData(
+      @NonNull GetAdSelectionDataRequest request,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<GetAdSelectionDataOutcome, Exception> receiver) {
+    mAdSelectionManager.getAdSelectionData(request, executor, receiver);
+  }
+
+  @Override
+  @SuppressLint({"MissingPermission", "NewApi"})
+  public void persistAdSelectionResult(
+      @NonNull PersistAdSelectionResultRequest request,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<AdSelectionOutcome, Exception> receiver) {
+    mAdSelectionManager.persistAdSelectionResult(request, executor, receiver);
+  }
+}
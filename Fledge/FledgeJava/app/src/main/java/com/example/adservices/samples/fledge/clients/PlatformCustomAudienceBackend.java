@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.clients;
+
+import android.adservices.customaudience.CustomAudienceManager;
+import android.adservices.customaudience.FetchAndJoinCustomAudienceRequest;
+import android.adservices.customaudience.JoinCustomAudienceRequest;
+import android.adservices.customaudience.LeaveCustomAudienceRequest;
+import android.annotation.SuppressLint;
+import android.os.OutcomeReceiver;
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+import java.util.concurrent.Executor;
+
+/** A {@link CustomAudienceBackend} backed by the AdServices {@link CustomAudienceManager}. */
+@RequiresApi(api = 34)
+final class PlatformCustomAudienceBackend implements CustomAudienceBackend {
+  private final CustomAudienceManager mCustomAudienceManager;
+
+  PlatformCustomAudienceBackend(@NonNull CustomAudienceManager customAudienceManager) {
+    mCustomAudienceManager = customAudienceManager;
+  }
+
+  @Override
+  public void joinCustomAudience(
+      @NonNull JoinCustomAudienceRequest request,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<Object, Exception> receiver) {
+    mCustomAudienceManager.joinCustomAudience(request, executor, receiver);
+  }
+
+  @Override
+  @SuppressLint("NewApi")
+  public void fetchAndJoinCustomAudience(
+      @NonNull FetchAndJoinCustomAudienceRequest request,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<Object, Exception> receiver) {
+    mCustomAudienceManager.fetchAndJoinCustomAudience(request, executor, receiver);
+  }
+
+  @Override
+  public void leaveCustomAudience(
+      @NonNull LeaveCustomAudienceRequest request,
+      @NonNull Executor executor,
+      @NonNull OutcomeReceiver<Object, Exception> receiver) {
+    mCustomAudienceManager.leaveCustomAudience(request, executor, receiver);
+  }
+}
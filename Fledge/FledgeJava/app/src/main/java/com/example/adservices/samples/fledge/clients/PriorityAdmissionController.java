@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.clients;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import com.example.adservices.samples.fledge.sampleapp.MainActivity;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * An {@link AdmissionController} that bounds the number of in-flight calls per {@link
+ * AdmissionController.ApiFamily} and across all families, and sheds calls that do not fit.
+ *
+ * <p>Lower priority families may only use part of the shared capacity: every priority level below
+ * {@link ApiFamily#AUCTION} gives up another {@link #HEADROOM_PER_PRIORITY_LEVEL} of it. Under a
+ * burst the histogram updates are shed first, then reporting, so that auctions keep running.
+ *
+ * <p>Shed calls fail fast with a {@link RejectedExecutionException} and never reach the platform.
+ */
+public final class PriorityAdmissionController implements AdmissionController {
+  /** Fraction of the total capacity held back from each lower priority level. */
+  public static final double HEADROOM_PER_PRIORITY_LEVEL = 0.25;
+
+  private final int mTotalMaxInFlight;
+  private final AtomicInteger mTotalInFlight = new AtomicInteger();
+  private final Map<ApiFamily, Semaphore> mFamilyPermits = new EnumMap<>(ApiFamily.class);
+  private final Map<ApiFamily, AtomicLong> mShedCounts = new EnumMap<>(ApiFamily.class);
+
+  private PriorityAdmissionController(int totalMaxInFlight, Map<ApiFamily, Integer> familyLimits) {
+    mTotalMaxInFlight = totalMaxInFlight;
+    for (ApiFamily family : ApiFamily.values()) {
+      Integer limit = familyLimits.get(family);
+      mFamilyPermits.put(family, new Semaphore(limit != null ? limit : totalMaxInFlight));
+      mShedCounts.put(family, new AtomicLong());
+    }
+  }
+
+  @NonNull
+  @Override
+  public <T> ListenableFuture<T> submit(
+      @NonNull ApiFamily family, @NonNull Supplier<ListenableFuture<T>> call) {
+    Semaphore familyPermits = Objects.requireNonNull(mFamilyPermits.get(family));
+    if (!familyPermits.tryAcquire()) {
+      return shed(family, "too many in-flight " + family + " calls");
+    }
+    if (!tryAcquireShared(family)) {
+      familyPermits.release();
+      return shed(family, "capacity reserved for higher priority calls");
+    }
+
+    ListenableFuture<T> future;
+    try {
+      future = call.get();
+    } catch (RuntimeException e) {
+      release(familyPermits);
+      throw e;
+    }
+    future.addListener(() -> release(familyPermits), MoreExecutors.directExecutor());
+    return future;
+  }
+
+  /** Returns the number of {@code family} calls shed since this controller was created. */
+  public long getShedCount(@NonNull ApiFamily family) {
+    return Objects.requireNonNull(mShedCounts.get(family)).get();
+  }
+
+  /** Returns the number of calls currently in flight across all families. */
+  public int getInFlightCount() {
+    return mTotalInFlight.get();
+  }
+
+  private boolean tryAcquireShared(ApiFamily family) {
+    int threshold =
+        (int) Math.ceil(mTotalMaxInFlight * (1 - HEADROOM_PER_PRIORITY_LEVEL * family.ordinal()));
+    while (true) {
+      int inFlight = mTotalInFlight.get();
+      if (inFlight >= threshold) {
+        return false;
+      }
+      if (mTotalInFlight.compareAndSet(inFlight, inFlight + 1)) {
+        return true;
+      }
+    }
+  }
+
+  private void release(Semaphore familyPermits) {
+    mTotalInFlight.decrementAndGet();
+    familyPermits.release();
+  }
+
+  private <T> ListenableFuture<T> shed(ApiFamily family, String reason) {
+    Objects.requireNonNull(mShedCounts.get(family)).incrementAndGet();
+    Log.w(MainActivity.TAG, "Shedding " + family + " call: " + reason);
+    return Futures.immediateFailedFuture(
+        new RejectedExecutionException("Shed " + family + " call: " + reason));
+  }
+
+  /** Builder class. */
+  public static final class Builder {
+    private int mTotalMaxInFlight = 16;
+    private final Map<ApiFamily, Integer> mFamilyLimits = new EnumMap<>(ApiFamily.class);
+
+    /** Empty-arg constructor with an empty body for Builder */
+    public Builder() {}
+
+    /** Sets the maximum number of in-flight calls across all families. Defaults to 16. */
+    @NonNull
+    public Builder setTotalMaxInFlight(int totalMaxInFlight) {
+      if (totalMaxInFlight <= 0) {
+        throw new IllegalArgumentException("totalMaxInFlight must be positive");
+      }
+      mTotalMaxInFlight = totalMaxInFlight;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of in-flight calls of {@code family}. Defaults to the total
+     * maximum.
+     */
+    @NonNull
+    public Builder setMaxInFlight(@NonNull ApiFamily family, int maxInFlight) {
+      Objects.requireNonNull(family);
+      if (maxInFlight <= 0) {
+        throw new IllegalArgumentException("maxInFlight must be positive");
+      }
+      mFamilyLimits.put(family, maxInFlight);
+      return this;
+    }
+
+    /** Builds a {@link PriorityAdmissionController} instance. */
+    @NonNull
+    public PriorityAdmissionController build() {
+      return new PriorityAdmissionController(mTotalMaxInFlight, mFamilyLimits);
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.clients;
+
+import android.os.OutcomeReceiver;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.google.common.util.concurrent.AbstractFuture;
+
+/**
+ * A future that is completed by the {@link OutcomeReceiver} callbacks of an AdServices call.
+ *
+ * <p>The same object is handed to the manager as the receiver and returned to the caller as the
+ * future, so bridging a call allocates this one object instead of an anonymous receiver, a
+ * resolver, a completer and the future behind it. The tag only shows up in {@link #toString()}
+ * while the call is pending, and is expected to be a constant.
+ *
+ * <p>Managers throw some errors synchronously, e.g. when AdServices is disabled or a request is
+ * invalid. Callers start the call in a {@code try} block and pass a {@link RuntimeException} to
+ * {@link #onError}, so that it fails the future rather than escaping; doing it inline keeps the
+ * call free of a per-call lambda.
+ *
+ * <p>Cancelling the future does not cancel the underlying call, which the managers do not support;
+ * its outcome is dropped instead.
+ */
+class ReceiverFuture<T> extends AbstractFuture<T> implements OutcomeReceiver<T, Exception> {
+  private final String mTag;
+
+  private ReceiverFuture(@NonNull String tag) {
+    mTag = tag;
+  }
+
+  /** Creates a future that completes with the result passed to {@link #onResult}. */
+  @NonNull
+  static <T> ReceiverFuture<T> create(@NonNull String tag) {
+    return new ReceiverFuture<>(tag);
+  }
+
+  /**
+   * Creates a future for calls whose result carries no information, which completes with {@code
+   * null} once {@link OfVoid#onResult} is called.
+   */
+  @NonNull
+  static OfVoid ofVoid(@NonNull String tag) {
+    return new OfVoid(tag);
+  }
+
+  @Override
+  public void onResult(@Nullable T result) {
+    set(result);
+  }
+
+  @Override
+  public void onError(@NonNull Exception error) {
+    setException(error);
+  }
+
+  @NonNull
+  @Override
+  protected String pendingToString() {
+    return mTag;
+  }
+
+  /** A {@link ReceiverFuture} for the manager calls that report success with an ignored object. */
+  static final class OfVoid extends AbstractFuture<Void>
+      implements OutcomeReceiver<Object, Exception> {
+    private final String mTag;
+
+    private OfVoid(@NonNull String tag) {
+      mTag = tag;
+    }
+
+    @Override
+    public void onResult(@Nullable Object ignoredResult) {
+      set(null);
+    }
+
+    @Override
+    public void onError(@NonNull Exception error) {
+      setException(error);
+    }
+
+    @NonNull
+    @Override
+    protected String pendingToString() {
+      return mTag;
+    }
+  }
+}
@@ -22,9 +22,7 @@ import android.adservices.adselection.RemoveAdSelectionFromOutcomesOverrideReque
 import android.adservices.adselection.RemoveAdSelectionOverrideRequest;
 import android.adservices.adselection.TestAdSelectionManager;
 import android.content.Context;
-import android.os.OutcomeReceiver;
 import androidx.annotation.NonNull;
-import androidx.concurrent.futures.CallbackToFutureAdapter;
 import com.google.common.util.concurrent.ListenableFuture;
 import java.util.Objects;
 import java.util.concurrent.Executor;
@@ -51,25 +49,13 @@ public class TestAdSelectionClient {
   @NonNull
   public ListenableFuture<Void> overrideAdSelectionConfigRemoteInfo(
       @NonNull AddAdSelectionOverrideRequest request) {
-    return CallbackToFutureAdapter.getFuture(
-        completer -> {
-          mTestAdSelectionManager.overrideAdSelectionConfigRemoteInfo(
-              request,
-              mExecutor,
-              new OutcomeReceiver<Object, Exception>() {
-
-                @Override
-                public void onResult(Object ignoredResult) {
-                  completer.set(null);
-                }
-
-                @Override
-                public void onError(@NonNull Exception error) {
-                  completer.setException(error);
-                }
-              });
-          return "overrideAdSelectionConfigRemoteInfo";
-        });
+    ReceiverFuture.OfVoid future = ReceiverFuture.ofVoid("overrideAdSelectionConfigRemoteInfo");
+    try {
+      mTestAdSelectionManager.overrideAdSelectionConfigRemoteInfo(request, mExecutor, future);
+    } catch (RuntimeException e) {
+      future.onError(e);
+    }
+    return future;
   }
 
   /**
@@ -81,25 +67,15 @@ public class TestAdSelectionClient {
   @NonNull
   public ListenableFuture<Void> removeAdSelectionConfigRemoteInfoOverride(
       @NonNull RemoveAdSelectionOverrideRequest request) {
-    return CallbackToFutureAdapter.getFuture(
-        completer -> {
-          mTestAdSelectionManager.removeAdSelectionConfigRemoteInfoOverride(
-              request,
-              mExecutor,
-              new OutcomeReceiver<Object, Exception>() {
-
-                @Override
-                public void onResult(Object ignoredResult) {
-                  completer.set(null);
-                }
-
-                @Override
-                public void onError(@NonNull Exception error) {
-                  completer.setException(error);
-                }
-              });
-          return "removeAdSelectionConfigRemoteInfoOverride";
-        });
+    ReceiverFuture.OfVoid future =
+        ReceiverFuture.ofVoid("removeAdSelectionConfigRemoteInfoOverride");
+    try {
+      mTestAdSelectionManager.removeAdSelectionConfigRemoteInfoOverride(
+          request, mExecutor, future);
+    } catch (RuntimeException e) {
+      future.onError(e);
+    }
+    return future;
   }
 
   /**
@@ -110,24 +86,14 @@ public class TestAdSelectionClient {
    */
   @NonNull
   public ListenableFuture<Void> resetAllAdSelectionConfigRemoteOverrides() {
-    return CallbackToFutureAdapter.getFuture(
-        completer -> {
-          mTestAdSelectionManager.resetAllAdSelectionConfigRemoteOverrides(
-              mExecutor,
-              new OutcomeReceiver<Object, Exception>() {
-
-                @Override
-                public void onResult(Object ignoredResult) {
-                  completer.set(null);
-                }
-
-                @Override
-                public void onError(@NonNull Exception error) {
-                  completer.setException(error);
-                }
-              });
-          return "resetAllAdSelectionConfigRemoteOverrides";
-        });
+    ReceiverFuture.OfVoid future =
+        ReceiverFuture.ofVoid("resetAllAdSelectionConfigRemoteOverrides");
+    try {
+      mTestAdSelectionManager.resetAllAdSelectionConfigRemoteOverrides(mExecutor, future);
+    } catch (RuntimeException e) {
+      future.onError(e);
+    }
+    return future;
   }
 
   /**
@@ -141,25 +107,15 @@ public class TestAdSelectionClient {
   @NonNull
   public ListenableFuture<Void> overrideAdSelectionFromOutcomesConfigRemoteInfo(
       @NonNull AddAdSelectionFromOutcomesOverrideRequest request) {
-    return CallbackToFutureAdapter.getFuture(
-        completer -> {
-          mTestAdSelectionManager.overrideAdSelectionFromOutcomesConfigRemoteInfo(
-              request,
-              mExecutor,
-              new OutcomeReceiver<Object, Exception>() {
-
-                @Override
-                public void onResult(Object ignoredResult) {
-                  completer.set(null);
-                }
-
-                @Override
-                public void onError(@NonNull Exception error) {
-                  completer.setException(error);
-                }
-              });
-          return "overrideAdSelectionConfigRemoteInfo";
-        });
+    ReceiverFuture.OfVoid future =
+        ReceiverFuture.ofVoid("overrideAdSelectionFromOutcomesConfigRemoteInfo");
+    try {
+      mTestAdSelectionManager.overrideAdSelectionFromOutcomesConfigRemoteInfo(
+          request, mExecutor, future);
+    } catch (RuntimeException e) {
+      future.onError(e);
+    }
+    return future;
   }
 
   /**
@@ -173,25 +129,15 @@ public class TestAdSelectionClient {
   @NonNull
   public ListenableFuture<Void> removeAdSelectionFromOutcomesConfigRemoteInfoOverride(
       @NonNull RemoveAdSelectionFromOutcomesOverrideRequest request) {
-    return CallbackToFutureAdapter.getFuture(
-        completer -> {
-          mTestAdSelectionManager.removeAdSelectionFromOutcomesConfigRemoteInfoOverride(
-              request,
-              mExecutor,
-              new OutcomeReceiver<Object, Exception>() {
-
-                @Override
-                public void onResult(Object ignoredResult) {
-                  completer.set(null);
-                }
-
-                @Override
-                public void onError(@NonNull Exception error) {
-                  completer.setException(error);
-                }
-              });
-          return "removeAdSelectionConfigRemoteInfoOverride";
-        });
+    ReceiverFuture.OfVoid future =
+        ReceiverFuture.ofVoid("removeAdSelectionFromOutcomesConfigRemoteInfoOverride");
+    try {
+      mTestAdSelectionManager.removeAdSelectionFromOutcomesConfigRemoteInfoOverride(
+          request, mExecutor, future);
+    } catch (RuntimeException e) {
+      future.onError(e);
+    }
+    return future;
   }
 
   /**
@@ -204,24 +150,15 @@ public class TestAdSelectionClient {
    */
   @NonNull
   public ListenableFuture<Void> resetAllAdSelectionFromOutcomesConfigRemoteOverrides() {
-    return CallbackToFutureAdapter.getFuture(
-        completer -> {
-          mTestAdSelectionManager.resetAllAdSelectionFromOutcomesConfigRemoteOverrides(
-              mExecutor,
-              new OutcomeReceiver<Object, Exception>() {
-
-                @Override
-                public void onResult(Object ignoredResult) {
-                  completer.set(null);
-                }
-
-                @Override
-                public void onError(@NonNull Exception error) {
-                  completer.setException(error);
-                }
-              });
-          return "resetAllAdSelectionConfigRemoteOverrides";
-        });
+    ReceiverFuture.OfVoid future =
+        ReceiverFuture.ofVoid("resetAllAdSelectionFromOutcomesConfigRemoteOverrides");
+    try {
+      mTestAdSelectionManager.resetAllAdSelectionFromOutcomesConfigRemoteOverrides(
+          mExecutor, future);
+    } catch (RuntimeException e) {
+      future.onError(e);
+    }
+    return future;
   }
 
   /** Builder class. */
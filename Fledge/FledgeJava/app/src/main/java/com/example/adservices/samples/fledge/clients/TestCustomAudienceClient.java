@@ -20,9 +20,7 @@ import android.adservices.customaudience.CustomAudienceManager;
 import android.adservices.customaudience.RemoveCustomAudienceOverrideRequest;
 import android.adservices.customaudience.TestCustomAudienceManager;
 import android.content.Context;
-import android.os.OutcomeReceiver;
 import androidx.annotation.NonNull;
-import androidx.concurrent.futures.CallbackToFutureAdapter;
 import com.google.common.util.concurrent.ListenableFuture;
 import java.util.Objects;
 import java.util.concurrent.Executor;
@@ -47,26 +45,13 @@ public class TestCustomAudienceClient {
   @NonNull
   public ListenableFuture<Void> overrideCustomAudienceRemoteInfo(
       @NonNull AddCustomAudienceOverrideRequest request) {
-    return CallbackToFutureAdapter.getFuture(
-        completer -> {
-          mTestCustomAudienceManager.overrideCustomAudienceRemoteInfo(
-              request,
-              mExecutor,
-              new OutcomeReceiver<Object, Exception>() {
-                @Override
-                public void onResult(Object ignoredResult) {
-                  completer.set(null);
-                }
-
-                @Override
-                public void onError(Exception error) {
-                  completer.setException(error);
-                }
-              });
-          // This value is used only for debug purposes: it will be used in toString()
-          // of returned future or error cases.
-          return "overrideCustomAudienceRemoteInfo";
-        });
+    ReceiverFuture.OfVoid future = ReceiverFuture.ofVoid("overrideCustomAudienceRemoteInfo");
+    try {
+      mTestCustomAudienceManager.overrideCustomAudienceRemoteInfo(request, mExecutor, future);
+    } catch (RuntimeException e) {
+      future.onError(e);
+    }
+    return future;
   }
 
   /**
@@ -76,26 +61,14 @@ public class TestCustomAudienceClient {
   @NonNull
   public ListenableFuture<Void> removeCustomAudienceRemoteInfoOverride(
       @NonNull RemoveCustomAudienceOverrideRequest request) {
-    return CallbackToFutureAdapter.getFuture(
-        completer -> {
-          mTestCustomAudienceManager.removeCustomAudienceRemoteInfoOverride(
-              request,
-              mExecutor,
-              new OutcomeReceiver<Object, Exception>() {
-                @Override
-                public void onResult(Object ignoredResult) {
-                  completer.set(null);
-                }
-
-                @Override
-                public void onError(Exception error) {
-                  completer.setException(error);
-                }
-              });
-          // This value is used only for debug purposes: it will be used in toString()
-          // of returned future or error cases.
-          return "removeCustomAudienceRemoteInfoOverride";
-        });
+    ReceiverFuture.OfVoid future = ReceiverFuture.ofVoid("removeCustomAudienceRemoteInfoOverride");
+    try {
+      mTestCustomAudienceManager.removeCustomAudienceRemoteInfoOverride(
+          request, mExecutor, future);
+    } catch (RuntimeException e) {
+      future.onError(e);
+    }
+    return future;
   }
 
   /**
@@ -104,25 +77,13 @@ public class TestCustomAudienceClient {
    */
   @NonNull
   public ListenableFuture<Void> resetAllCustomAudienceOverrides() {
-    return CallbackToFutureAdapter.getFuture(
-        completer -> {
-          mTestCustomAudienceManager.resetAllCustomAudienceOverrides(
-              mExecutor,
-              new OutcomeReceiver<Object, Exception>() {
-                @Override
-                public void onResult(Object ignoredResult) {
-                  completer.set(null);
-                }
-
-                @Override
-                public void onError(Exception error) {
-                  completer.setException(error);
-                }
-              });
-          // This value is used only for debug purposes: it will be used in toString()
-          // of returned future or error cases.
-          return "resetAllCustomAudienceOverrides";
-        });
+    ReceiverFuture.OfVoid future = ReceiverFuture.ofVoid("resetAllCustomAudienceOverrides");
+    try {
+      mTestCustomAudienceManager.resetAllCustomAudienceOverrides(mExecutor, future);
+    } catch (RuntimeException e) {
+      future.onError(e);
+    }
+    return future;
   }
 
   /** Builder class. */
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.clients;
+
+import androidx.annotation.NonNull;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+/**
+ * Pipelines one asynchronous call per item while keeping at most a fixed number of calls in
+ * flight, and aggregates the per-item outcomes into a single future.
+ *
+ * <p>A new call is started as soon as a previous one completes, so the total wall time is bounded
+ * by the window size rather than by the number of items. The returned list preserves the order of
+ * the input items. Cancelling the returned future stops further calls from being started.
+ */
+final class WindowedBatch<T> {
+  private final List<T> mItems;
+  private final Function<T, ListenableFuture<?>> mCall;
+  private final AtomicReferenceArray<BatchResult<T>> mResults;
+  private final SettableFuture<List<BatchResult<T>>> mAggregate = SettableFuture.create();
+  private final AtomicInteger mFreeSlots;
+  private final AtomicInteger mRemaining;
+  // Guards the launch loop so that calls completing synchronously do not recurse into drain().
+  private final AtomicInteger mDrainRequests = new AtomicInteger();
+  private int mNextIndex;
+
+  private WindowedBatch(List<T> items, int maxInFlight, Function<T, ListenableFuture<?>> call) {
+    mItems = items;
+    mCall = call;
+    mResults = new AtomicReferenceArray<>(items.size());
+    mFreeSlots = new AtomicInteger(maxInFlight);
+    mRemaining = new AtomicInteger(items.size());
+  }
+
+  /**
+   * Runs {@code call} for every item, keeping at most {@code maxInFlight} calls outstanding.
+   *
+   * @throws IllegalArgumentException if {@code maxInFlight} is not positive
+   */
+  @NonNull
+  static <T> ListenableFuture<List<BatchResult<T>>> run(
+      @NonNull List<T> items, int maxInFlight, @NonNull Function<T, ListenableFuture<?>> call) {
+    if (maxInFlight <= 0) {
+      throw new IllegalArgumentException("maxInFlight must be positive, was " + maxInFlight);
+    }
+    if (items.isEmpty()) {
+      return Futures.immediateFuture(Collections.emptyList());
+    }
+    WindowedBatch<T> batch = new WindowedBatch<>(items, maxInFlight, call);
+    batch.drain();
+    return batch.mAggregate;
+  }
+
+  private void drain() {
+    if (mDrainRequests.getAndIncrement() != 0) {
+      return;
+    }
+    do {
+      while (!mAggregate.isDone() && mNextIndex < mItems.size() && mFreeSlots.get() > 0) {
+        mFreeSlots.decrementAndGet();
+        launch(mNextIndex++);
+      }
+    } while (mDrainRequests.decrementAndGet() != 0);
+  }
+
+  private void launch(int index) {
+    T item = mItems.get(index);
+    ListenableFuture<?> call;
+    try {
+      call = mCall.apply(item);
+    } catch (RuntimeException e) {
+      call = Futures.immediateFailedFuture(e);
+    }
+    ListenableFuture<?> pending = call;
+    pending.addListener(() -> onComplete(index, pending), MoreExecutors.directExecutor());
+  }
+
+  private void onComplete(int index, ListenableFuture<?> call) {
+    T item = mItems.get(index);
+    try {
+      Futures.getDone(call);
+      mResults.set(index, BatchResult.success(item));
+    } catch (ExecutionException e) {
+      mResults.set(index, BatchResult.failure(item, e.getCause()));
+    } catch (RuntimeException e) {
+      // Thrown by getDone() when the call was cancelled.
+      mResults.set(index, BatchResult.failure(item, e));
+    }
+
+    if (mRemaining.decrementAndGet() == 0) {
+      List<BatchResult<T>> results = new ArrayList<>(mResults.length());
+      for (int i = 0; i < mResults.length(); i++) {
+        results.add(mResults.get(i));
+      }
+      mAggregate.set(Collections.unmodifiableList(results));
+      return;
+    }
+    mFreeSlots.incrementAndGet();
+    drain();
+  }
+}
@@ -18,6 +18,7 @@ package com.example.adservices.samples.fledge.sampleapp;
 import static com.example.adservices.samples.fledge.SdkExtensionsHelpers.VersionCompatUtil.isTestableVersion;
 
 import android.adservices.adselection.AdSelectionConfig;
+import android.adservices.adselection.AdSelectionFromOutcomesConfig;
 import android.adservices.adselection.AdSelectionOutcome;
 import android.adservices.adselection.AddAdSelectionOverrideRequest;
 import android.adservices.adselection.GetAdSelectionDataRequest;
@@ -35,25 +36,40 @@ import android.util.Log;
 import android.util.Pair;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 
+import com.example.adservices.samples.fledge.MetricsHelpers.LatencyHistogram;
 import com.example.adservices.samples.fledge.ServerAuctionHelpers.BiddingAuctionServerClient;
+import com.example.adservices.samples.fledge.ServerAuctionHelpers.BuyerRegistry;
+import com.example.adservices.samples.fledge.ServerAuctionHelpers.HttpEngineSfeTransport;
 import com.example.adservices.samples.fledge.ServerAuctionHelpers.SelectAdsResponse;
+import com.example.adservices.samples.fledge.ServerAuctionHelpers.SfeCircuitBreaker;
+import com.example.adservices.samples.fledge.ServerAuctionHelpers.SfeRetryPolicy;
+import com.example.adservices.samples.fledge.WaterfallMediationHelpers.NetworkOutcomeCache;
+import com.example.adservices.samples.fledge.clients.AdSelectionBackend;
 import com.example.adservices.samples.fledge.clients.AdSelectionClient;
+import com.example.adservices.samples.fledge.clients.AdSelectionConfigCache;
+import com.example.adservices.samples.fledge.clients.AdmissionController;
+import com.example.adservices.samples.fledge.clients.Deadline;
 import com.example.adservices.samples.fledge.clients.TestAdSelectionClient;
-import com.google.common.io.BaseEncoding;
 import com.google.common.util.concurrent.FluentFuture;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
 
 /**
  * Wrapper for the FLEDGE Ad Selection API. This wrapper is opinionated and makes several choices
@@ -62,12 +78,42 @@ import java.util.stream.Collectors;
  */
 @RequiresApi(api = 34)
 public class AdSelectionWrapper {
+    /** Part of a multi-seller deadline kept back for the outcome selection call. */
+    public static final long MULTI_SELLER_SELECTION_RESERVE_MS = 150;
+
     private static final String TAG = "adservices";
+    // Never returned by the service, so a report for it fails before doing any work.
+    private static final long WARM_UP_AD_SELECTION_ID = -1;
+    private static final int MAX_REMEMBERED_AUCTION_CONFIGS = 64;
+    // Budget for the SFE call of a server auction, hedges and retries included.
+    private static final long SERVER_AUCTION_SFE_BUDGET_MS = 5000;
     private final AdSelectionClient mAdClient;
     private final TestAdSelectionClient mOverrideClient;
     private final Executor mExecutor;
     private final Context mContext;
-    private AdSelectionConfig mAdSelectionConfig;
+    private final ReportingQueue mReportingQueue;
+    private final AdSelectionConfigCache mConfigCache = AdSelectionConfigCache.getDefault();
+    private final Object mConfigLock = new Object();
+    private final Map<Long, AdSelectionConfig> mAuctionConfigs =
+            new LinkedHashMap<Long, AdSelectionConfig>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, AdSelectionConfig> eldest) {
+                    return size() > MAX_REMEMBERED_AUCTION_CONFIGS;
+                }
+            };
+    private final AtomicBoolean mServiceWarm = new AtomicBoolean();
+    private final LatencyHistogram mColdAuctionLatency = new LatencyHistogram("selectAds[cold]");
+    private final LatencyHistogram mWarmAuctionLatency = new LatencyHistogram("selectAds[warm]");
+    private final LatencyHistogram mWarmUpLatency = new LatencyHistogram("warmUp");
+    private List<AdTechIdentifier> mBuyers;
+    private AdTechIdentifier mSeller;
+    private Uri mDecisionUri;
+    private Uri mTrustedScoringUri;
+    private volatile BiddingAuctionServerClient.WireFormat mServerAuctionWireFormat =
+            BiddingAuctionServerClient.WireFormat.JSON;
+    private volatile SfeRetryPolicy mSfeRetryPolicy = SfeRetryPolicy.getDefault();
+    @Nullable private volatile Uri mBackupSfeUri;
+    @Nullable private volatile BuyerRegistry mServerAuctionBuyers;
 
     /**
      * Initializes the ad selection wrapper with a specific seller, list of buyers, and decision
@@ -86,24 +132,76 @@ public class AdSelectionWrapper {
             Uri trustedDataUri,
             Context context,
             Executor executor) {
+        this(
+                buyers,
+                seller,
+                decisionUri,
+                trustedDataUri,
+                context,
+                executor,
+                AdmissionController.UNBOUNDED);
+    }
 
-        mAdSelectionConfig =
-                new AdSelectionConfig.Builder()
-                        .setSeller(seller)
-                        .setDecisionLogicUri(decisionUri)
-                        .setCustomAudienceBuyers(buyers)
-                        .setAdSelectionSignals(AdSelectionSignals.EMPTY)
-                        .setSellerSignals(AdSelectionSignals.EMPTY)
-                        .setPerBuyerSignals(
-                                buyers.stream()
-                                        .collect(
-                                                Collectors.toMap(
-                                                        buyer -> buyer,
-                                                        buyer -> AdSelectionSignals.EMPTY)))
-                        .setTrustedScoringSignalsUri(trustedDataUri)
-                        .build();
+    /**
+     * Initializes the ad selection wrapper with a specific seller, list of buyers, and decision
+     * endpoint, routing every ad selection API call through an admission controller.
+     *
+     * @param buyers A list of buyers for the auction.
+     * @param seller The name of the seller for the auction
+     * @param decisionUri The URI to retrieve the seller scoring and reporting logic from
+     * @param context The application context.
+     * @param executor An executor to use with the FLEDGE API calls.
+     * @param admissionController Decides which calls may run and which are shed under load.
+     */
+    public AdSelectionWrapper(
+            List<AdTechIdentifier> buyers,
+            AdTechIdentifier seller,
+            Uri decisionUri,
+            Uri trustedDataUri,
+            Context context,
+            Executor executor,
+            AdmissionController admissionController) {
+        this(
+                buyers,
+                seller,
+                decisionUri,
+                trustedDataUri,
+                context,
+                executor,
+                admissionController,
+                AdSelectionBackend.platform(context));
+    }
+
+    /**
+     * Initializes the ad selection wrapper with a specific seller, list of buyers, and decision
+     * endpoint, running ad selection against the given backend instead of the platform, e.g. a
+     * {@link com.example.adservices.samples.fledge.clients.FakeAdServicesBackend} for load tests.
+     * Overrides are still sent to the platform.
+     *
+     * @param buyers A list of buyers for the auction.
+     * @param seller The name of the seller for the auction
+     * @param decisionUri The URI to retrieve the seller scoring and reporting logic from
+     * @param context The application context.
+     * @param executor An executor to use with the FLEDGE API calls.
+     * @param admissionController Decides which calls may run and which are shed under load.
+     * @param backend The backend the ad selection API calls are made against.
+     */
+    public AdSelectionWrapper(
+            List<AdTechIdentifier> buyers,
+            AdTechIdentifier seller,
+            Uri decisionUri,
+            Uri trustedDataUri,
+            Context context,
+            Executor executor,
+            AdmissionController admissionController,
+            AdSelectionBackend backend) {
+        resetAdSelectionConfig(buyers, seller, decisionUri, trustedDataUri);
         mAdClient =
-                new AdSelectionClient.Builder().setContext(context).setExecutor(executor).build();
+                new AdSelectionClient.Builder()
+                        .setExecutor(executor)
+                        .setAdmissionController(admissionController)
+                        .setBackend(backend)
+                        .build();
         mOverrideClient =
                 new TestAdSelectionClient.Builder()
                         .setContext(context)
@@ -111,6 +209,7 @@ public class AdSelectionWrapper {
                         .build();
         mExecutor = executor;
         mContext = context;
+        mReportingQueue = ReportingQueue.getInstance(context, this::sendReport);
     }
 
     /**
@@ -125,21 +224,108 @@ public class AdSelectionWrapper {
             AdTechIdentifier seller,
             Uri decisionUri,
             Uri trustedScoringUri) {
-        mAdSelectionConfig =
-                new AdSelectionConfig.Builder()
-                        .setSeller(seller)
-                        .setDecisionLogicUri(decisionUri)
-                        .setCustomAudienceBuyers(buyers)
-                        .setAdSelectionSignals(AdSelectionSignals.EMPTY)
-                        .setSellerSignals(AdSelectionSignals.EMPTY)
-                        .setPerBuyerSignals(
-                                buyers.stream()
-                                        .collect(
-                                                Collectors.toMap(
-                                                        buyer -> buyer,
-                                                        buyer -> AdSelectionSignals.EMPTY)))
-                        .setTrustedScoringSignalsUri(trustedScoringUri)
-                        .build();
+        synchronized (mConfigLock) {
+            mBuyers = buyers;
+            mSeller = seller;
+            mDecisionUri = decisionUri;
+            mTrustedScoringUri = trustedScoringUri;
+        }
+    }
+
+    /**
+     * Returns the {@code AdSelectionConfig} for the current seller and buyers. The config is shared
+     * through the {@link AdSelectionConfigCache} and only rebuilt when one of its inputs changes.
+     */
+    public AdSelectionConfig getAdSelectionConfig() {
+        synchronized (mConfigLock) {
+            return mConfigCache.get(
+                    mSeller, mBuyers, mDecisionUri, mTrustedScoringUri, AdSelectionSignals.EMPTY);
+        }
+    }
+
+    /**
+     * Returns the {@code AdSelectionConfig} of an auction run by {@code seller} for the current
+     * buyers, e.g. for {@link #runMultiSellerAdSelection}.
+     */
+    public AdSelectionConfig getSellerAdSelectionConfig(
+            AdTechIdentifier seller, Uri decisionUri, Uri trustedScoringUri) {
+        synchronized (mConfigLock) {
+            return mConfigCache.get(
+                    seller, mBuyers, decisionUri, trustedScoringUri, AdSelectionSignals.EMPTY);
+        }
+    }
+
+    /**
+     * Does the one-off work of the first ad selection ahead of time on the executor: builds and
+     * caches the {@code AdSelectionConfig} and makes a cheap call so that the binding to the
+     * AdServices process is established before the first auction.
+     *
+     * <p>The call is an impression report for an ad selection id that does not exist, which the
+     * service rejects without any network traffic. The bidding and scoring JS are only downloaded
+     * by a real auction, so they are not warmed here.
+     *
+     * @param statusReceiver A consumer function that is run once warm-up is done with a string
+     *     describing how long it took.
+     * @return a future that completes once warm-up is done. It never fails.
+     */
+    @SuppressLint("NewApi")
+    public ListenableFuture<Void> warmUp(Consumer<String> statusReceiver) {
+        long startNanos = System.nanoTime();
+        return FluentFuture.from(Futures.submit(this::getAdSelectionConfig, mExecutor))
+                .transformAsync(
+                        config ->
+                                mAdClient.reportImpression(
+                                        new ReportImpressionRequest(
+                                                WARM_UP_AD_SELECTION_ID, config)),
+                        mExecutor)
+                .catching(
+                        Exception.class,
+                        e -> {
+                            // Expected: the ad selection id is unknown, but the service was bound.
+                            Log.v(TAG, "Warm-up call failed as expected", e);
+                            return null;
+                        },
+                        mExecutor)
+                .transform(
+                        unused -> {
+                            long elapsedNanos = System.nanoTime() - startNanos;
+                            mWarmUpLatency.recordNanos(elapsedNanos);
+                            Log.i(TAG, mWarmUpLatency.toString());
+                            mServiceWarm.set(true);
+                            statusReceiver.accept(
+                                    "Warmed up ad selection in "
+                                            + TimeUnit.NANOSECONDS.toMillis(elapsedNanos)
+                                            + " ms");
+                            return null;
+                        },
+                        mExecutor);
+    }
+
+    /**
+     * Sets how server auctions encode their requests and responses. SFEs that do not accept {@link
+     * BiddingAuctionServerClient.WireFormat#BINARY} are sent JSON instead. Defaults to JSON.
+     */
+    public void setServerAuctionWireFormat(BiddingAuctionServerClient.WireFormat wireFormat) {
+        mServerAuctionWireFormat = wireFormat;
+    }
+
+    /**
+     * Sets how the SFE calls of server auctions are hedged and retried, and the SFE that hedges go
+     * to. Hedges go to the primary SFE if {@code backupSfeUri} is {@code null}.
+     */
+    public void setSfeRetryPolicy(SfeRetryPolicy retryPolicy, @Nullable Uri backupSfeUri) {
+        mSfeRetryPolicy = retryPolicy;
+        mBackupSfeUri = backupSfeUri;
+    }
+
+    /**
+     * Sets the buyers server auctions are run with, each with its own signals and timeout. Server
+     * auctions run with the single buyer passed to {@link #runAdSelectionOnAuctionServer} if
+     * {@code buyers} is {@code null}, which is the default. The SFE round trip of every auction is
+     * recorded as the registry's auction latency, which leaves the buyers' timeouts as they are.
+     */
+    public void setServerAuctionBuyers(@Nullable BuyerRegistry buyers) {
+        mServerAuctionBuyers = buyers;
     }
 
     /**
@@ -158,18 +344,32 @@ public class AdSelectionWrapper {
             Consumer<String> statusReceiver,
             Consumer<String> renderUriReceiver,
             Consumer<String> adSelectionIdReceiver) {
+        long startNanos = System.nanoTime();
+        LatencyHistogram latency =
+                mServiceWarm.get() ? mWarmAuctionLatency : mColdAuctionLatency;
+        AdSelectionConfig adSelectionConfig = getAdSelectionConfig();
         Log.i(
                 TAG,
                 "Running ad selection with scoring uri: "
-                        + mAdSelectionConfig.getDecisionLogicUri());
+                        + adSelectionConfig.getDecisionLogicUri());
         Log.i(
                 TAG,
                 "Running ad selection with buyers: "
-                        + mAdSelectionConfig.getCustomAudienceBuyers());
-        Log.i(TAG, "Running ad selection with seller: " + mAdSelectionConfig.getSeller());
+                        + adSelectionConfig.getCustomAudienceBuyers());
+        Log.i(TAG, "Running ad selection with seller: " + adSelectionConfig.getSeller());
         try {
+            ListenableFuture<AdSelectionOutcome> outcome =
+                    mAdClient.selectAds(adSelectionConfig);
+            outcome.addListener(
+                    () -> {
+                        latency.recordSince(startNanos);
+                        mServiceWarm.set(true);
+                        Log.i(TAG, latency.toString());
+                        Log.i(TAG, mConfigCache.toString());
+                    },
+                    MoreExecutors.directExecutor());
             Futures.addCallback(
-                    mAdClient.selectAds(mAdSelectionConfig),
+                    outcome,
                     new FutureCallback<AdSelectionOutcome>() {
                         public void onSuccess(AdSelectionOutcome adSelectionOutcome) {
                             statusReceiver.accept(
@@ -202,6 +402,149 @@ public class AdSelectionWrapper {
         }
     }
 
+    /**
+     * Runs ad selection for several sellers in parallel and picks the final winner among their
+     * outcomes with {@code selectAds(AdSelectionFromOutcomesConfig)}, all within {@code deadline}.
+     *
+     * <p>Seller auctions that fail, or are still running once only {@link
+     * #MULTI_SELLER_SELECTION_RESERVE_MS} is left of the deadline, are dropped so that the slot
+     * takes about as long as the slowest seller that made it in rather than the sum of all sellers.
+     * If only one seller returns an ad it wins without the outcome selection call. The winner's
+     * impression is then counted and reported like in {@link #runAdSelection}, using the config of
+     * the seller whose auction produced it.
+     *
+     * @param sellerConfigs One auction config per seller.
+     * @param outcomeSelectionSeller The ad tech that owns the outcome selection logic.
+     * @param outcomeSelectionLogicUri The URI to retrieve the outcome selection logic from.
+     * @param selectionSignals The signals passed to the outcome selection logic.
+     * @param deadline The latency budget shared by the seller auctions and the outcome selection.
+     * @param statusReceiver A consumer function that is run with strings describing which sellers
+     *     were dropped, how the outcome selection went, and how reporting went.
+     * @return a future with the winning outcome, which fails if no seller returned an ad in time.
+     */
+    @SuppressWarnings("UnstableApiUsage") /* FluentFuture */
+    @SuppressLint("NewApi")
+    public ListenableFuture<AdSelectionOutcome> runMultiSellerAdSelection(
+            List<AdSelectionConfig> sellerConfigs,
+            AdTechIdentifier outcomeSelectionSeller,
+            Uri outcomeSelectionLogicUri,
+            AdSelectionSignals selectionSignals,
+            Deadline deadline,
+            Consumer<String> statusReceiver) {
+        Deadline sellerDeadline =
+                deadline.before(MULTI_SELLER_SELECTION_RESERVE_MS, TimeUnit.MILLISECONDS);
+        List<ListenableFuture<Pair<AdSelectionConfig, AdSelectionOutcome>>> sellerOutcomes =
+                new ArrayList<>(sellerConfigs.size());
+        for (AdSelectionConfig config : sellerConfigs) {
+            sellerOutcomes.add(
+                    FluentFuture.from(mAdClient.selectAds(config, sellerDeadline))
+                            .transform(
+                                    outcome -> new Pair<>(config, outcome),
+                                    MoreExecutors.directExecutor())
+                            .catching(
+                                    Exception.class,
+                                    e -> {
+                                        statusReceiver.accept(
+                                                "Dropped seller "
+                                                        + config.getSeller()
+                                                        + ": "
+                                                        + e.getMessage());
+                                        return new Pair<>(config, AdSelectionOutcome.NO_OUTCOME);
+                                    },
+                                    MoreExecutors.directExecutor()));
+        }
+
+        return FluentFuture.from(Futures.allAsList(sellerOutcomes))
+                .transformAsync(
+                        results ->
+                                selectAmongSellers(
+                                        results,
+                                        outcomeSelectionSeller,
+                                        outcomeSelectionLogicUri,
+                                        selectionSignals,
+                                        deadline,
+                                        statusReceiver),
+                        mExecutor)
+                .transform(
+                        outcome -> {
+                            statusReceiver.accept(
+                                    "Ran multi-seller ad selection! Id: "
+                                            + outcome.getAdSelectionId());
+                            updateAdCounterHistogram(
+                                    outcome.getAdSelectionId(),
+                                    FrequencyCapFilters.AD_EVENT_TYPE_IMPRESSION,
+                                    statusReceiver);
+                            reportImpression(outcome.getAdSelectionId(), statusReceiver);
+                            return outcome;
+                        },
+                        mExecutor);
+    }
+
+    @SuppressLint("NewApi")
+    private ListenableFuture<AdSelectionOutcome> selectAmongSellers(
+            List<Pair<AdSelectionConfig, AdSelectionOutcome>> results,
+            AdTechIdentifier outcomeSelectionSeller,
+            Uri outcomeSelectionLogicUri,
+            AdSelectionSignals selectionSignals,
+            Deadline deadline,
+            Consumer<String> statusReceiver) {
+        List<Long> adSelectionIds = new ArrayList<>(results.size());
+        AdSelectionOutcome onlyOutcome = null;
+        for (Pair<AdSelectionConfig, AdSelectionOutcome> result : results) {
+            if (result.second.hasOutcome()) {
+                adSelectionIds.add(result.second.getAdSelectionId());
+                rememberAuctionConfig(result.second.getAdSelectionId(), result.first);
+                onlyOutcome = result.second;
+            }
+        }
+        statusReceiver.accept(
+                adSelectionIds.size()
+                        + " of "
+                        + results.size()
+                        + " sellers returned an ad in time");
+
+        if (adSelectionIds.isEmpty()) {
+            return Futures.immediateFailedFuture(
+                    new IllegalStateException("No seller returned an ad in time"));
+        }
+        if (adSelectionIds.size() == 1) {
+            return Futures.immediateFuture(onlyOutcome);
+        }
+        AdSelectionFromOutcomesConfig config =
+                new AdSelectionFromOutcomesConfig.Builder()
+                        .setSeller(outcomeSelectionSeller)
+                        .setAdSelectionIds(adSelectionIds)
+                        .setSelectionSignals(selectionSignals)
+                        .setSelectionLogicUri(outcomeSelectionLogicUri)
+                        .build();
+        return Futures.transform(
+                mAdClient.selectAds(config, deadline),
+                outcome -> {
+                    if (!outcome.hasOutcome()) {
+                        throw new IllegalStateException("Outcome selection picked no winner");
+                    }
+                    return outcome;
+                },
+                MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Remembers the config of the auction that produced {@code adSelectionId}, so that its
+     * impression is reported against that config rather than this wrapper's own.
+     */
+    private void rememberAuctionConfig(long adSelectionId, AdSelectionConfig config) {
+        synchronized (mAuctionConfigs) {
+            mAuctionConfigs.put(adSelectionId, config);
+        }
+    }
+
+    private AdSelectionConfig getAuctionConfig(long adSelectionId) {
+        synchronized (mAuctionConfigs) {
+            AdSelectionConfig config = mAuctionConfigs.get(adSelectionId);
+            return config != null ? config : getAdSelectionConfig();
+        }
+    }
+
     /**
      * Runs ad selection on Auction Servers and passes a string describing its status to the input
      * receivers. If ad selection succeeds, updates the ad histogram with an impression event and
@@ -233,6 +576,16 @@ public class AdSelectionWrapper {
             return;
         }
 
+        SfeCircuitBreaker circuitBreaker = SfeCircuitBreaker.forAddress(sellerSfeUri.toString());
+        if (!circuitBreaker.tryAcquire()) {
+            // Don't wait for a degraded SFE to time out, keep filling the slot on device.
+            statusReceiver.accept(
+                    "Auction server is unavailable, running ad selection on device instead");
+            Log.w(TAG, circuitBreaker.toString());
+            runAdSelection(statusReceiver, renderUriReceiver, adSelectionIdReceiver);
+            return;
+        }
+
         Log.i(TAG, "Running ad selection on Auction Servers GetAdSelectionData");
         try {
             Log.i(TAG, "Auction Server ad selection seller:" + seller);
@@ -254,35 +607,55 @@ public class AdSelectionWrapper {
             }
             ListenableFuture<AdSelectionOutcome> adSelectionOutcome =
                     FluentFuture.from(mAdClient.getAdSelectionData(getDataRequestBuilder.build()))
-                            .transform(
+                            .transformAsync(
                                     outcome -> {
                                         statusReceiver.accept(
                                                 "CA data collected from device! Id: "
                                                         + outcome.getAdSelectionDataId());
-                                        try {
-                                            BiddingAuctionServerClient auctionServerClient =
-                                                    new BiddingAuctionServerClient(mContext);
-                                            SelectAdsResponse actualResponse =
-                                                    auctionServerClient.runServerAuction(
-                                                            sellerSfeUri.toString(),
-                                                            seller.toString(),
-                                                            buyer.toString(),
-                                                            outcome.getAdSelectionData());
-
-                                            Pair<Long, SelectAdsResponse> serverAuctionResult =
-                                                    new Pair<>(
-                                                            outcome.getAdSelectionDataId(),
-                                                            actualResponse);
-                                            statusReceiver.accept(
-                                                    "Server auction run successfully for "
-                                                            + serverAuctionResult.first);
-                                            return serverAuctionResult;
-                                        } catch (IOException e) {
-                                            statusReceiver.accept(
-                                                    "Something went wrong when calling bidding"
-                                                            + " auction server");
-                                            throw new UncheckedIOException(e);
-                                        }
+                                        BiddingAuctionServerClient auctionServerClient =
+                                                new BiddingAuctionServerClient(
+                                                        mContext,
+                                                        HttpEngineSfeTransport.getInstance(
+                                                                mContext),
+                                                        mServerAuctionWireFormat);
+                                        long adSelectionDataId = outcome.getAdSelectionDataId();
+                                        // No thread is held while the SFE runs the auction.
+                                        ListenableFuture<SelectAdsResponse> sfeResponse =
+                                                circuitBreaker.track(
+                                                        callSfe(
+                                                                auctionServerClient,
+                                                                sellerSfeUri,
+                                                                seller,
+                                                                buyer,
+                                                                outcome.getAdSelectionData()));
+                                        return FluentFuture.from(sfeResponse)
+                                                .transform(
+                                                        actualResponse -> {
+                                                            statusReceiver.accept(
+                                                                    "Server auction run"
+                                                                            + " successfully for "
+                                                                            + adSelectionDataId);
+                                                            BuyerRegistry buyers =
+                                                                    mServerAuctionBuyers;
+                                                            if (buyers != null) {
+                                                                statusReceiver.accept(
+                                                                        buyers.toString());
+                                                            }
+                                                            return new Pair<>(
+                                                                    adSelectionDataId,
+                                                                    actualResponse);
+                                                        },
+                                                        mExecutor)
+                                                .catching(
+                                                        IOException.class,
+                                                        e -> {
+                                                            statusReceiver.accept(
+                                                                    "Something went wrong when"
+                                                                            + " calling bidding"
+                                                                            + " auction server");
+                                                            throw new UncheckedIOException(e);
+                                                        },
+                                                        mExecutor);
                                     },
                                     mExecutor)
                             .transformAsync(
@@ -291,15 +664,15 @@ public class AdSelectionWrapper {
                                         long adSelectionDataId = pair.first;
                                         SelectAdsResponse response = pair.second;
                                         Objects.requireNonNull(response);
-                                        Objects.requireNonNull(response.auctionResultCiphertext);
+                                        byte[] auctionResult =
+                                                Objects.requireNonNull(
+                                                        response
+                                                                .getAuctionResultCiphertextBytes());
                                         PersistAdSelectionResultRequest persistResultRequest =
                                                 new PersistAdSelectionResultRequest.Builder()
                                                         .setSeller(seller)
                                                         .setAdSelectionDataId(adSelectionDataId)
-                                                        .setAdSelectionResult(
-                                                                BaseEncoding.base64()
-                                                                        .decode(
-                                                                                response.auctionResultCiphertext))
+                                                        .setAdSelectionResult(auctionResult)
                                                         .build();
                                         return mAdClient.persistAdSelectionResult(
                                                 persistResultRequest);
@@ -341,19 +714,142 @@ public class AdSelectionWrapper {
     }
 
     /**
-     * Runs impression reporting and reports a view event upon success.
+     * Runs the SFE part of a server auction with the configured retry policy, against every buyer
+     * of the server auction buyer registry if one is set and against {@code buyer} otherwise.
+     */
+    private ListenableFuture<SelectAdsResponse> callSfe(
+            BiddingAuctionServerClient auctionServerClient,
+            Uri sellerSfeUri,
+            AdTechIdentifier seller,
+            AdTechIdentifier buyer,
+            byte[] adSelectionData) {
+        Uri backupSfeUri = mBackupSfeUri;
+        String backupSfeAddress = backupSfeUri == null ? null : backupSfeUri.toString();
+        BuyerRegistry buyers = mServerAuctionBuyers;
+        Deadline deadline = Deadline.after(SERVER_AUCTION_SFE_BUDGET_MS, TimeUnit.MILLISECONDS);
+        if (buyers != null) {
+            return auctionServerClient.runServerAuctionAsync(
+                    sellerSfeUri.toString(),
+                    backupSfeAddress,
+                    seller.toString(),
+                    buyers,
+                    adSelectionData,
+                    mSfeRetryPolicy,
+                    deadline);
+        }
+        return auctionServerClient.runServerAuctionAsync(
+                sellerSfeUri.toString(),
+                backupSfeAddress,
+                seller.toString(),
+                buyer.toString(),
+                adSelectionData,
+                mSfeRetryPolicy,
+                deadline);
+    }
+
+    /**
+     * Queues impression reporting, which reports a view event upon success. The report is sent in
+     * the background by the {@link ReportingQueue}.
      *
      * @param adSelectionId The auction to report impression on.
      * @param statusReceiver A consumer function that is run after impression reporting with a
      *     string describing how the auction and reporting went.
      */
-    @SuppressLint("InlinedApi")
     public void reportImpression(long adSelectionId, Consumer<String> statusReceiver) {
+        mReportingQueue.enqueueImpression(adSelectionId, statusReceiver);
+    }
+
+    /**
+     * Queues interaction reporting. The report is sent in the background by the {@link
+     * ReportingQueue}.
+     *
+     * @param adSelectionId The auction associated with the ad.
+     * @param eventKey The type of event to be reported.
+     * @param eventData Data associated with the event.
+     * @param reportingDestinations the destinations to report to, (buyer/seller)
+     * @param statusReceiver A consumer function that is run after event reporting with a string
+     *     describing how the reporting went.
+     */
+    @SuppressLint("NewApi")
+    public void reportEvent(
+            long adSelectionId,
+            String eventKey,
+            String eventData,
+            int reportingDestinations,
+            Consumer<String> statusReceiver) {
+        if (!isTestableVersion(8, 9)) {
+            statusReceiver.accept(
+                    "Unsupported SDK Extension: Event reporting requires 8 for T+ or 9 for S-,"
+                            + " skipping");
+            Log.w(
+                    MainActivity.TAG,
+                    "Unsupported SDK Extension: Event reporting requires 8 for T+ or 9 for S-,"
+                            + " skipping");
+            return;
+        }
+
+        mReportingQueue.enqueueEvent(
+                adSelectionId, eventKey, eventData, reportingDestinations, statusReceiver);
+    }
+
+    /**
+     * Helper function of {@link AdSelectionClient#updateAdCounterHistogram}. Queues an update of
+     * the counter histograms for an ad, which is sent in the background by the {@link
+     * ReportingQueue}.
+     *
+     * @param adSelectionId The identifier associated with the winning ad.
+     * @param adEventType identifies which histogram should be updated
+     * @param statusReceiver A consumer function that is run after that reports how the call went
+     *     after it is completed
+     */
+    @SuppressLint("NewApi")
+    public void updateAdCounterHistogram(
+            long adSelectionId, int adEventType, Consumer<String> statusReceiver) {
+        if (!isTestableVersion(8, 9)) {
+            statusReceiver.accept(
+                    "Unsupported SDK Extension: Ad counter histogram update requires 8 for T+ or 9"
+                            + " for S-, skipping");
+            Log.w(
+                    MainActivity.TAG,
+                    "Unsupported SDK Extension: Ad counter histogram update requires 8 for T+ or 9"
+                            + " for S-, skipping");
+            return;
+        }
+
+        mReportingQueue.enqueueHistogramUpdate(adSelectionId, adEventType, statusReceiver);
+    }
+
+    /** Sends a report taken off the {@link ReportingQueue}. */
+    private ListenableFuture<Void> sendReport(ReportingQueue.PendingReport report) {
+        switch (report.getType()) {
+            case IMPRESSION:
+                return sendImpressionReport(report.getAdSelectionId(), report.getStatusReceiver());
+            case EVENT:
+                return sendEventReport(
+                        report.getAdSelectionId(),
+                        Objects.requireNonNull(report.getEventKey()),
+                        Objects.requireNonNull(report.getEventData()),
+                        report.getReportingDestinations(),
+                        report.getStatusReceiver());
+            case HISTOGRAM:
+                return sendAdCounterHistogramUpdate(
+                        report.getAdSelectionId(),
+                        report.getAdEventType(),
+                        report.getStatusReceiver());
+            default:
+                throw new IllegalArgumentException("Unknown report type " + report.getType());
+        }
+    }
+
+    @SuppressLint("InlinedApi")
+    private ListenableFuture<Void> sendImpressionReport(
+            long adSelectionId, Consumer<String> statusReceiver) {
         ReportImpressionRequest request =
-                new ReportImpressionRequest(adSelectionId, mAdSelectionConfig);
+                new ReportImpressionRequest(adSelectionId, getAuctionConfig(adSelectionId));
 
+        ListenableFuture<Void> result = mAdClient.reportImpression(request);
         Futures.addCallback(
-                mAdClient.reportImpression(request),
+                result,
                 new FutureCallback<Void>() {
                     public void onSuccess(Void unused) {
                         statusReceiver.accept("Reported impressions from ad selection.");
@@ -387,43 +883,24 @@ public class AdSelectionWrapper {
                     }
                 },
                 mExecutor);
+        return result;
     }
 
-    /**
-     * Runs interaction reporting.
-     *
-     * @param adSelectionId The auction associated with the ad.
-     * @param eventKey The type of event to be reported.
-     * @param eventData Data associated with the event.
-     * @param reportingDestinations the destinations to report to, (buyer/seller)
-     * @param statusReceiver A consumer function that is run after event reporting with a string
-     *     describing how the reporting went.
-     */
     @SuppressLint("NewApi")
-    public void reportEvent(
+    private ListenableFuture<Void> sendEventReport(
             long adSelectionId,
             String eventKey,
             String eventData,
             int reportingDestinations,
             Consumer<String> statusReceiver) {
-        if (!isTestableVersion(8, 9)) {
-            statusReceiver.accept(
-                    "Unsupported SDK Extension: Event reporting requires 8 for T+ or 9 for S-,"
-                            + " skipping");
-            Log.w(
-                    MainActivity.TAG,
-                    "Unsupported SDK Extension: Event reporting requires 8 for T+ or 9 for S-,"
-                            + " skipping");
-            return;
-        }
-
         ReportEventRequest request =
                 new ReportEventRequest.Builder(
                                 adSelectionId, eventKey, eventData, reportingDestinations)
                         .build();
 
+        ListenableFuture<Void> result = mAdClient.reportEvent(request);
         Futures.addCallback(
-                mAdClient.reportEvent(request),
+                result,
                 new FutureCallback<Void>() {
                     public void onSuccess(Void unused) {
                         statusReceiver.accept(String.format("Reported %s event.", eventKey));
@@ -435,42 +912,26 @@ public class AdSelectionWrapper {
                     }
                 },
                 mExecutor);
+        return result;
     }
 
-    /**
-     * Helper function of {@link AdSelectionClient#updateAdCounterHistogram}. Updates the counter
-     * histograms for an ad.
-     *
-     * @param adSelectionId The identifier associated with the winning ad.
-     * @param adEventType identifies which histogram should be updated
-     * @param statusReceiver A consumer function that is run after that reports how the call went
-     *     after it is completed
-     */
     @SuppressLint("NewApi")
-    public void updateAdCounterHistogram(
+    private ListenableFuture<Void> sendAdCounterHistogramUpdate(
             long adSelectionId, int adEventType, Consumer<String> statusReceiver) {
-        if (!isTestableVersion(8, 9)) {
-            statusReceiver.accept(
-                    "Unsupported SDK Extension: Ad counter histogram update requires 8 for T+ or 9"
-                            + " for S-, skipping");
-            Log.w(
-                    MainActivity.TAG,
-                    "Unsupported SDK Extension: Ad counter histogram update requires 8 for T+ or 9"
-                            + " for S-, skipping");
-            return;
-        }
-
-        AdTechIdentifier callerAdTech = mAdSelectionConfig.getSeller();
+        AdTechIdentifier callerAdTech = getAdSelectionConfig().getSeller();
 
         UpdateAdCounterHistogramRequest request =
                 new UpdateAdCounterHistogramRequest.Builder(
                                 adSelectionId, adEventType, callerAdTech)
                         .build();
 
+        ListenableFuture<Void> result = mAdClient.updateAdCounterHistogram(request);
         Futures.addCallback(
-                mAdClient.updateAdCounterHistogram(request),
+                result,
                 new FutureCallback<Void>() {
                     public void onSuccess(Void unused) {
+                        // The update can change which ads the mediation networks' buyers may show.
+                        NetworkOutcomeCache.getDefault().invalidateAdSelection(adSelectionId);
                         statusReceiver.accept(
                                 String.format(
                                         "Updated ad counter histogram with %s event for adtech: %s",
@@ -484,6 +945,7 @@ public class AdSelectionWrapper {
                     }
                 },
                 mExecutor);
+        return result;
     }
 
     /**
@@ -499,7 +961,7 @@ public class AdSelectionWrapper {
             AdSelectionSignals trustedScoringSignals) {
         AddAdSelectionOverrideRequest request =
                 new AddAdSelectionOverrideRequest(
-                        mAdSelectionConfig, decisionLogicJS, trustedScoringSignals);
+                        getAdSelectionConfig(), decisionLogicJS, trustedScoringSignals);
         try {
             Futures.addCallback(
                     mOverrideClient.overrideAdSelectionConfigRemoteInfo(request),
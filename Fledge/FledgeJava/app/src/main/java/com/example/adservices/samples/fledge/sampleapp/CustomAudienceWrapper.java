@@ -30,6 +30,7 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.RequiresApi;
 
+import com.example.adservices.samples.fledge.clients.CustomAudienceBackend;
 import com.example.adservices.samples.fledge.clients.CustomAudienceClient;
 import com.example.adservices.samples.fledge.clients.TestCustomAudienceClient;
 import com.google.common.util.concurrent.FutureCallback;
@@ -56,11 +57,25 @@ public class CustomAudienceWrapper {
      * @param executor An executor to use with the FLEDGE API calls.
      */
     public CustomAudienceWrapper(Context context, Executor executor) {
+        this(context, executor, CustomAudienceBackend.platform(context));
+    }
+
+    /**
+     * Initialize the custom audience wrapper against the given backend instead of the platform,
+     * e.g. a {@link com.example.adservices.samples.fledge.clients.FakeAdServicesBackend} for load
+     * tests. Overrides are still sent to the platform.
+     *
+     * @param context The application context.
+     * @param executor An executor to use with the FLEDGE API calls.
+     * @param backend The backend the custom audience API calls are made against.
+     */
+    public CustomAudienceWrapper(
+            Context context, Executor executor, CustomAudienceBackend backend) {
         mExecutor = executor;
         mCaClient =
                 new CustomAudienceClient.Builder()
-                        .setContext(context)
                         .setExecutor(executor)
+                        .setBackend(backend)
                         .build();
         mCaOverrideClient =
                 new TestCustomAudienceClient.Builder()
@@ -17,6 +17,7 @@ package com.example.adservices.samples.fledge.sampleapp;
 
 import static com.example.adservices.samples.fledge.sampleapp.MainActivity.TAG;
 
+import android.os.Looper;
 import android.text.method.ScrollingMovementMethod;
 import android.util.Log;
 import android.widget.TextView;
@@ -51,7 +52,8 @@ public class EventLogManager {
     }
 
     /**
-     * Add an event string to the front of the event log.
+     * Add an event string to the front of the event log. May be called from any thread; the log
+     * is re-rendered on the main thread.
      *
      * @param event The events string to add.
      */
@@ -62,7 +64,11 @@ public class EventLogManager {
                 mEvents.remove();
             }
         }
-        render();
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            render();
+        } else {
+            mDisplay.post(this::render);
+        }
         Log.v(TAG, String.format("Event %s added in event log", event));
     }
 
@@ -16,8 +16,12 @@
 package com.example.adservices.samples.fledge.sampleapp;
 
 import static com.example.adservices.samples.fledge.SdkExtensionsHelpers.VersionCompatUtil.isTestableVersion;
+import static com.example.adservices.samples.fledge.WaterfallMediationHelpers.Constants.USE_FAKE_AD_SERVICES_INTENT;
 
+import android.adservices.adselection.AdSelectionConfig;
+import android.adservices.adselection.AdSelectionOutcome;
 import android.adservices.adselection.ReportEventRequest;
+import android.adservices.common.AdSelectionSignals;
 import android.adservices.common.AdTechIdentifier;
 import android.adservices.common.FrequencyCapFilters;
 import android.annotation.SuppressLint;
@@ -29,20 +33,40 @@ import android.view.View;
 
 import android.widget.CompoundButton;
 import android.widget.CompoundButton.OnCheckedChangeListener;
+import androidx.annotation.NonNull;
 import androidx.annotation.RequiresApi;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.recyclerview.widget.LinearLayoutManager;
 
+import com.example.adservices.samples.fledge.BenchmarkHelpers.ClientOverheadBenchmark;
+import com.example.adservices.samples.fledge.BenchmarkHelpers.SfeLoadGenerator;
+import com.example.adservices.samples.fledge.BenchmarkHelpers.SfeTransportBenchmark;
+import com.example.adservices.samples.fledge.BenchmarkHelpers.WireFormatBenchmark;
+import com.example.adservices.samples.fledge.ServerAuctionHelpers.BiddingAuctionServerClient;
+import com.example.adservices.samples.fledge.ServerAuctionHelpers.BuyerRegistry;
+import com.example.adservices.samples.fledge.ServerAuctionHelpers.MockSfeServer;
+import com.example.adservices.samples.fledge.ServerAuctionHelpers.OkHttpSfeTransport;
+import com.example.adservices.samples.fledge.ServerAuctionHelpers.SfeRetryPolicy;
+import com.example.adservices.samples.fledge.clients.AdSelectionBackend;
+import com.example.adservices.samples.fledge.clients.AdmissionController;
+import com.example.adservices.samples.fledge.clients.CustomAudienceBackend;
+import com.example.adservices.samples.fledge.clients.Deadline;
+import com.example.adservices.samples.fledge.clients.FakeAdServicesBackend;
+import com.example.adservices.samples.fledge.clients.PriorityAdmissionController;
 import com.example.adservices.samples.fledge.sampleapp.databinding.ActivityMainBinding;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 
 import org.json.JSONException;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /** Android application activity for testing FLEDGE API */
 @RequiresApi(api = 34)
@@ -57,10 +81,26 @@ public class MainActivity extends AppCompatActivity {
     private static final String AUCTION_SERVER_SELLER_INTENT = "auctionServerSeller";
     private static final String AUCTION_SERVER_BUYER_INTENT = "auctionServerBuyer";
     private static final String AUCTION_SERVER_COORDINATOR_URL_INTENT = "auctionServerCoordinatorUrl";
+    private static final String RUN_CLIENT_BENCHMARK_INTENT = "runClientBenchmark";
+    private static final String USE_BINARY_SFE_FORMAT_INTENT = "useBinarySfeFormat";
+    private static final String AUCTION_SERVER_BACKUP_SFE_URL_INTENT = "auctionServerBackupSfeUrl";
+    private static final String AUCTION_SERVER_BUYERS_INTENT = "auctionServerBuyers";
+    private static final String MULTI_SELLER_BASE_URLS_INTENT = "multiSellerBaseUrls";
+
+    // Signals and timeout every buyer of a multi-buyer server auction starts out with
+    private static final String SERVER_AUCTION_BUYER_SIGNALS = "[[42]]";
+    private static final long SERVER_AUCTION_BUYER_MAX_TIMEOUT_MS = 60000;
+
+    // Latency budget of a multi-seller ad selection, outcome selection included
+    private static final long MULTI_SELLER_BUDGET_MS = 5000;
 
     // Executor to be used for API calls
     private static final Executor EXECUTOR = Executors.newCachedThreadPool();
 
+    // Bounds in-flight ad selection API calls so that bursts are shed instead of piling up threads
+    private static final AdmissionController ADMISSION_CONTROLLER =
+            new PriorityAdmissionController.Builder().build();
+
     // String to inform user a field in missing
     private static final String MISSING_FIELD_STRING_FORMAT_RESTART_APP =
             "ERROR: %s is missing, restart the activity using the directions in the README. The app"
@@ -68,6 +108,12 @@ public class MainActivity extends AppCompatActivity {
 
     private ConfigUris mConfig;
 
+    // Base URIs of the sellers whose auctions run side by side, or empty for a single auction
+    private List<Uri> mMultiSellerBaseUris = Collections.emptyList();
+
+    // Set when the app runs against the in-process fake instead of the AdServices system services
+    private FakeAdServicesBackend mFakeBackend;
+
     private AdSelectionWrapper adWrapper;
     private Context context;
     private ActivityMainBinding binding;
@@ -101,6 +147,11 @@ public class MainActivity extends AppCompatActivity {
                         .setCoordinatorUri(auctionServerCoordinatorOrEmpty())
                         .build();
 
+        if (Boolean.parseBoolean(getIntent().getStringExtra(USE_FAKE_AD_SERVICES_INTENT))) {
+            mFakeBackend = createFakeAdServicesBackend();
+            eventLog.writeEvent("Running against the in-process fake AdServices backend");
+        }
+
         try {
             setAdSelectionWrapper();
             eventLog.writeEvent("Auction Server set to " + binding.auctionServer.isChecked());
@@ -122,6 +173,13 @@ public class MainActivity extends AppCompatActivity {
             if (mConfig.isMaybeServerAuction()) {
                 isAuctionServerSetupReady(mConfig);
             }
+
+            if (getIntent().getBooleanExtra(RUN_CLIENT_BENCHMARK_INTENT, false)) {
+                runClientBenchmark();
+            }
+
+            // Warm up ad selection once onCreate has returned, so it doesn't delay the first frame.
+            view.post(() -> adWrapper.warmUp(eventLog::writeEvent));
         } catch (Exception e) {
             Log.e(TAG, "Error when setting up app", e);
         }
@@ -137,7 +195,31 @@ public class MainActivity extends AppCompatActivity {
                         Uri.parse(mConfig.getBaseUri() + "/scoring"),
                         Uri.parse(mConfig.getBaseUri() + "/scoring/trusted"),
                         context,
-                        EXECUTOR);
+                        EXECUTOR,
+                        ADMISSION_CONTROLLER,
+                        mFakeBackend != null
+                                ? mFakeBackend
+                                : AdSelectionBackend.platform(context));
+
+        if (getIntent().getBooleanExtra(USE_BINARY_SFE_FORMAT_INTENT, false)) {
+            adWrapper.setServerAuctionWireFormat(BiddingAuctionServerClient.WireFormat.BINARY);
+        }
+        String backupSfeUrl = getIntentOrNull(AUCTION_SERVER_BACKUP_SFE_URL_INTENT);
+        if (backupSfeUrl != null) {
+            adWrapper.setSfeRetryPolicy(SfeRetryPolicy.getDefault(), Uri.parse(backupSfeUrl));
+        }
+        String serverAuctionBuyers = getIntentOrNull(AUCTION_SERVER_BUYERS_INTENT);
+        if (serverAuctionBuyers != null) {
+            BuyerRegistry registry = createServerAuctionBuyers(serverAuctionBuyers);
+            adWrapper.setServerAuctionBuyers(registry);
+            eventLog.writeEvent("Server auctions run with " + registry);
+        }
+
+        String multiSellerBaseUrls = getIntentOrNull(MULTI_SELLER_BASE_URLS_INTENT);
+        if (multiSellerBaseUrls != null) {
+            mMultiSellerBaseUris = parseUris(multiSellerBaseUrls);
+            eventLog.writeEvent("Ad selection runs across sellers " + mMultiSellerBaseUris);
+        }
 
         binding.auctionServer.setChecked(mConfig.isMaybeServerAuction());
         setupRunAdSelectionButton(mConfig.isMaybeServerAuction(), binding);
@@ -145,6 +227,85 @@ public class MainActivity extends AppCompatActivity {
             (compoundButton, isAuctionServerEnabled) -> setupRunAdSelectionButton(isAuctionServerEnabled, binding));
     }
 
+    /**
+     * Registers every buyer in the comma-separated {@code buyers} for server auctions. Their
+     * timeouts start at the maximum, and are only tuned once per-buyer bid latencies are recorded.
+     */
+    private static BuyerRegistry createServerAuctionBuyers(String buyers) {
+        BuyerRegistry.Builder builder = new BuyerRegistry.Builder();
+        int index = 0;
+        for (String buyer : buyers.split(",")) {
+            if (!buyer.trim().isEmpty()) {
+                builder.addBuyer(
+                        buyer.trim(),
+                        SERVER_AUCTION_BUYER_SIGNALS,
+                        "buyer_" + ++index,
+                        SERVER_AUCTION_BUYER_MAX_TIMEOUT_MS);
+            }
+        }
+        return builder.build();
+    }
+
+    private static List<Uri> parseUris(String uris) {
+        List<Uri> parsed = new ArrayList<>();
+        for (String uri : uris.split(",")) {
+            if (!uri.trim().isEmpty()) {
+                parsed.add(Uri.parse(uri.trim()));
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Runs an auction for every seller in {@link #mMultiSellerBaseUris} and has the seller of the
+     * base URL pick the winner among them with its highest bid selection logic.
+     */
+    @SuppressLint("NewApi")
+    private void runMultiSellerAdSelection() {
+        List<AdSelectionConfig> sellerConfigs = new ArrayList<>(mMultiSellerBaseUris.size());
+        for (Uri baseUri : mMultiSellerBaseUris) {
+            sellerConfigs.add(
+                    adWrapper.getSellerAdSelectionConfig(
+                            AdTechIdentifier.fromString(Objects.requireNonNull(baseUri.getHost())),
+                            Uri.parse(baseUri + "/scoring"),
+                            Uri.parse(baseUri + "/scoring/trusted")));
+        }
+        Futures.addCallback(
+                adWrapper.runMultiSellerAdSelection(
+                        sellerConfigs,
+                        mConfig.getSeller(),
+                        Uri.parse(mConfig.getBaseUri() + "/bidding_mediation"),
+                        AdSelectionSignals.EMPTY,
+                        Deadline.after(MULTI_SELLER_BUDGET_MS, TimeUnit.MILLISECONDS),
+                        eventLog::writeEvent),
+                new FutureCallback<AdSelectionOutcome>() {
+                    @Override
+                    public void onSuccess(AdSelectionOutcome outcome) {
+                        String adSelectionId = Long.toString(outcome.getAdSelectionId());
+                        runOnUiThread(
+                                () -> {
+                                    binding.adSpace.setText(
+                                            "Would display ad from " + outcome.getRenderUri());
+                                    binding.adSelectionIdClickInput.setText(adSelectionId);
+                                    binding.adSelectionIdImpressionInput.setText(adSelectionId);
+                                    binding.adSelectionIdHistogramInput.setText(adSelectionId);
+                                });
+                    }
+
+                    @Override
+                    public void onFailure(@NonNull Throwable e) {
+                        eventLog.writeEvent(
+                                "Error when running multi-seller ad selection: " + e.getMessage());
+                        runOnUiThread(
+                                () ->
+                                        binding.adSpace.setText(
+                                                "Ad selection failed -- no ad to display"));
+                        Log.e(TAG, "Exception during multi-seller ad selection", e);
+                    }
+                },
+                EXECUTOR);
+    }
+
     private void setupRunAdSelectionButton(boolean isAuctionServerEnabled, ActivityMainBinding binding){
         if(isAuctionServerEnabled && !mConfig.isMaybeServerAuction()){
             Log.e(TAG, "Cannot enable auction on server without all server auction configurations");
@@ -169,6 +330,10 @@ public class MainActivity extends AppCompatActivity {
                         })));
             Log.d(TAG, String.format("Run Ad Selection On Auction Server URL: %s", mConfig.getAuctionServerSellerSfeUri()));
             binding.eventLog.append(String.format("Run Ad Selection On Auction Server URL: %s", mConfig.getAuctionServerSellerSfeUri()));
+        } else if (!mMultiSellerBaseUris.isEmpty()) {
+            binding.runAdsButton.setOnClickListener(v -> runMultiSellerAdSelection());
+            Log.d(TAG, "Run Multi-Seller Ad Selection On Device");
+            binding.eventLog.append("Run Multi-Seller Ad Selection On Device");
         } else {
             binding.runAdsButton.setOnClickListener(
                 v ->
@@ -187,7 +352,12 @@ public class MainActivity extends AppCompatActivity {
     private void setupCASwitches(ActivityMainBinding binding, Context context) {
         try {
             CustomAudienceWrapper customAudienceWrapper =
-                    new CustomAudienceWrapper(context, EXECUTOR);
+                    new CustomAudienceWrapper(
+                            context,
+                            EXECUTOR,
+                            mFakeBackend != null
+                                    ? mFakeBackend
+                                    : CustomAudienceBackend.platform(context));
             ToggleProvider toggleProvider =
                     new ToggleProvider(
                             getApplicationContext(),
@@ -303,6 +473,84 @@ public class MainActivity extends AppCompatActivity {
         return value;
     }
 
+    /**
+     * Creates the in-process stand-in for the AdServices system services, with long-tailed bidding
+     * and scoring latencies so that the UI still sees auction-like timing.
+     */
+    static FakeAdServicesBackend createFakeAdServicesBackend() {
+        return new FakeAdServicesBackend.Builder()
+                .setBiddingLatency(FakeAdServicesBackend.LatencyModel.logNormal(40, 0.5))
+                .setScoringLatency(FakeAdServicesBackend.LatencyModel.logNormal(15, 0.5))
+                .setReportingLatency(FakeAdServicesBackend.LatencyModel.uniform(5, 50))
+                .build();
+    }
+
+    /**
+     * Runs the {@link ClientOverheadBenchmark}, {@link SfeTransportBenchmark}, {@link
+     * WireFormatBenchmark} and a short {@link SfeLoadGenerator} run in the background and writes
+     * their results to the event log. Started with {@code --ez runClientBenchmark true}.
+     */
+    private void runClientBenchmark() {
+        eventLog.writeEvent("Running client overhead benchmark");
+        EXECUTOR.execute(
+                () -> {
+                    try {
+                        List<String> results =
+                                new ArrayList<>(
+                                        new ClientOverheadBenchmark(context, EXECUTOR).run());
+                        results.addAll(new SfeTransportBenchmark(context).run());
+                        results.addAll(new WireFormatBenchmark().run());
+                        results.addAll(runSfeLoad());
+                        runOnUiThread(() -> results.forEach(eventLog::writeEvent));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Client overhead benchmark failed", e);
+                        runOnUiThread(
+                                () -> eventLog.writeEvent("Benchmark failed: " + e.getMessage()));
+                    }
+                });
+    }
+
+    /**
+     * Loads a local {@link MockSfeServer} with a long tailed response time and a 1% error rate,
+     * and returns the load generator's and the server's summaries.
+     */
+    private List<String> runSfeLoad() throws InterruptedException {
+        List<String> results = new ArrayList<>();
+        try (MockSfeServer server =
+                new MockSfeServer.Builder()
+                        .setResponseLatency(FakeAdServicesBackend.LatencyModel.logNormal(20, 0.5))
+                        .setErrorRate(0.01, 503)
+                        .setValidateRequests(true)
+                        .start()) {
+            SfeLoadGenerator loadGenerator =
+                    new SfeLoadGenerator.Builder()
+                            .setRequestsPerSecond(100)
+                            .setDurationMs(3000)
+                            .build();
+            OkHttpSfeTransport transport = loadGenerator.newTransport();
+            SfeLoadGenerator.Result result =
+                    loadGenerator.run(
+                            new BiddingAuctionServerClient(context, transport),
+                            server.getUri().toString());
+            results.add(result.toString());
+            results.add(transport.toString());
+            results.add(
+                    "mock sfe: "
+                            + server.getRequestCount()
+                            + " requests, "
+                            + server.getErrorCount()
+                            + " injected errors, "
+                            + server.getInvalidRequestCount()
+                            + " malformed");
+        } catch (IOException e) {
+            Log.e(TAG, "SFE load run failed", e);
+            results.add("sfe load run failed: " + e.getMessage());
+        }
+        return results;
+    }
+
     private void checkAdServicesEnabledForSdkExtension() {
         // 5 instead of 4 as FLEDGE wasn't ready at the same time as the other ad selection APIs.
         if (!isTestableVersion(5, 9)) {
@@ -0,0 +1,459 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.adservices.samples.fledge.sampleapp;
+
+import static com.example.adservices.samples.fledge.sampleapp.MainActivity.TAG;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Background pipeline for impression reporting, event reporting and ad counter histogram updates.
+ *
+ * <p>Callers on the render path only enqueue a report. Reports are deduplicated by ad selection id
+ * and event type, persisted to app storage so that they survive process death, and sent in batches
+ * from a single background thread. Failed reports are retried with jittered exponential backoff
+ * and dropped after {@link #MAX_ATTEMPTS} attempts.
+ *
+ * <p>There is one queue per process, returned by {@link #getInstance}, so that a single worker
+ * thread owns the persisted reports. Activities that are recreated, e.g. on rotation, attach their
+ * new sender to the same queue instead of restoring and sending the persisted reports again.
+ */
+public class ReportingQueue {
+    /** Maximum number of reports sent per drain round. */
+    public static final int BATCH_SIZE = 20;
+
+    /** Number of times a report is sent before it is dropped. */
+    public static final int MAX_ATTEMPTS = 5;
+
+    private static final String FILE_NAME = "pending_reports.json";
+    private static final long BATCH_WINDOW_MS = 200;
+    private static final long INITIAL_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 60000;
+    private static final double BACKOFF_JITTER = 0.2;
+
+    /** Type of a pending report. */
+    public enum ReportType {
+        IMPRESSION,
+        EVENT,
+        HISTOGRAM
+    }
+
+    /** Sends a single report to the platform. */
+    public interface Sender {
+        /**
+         * Sends {@code report}.
+         *
+         * @return a future that succeeds once the platform accepted the report.
+         */
+        @NonNull
+        ListenableFuture<Void> send(@NonNull PendingReport report);
+    }
+
+    /** A report waiting to be sent. */
+    public static final class PendingReport {
+        private final ReportType mType;
+        private final long mAdSelectionId;
+        @Nullable private final String mEventKey;
+        @Nullable private final String mEventData;
+        private final int mReportingDestinations;
+        private final int mAdEventType;
+        // Cleared when the sender that enqueued the report is replaced.
+        @Nullable private Consumer<String> mStatusReceiver;
+        private int mAttempts;
+        private long mNextAttemptAtMs;
+
+        private PendingReport(
+                ReportType type,
+                long adSelectionId,
+                @Nullable String eventKey,
+                @Nullable String eventData,
+                int reportingDestinations,
+                int adEventType,
+                @Nullable Consumer<String> statusReceiver) {
+            mType = type;
+            mAdSelectionId = adSelectionId;
+            mEventKey = eventKey;
+            mEventData = eventData;
+            mReportingDestinations = reportingDestinations;
+            mAdEventType = adEventType;
+            mStatusReceiver = statusReceiver;
+        }
+
+        public ReportType getType() {
+            return mType;
+        }
+
+        public long getAdSelectionId() {
+            return mAdSelectionId;
+        }
+
+        /** The event key of an {@link ReportType#EVENT} report. */
+        @Nullable
+        public String getEventKey() {
+            return mEventKey;
+        }
+
+        /** The event data of an {@link ReportType#EVENT} report. */
+        @Nullable
+        public String getEventData() {
+            return mEventData;
+        }
+
+        /** The reporting destinations of an {@link ReportType#EVENT} report. */
+        public int getReportingDestinations() {
+            return mReportingDestinations;
+        }
+
+        /** The ad event type of a {@link ReportType#HISTOGRAM} report. */
+        public int getAdEventType() {
+            return mAdEventType;
+        }
+
+        /**
+         * Receives status messages for this report. Reports restored from storage, or enqueued
+         * before the queue's sender was replaced, log their status instead, since the original
+         * receiver did not survive the process or its activity.
+         */
+        @NonNull
+        public Consumer<String> getStatusReceiver() {
+            Consumer<String> receiver = mStatusReceiver;
+            return receiver != null ? receiver : status -> Log.i(TAG, status);
+        }
+
+        /** Key used to deduplicate reports: ad selection id plus event type. */
+        String getDedupKey() {
+            String eventType;
+            switch (mType) {
+                case EVENT:
+                    eventType = mEventKey;
+                    break;
+                case HISTOGRAM:
+                    eventType = Integer.toString(mAdEventType);
+                    break;
+                default:
+                    eventType = "";
+            }
+            return mAdSelectionId + "/" + mType + "/" + eventType;
+        }
+
+        JSONObject toJson() throws JSONException {
+            return new JSONObject()
+                    .put("type", mType.name())
+                    .put("adSelectionId", mAdSelectionId)
+                    .put("eventKey", mEventKey)
+                    .put("eventData", mEventData)
+                    .put("reportingDestinations", mReportingDestinations)
+                    .put("adEventType", mAdEventType)
+                    .put("attempts", mAttempts);
+        }
+
+        static PendingReport fromJson(JSONObject json) throws JSONException {
+            PendingReport report =
+                    new PendingReport(
+                            ReportType.valueOf(json.getString("type")),
+                            json.getLong("adSelectionId"),
+                            json.optString("eventKey", null),
+                            json.optString("eventData", null),
+                            json.optInt("reportingDestinations"),
+                            json.optInt("adEventType"),
+                            null);
+            report.mAttempts = json.optInt("attempts");
+            return report;
+        }
+    }
+
+    private static ReportingQueue sInstance;
+
+    private final AtomicFile mFile;
+    private final ScheduledExecutorService mWorker =
+            Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("fledge-reporting-%d").build());
+
+    // Only accessed from mWorker.
+    private Sender mSender;
+    private final Map<String, PendingReport> mPending = new LinkedHashMap<>();
+    private boolean mDraining;
+    @Nullable private ScheduledFuture<?> mScheduledDrain;
+    private long mScheduledDrainAtMs = Long.MAX_VALUE;
+
+    private ReportingQueue(Context context, Sender sender) {
+        mSender = sender;
+        mFile = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+        mWorker.execute(this::restore);
+    }
+
+    /**
+     * Returns the process-wide reporting queue, sending its reports with {@code sender} from now
+     * on. The first call creates the queue and schedules any reports persisted by a previous
+     * process. Later calls replace the sender, and the reports enqueued through the previous one
+     * log their status instead of reporting it to their receivers.
+     *
+     * @param context Used to locate the queue's storage; only its application context is kept.
+     * @param sender Sends individual reports to the platform.
+     */
+    @NonNull
+    public static synchronized ReportingQueue getInstance(
+            @NonNull Context context, @NonNull Sender sender) {
+        if (sInstance == null) {
+            sInstance = new ReportingQueue(context.getApplicationContext(), sender);
+        } else {
+            sInstance.setSender(sender);
+        }
+        return sInstance;
+    }
+
+    private void setSender(Sender sender) {
+        mWorker.execute(
+                () -> {
+                    mSender = sender;
+                    // Their receivers belong to the activity that is being replaced.
+                    for (PendingReport report : mPending.values()) {
+                        report.mStatusReceiver = null;
+                    }
+                });
+    }
+
+    /** Enqueues an impression report for {@code adSelectionId}. */
+    public void enqueueImpression(long adSelectionId, @NonNull Consumer<String> statusReceiver) {
+        enqueue(
+                new PendingReport(
+                        ReportType.IMPRESSION, adSelectionId, null, null, 0, 0, statusReceiver));
+    }
+
+    /** Enqueues an interaction report for {@code adSelectionId}. */
+    public void enqueueEvent(
+            long adSelectionId,
+            @NonNull String eventKey,
+            @NonNull String eventData,
+            int reportingDestinations,
+            @NonNull Consumer<String> statusReceiver) {
+        enqueue(
+                new PendingReport(
+                        ReportType.EVENT,
+                        adSelectionId,
+                        eventKey,
+                        eventData,
+                        reportingDestinations,
+                        0,
+                        statusReceiver));
+    }
+
+    /** Enqueues an ad counter histogram update for {@code adSelectionId}. */
+    public void enqueueHistogramUpdate(
+            long adSelectionId, int adEventType, @NonNull Consumer<String> statusReceiver) {
+        enqueue(
+                new PendingReport(
+                        ReportType.HISTOGRAM,
+                        adSelectionId,
+                        null,
+                        null,
+                        0,
+                        adEventType,
+                        statusReceiver));
+    }
+
+    private void enqueue(PendingReport report) {
+        mWorker.execute(
+                () -> {
+                    String key = report.getDedupKey();
+                    if (mPending.containsKey(key)) {
+                        Log.d(TAG, "Dropping duplicate report " + key);
+                        return;
+                    }
+                    report.mNextAttemptAtMs = now() + BATCH_WINDOW_MS;
+                    mPending.put(key, report);
+                    persist();
+                    scheduleDrain();
+                });
+    }
+
+    private void restore() {
+        try {
+            JSONArray reports =
+                    new JSONArray(new String(mFile.readFully(), StandardCharsets.UTF_8));
+            long now = now();
+            for (int i = 0; i < reports.length(); i++) {
+                PendingReport report = PendingReport.fromJson(reports.getJSONObject(i));
+                report.mNextAttemptAtMs = now;
+                mPending.put(report.getDedupKey(), report);
+            }
+            Log.i(TAG, "Restored " + mPending.size() + " pending reports");
+            scheduleDrain();
+        } catch (FileNotFoundException e) {
+            // Nothing was persisted yet.
+        } catch (IOException | JSONException | IllegalArgumentException e) {
+            Log.e(TAG, "Discarding unreadable pending reports", e);
+            mFile.delete();
+        }
+    }
+
+    private void persist() {
+        FileOutputStream out = null;
+        try {
+            JSONArray reports = new JSONArray();
+            for (PendingReport report : mPending.values()) {
+                reports.put(report.toJson());
+            }
+            out = mFile.startWrite();
+            out.write(reports.toString().getBytes(StandardCharsets.UTF_8));
+            mFile.finishWrite(out);
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Failed to persist pending reports", e);
+            if (out != null) {
+                mFile.failWrite(out);
+            }
+        }
+    }
+
+    /** Schedules a drain for the earliest due report, unless one is running or due sooner. */
+    private void scheduleDrain() {
+        if (mDraining || mPending.isEmpty()) {
+            return;
+        }
+        long nextAttemptAtMs = Long.MAX_VALUE;
+        for (PendingReport report : mPending.values()) {
+            nextAttemptAtMs = Math.min(nextAttemptAtMs, report.mNextAttemptAtMs);
+        }
+        if (mScheduledDrain != null && !mScheduledDrain.isDone()) {
+            if (mScheduledDrainAtMs <= nextAttemptAtMs) {
+                return;
+            }
+            mScheduledDrain.cancel(false);
+        }
+        mScheduledDrainAtMs = nextAttemptAtMs;
+        mScheduledDrain =
+                mWorker.schedule(
+                        this::drain, Math.max(0, nextAttemptAtMs - now()), TimeUnit.MILLISECONDS);
+    }
+
+    private void drain() {
+        mScheduledDrain = null;
+        mScheduledDrainAtMs = Long.MAX_VALUE;
+        long now = now();
+        List<PendingReport> batch = new ArrayList<>();
+        for (Iterator<PendingReport> it = mPending.values().iterator();
+                it.hasNext() && batch.size() < BATCH_SIZE; ) {
+            PendingReport report = it.next();
+            if (report.mNextAttemptAtMs <= now) {
+                batch.add(report);
+            }
+        }
+        if (batch.isEmpty()) {
+            scheduleDrain();
+            return;
+        }
+
+        mDraining = true;
+        List<ListenableFuture<Void>> sends = new ArrayList<>(batch.size());
+        for (PendingReport report : batch) {
+            ListenableFuture<Void> send;
+            try {
+                send = mSender.send(report);
+            } catch (RuntimeException e) {
+                send = Futures.immediateFailedFuture(e);
+            }
+            Futures.addCallback(send, new ReportCallback(report), mWorker);
+            sends.add(send);
+        }
+        Futures.whenAllComplete(sends)
+                .run(
+                        () -> {
+                            mDraining = false;
+                            persist();
+                            scheduleDrain();
+                        },
+                        mWorker);
+    }
+
+    private void onSendFailed(PendingReport report, Throwable error) {
+        report.mAttempts++;
+        if (report.mAttempts >= MAX_ATTEMPTS) {
+            mPending.remove(report.getDedupKey());
+            report.getStatusReceiver()
+                    .accept(
+                            String.format(
+                                    "Dropping %s report for %s after %d attempts: %s",
+                                    report.getType(),
+                                    report.getAdSelectionId(),
+                                    report.mAttempts,
+                                    error.getMessage()));
+            return;
+        }
+        long backoffMs =
+                Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << (report.mAttempts - 1));
+        double jitter = 1 + ThreadLocalRandom.current().nextDouble(-BACKOFF_JITTER, BACKOFF_JITTER);
+        report.mNextAttemptAtMs = now() + (long) (backoffMs * jitter);
+        Log.w(
+                TAG,
+                String.format(
+                        "Retrying %s report for %s in %dms",
+                        report.getType(), report.getAdSelectionId(), backoffMs),
+                error);
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private class ReportCallback implements FutureCallback<Void> {
+        private final PendingReport mReport;
+
+        ReportCallback(PendingReport report) {
+            mReport = report;
+        }
+
+        @Override
+        public void onSuccess(Void unused) {
+            mPending.remove(mReport.getDedupKey());
+        }
+
+        @Override
+        public void onFailure(@NonNull Throwable e) {
+            onSendFailed(mReport, e);
+        }
+    }
+}
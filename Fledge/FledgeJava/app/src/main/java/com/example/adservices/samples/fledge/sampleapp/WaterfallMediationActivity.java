@@ -18,6 +18,7 @@ package com.example.adservices.samples.fledge.sampleapp;
 
 import static com.example.adservices.samples.fledge.SdkExtensionsHelpers.VersionCompatUtil.isTestableVersion;
 import static com.example.adservices.samples.fledge.WaterfallMediationHelpers.Constants.TAG;
+import static com.example.adservices.samples.fledge.WaterfallMediationHelpers.Constants.USE_FAKE_AD_SERVICES_INTENT;
 import static com.example.adservices.samples.fledge.WaterfallMediationHelpers.Constants.USE_ONLY_ADDITIONAL_IDS_INTENT;
 
 import android.adservices.adselection.AdSelectionOutcome;
@@ -34,17 +35,36 @@ import android.widget.TextView;
 import androidx.annotation.RequiresApi;
 import androidx.appcompat.app.AppCompatActivity;
 
+import com.example.adservices.samples.fledge.BenchmarkHelpers.WaterfallMediationBenchmark;
 import com.example.adservices.samples.fledge.WaterfallMediationHelpers.Constants;
 import com.example.adservices.samples.fledge.WaterfallMediationHelpers.CustomAudienceHelper;
+import com.example.adservices.samples.fledge.WaterfallMediationHelpers.HeaderBiddingMediationStrategy;
+import com.example.adservices.samples.fledge.WaterfallMediationHelpers.HybridMediationStrategy;
+import com.example.adservices.samples.fledge.WaterfallMediationHelpers.MediationMetrics;
 import com.example.adservices.samples.fledge.WaterfallMediationHelpers.MediationSdk;
+import com.example.adservices.samples.fledge.WaterfallMediationHelpers.MediationStrategy;
+import com.example.adservices.samples.fledge.WaterfallMediationHelpers.NetworkOutcomeCache;
 import com.example.adservices.samples.fledge.WaterfallMediationHelpers.NetworkAdapter;
+import com.example.adservices.samples.fledge.WaterfallMediationHelpers.WaterfallMediationEngine;
+import com.example.adservices.samples.fledge.WaterfallMediationHelpers.WaterfallMediationStrategy;
+import com.example.adservices.samples.fledge.clients.AdSelectionBackend;
 import com.example.adservices.samples.fledge.clients.CustomAudienceClient;
+import com.example.adservices.samples.fledge.clients.FakeAdServicesBackend;
 import com.example.adservices.samples.fledge.clients.TestCustomAudienceClient;
 import com.example.adservices.samples.fledge.sampleapp.databinding.WaterfallMediationActivityBinding;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
@@ -59,13 +79,25 @@ import java.util.stream.Collectors;
  */
 @RequiresApi(api = 34)
 public class WaterfallMediationActivity extends AppCompatActivity {
-
+    private static final String RUN_WATERFALL_BENCHMARK_INTENT = "runWaterfallBenchmark";
+    private static final String WATERFALL_LOOKAHEAD_INTENT = "waterfallLookahead";
+    private static final String MEDIATION_STRATEGY_INTENT = "mediationStrategy";
+    private static final String BIDDING_NETWORKS_INTENT = "biddingNetworks";
+    private static final String MEDIATION_SLOT_INTENT = "mediationSlot";
+    private static final String DEFAULT_MEDIATION_SLOT = "default";
+    private static final String ORDER_CHAIN_BY_INTENT = "orderChainBy";
+
+    private AdSelectionBackend adSelectionBackend;
     private CustomAudienceClient customAudienceClient;
     private TestCustomAudienceClient testCustomAudienceClient;
     private WaterfallMediationActivityBinding binding;
     private EventLogManager eventLog;
     private Executor executor;
     private Context context;
+    private final NetworkOutcomeCache outcomeCache = NetworkOutcomeCache.getDefault();
+    private final MediationMetrics metrics = MediationMetrics.getDefault();
+    // The bid each buyer's custom audience was last joined with.
+    private final Map<AdTechIdentifier, Double> joinedBids = new ConcurrentHashMap<>();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -76,11 +108,17 @@ public class WaterfallMediationActivity extends AppCompatActivity {
         setContentView(binding.getRoot());
         eventLog = new EventLogManager(binding.eventLog);
 
-        customAudienceClient =
-                new CustomAudienceClient.Builder()
-                        .setContext(context)
-                        .setExecutor(executor)
-                        .build();
+        CustomAudienceClient.Builder customAudienceClientBuilder =
+                new CustomAudienceClient.Builder().setContext(context).setExecutor(executor);
+        if (Boolean.parseBoolean(getIntentOrNull(USE_FAKE_AD_SERVICES_INTENT))) {
+            FakeAdServicesBackend fakeBackend = MainActivity.createFakeAdServicesBackend();
+            adSelectionBackend = fakeBackend;
+            customAudienceClientBuilder.setBackend(fakeBackend);
+            eventLog.writeEvent("Running against the in-process fake AdServices backend");
+        } else {
+            adSelectionBackend = AdSelectionBackend.platform(context);
+        }
+        customAudienceClient = customAudienceClientBuilder.build();
         testCustomAudienceClient =
                 new TestCustomAudienceClient.Builder()
                         .setContext(context)
@@ -89,6 +127,13 @@ public class WaterfallMediationActivity extends AppCompatActivity {
 
         binding.runWaterfallMediationButton.setOnClickListener(
                 (l) -> buttonOnClickRunWaterfallMediation());
+        registerComponentCallbacks(outcomeCache);
+    }
+
+    @Override
+    protected void onDestroy() {
+        unregisterComponentCallbacks(outcomeCache);
+        super.onDestroy();
     }
 
     private void buttonOnClickRunWaterfallMediation() {
@@ -108,24 +153,161 @@ public class WaterfallMediationActivity extends AppCompatActivity {
             throw new IllegalStateException(errorMessage);
         }
 
+        CustomAudienceHelper caHelper =
+                new CustomAudienceHelper(customAudienceClient, testCustomAudienceClient);
+
+        // Nothing below blocks: every stage is chained onto the previous one, and the stages'
+        // results are handled on the main thread.
+        Executor mainExecutor = getMainExecutor();
+        ListenableFuture<List<NetworkAdapter>> mediationChain;
+        ListenableFuture<MediationSdk> mediationSdk;
         try {
-            CustomAudienceHelper caHelper =
-                    new CustomAudienceHelper(customAudienceClient, testCustomAudienceClient);
+            mediationChain = configureMediationChain(caHelper);
+            mediationSdk = configureMediationSdk(caHelper);
+        } catch (RuntimeException e) {
+            onMediationFailed(e);
+            return;
+        }
+        ListenableFuture<Pair<AdSelectionOutcome, NetworkAdapter>> winnerOutcomeAndNetwork =
+                Futures.whenAllSucceed(mediationChain, mediationSdk)
+                        .callAsync(
+                                () -> {
+                                    List<NetworkAdapter> chain =
+                                            orderMediationChain(Futures.getDone(mediationChain));
+                                    return createMediationStrategy(mainExecutor, chain)
+                                            .mediate(Futures.getDone(mediationSdk), chain);
+                                },
+                                mainExecutor);
+
+        Futures.addCallback(
+                winnerOutcomeAndNetwork,
+                new FutureCallback<Pair<AdSelectionOutcome, NetworkAdapter>>() {
+                    @Override
+                    public void onSuccess(Pair<AdSelectionOutcome, NetworkAdapter> winner) {
+                        // Both have succeeded by now, so neither call blocks.
+                        MediationSdk sdk = Futures.getUnchecked(mediationSdk);
+                        List<NetworkAdapter> chain = Futures.getUnchecked(mediationChain);
+                        notifyOfResults(winner);
+                        if (winner.first.hasOutcome()) {
+                            // Winning counts towards the buyer's frequency caps.
+                            outcomeCache.invalidateAdSelection(winner.first.getAdSelectionId());
+                            metrics.recordWin(winner.second.getNetworkName());
+                        }
+                        writeEvent("%s", outcomeCache);
+                        writeMediationMetrics();
+                        resetAllOverrides(sdk, chain);
+                        if (Boolean.parseBoolean(getIntentOrNull(RUN_WATERFALL_BENCHMARK_INTENT))) {
+                            runWaterfallBenchmark(sdk, chain);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        onMediationFailed(t);
+                    }
+                },
+                mainExecutor);
+    }
 
-            List<NetworkAdapter> mediationChain = configureMediationChain(caHelper);
-            MediationSdk mediationSdk = configureMediationSdk(caHelper);
+    /**
+     * Returns the strategy for this slot, set with {@code -e mediationStrategy
+     * waterfall|bidding|hybrid}. Defaults to waterfall. The networks that bid in the hybrid
+     * strategy are set with {@code -e biddingNetworks networkA,networkB}. Networks' outcomes are
+     * cached per slot, which is set with {@code -e mediationSlot [slot]}.
+     */
+    private MediationStrategy createMediationStrategy(
+            Executor executor, List<NetworkAdapter> mediationChain) {
+        String strategy = getIntentOrNull(MEDIATION_STRATEGY_INTENT);
+        String slot = getIntentOrNull(MEDIATION_SLOT_INTENT);
+        NetworkOutcomeCache.Slot slotOutcomes =
+                outcomeCache.slot(slot == null ? DEFAULT_MEDIATION_SLOT : slot);
+        if (strategy == null || strategy.equals("waterfall")) {
+            return new WaterfallMediationStrategy(
+                    executor, getWaterfallLookahead(), slotOutcomes);
+        } else if (strategy.equals("bidding")) {
+            return new HeaderBiddingMediationStrategy(executor, slotOutcomes);
+        } else if (strategy.equals("hybrid")) {
+            String biddingNetworksIntent = getIntentOrNull(BIDDING_NETWORKS_INTENT);
+            List<String> biddingNetworkIds =
+                    biddingNetworksIntent == null
+                            ? Collections.emptyList()
+                            : Arrays.asList(biddingNetworksIntent.split(","));
+            // Networks are named in intents the way their base URLs are, e.g. networkA.
+            Set<String> biddingNetworks =
+                    mediationChain.stream()
+                            .map(NetworkAdapter::getNetworkName)
+                            .filter(name -> biddingNetworkIds.contains(Constants.toCamelCase(name)))
+                            .collect(Collectors.toSet());
+            return new HybridMediationStrategy(
+                    executor, biddingNetworks, getWaterfallLookahead(), slotOutcomes);
+        }
+        throw new IllegalArgumentException("Unknown mediation strategy: " + strategy);
+    }
 
-            Pair<AdSelectionOutcome, NetworkAdapter> winnerOutcomeAndNetwork =
-                    mediationSdk.orchestrateMediation(mediationChain);
+    /**
+     * Returns the chain in the order set with {@code -e orderChainBy bidFloor|expectedValue}. By
+     * default it stays sorted by descending bid floor; {@code expectedValue} ranks the networks by
+     * the value per millisecond their earlier auctions returned.
+     */
+    private List<NetworkAdapter> orderMediationChain(List<NetworkAdapter> mediationChain) {
+        String orderBy = getIntentOrNull(ORDER_CHAIN_BY_INTENT);
+        if (orderBy == null || orderBy.equals("bidFloor")) {
+            return mediationChain;
+        } else if (orderBy.equals("expectedValue")) {
+            List<NetworkAdapter> ordered = metrics.orderByExpectedValuePerMs(mediationChain);
+            for (NetworkAdapter network : ordered) {
+                writeEvent(
+                        "%s: %.4f per ms",
+                        network.getNetworkName(), metrics.expectedValuePerMs(network));
+            }
+            return ordered;
+        }
+        throw new IllegalArgumentException("Unknown chain order: " + orderBy);
+    }
 
-            notifyOfResults(winnerOutcomeAndNetwork);
+    /** Writes the per-network metrics to the event log, and exports them to logcat as JSON. */
+    private void writeMediationMetrics() {
+        MediationMetrics.Snapshot snapshot = metrics.snapshot();
+        snapshot.toLines().forEach(eventLog::writeEvent);
+        Log.i(TAG, "Mediation metrics: " + snapshot.toJson());
+    }
 
-            resetAllOverrides(mediationSdk, mediationChain);
-        } catch (Exception e) {
-            Log.e(TAG, "Mediation orchestration failed: " + e);
-            writeEvent("Error during mediation: %s", e.getCause());
-            binding.adSpace.setText(getString(R.string.no_ad_found));
-        }
+    /**
+     * Returns how many networks' auctions run ahead of the waterfall, set with {@code -e
+     * waterfallLookahead [networks]}. Defaults to none.
+     */
+    private int getWaterfallLookahead() {
+        String lookahead = getIntentOrNull(WATERFALL_LOOKAHEAD_INTENT);
+        return lookahead == null ? 0 : Integer.parseInt(lookahead);
+    }
+
+    private void onMediationFailed(Throwable t) {
+        Log.e(TAG, "Mediation orchestration failed: " + t);
+        writeEvent("Error during mediation: %s", t);
+        binding.adSpace.setText(getString(R.string.no_ad_found));
+    }
+
+    /**
+     * Compares the {@link WaterfallMediationEngine} with the previous blocking orchestration on
+     * the chain that was just run, in the background. Started with {@code -e
+     * runWaterfallBenchmark true}.
+     */
+    private void runWaterfallBenchmark(
+            MediationSdk mediationSdk, List<NetworkAdapter> mediationChain) {
+        writeEvent("Running waterfall mediation benchmark");
+        executor.execute(
+                () -> {
+                    try {
+                        new WaterfallMediationBenchmark(mediationSdk, mediationChain)
+                                .run()
+                                .forEach(eventLog::writeEvent);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (Exception e) {
+                        Log.e(TAG, "Waterfall mediation benchmark failed", e);
+                        writeEvent("Benchmark failed: %s", e);
+                    }
+                });
     }
 
     @SuppressLint("NewApi")
@@ -136,14 +318,15 @@ public class WaterfallMediationActivity extends AppCompatActivity {
                     winner.first.getAdSelectionId(), winner.second.getNetworkName());
             binding.adSpace.setText(
                     String.format("Would display ad from %s", winner.first.getRenderUri()));
-            winner.second.reportImpressions(winner.first.getAdSelectionId());
+            winner.second.reportImpressionsAsync(winner.first.getAdSelectionId());
         } else {
             writeEvent("No ad is found");
             binding.adSpace.setText(getString(R.string.no_ad_found));
         }
     }
 
-    private List<NetworkAdapter> configureMediationChain(CustomAudienceHelper caHelper) {
+    private ListenableFuture<List<NetworkAdapter>> configureMediationChain(
+            CustomAudienceHelper caHelper) {
         List<NetworkConfigurationRequest> requestList = new ArrayList<>();
         requestList.add(
                 new NetworkConfigurationRequest(
@@ -152,43 +335,56 @@ public class WaterfallMediationActivity extends AppCompatActivity {
                 new NetworkConfigurationRequest(
                         binding.networkB, binding.networkBBid, binding.networkBBidFloor));
 
-        return requestList.stream()
-                .filter(NetworkConfigurationRequest::isEligibleToParticipate)
-                .map(e -> configureNetworkAdapter(caHelper, e))
-                .sorted(Comparator.comparing(NetworkAdapter::getBidFloor).reversed())
-                .collect(Collectors.toList());
+        // The audiences of all networks are joined concurrently.
+        List<ListenableFuture<NetworkAdapter>> networkAdapters =
+                requestList.stream()
+                        .filter(NetworkConfigurationRequest::isEligibleToParticipate)
+                        .map(e -> configureNetworkAdapter(caHelper, e))
+                        .collect(Collectors.toList());
+        return Futures.transform(
+                Futures.allAsList(networkAdapters),
+                adapters ->
+                        adapters.stream()
+                                .sorted(
+                                        Comparator.comparing(NetworkAdapter::getBidFloor)
+                                                .reversed())
+                                .collect(Collectors.toList()),
+                MoreExecutors.directExecutor());
     }
 
-    private NetworkAdapter configureNetworkAdapter(
+    private ListenableFuture<NetworkAdapter> configureNetworkAdapter(
             CustomAudienceHelper caHelper, NetworkConfigurationRequest request) {
-        AdTechIdentifier buyer =
-                caHelper.configureCustomAudience(
-                        request.getBuyerName(),
-                        request.getBid(),
-                        request.getBaseUriOrNull(),
-                        request.useOverrides());
-        return createNetworkAdapter(
-                request.getNetworkName(),
-                buyer,
-                request.getBidFloor(),
-                request.getBaseUriOrNull(),
-                request.useOverrides());
+        // Read the request's views now, on the main thread.
+        String networkName = request.getNetworkName();
+        double bidFloor = request.getBidFloor();
+        Uri baseUri = request.getBaseUriOrNull();
+        boolean useOverrides = request.useOverrides();
+        Double bid = request.getBid();
+        return Futures.transform(
+                caHelper.configureCustomAudienceAsync(
+                        request.getBuyerName(), bid, baseUri, useOverrides),
+                buyer -> {
+                    // A new bid changes the buyer's auctions, so its cached outcomes are stale.
+                    if (!bid.equals(joinedBids.put(buyer, bid))) {
+                        outcomeCache.invalidateBuyer(buyer);
+                    }
+                    return createNetworkAdapter(
+                            networkName, buyer, bidFloor, baseUri, useOverrides);
+                },
+                MoreExecutors.directExecutor());
     }
 
-    private MediationSdk configureMediationSdk(CustomAudienceHelper caHelper) {
+    private ListenableFuture<MediationSdk> configureMediationSdk(CustomAudienceHelper caHelper) {
         NetworkConfigurationRequest request =
                 new NetworkConfigurationRequest(binding.network1p, binding.network1pBid, null);
-        AdTechIdentifier buyer =
-                caHelper.configureCustomAudience(
-                        request.getBuyerName(),
-                        request.getBid(),
-                        request.getBaseUriOrNull(),
-                        request.useOverrides());
-        return createMediationSdk(
-                request.getNetworkName(),
-                buyer,
-                request.getBaseUriOrNull(),
-                request.useOverrides());
+        String networkName = request.getNetworkName();
+        Uri baseUri = request.getBaseUriOrNull();
+        boolean useOverrides = request.useOverrides();
+        return Futures.transform(
+                caHelper.configureCustomAudienceAsync(
+                        request.getBuyerName(), request.getBid(), baseUri, useOverrides),
+                buyer -> createMediationSdk(networkName, buyer, baseUri, useOverrides),
+                MoreExecutors.directExecutor());
     }
 
     private NetworkAdapter createNetworkAdapter(
@@ -198,7 +394,15 @@ public class WaterfallMediationActivity extends AppCompatActivity {
             Uri baseUri,
             boolean useOverrides) {
         return new NetworkAdapter(
-                networkName, buyer, bidFloor, baseUri, useOverrides, executor, context, eventLog);
+                networkName,
+                buyer,
+                bidFloor,
+                baseUri,
+                useOverrides,
+                executor,
+                context,
+                eventLog,
+                adSelectionBackend);
     }
 
     private MediationSdk createMediationSdk(
@@ -212,7 +416,8 @@ public class WaterfallMediationActivity extends AppCompatActivity {
                 context,
                 binding,
                 eventLog,
-                Boolean.parseBoolean(getIntentOrNull(USE_ONLY_ADDITIONAL_IDS_INTENT)));
+                Boolean.parseBoolean(getIntentOrNull(USE_ONLY_ADDITIONAL_IDS_INTENT)),
+                adSelectionBackend);
     }
 
     private void resetAllOverrides(MediationSdk mediationSdk, List<NetworkAdapter> mediationChain) {
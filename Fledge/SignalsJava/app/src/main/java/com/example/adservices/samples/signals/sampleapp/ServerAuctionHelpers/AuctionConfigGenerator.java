@@ -15,7 +15,11 @@
  */
 package com.example.adservices.samples.signals.sampleapp.ServerAuctionHelpers;
 
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class AuctionConfigGenerator {
   private static final String HTTPS_SCHEME = "https";
@@ -25,6 +29,37 @@ public class AuctionConfigGenerator {
   private static final String BUYER_DEBUG_ID = "buyer_123";
   private static final String SELLER_DEBUG_ID = "seller_123";
   private static final int BUYER_TIMEOUT_MS = 60000;
+  private static final int MAX_CACHED_TEMPLATES = 16;
+
+  // Request templates keyed by seller, buyer, contextual flag and client type, in least recently
+  // used order.
+  private static final Map<List<Object>, SelectAdsRequestTemplate> sTemplates =
+      new LinkedHashMap<List<Object>, SelectAdsRequestTemplate>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<List<Object>, SelectAdsRequestTemplate> eldest) {
+          return size() > MAX_CACHED_TEMPLATES;
+        }
+      };
+
+  /**
+   * Returns the request template for an auction of {@code seller} with {@code buyer}. Templates
+   * are built once per seller, buyer, contextual flag and client type and then shared.
+   */
+  static SelectAdsRequestTemplate getRequestTemplate(
+      String seller, String buyer, boolean isContextualAdsRequested, String clientType) {
+    List<Object> key = Arrays.asList(seller, buyer, isContextualAdsRequested, clientType);
+    synchronized (sTemplates) {
+      SelectAdsRequestTemplate template = sTemplates.get(key);
+      if (template == null) {
+        template =
+            SelectAdsRequestTemplate.create(
+                getAuctionConfig(seller, buyer, isContextualAdsRequested), clientType);
+        sTemplates.put(key, template);
+      }
+      return template;
+    }
+  }
 
   public static AuctionConfig getAuctionConfig(String seller, String buyer, boolean isContextualAdsRequested) {
     PerBuyerConfig.Builder perBuyerConfigBuilder =
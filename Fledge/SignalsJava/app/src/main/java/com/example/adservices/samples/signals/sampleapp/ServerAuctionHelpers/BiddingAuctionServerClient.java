@@ -19,27 +19,17 @@ import static com.example.adservices.samples.signals.sampleapp.MainActivity.TAG;
 
 import android.content.Context;
 import android.util.Log;
-import com.google.common.io.BaseEncoding;
-import com.google.gson.FieldNamingPolicy;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.nio.charset.StandardCharsets;
 
 
 /**
  * Class to call and receive response from Bidding Auction Server.
  */
 public class BiddingAuctionServerClient {
-  private static final Gson sGson =
-      new GsonBuilder()
-          .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
-          .create();
   private final Context mContext;
   public BiddingAuctionServerClient(Context context) {
     mContext = context;
@@ -53,37 +43,17 @@ public class BiddingAuctionServerClient {
       boolean isContextualAdsRequested) throws IOException {
     Log.i(TAG, "sfeAddress: " + sfeAddress + " seller: " + seller + " buyer: " + buyer);
     // Add contextual data
-    SelectAdsRequest selectAdsRequest =
-        SelectAdsRequest.builder()
-            .setAuctionConfig(AuctionConfigGenerator.getAuctionConfig(seller, buyer, isContextualAdsRequested))
-            .setClientType("CLIENT_TYPE_ANDROID")
-            // Because we are making a HTTPS call, we need to encode the ciphertext byte array
-            .setProtectedAudienceCiphertext(
-                BaseEncoding.base64().encode(adSelectionData)).build();
-    Log.d(TAG, selectAdsRequest.toString());
-    return makeSelectAdsCall(sfeAddress, selectAdsRequest);
+    SelectAdsRequestTemplate template =
+        AuctionConfigGenerator.getRequestTemplate(
+            seller, buyer, isContextualAdsRequested, "CLIENT_TYPE_ANDROID");
+    Log.d(TAG, template + " with " + adSelectionData.length + " ciphertext bytes");
+    return makeSelectAdsCall(sfeAddress, template, adSelectionData);
   }
 
   private static SelectAdsResponse makeSelectAdsCall(
-      String sfeAddress, SelectAdsRequest request) throws IOException {
-    String requestPayload = getSelectAdPayload(request);
-    Log.d(TAG, "Request payload: " + requestPayload);
-    String response = makeHttpPostCall(sfeAddress, requestPayload);
-    Log.d(TAG, "Response from b&a : " + response);
-    return parseSelectAdResponse(response);
-  }
-
-  private static SelectAdsResponse parseSelectAdResponse(String jsonString) {
-    return new GsonBuilder().create().fromJson(jsonString, SelectAdsResponse.class);
-  }
-
-  private static String getSelectAdPayload(SelectAdsRequest selectAdsRequest) {
-    return sGson.toJson(selectAdsRequest);
-  }
-
-  private static String makeHttpPostCall(String address, String jsonInputString)
+      String sfeAddress, SelectAdsRequestTemplate template, byte[] adSelectionData)
       throws IOException {
-    URL url = new URL(address);
+    URL url = new URL(sfeAddress);
     HttpURLConnection con = (HttpURLConnection) url.openConnection();
     con.setRequestMethod("POST");
     con.setRequestProperty("Content-Type", "application/json");
@@ -92,22 +62,24 @@ public class BiddingAuctionServerClient {
     con.setRequestProperty("X-BnA-Client-IP", "192.168.0.1");
     con.setRequestProperty("X-User-Agent", "Test-User-Agent");
     con.setDoOutput(true);
+    // Send the body as it is written instead of buffering it to compute its length.
+    con.setChunkedStreamingMode(0);
     try (OutputStream os = con.getOutputStream()) {
-      byte[] input = jsonInputString.getBytes(StandardCharsets.UTF_8);
-      os.write(input, 0, input.length);
-      Log.d(TAG, "HTTP Post call made with payload : " + jsonInputString);
+      // Because we are making a HTTPS call, the template base64 encodes the ciphertext byte array
+      template.writeJsonRequest(adSelectionData, os);
+      Log.d(TAG, "HTTP Post call made");
     }
 
-    try (BufferedReader br =
-        new BufferedReader(new InputStreamReader(con.getInputStream(), StandardCharsets.UTF_8))) {
-      StringBuilder response = new StringBuilder();
-      String responseLine;
-      while ((responseLine = br.readLine()) != null) {
-        response.append(responseLine.trim());
-      }
-      Log.d(TAG, "Response read : " + response);
-
-      return response.toString();
+    try (InputStream is = con.getInputStream()) {
+      SelectAdsResponse response = SelectAdsCodec.readResponse(is);
+      Log.d(
+          TAG,
+          "Response from b&a with "
+              + (response.auctionResultCiphertext == null
+                  ? 0
+                  : response.auctionResultCiphertext.length())
+              + " ciphertext chars");
+      return response;
     }
   }
 }